@@ -0,0 +1,20 @@
+package org.jgroups;
+
+import org.jgroups.util.MessageBatch;
+
+/**
+ * A {@link Receiver} which is passed batches of messages (e.g. all messages of a message bundle received from the
+ * same sender) in a single callback, instead of one {@link #receive(Message)} callback per message. Messages from
+ * the same sender in a batch are in the order in which they have to be delivered.<p/>
+ * {@link #receive(Message)} is still called for messages which are not delivered as part of a batch.
+ * @author agent
+ * @since 3.1
+ */
+public interface BatchReceiver extends Receiver {
+
+    /**
+     * Called when a batch of messages is received. The batch must not be accessed after the method returns
+     * @param batch The batch. Iterating over it returns the messages in delivery order
+     */
+    void receive(MessageBatch batch);
+}
@@ -722,6 +722,49 @@ public class JChannel extends Channel {
     }
 
 
+    /**
+     * Callback invoked by the protocol stack when a batch of messages is received. If the registered receiver is a
+     * {@link BatchReceiver}, the batch is delivered in a single callback, otherwise every message is passed to the up
+     * handler or receiver individually
+     */
+    public void up(MessageBatch batch) {
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            if(stats) {
+                received_msgs++;
+                received_bytes+=msg.getLength();
+            }
+            // discard local messages (sent by myself to me)
+            if(discard_own_messages && local_addr != null && msg.getSrc() != null && local_addr.equals(msg.getSrc()))
+                it.remove();
+        }
+        if(batch.isEmpty())
+            return;
+
+        if(up_handler == null && receiver instanceof BatchReceiver) {
+            try {
+                ((BatchReceiver)receiver).receive(batch);
+            }
+            catch(Throwable t) {
+                log.error("failed delivering message batch " + batch, t);
+            }
+            return;
+        }
+
+        for(Message msg: batch) {
+            try {
+                if(up_handler != null)
+                    up_handler.up(new Event(Event.MSG, msg));
+                else if(receiver != null)
+                    invokeCallback(Event.MSG, msg);
+            }
+            catch(Throwable t) {
+                log.error("failed delivering message " + msg, t);
+            }
+        }
+    }
+
+
     /**
      * Sends a message through the protocol stack if the stack is available
      * @param evt the message to send down, encapsulated in an event
@@ -11,6 +11,7 @@ import org.jgroups.util.Streamable;
 import org.jgroups.util.Util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
@@ -21,6 +22,11 @@ import java.util.Map;
  * <p>
  * The byte buffer can point to a reference, and we can subset it using index and length. However,
  * when the message is serialized, we only write the bytes between index and length.
+ * <p>
+ * Alternatively, the payload can consist of multiple buffers (segments), see {@link #setBuffers(Buffer...)}. The
+ * segments are written one after the other when the message is serialized, so the receiver gets a message with a
+ * single buffer. This allows a sender to create a payload from (say) a header and a large body without first copying
+ * them into a single buffer.
  * 
  * @since 2.0
  * @author Bela Ban
@@ -35,9 +41,16 @@ public class Message implements Streamable {
     /** The index into the payload (usually 0) */
     protected int     offset;
 
-    /** The number of bytes in the buffer (usually buf.length is buf not equal to null). */
+    /** The number of bytes in the buffer (usually buf.length is buf not equal to null), or in all segments */
     protected int     length;
 
+    /**
+     * The payload if it consists of multiple buffers, buf is null in this case. Volatile because a getter may flatten
+     * the segments into buf (see {@link #flatten()}) while other threads access the message: reading segments == null
+     * guarantees that buf and offset are visible
+     */
+    protected volatile Buffer[] segments;
+
     /** All headers are placed here */
     protected Headers headers;
 
@@ -228,9 +241,12 @@ public class Message implements Streamable {
     * Returns a <em>reference</em> to the payload (byte buffer). Note that this buffer should not be
     * modified as we do not copy the buffer on copy() or clone(): the buffer of the copied message
     * is simply a reference to the old buffer.<br/>
-    * Even if offset and length are used: we return the <em>entire</em> buffer, not a subset.
+    * Even if offset and length are used: we return the <em>entire</em> buffer, not a subset.<br/>
+    * If the payload consists of multiple buffers, they're copied into a single buffer first.
     */
     public byte[] getRawBuffer() {
+        if(segments != null)
+            flatten();
         return buf;
     }
 
@@ -240,6 +256,8 @@ public class Message implements Streamable {
     * @return byte array with a copy of the buffer.
     */
     final public byte[] getBuffer() {
+        if(segments != null)
+            flatten();
         if(buf == null)
             return null;
         if(offset == 0 && length == buf.length)
@@ -252,6 +270,7 @@ public class Message implements Streamable {
     }
 
     final public void setBuffer(byte[] b) {
+        segments=null;
         buf=b;
         if(buf != null) {
             offset=0;
@@ -273,6 +292,7 @@ public class Message implements Streamable {
     *           The number of bytes
     */
     final public void setBuffer(byte[] b, int offset, int length) {
+        segments=null;
         buf=b;
         if(buf != null) {
             if(offset < 0 || offset > buf.length)
@@ -296,18 +316,95 @@ public class Message implements Streamable {
     */
      public final void setBuffer(Buffer buf) {
         if(buf != null) {
+            this.segments=null;
             this.buf=buf.getBuf();
             this.offset=buf.getOffset();
             this.length=buf.getLength();
         }
     }
 
+   /**
+    * Sets the payload to a number of buffers. The buffers are not copied, so (as with {@link #setBuffer(byte[])})
+    * they must not be modified after this call. When the message is marshalled, the buffers are written one after
+    * the other; a receiver gets a message with a single buffer. Null buffers are skipped.
+    */
+    final public void setBuffers(Buffer ... bufs) {
+        buf=null;
+        offset=length=0;
+        segments=null;
+        if(bufs == null)
+            return;
+        int num=0;
+        long total=0;
+        for(Buffer b: bufs) {
+            if(b != null) {
+                num++;
+                total+=b.getLength();
+            }
+        }
+        if(total > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("total length of buffers (" + total + ") exceeds " + Integer.MAX_VALUE);
+        Buffer[] tmp=new Buffer[num];
+        int index=0;
+        for(Buffer b: bufs)
+            if(b != null)
+                tmp[index++]=b;
+        length=(int)total;
+        segments=tmp;
+    }
+
+    /** Same as {@link #setBuffers(Buffer...)}, but with byte[] arrays */
+    final public void setBuffers(byte[] ... bufs) {
+        Buffer[] tmp=null;
+        if(bufs != null) {
+            tmp=new Buffer[bufs.length];
+            for(int i=0; i < bufs.length; i++)
+                if(bufs[i] != null)
+                    tmp[i]=new Buffer(bufs[i]);
+        }
+        setBuffers(tmp);
+    }
+
+   /**
+    * Same as {@link #setBuffers(Buffer...)}, but with ByteBuffers: the bytes between position and limit are used.
+    * Heap buffers are referenced, direct buffers are copied. The positions of the ByteBuffers are not changed
+    */
+    final public void setBuffers(ByteBuffer ... bufs) {
+        Buffer[] tmp=null;
+        if(bufs != null) {
+            tmp=new Buffer[bufs.length];
+            for(int i=0; i < bufs.length; i++) {
+                ByteBuffer b=bufs[i];
+                if(b == null)
+                    continue;
+                if(b.hasArray())
+                    tmp[i]=new Buffer(b.array(), b.arrayOffset() + b.position(), b.remaining());
+                else {
+                    byte[] copy=new byte[b.remaining()];
+                    b.duplicate().get(copy);
+                    tmp[i]=new Buffer(copy);
+                }
+            }
+        }
+        setBuffers(tmp);
+    }
+
+   /**
+    * Returns the buffers of the payload if it was set with one of the setBuffers() methods, or null if the payload
+    * is a single buffer (or there's no payload). The returned array must not be modified
+    */
+    public Buffer[] getBuffers() {
+        return segments;
+    }
+
    /**
     * 
     * Returns the offset into the buffer at which the data starts
     * 
     */
     public int getOffset() {
+        if(segments != null)
+            flatten();
         return offset;
     }
 
@@ -372,6 +469,8 @@ public class Message implements Streamable {
     */
     final public Object getObject() {
         try {
+            if(segments != null)
+                flatten();
             return Util.objectFromByteBuffer(buf, offset, length);
         }
         catch(Exception ex) {
@@ -555,7 +654,12 @@ public class Message implements Streamable {
         retval.flags=flags;
         retval.transient_flags=transient_flags;
 
-        if(copy_buffer && buf != null) {
+        Buffer[] tmp=segments; // read segments first, see flatten()
+        if(copy_buffer && tmp != null) {
+            retval.segments=tmp; // immutable, so it can be shared
+            retval.length=length;
+        }
+        else if(copy_buffer && buf != null) {
 
             // change bela Feb 26 2004: we don't resolve the reference
             retval.setBuffer(buf, offset, length);
@@ -609,7 +713,7 @@ public class Message implements Streamable {
             ret.append(" (").append(size).append(" headers)");
 
         ret.append(", size=");
-        if(buf != null && length > 0)
+        if(hasPayload() && length > 0)
             ret.append(length);
         else
             ret.append('0');
@@ -628,7 +732,7 @@ public class Message implements Streamable {
     /** Tries to read an object from the message's buffer and prints it */
     public String toStringAsObject() {
 
-        if(buf == null) return null;
+        if(!hasPayload()) return null;
         try {
             Object obj=getObject();
             return obj != null ? obj.toString() : "";
@@ -656,6 +760,19 @@ public class Message implements Streamable {
      * @throws Exception
      */
     public void writeTo(DataOutput out) throws Exception {
+        writeTo(out, out, true);
+    }
+
+   /**
+    * Marshals the message like {@link #writeTo(DataOutput)}, but without the bytes of the payload: everything up to
+    * and including the payload's length is written to out, the headers are written to hdrs_out. The payload has to
+    * be sent between the two (e.g. with a gathering write), see {@link #getBuffers()}
+    */
+    public void writeToWithoutPayload(DataOutput out, DataOutput hdrs_out) throws Exception {
+        writeTo(out, hdrs_out, false);
+    }
+
+    protected void writeTo(DataOutput out, DataOutput hdrs_out, boolean write_payload) throws Exception {
         byte leading=0;
 
         if(dest_addr != null)
@@ -664,7 +781,7 @@ public class Message implements Streamable {
         if(src_addr != null)
             leading=Util.setFlag(leading, SRC_SET);
 
-        if(buf != null)
+        if(hasPayload())
             leading=Util.setFlag(leading, BUF_SET);
 
         // 1. write the leading byte first
@@ -682,22 +799,14 @@ public class Message implements Streamable {
             Util.writeAddress(src_addr, out);
 
         // 5. buf
-        if(buf != null) {
+        if(hasPayload()) {
             out.writeInt(length);
-            out.write(buf, offset, length);
+            if(write_payload)
+                writePayload(out);
         }
 
         // 6. headers
-        int size=headers.size();
-        out.writeShort(size);
-        final short[]  ids=headers.getRawIDs();
-        final Header[] hdrs=headers.getRawHeaders();
-        for(int i=0; i < ids.length; i++) {
-            if(ids[i] > 0) {
-                out.writeShort(ids[i]);
-                writeHeader(hdrs[i], out);
-            }
-        }
+        writeHeaders(hdrs_out);
     }
 
    /**
@@ -716,7 +825,7 @@ public class Message implements Streamable {
         if(write_src_addr)
             leading=Util.setFlag(leading, SRC_SET);
 
-        if(buf != null)
+        if(hasPayload())
             leading=Util.setFlag(leading, BUF_SET);
 
         // 1. write the leading byte first
@@ -730,22 +839,13 @@ public class Message implements Streamable {
             Util.writeAddress(src_addr, out);
 
         // 5. buf
-        if(buf != null) {
+        if(hasPayload()) {
             out.writeInt(length);
-            out.write(buf, offset, length);
+            writePayload(out);
         }
 
         // 6. headers
-        int size=headers.size();
-        out.writeShort(size);
-        final short[]  ids=headers.getRawIDs();
-        final Header[] hdrs=headers.getRawHeaders();
-        for(int i=0; i < ids.length; i++) {
-            if(ids[i] > 0) {
-                out.writeShort(ids[i]);
-                writeHeader(hdrs[i], out);
-            }
-        }
+        writeHeaders(out);
     }
 
 
@@ -766,6 +866,7 @@ public class Message implements Streamable {
             src_addr=Util.readAddress(in);
 
         // 5. buf
+        segments=null;
         if(Util.isFlagSet(leading, BUF_SET)) {
             int len=in.readInt();
             buf=new byte[len];
@@ -805,7 +906,7 @@ public class Message implements Streamable {
             retval+=Util.size(dest_addr);
         if(src_addr != null)
             retval+=Util.size(src_addr);
-        if(buf != null)
+        if(hasPayload())
             retval+=Global.INT_SIZE // length (integer)
                     + length;       // number of bytes in the buffer
 
@@ -818,6 +919,52 @@ public class Message implements Streamable {
 
     /* ----------------------------------- Private methods ------------------------------- */
 
+    protected boolean hasPayload() {
+        return segments != null || buf != null; // segments first, see flatten()
+    }
+
+    protected void writePayload(DataOutput out) throws Exception {
+        Buffer[] tmp=segments;
+        if(tmp == null) {
+            out.write(buf, offset, length);
+            return;
+        }
+        for(Buffer b: tmp)
+            out.write(b.getBuf(), b.getOffset(), b.getLength());
+    }
+
+    protected void writeHeaders(DataOutput out) throws Exception {
+        int size=headers.size();
+        out.writeShort(size);
+        final short[]  ids=headers.getRawIDs();
+        final Header[] hdrs=headers.getRawHeaders();
+        for(int i=0; i < ids.length; i++) {
+            if(ids[i] > 0) {
+                out.writeShort(ids[i]);
+                writeHeader(hdrs[i], out);
+            }
+        }
+    }
+
+    /**
+     * Copies the segments into a single buffer. Synchronized so that concurrent getters copy only once; buf and offset
+     * are published by the volatile write of segments, so readers which see segments == null see the flat buffer
+     */
+    protected synchronized void flatten() {
+        Buffer[] tmp=segments;
+        if(tmp == null) // flattened by a different thread
+            return;
+        byte[] flat=new byte[length];
+        int index=0;
+        for(Buffer b: tmp) {
+            System.arraycopy(b.getBuf(), b.getOffset(), flat, index, b.getLength());
+            index+=b.getLength();
+        }
+        buf=flat;
+        offset=0;
+        segments=null; // must be the last write
+    }
+
     public static String flagsToString(short flags) {
         StringBuilder sb=new StringBuilder();
         boolean first=true;
@@ -0,0 +1,22 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Message;
+
+/**
+ * A {@link RequestHandler} which doesn't have to produce the response before returning: the response is sent when
+ * the handler (or any other thread) invokes {@link Response#send(Object, boolean)}. This way, a handler waiting for
+ * I/O or for a nested RPC doesn't block the thread which delivered the request.<p/>
+ * Used by {@link RequestCorrelator} instead of {@link RequestHandler#handle(Message)} when async dispatching is
+ * enabled.
+ * @author agent
+ * @since 3.1
+ */
+public interface AsyncRequestHandler extends RequestHandler {
+    /**
+     * Handles a request
+     * @param request The request
+     * @param response Used to send the response; null if the caller doesn't expect a response. If this method throws
+     *                 an exception, the exception is sent as response.
+     */
+    void handle(Message request, Response response) throws Exception;
+}
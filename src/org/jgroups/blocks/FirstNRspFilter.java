@@ -0,0 +1,37 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+
+/**
+ * Completes a request as soon as N valid (non-exception) responses have been received. Exceptions are not added to
+ * the response list. A filter holds per-request state, so a new instance has to be used for each request.
+ * @author agent
+ * @since 3.1
+ */
+public class FirstNRspFilter implements RspFilter {
+    protected final int num;
+    protected int       received;
+
+    public FirstNRspFilter(int num) {
+        if(num <= 0)
+            throw new IllegalArgumentException("number of responses (" + num + ") has to be > 0");
+        this.num=num;
+    }
+
+    public synchronized boolean isAcceptable(Object response, Address sender) {
+        if(response instanceof Throwable)
+            return false;
+        received++;
+        return true;
+    }
+
+    public synchronized boolean needMoreResponses() {
+        return received < num;
+    }
+
+    public synchronized int getReceived() {return received;}
+
+    public String toString() {
+        return "first " + num + " (received=" + getReceived() + ")";
+    }
+}
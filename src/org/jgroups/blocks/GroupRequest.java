@@ -59,6 +59,9 @@ public class GroupRequest<T> extends Request {
     @GuardedBy("lock")
     int num_valid, num_received, num_suspected;
 
+    /** Messages to be sent to individual targets (keys), used instead of request_msg by bulk requests */
+    protected final Map<Address,Message> target_msgs;
+
 
 
     
@@ -76,12 +79,28 @@ public class GroupRequest<T> extends Request {
         int size=targets.size();
         requests=new HashMap<Address,Rsp<T>>(size);
         setTargets(targets);
+        target_msgs=null;
     }
 
     public GroupRequest(Message msg, RequestCorrelator corr, Address target, RequestOptions options) {
         super(msg, corr, options);
         requests=new HashMap<Address,Rsp<T>>(1);
         setTarget(target);
+        target_msgs=null;
+    }
+
+    /**
+     * Creates a bulk request, which sends a different message to each target. All messages are sent with the same
+     * request ID, and the responses are collected by this request
+     * @param msgs The messages to be sent, keyed by their targets
+     * @param corr The request correlator to be used
+     * @param options The request options to be used for this call. Anycasting is ignored
+     */
+    public GroupRequest(Map<Address,Message> msgs, RequestCorrelator corr, RequestOptions options) {
+        super(null, corr, options);
+        requests=new HashMap<Address,Rsp<T>>(msgs.size());
+        setTargets(msgs.keySet());
+        target_msgs=msgs;
     }
 
 
@@ -96,7 +115,10 @@ public class GroupRequest<T> extends Request {
 
 
     public void sendRequest() throws Exception {
-        sendRequest(requests.keySet(), req_id);
+        if(target_msgs != null)
+            sendRequests(req_id);
+        else
+            sendRequest(requests.keySet(), req_id);
     }
 
     /* ---------------------- Interface RspCollector -------------------------- */
@@ -161,6 +183,7 @@ public class GroupRequest<T> extends Request {
                 lock.lock();
                 try {
                     num_suspected++;
+                    setDoneIfComplete();
                     completed.signalAll();
                 }
                 finally {
@@ -212,8 +235,10 @@ public class GroupRequest<T> extends Request {
                     }
                 }
             }
-            if(changed)
+            if(changed) {
+                setDoneIfComplete();
                 completed.signalAll();
+            }
         }
         finally {
             lock.unlock();
@@ -287,6 +312,16 @@ public class GroupRequest<T> extends Request {
             requests.put(mbr, new Rsp<T>(mbr));
     }
 
+    /** Marks the request as done if all responses have been received (e.g. after members were suspected) */
+    @GuardedBy("lock")
+    protected void setDoneIfComplete() {
+        if(!done && responsesComplete()) {
+            done=true;
+            if(corr != null)
+                corr.done(req_id);
+        }
+    }
+
     private static int determineMajority(int i) {
         return i < 2? i : (i / 2) + 1;
     }
@@ -304,6 +339,21 @@ public class GroupRequest<T> extends Request {
     }
 
 
+    /** Sends the messages of a bulk request to their targets, back-to-back, with the same request ID */
+    private void sendRequests(long requestId) throws Exception {
+        RspCollector coll=options.getMode() == ResponseMode.GET_NONE? null : this;
+        try {
+            for(Map.Entry<Address,Message> entry: target_msgs.entrySet())
+                corr.sendUnicastRequest(requestId, entry.getKey(), entry.getValue(), coll);
+        }
+        catch(Exception ex) {
+            if(corr != null)
+                corr.done(requestId);
+            throw ex;
+        }
+    }
+
+
     @GuardedBy("lock")
     protected boolean responsesComplete() {
         if(done)
@@ -0,0 +1,63 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable mapping between members and their positions (0..size-1). Built once per view by
+ * {@link MessageDispatcher} and shared by all {@link StreamingGroupRequest}s sent in that view, so that a request only
+ * needs one bit per position to keep track of its targets. Duplicate members are only added once.
+ * @author agent
+ * @since 3.1
+ */
+public class MemberIndex {
+    protected final Address[]            members;
+    protected final Map<Address,Integer> indices;
+
+
+    public MemberIndex(Collection<Address> mbrs) {
+        indices=new HashMap<Address,Integer>(mbrs.size() * 2);
+        Address[] tmp=new Address[mbrs.size()];
+        int index=0;
+        for(Address mbr: mbrs) {
+            if(!indices.containsKey(mbr)) {
+                indices.put(mbr, index);
+                tmp[index++]=mbr;
+            }
+        }
+        if(index < tmp.length) {
+            members=new Address[index];
+            System.arraycopy(tmp, 0, members, 0, index);
+        }
+        else
+            members=tmp;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    /** Returns the position of mbr, or -1 if mbr is not a member */
+    public int indexOf(Address mbr) {
+        Integer index=mbr != null? indices.get(mbr) : null;
+        return index != null? index : -1;
+    }
+
+    public Address get(int index) {
+        return members[index];
+    }
+
+    public boolean containsAll(Collection<Address> mbrs) {
+        for(Address mbr: mbrs)
+            if(!indices.containsKey(mbr))
+                return false;
+        return true;
+    }
+
+    public String toString() {
+        return members.length + " members";
+    }
+}
@@ -34,7 +34,7 @@ import java.util.concurrent.CopyOnWriteArraySet;
  *
  * @author Bela Ban
  */
-public class MessageDispatcher implements RequestHandler, ChannelListener {
+public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
     protected Channel channel=null;
     protected RequestCorrelator corr=null;
     protected MessageListener msg_listener=null;
@@ -42,9 +42,12 @@ public class MessageDispatcher implements RequestHandler, ChannelListener {
     protected RequestHandler req_handler=null;
     protected ProtocolAdapter prot_adapter=null;
     protected volatile Collection<Address> members=new HashSet<Address>();
+    /** The positions of the current members, shared by all {@link StreamingGroupRequest}s sent in the current view */
+    protected volatile MemberIndex member_index;
     protected Address local_addr=null;
     protected final Log log=LogFactory.getLog(getClass());
     protected boolean hardware_multicast_supported=false;
+    protected boolean async_dispatching=false;
 
     protected final Set<ChannelListener> channel_listeners=new CopyOnWriteArraySet<ChannelListener>();
 
@@ -88,8 +91,10 @@ public class MessageDispatcher implements RequestHandler, ChannelListener {
      * initially since viewChange has most likely already been called in PullPushAdapter.
      */
     protected void setMembers(List<Address> new_mbrs) {
-        if(new_mbrs != null)
+        if(new_mbrs != null) {
+            member_index=new MemberIndex(new_mbrs);
             members=new HashSet<Address>(new_mbrs); // volatile write - seen by a subsequent read
+        }
     }
 
 
@@ -113,6 +118,7 @@ public class MessageDispatcher implements RequestHandler, ChannelListener {
         if(corr == null) {
             corr=createRequestCorrelator(prot_adapter, this, local_addr);
         }
+        corr.setAsyncDispatching(async_dispatching);
         correlatorStarted();
         corr.start();
 
@@ -125,6 +131,7 @@ public class MessageDispatcher implements RequestHandler, ChannelListener {
             }
             TP transport=channel.getProtocolStack().getTransport();
             hardware_multicast_supported=transport.supportsMulticasting();
+            corr.setTimer(transport.getTimer());
         }
     }
 
@@ -163,6 +170,21 @@ public class MessageDispatcher implements RequestHandler, ChannelListener {
         req_handler=rh;
     }
 
+    public boolean getAsyncDispatching() {
+        return async_dispatching;
+    }
+
+    /**
+     * If enabled, requests are passed to {@link #handle(Message, Response)}, so a request handler implementing
+     * {@link AsyncRequestHandler} can send the response later from a different thread, instead of blocking the
+     * thread which delivered the request until the response is ready
+     */
+    public void setAsyncDispatching(boolean flag) {
+        async_dispatching=flag;
+        if(corr != null)
+            corr.setAsyncDispatching(flag);
+    }
+
     public Channel getChannel() {
         return channel;
     }
@@ -236,7 +258,7 @@ public class MessageDispatcher implements RequestHandler, ChannelListener {
     public <T> RspList<T> castMessage(final Collection<Address> dests,
                                       Message msg, RequestOptions options) throws Exception {
         GroupRequest<T> req=cast(dests, msg, options, true);
-        return req != null? req.getResults() : new RspList();
+        return req != null? req.getResults() : new RspList<T>();
     }
 
 
@@ -254,12 +276,90 @@ public class MessageDispatcher implements RequestHandler, ChannelListener {
                                                                  Message msg,
                                                                  RequestOptions options) throws Exception {
         GroupRequest<T> req=cast(dests, msg, options, false);
-        return req != null? req : new NullFuture<RspList>(new RspList());
+        return req != null? req : new NullFuture<RspList<T>>(new RspList<T>());
+    }
+
+    /**
+     * Sends a message to the members listed in dests and hands each response to a reducer as soon as it is received.
+     * Contrary to {@link #castMessage(java.util.Collection, org.jgroups.Message, RequestOptions)}, the responses are
+     * not retained, and the call returns as soon as the reducer has determined the result. This keeps the memory
+     * needed by calls to large clusters small.
+     * @param dests A list of group members to send the message to. The message is sent to all members of the current
+     *        group if null
+     * @param msg The message to be sent
+     * @param options A set of options that govern the call. The response filter is ignored
+     * @param reducer The reducer to which the responses are passed, see {@link RspReducers} for built-in reducers
+     * @return The result of the reducer
+     * @throws Exception If the request cannot be sent
+     * @since 3.1
+     */
+    public <T,R> R castMessage(final Collection<Address> dests, Message msg, RequestOptions options,
+                               RspReducer<T,R> reducer) throws Exception {
+        StreamingGroupRequest<T,R> req=reduce(dests, msg, options, reducer, true);
+        return req != null? req.getResult() : reducer.getResult();
+    }
+
+    /**
+     * Same as {@link #castMessage(java.util.Collection, org.jgroups.Message, RequestOptions, RspReducer)}, but
+     * doesn't block. The result of the reducer can be retrieved from the returned future
+     * @since 3.1
+     */
+    public <T,R> NotifyingFuture<R> castMessageWithFuture(final Collection<Address> dests, Message msg,
+                                                          RequestOptions options,
+                                                          RspReducer<T,R> reducer) throws Exception {
+        StreamingGroupRequest<T,R> req=reduce(dests, msg, options, reducer, false);
+        return req != null? req : new NullFuture<R>(reducer.getResult());
     }
 
     protected <T> GroupRequest<T> cast(final Collection<Address> dests, Message msg,
                                        RequestOptions options,
                                        boolean block_for_results) throws Exception {
+        List<Address> real_dests=getTargets(dests, options);
+        if(real_dests == null)
+            return null;
+
+        GroupRequest<T> req=new GroupRequest<T>(msg, corr, real_dests, options);
+        if(options != null) {
+            req.setResponseFilter(options.getRspFilter());
+            req.setAnycasting(options.getAnycasting());
+            msg.setFlag(options.getFlags());
+            if(options.getScope() > 0)
+                msg.setScope(options.getScope());
+        }
+        req.setBlockForResults(block_for_results);
+        req.execute();
+        return req;
+    }
+
+    protected <T,R> StreamingGroupRequest<T,R> reduce(final Collection<Address> dests, Message msg,
+                                                      RequestOptions options, RspReducer<T,R> reducer,
+                                                      boolean block_for_results) throws Exception {
+        List<Address> real_dests=getTargets(dests, options);
+        if(real_dests == null) {
+            reducer.init(0);
+            return null;
+        }
+
+        StreamingGroupRequest<T,R> req=new StreamingGroupRequest<T,R>(msg, corr, real_dests, member_index,
+                                                                      options != null? options : RequestOptions.SYNC(),
+                                                                      reducer);
+        if(options != null) {
+            req.setAnycasting(options.getAnycasting());
+            msg.setFlag(options.getFlags());
+            if(options.getScope() > 0)
+                msg.setScope(options.getScope());
+        }
+        req.setBlockForResults(block_for_results);
+        req.execute();
+        return req;
+    }
+
+    /**
+     * Returns the members of dests (or of the current view if null) which are current members, minus the local
+     * member if own messages are discarded and minus the members of the exclusion list. Returns null if no member
+     * is left
+     */
+    protected List<Address> getTargets(final Collection<Address> dests, RequestOptions options) {
         List<Address> real_dests;
 
         // we need to clone because we don't want to modify the original
@@ -294,18 +394,7 @@ public class MessageDispatcher implements RequestHandler, ChannelListener {
                 log.trace("destination list is empty, won't send message");
             return null;
         }
-
-        GroupRequest<T> req=new GroupRequest<T>(msg, corr, real_dests, options);
-        if(options != null) {
-            req.setResponseFilter(options.getRspFilter());
-            req.setAnycasting(options.getAnycasting());
-            msg.setFlag(options.getFlags());
-            if(options.getScope() > 0)
-                msg.setScope(options.getScope());
-        }
-        req.setBlockForResults(block_for_results);
-        req.execute();
-        return req;
+        return real_dests;
     }
 
 
@@ -393,6 +482,66 @@ public class MessageDispatcher implements RequestHandler, ChannelListener {
     }
 
 
+    /**
+     * Sends a different message to each of a number of members and returns the responses. The destination of each
+     * message is its target; messages with a null destination, or to non-members, are not sent. All messages are
+     * sent back-to-back under the same request, so the transport can bundle them.
+     * @param msgs The messages to be sent
+     * @param options The options to be used. Flags and scope are applied to all messages; anycasting is ignored
+     * @return RspList A list of Rsp elements, one per member a message was sent to
+     * @throws Exception If the request cannot be sent
+     * @since 3.1
+     */
+    public <T> RspList<T> sendMessages(Collection<Message> msgs, RequestOptions options) throws Exception {
+        GroupRequest<T> req=bulk(msgs, options, true);
+        return req != null? req.getResults() : new RspList<T>();
+    }
+
+    /**
+     * Sends a different message to each of a number of members and returns a future. Same as
+     * {@link #sendMessages(java.util.Collection, RequestOptions)}, but doesn't block
+     * @return NotifyingFuture<T> A future from which the results (RspList) can be retrieved
+     * @since 3.1
+     */
+    public <T> NotifyingFuture<RspList<T>> sendMessagesWithFuture(Collection<Message> msgs,
+                                                                  RequestOptions options) throws Exception {
+        GroupRequest<T> req=bulk(msgs, options, false);
+        return req != null? req : new NullFuture<RspList<T>>(new RspList<T>());
+    }
+
+    protected <T> GroupRequest<T> bulk(Collection<Message> msgs, RequestOptions options,
+                                       boolean block_for_results) throws Exception {
+        Map<Address,Message> target_msgs=new LinkedHashMap<Address,Message>(msgs.size());
+        for(Message msg: msgs) {
+            Address dest=msg.getDest();
+            if(dest == null || !members.contains(dest)) {
+                if(log.isWarnEnabled())
+                    log.warn("destination " + dest + " is not a member, won't send message");
+                continue;
+            }
+            if(options != null) {
+                msg.setFlag(options.getFlags());
+                if(options.getScope() > 0)
+                    msg.setScope(options.getScope());
+            }
+            if(target_msgs.put(dest, msg) != null)
+                throw new IllegalArgumentException("more than one message to " + dest);
+        }
+        if(target_msgs.isEmpty()) {
+            if(log.isTraceEnabled())
+                log.trace("destination list is empty, won't send messages");
+            return null;
+        }
+
+        GroupRequest<T> req=new GroupRequest<T>(target_msgs, corr, options != null? options : RequestOptions.SYNC());
+        if(options != null)
+            req.setResponseFilter(options.getRspFilter());
+        req.setBlockForResults(block_for_results);
+        req.execute();
+        return req;
+    }
+
+
 
     /* ------------------------ RequestHandler Interface ---------------------- */
     public Object handle(Message msg) throws Exception {
@@ -400,6 +549,16 @@ public class MessageDispatcher implements RequestHandler, ChannelListener {
             return req_handler.handle(msg);
         return null;
     }
+
+    public void handle(Message request, Response response) throws Exception {
+        if(req_handler instanceof AsyncRequestHandler) {
+            ((AsyncRequestHandler)req_handler).handle(request, response);
+            return;
+        }
+        Object retval=handle(request);
+        if(response != null)
+            response.send(retval, false);
+    }
     /* -------------------- End of RequestHandler Interface ------------------- */
 
 
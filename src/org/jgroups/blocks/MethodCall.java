@@ -3,11 +3,11 @@ package org.jgroups.blocks;
 
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
+import org.jgroups.util.Streamable;
+import org.jgroups.util.Util;
 
-import java.io.Externalizable;
-import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectOutput;
+import java.io.*;
+import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -18,10 +18,12 @@ import java.util.List;
 /**
  * A method call is the JGroups representation of a remote method.
  * It includes the name of the method (case sensitive) and a list of arguments.
- * A method call is serializable and can be passed over the wire.
+ * A method call is serializable and can be passed over the wire. When marshalled with
+ * {@link Util#objectToByteBuffer(Object)} (the default in RpcDispatcher), it is written as a {@link Streamable}, and
+ * the arguments use the compact encodings of {@link Util#objectToStream(Object, java.io.DataOutput)}.
  * @author Bela Ban
  */
-public class MethodCall implements Externalizable {
+public class MethodCall implements Externalizable, Streamable {
 
     private static final long serialVersionUID=7873471327078957662L;
 
@@ -57,6 +59,10 @@ public class MethodCall implements Externalizable {
     /** Use an ID to map to a method */
     protected static final short ID=5;
 
+    /** Primitive types can't be loaded by name, so they're marshalled as their index into this array */
+    protected static final Class<?>[] PRIMITIVE_TYPES={boolean.class, byte.class, char.class, short.class, int.class,
+      long.class, float.class, double.class, void.class};
+
 
 
     /**
@@ -141,6 +147,10 @@ public class MethodCall implements Externalizable {
         this.args=args;
     }
 
+    public Class[] getTypes() {
+        return types;
+    }
+
     public Method getMethod() {
         return method;
     }
@@ -455,6 +465,107 @@ public class MethodCall implements Externalizable {
     }
 
 
+    public void writeTo(DataOutput out) throws Exception {
+        out.writeByte(mode);
+        if(method_name != null) {
+            out.writeBoolean(true);
+            out.writeUTF(method_name);
+        }
+        else {
+            out.writeBoolean(false);
+            out.writeShort(method_id);
+        }
+        out.writeShort(args != null? args.length : -1);
+        if(args != null)
+            for(Object arg: args)
+                Util.objectToStream(arg, out);
+
+        switch(mode) {
+            case METHOD:
+                writeTypes(method.getParameterTypes(), out);
+                writeType(method.getDeclaringClass(), out);
+                break;
+            case TYPES:
+                writeTypes(types, out);
+                break;
+        }
+    }
+
+    public void readFrom(DataInput in) throws Exception {
+        mode=in.readByte();
+        if(in.readBoolean())
+            method_name=in.readUTF();
+        else
+            method_id=in.readShort();
+        short len=in.readShort();
+        if(len >= 0) {
+            args=new Object[len];
+            for(int i=0; i < len; i++)
+                args[i]=Util.objectFromStream(in);
+        }
+
+        switch(mode) {
+            case METHOD:
+                Class<?>[] parameter_types=readTypes(in);
+                Class<?>   declaring_class=readType(in);
+                method=declaring_class.getDeclaredMethod(method_name, parameter_types);
+                break;
+            case TYPES:
+                types=readTypes(in);
+                break;
+        }
+    }
+
+
+    protected static void writeTypes(Class<?>[] types, DataOutput out) throws Exception {
+        out.writeShort(types != null? types.length : -1);
+        if(types != null)
+            for(Class<?> type: types)
+                writeType(type, out);
+    }
+
+    protected static Class<?>[] readTypes(DataInput in) throws Exception {
+        short len=in.readShort();
+        if(len < 0)
+            return null;
+        Class<?>[] retval=new Class<?>[len];
+        for(int i=0; i < len; i++)
+            retval[i]=readType(in);
+        return retval;
+    }
+
+    /** Writes the index of a primitive type, -2 plus the component type of an array, or -1 plus the class */
+    protected static void writeType(Class<?> type, DataOutput out) throws Exception {
+        if(type.isArray()) {
+            out.writeByte(-2);
+            writeType(type.getComponentType(), out);
+            return;
+        }
+        if(type.isPrimitive()) {
+            for(int i=0; i < PRIMITIVE_TYPES.length; i++) {
+                if(PRIMITIVE_TYPES[i] == type) {
+                    out.writeByte(i);
+                    return;
+                }
+            }
+        }
+        out.writeByte(-1);
+        Util.writeClass(type, out);
+    }
+
+    protected static Class<?> readType(DataInput in) throws Exception {
+        byte b=in.readByte();
+        switch(b) {
+            case -2:
+                return Array.newInstance(readType(in), 0).getClass();
+            case -1:
+                return Util.readClass(in);
+            default:
+                return PRIMITIVE_TYPES[b];
+        }
+    }
+
+
     public static Object convert(String arg, Class<?> type) {
         if(type == String.class)
             return arg;
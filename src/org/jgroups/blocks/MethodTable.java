@@ -0,0 +1,145 @@
+package org.jgroups.blocks;
+
+import org.jgroups.util.Util;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Dispatch table for the methods of a target class which are invoked by {@link MethodCall}s. A method is resolved
+ * (walking the class hierarchy, or calling the {@link MethodLookup}) only the first time it is invoked; subsequent
+ * calls look it up in an array indexed by method ID, or in a map keyed by method name and argument types.
+ * Public methods are made accessible, so that {@link Method#invoke(Object, Object...)} skips the access checks.
+ * @author agent
+ * @since 3.1
+ */
+public class MethodTable {
+    protected final Class<?>                  target_class;
+    protected final MethodLookup              lookup;
+
+    /** Methods indexed by (non-negative) method ID. Copy-on-write, grows when new IDs are resolved */
+    protected volatile Method[]               methods_by_id=new Method[0];
+
+    /** Methods resolved by name (and types, or number of arguments) */
+    protected final ConcurrentMap<Key,Method> methods=Util.createConcurrentMap();
+
+
+    public MethodTable(Class<?> target_class, MethodLookup lookup) {
+        this.target_class=target_class;
+        this.lookup=lookup;
+    }
+
+    public Class<?> getTargetClass() {return target_class;}
+
+    /** Number of methods resolved so far */
+    public int size() {
+        int retval=methods.size();
+        for(Method m: methods_by_id)
+            if(m != null)
+                retval++;
+        return retval;
+    }
+
+    /**
+     * Returns the method invoked by a method call
+     * @throws NoSuchMethodException If no matching method was found
+     */
+    public Method findMethod(MethodCall call) throws Exception {
+        Key key;
+        switch(call.getMode()) {
+            case MethodCall.ID:
+                return findMethod(call.getId());
+            case MethodCall.METHOD:
+                Method m=call.getMethod();
+                if(m == null)
+                    throw new NoSuchMethodException(call.getName());
+                return m;
+            case MethodCall.TYPES:
+                key=new Key(call.getName(), call.getTypes(), -1);
+                break;
+            case MethodCall.OLD:
+                key=new Key(call.getName(), null, call.getArgs() != null? call.getArgs().length : 0);
+                break;
+            default:
+                throw new IllegalArgumentException("mode " + call.getMode() + " is invalid");
+        }
+
+        Method m=methods.get(key);
+        if(m != null)
+            return m;
+        m=key.types != null || key.num_args < 0?
+          MethodCall.getMethod(target_class, key.name, key.types) :
+          MethodCall.findMethod(target_class, key.name, call.getArgs());
+        if(m == null)
+            throw new NoSuchMethodException(key.name);
+        makeAccessible(m);
+        Method existing=methods.putIfAbsent(key, m);
+        return existing != null? existing : m;
+    }
+
+    /** Returns the method for an ID, resolving it with the {@link MethodLookup} the first time */
+    public Method findMethod(short id) throws Exception {
+        Method[] tmp=methods_by_id;
+        if(id >= 0 && id < tmp.length && tmp[id] != null)
+            return tmp[id];
+
+        if(lookup == null)
+            throw new Exception("MethodCall uses ID=" + id + ", but method_lookup has not been set");
+        Method m=lookup.findMethod(id);
+        if(m == null)
+            throw new Exception("no method found for " + id);
+        makeAccessible(m);
+        if(id >= 0)
+            add(id, m);
+        return m;
+    }
+
+
+    protected synchronized void add(short id, Method m) {
+        Method[] tmp=methods_by_id;
+        if(id >= tmp.length)
+            tmp=Arrays.copyOf(tmp, id + 1);
+        else
+            tmp=tmp.clone();
+        tmp[id]=m;
+        methods_by_id=tmp;
+    }
+
+    /** Only public methods are made accessible: non-public methods still fail the access check */
+    protected static void makeAccessible(Method m) {
+        if(!Modifier.isPublic(m.getModifiers()) || m.isAccessible())
+            return;
+        try {
+            m.setAccessible(true);
+        }
+        catch(SecurityException ignored) {
+        }
+    }
+
+
+    protected static class Key {
+        protected final String  name;
+        protected final Class<?>[] types;
+        protected final int     num_args; // only used if types is null
+        protected final int     hash;
+
+        protected Key(String name, Class<?>[] types, int num_args) {
+            this.name=name;
+            this.types=types;
+            this.num_args=num_args;
+            this.hash=(name != null? name.hashCode() : 0) * 31 + (types != null? Arrays.hashCode(types) : num_args);
+        }
+
+        public int hashCode() {return hash;}
+
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key))
+                return false;
+            Key other=(Key)obj;
+            return hash == other.hash && num_args == other.num_args
+              && (name == null? other.name == null : name.equals(other.name)) && Arrays.equals(types, other.types);
+        }
+    }
+}
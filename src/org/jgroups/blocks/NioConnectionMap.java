@@ -0,0 +1,784 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.Version;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.BufferPool;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+import org.jgroups.util.ExposedDataOutputStream;
+import org.jgroups.util.ThreadFactory;
+import org.jgroups.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Manages TCP connections to other members using non-blocking channels. Instead of a reader thread (and possibly a
+ * sender thread) per connection, a small, fixed number of I/O threads - each with its own selector - accept new
+ * connections, and read from and write to all connections.<p/>
+ * Every connection has a bounded write queue. A send first tries to write the message directly to the channel (in a
+ * gathering write of length and data, without copying the data); only if the socket's send buffer is full is the
+ * (remaining) data copied into the write queue, which is then drained by the connection's I/O thread with gathering
+ * writes of up to {@link #MAX_GATHER} queued messages. When the write queue is full, senders block until the I/O
+ * thread has made room (back-pressure).<p/>
+ * Messages are framed as | length (int) | data |. The first frame sent on a new connection contains a cookie, the
+ * version and the local (server) address of the connecting member.<p/>
+ * Note that incoming messages are passed to the receiver on the I/O threads, so the receiver must not block (TP
+ * hands messages off to its thread pools).
+ * @author agent
+ * @since 3.1
+ */
+public class NioConnectionMap {
+    protected static final byte[] COOKIE={'b', 'e', 'l', 'a'};
+
+    /** Max number of queued messages written in a single gathering write */
+    public static final int       MAX_GATHER=64;
+
+    protected final Address                                local_addr;
+    protected final InetAddress                            bind_addr;
+    protected final ServerSocketChannel                    srv_channel;
+    protected final ThreadFactory                          factory;
+    protected final TCPConnectionMap.Receiver              receiver;
+    protected final IoThread[]                             io_threads;
+    protected final AtomicInteger                          next_io_thread=new AtomicInteger(0);
+    protected final ConcurrentMap<Address,NioConnection>   conns=Util.createConcurrentMap();
+
+    /** Used to prevent concurrent creation of multiple connections to the same member */
+    protected final ConcurrentMap<Address,Lock>            connect_locks=Util.createConcurrentMap();
+    protected final Log                                    log=LogFactory.getLog(getClass());
+    protected volatile boolean                             running=false;
+
+    protected int                                          send_queue_size=10000;
+    protected int                                          recv_buf_size=150000;
+    protected int                                          send_buf_size=150000;
+    protected int                                          sock_conn_timeout=2000;
+    protected int                                          linger=-1;
+    protected boolean                                      tcp_nodelay=true;
+    protected int                                          max_frame_size=Integer.MAX_VALUE;
+    protected volatile BufferPool                          buffer_pool=null;
+
+    protected final AtomicLong                             num_blocked_sends=new AtomicLong(0);
+    protected final AtomicLong                             total_block_time=new AtomicLong(0); // ns
+    protected final AtomicLong                             num_queued_sends=new AtomicLong(0);
+
+
+    /**
+     * Creates a connection map and binds its server channel
+     * @param factory The factory for the I/O threads
+     * @param receiver The receiver of incoming messages
+     * @param bind_addr The address to bind the server channel to
+     * @param external_addr If non-null, used as the address advertised to other members
+     * @param srv_port The first port to try to bind to. 0 binds to an ephemeral port
+     * @param max_port The last port to try to bind to
+     * @param num_io_threads The number of I/O threads
+     */
+    public NioConnectionMap(ThreadFactory factory, TCPConnectionMap.Receiver receiver, InetAddress bind_addr,
+                            InetAddress external_addr, int srv_port, int max_port, int num_io_threads) throws Exception {
+        if(num_io_threads < 1)
+            throw new IllegalArgumentException("num_io_threads (" + num_io_threads + ") has to be >= 1");
+        this.factory=factory;
+        this.receiver=receiver;
+        this.bind_addr=bind_addr;
+        this.srv_channel=createServerChannel(bind_addr, srv_port, max_port);
+        int port=srv_channel.socket().getLocalPort();
+        if(external_addr != null)
+            local_addr=new IpAddress(external_addr, port);
+        else if(bind_addr != null)
+            local_addr=new IpAddress(bind_addr, port);
+        else
+            local_addr=new IpAddress(port);
+        io_threads=new IoThread[num_io_threads];
+        for(int i=0; i < io_threads.length; i++)
+            io_threads[i]=new IoThread("NioConnectionMap.IO-" + (i+1));
+    }
+
+    public Address    getLocalAddress()                    {return local_addr;}
+    public int        getNumConnections()                  {return conns.size();}
+    public int        getNumIoThreads()                    {return io_threads.length;}
+    public void       setSendQueueSize(int size)           {this.send_queue_size=size;}
+    public int        getSendQueueSize()                   {return send_queue_size;}
+    public void       setReceiveBufferSize(int size)       {this.recv_buf_size=size;}
+    public void       setSendBufferSize(int size)          {this.send_buf_size=size;}
+    public void       setSocketConnectionTimeout(int t)    {this.sock_conn_timeout=t;}
+    public void       setLinger(int linger)                {this.linger=linger;}
+    public void       setTcpNodelay(boolean tcp_nodelay)   {this.tcp_nodelay=tcp_nodelay;}
+    public void       setMaxFrameSize(int size)            {this.max_frame_size=size;}
+    public BufferPool getBufferPool()                      {return buffer_pool;}
+
+    /** Number of sends which blocked because the write queue of a connection was full */
+    public long       getNumBlockedSends()                 {return num_blocked_sends.get();}
+
+    /** Total time (in ms) senders spent blocked on full write queues */
+    public long       getTotalBlockTime()                  {return TimeUnit.NANOSECONDS.toMillis(total_block_time.get());}
+
+    /** Number of sends which could not be written directly and had to be queued */
+    public long       getNumQueuedSends()                  {return num_queued_sends.get();}
+
+    /**
+     * Sets a pool from which buffers for incoming messages are taken. Only used if the receiver is a
+     * {@link TCPConnectionMap.PooledReceiver}
+     */
+    public void       setBufferPool(BufferPool pool)       {this.buffer_pool=pool;}
+
+    public void resetStats() {
+        num_blocked_sends.set(0); total_block_time.set(0); num_queued_sends.set(0);
+    }
+
+    /** Returns the number of messages in the write queues of all connections */
+    public int getNumQueuedMessages() {
+        int retval=0;
+        for(NioConnection conn: conns.values())
+            retval+=conn.getQueueSize();
+        return retval;
+    }
+
+
+    public synchronized void start() throws Exception {
+        if(running)
+            return;
+        running=true;
+        srv_channel.configureBlocking(false);
+        io_threads[0].register(srv_channel, SelectionKey.OP_ACCEPT, null);
+        for(IoThread io_thread: io_threads)
+            io_thread.start();
+    }
+
+    public synchronized void stop() {
+        if(!running)
+            return;
+        running=false;
+        Util.close(srv_channel);
+        for(NioConnection conn: conns.values())
+            conn.close();
+        conns.clear();
+        for(IoThread io_thread: io_threads)
+            io_thread.stop();
+    }
+
+
+    /**
+     * Sends a message to dest, creating a connection if needed. The data is not retained after this method returns.
+     * Blocks if the write queue of the connection is full.
+     */
+    public void send(Address dest, byte[] data, int offset, int length) throws Exception {
+        if(dest == null)
+            throw new IllegalArgumentException("destination address cannot be null");
+        if(!running)
+            return;
+
+        if(dest.equals(local_addr)) { // loopback
+            receiver.receive(local_addr, data, offset, length);
+            return;
+        }
+
+        NioConnection conn=getConnection(dest);
+        if(conn != null)
+            conn.send(data, offset, length);
+    }
+
+    /**
+     * Sends a message consisting of multiple buffers to dest. The buffers are written with a single gathering write if
+     * possible, and are not retained after this method returns.
+     */
+    public void send(Address dest, Buffer[] bufs, int length) throws Exception {
+        if(dest == null)
+            throw new IllegalArgumentException("destination address cannot be null");
+        if(!running)
+            return;
+
+        if(dest.equals(local_addr)) { // loopback
+            byte[] data=concat(bufs, length);
+            receiver.receive(local_addr, data, 0, data.length);
+            return;
+        }
+
+        NioConnection conn=getConnection(dest);
+        if(conn != null)
+            conn.send(bufs, length);
+    }
+
+
+    protected static byte[] concat(Buffer[] bufs, int length) {
+        byte[] retval=new byte[length];
+        int index=0;
+        for(Buffer buf: bufs) {
+            System.arraycopy(buf.getBuf(), buf.getOffset(), retval, index, buf.getLength());
+            index+=buf.getLength();
+        }
+        return retval;
+    }
+
+
+    /** Closes all connections to members which are not in members */
+    public void retainAll(Collection<Address> members) {
+        for(Map.Entry<Address,NioConnection> entry: conns.entrySet()) {
+            if(!members.contains(entry.getKey()))
+                entry.getValue().close();
+        }
+    }
+
+    /** Closes all connections which haven't been used for more than max_idle ms */
+    public void reap(long max_idle) {
+        long now=System.currentTimeMillis();
+        for(NioConnection conn: conns.values()) {
+            if(now - conn.last_access > max_idle) {
+                if(log.isDebugEnabled())
+                    log.debug("closing connection to " + conn.peer_addr + " as it has been idle for more than " + max_idle + " ms");
+                conn.close();
+            }
+        }
+    }
+
+    public boolean connectionEstablishedTo(Address addr) {
+        NioConnection conn=conns.get(addr);
+        return conn != null && conn.isOpen();
+    }
+
+    public String printConnections() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,NioConnection> entry: conns.entrySet())
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        return sb.toString();
+    }
+
+    public String toString() {
+        return "local_addr=" + local_addr + ", io_threads=" + io_threads.length + "\nconnections (" + conns.size() +
+          "):\n" + printConnections();
+    }
+
+
+
+    protected NioConnection getConnection(Address dest) throws Exception {
+        NioConnection conn=conns.get(dest);
+        if(conn != null && conn.isOpen())
+            return conn;
+
+        Lock lock=connect_locks.get(dest);
+        if(lock == null) {
+            Lock tmp=connect_locks.putIfAbsent(dest, lock=new ReentrantLock());
+            if(tmp != null)
+                lock=tmp;
+        }
+        lock.lock();
+        try {
+            conn=conns.get(dest);
+            if(conn != null && conn.isOpen())
+                return conn;
+            try {
+                conn=connect(dest);
+            }
+            catch(Exception ex) {
+                if(log.isTraceEnabled())
+                    log.trace("failed creating connection to " + dest + ": " + ex);
+                return null;
+            }
+            conns.put(dest, conn);
+            return conn;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /** Creates a connection: connects (blocking, with a timeout), sends our address and registers with an I/O thread */
+    protected NioConnection connect(Address dest) throws Exception {
+        IpAddress addr=(IpAddress)dest;
+        SocketChannel ch=SocketChannel.open();
+        try {
+            Socket sock=ch.socket();
+            sock.bind(new InetSocketAddress(bind_addr, 0));
+            setSocketParameters(sock);
+            sock.connect(new InetSocketAddress(addr.getIpAddress(), addr.getPort()), sock_conn_timeout);
+            ByteBuffer hdr=createHandshake();
+            while(hdr.hasRemaining())
+                ch.write(hdr);
+            ch.configureBlocking(false);
+        }
+        catch(Exception ex) {
+            Util.close(ch);
+            throw ex;
+        }
+        NioConnection conn=new NioConnection(ch, dest, nextIoThread());
+        conn.io_thread.register(ch, SelectionKey.OP_READ, conn);
+        return conn;
+    }
+
+
+    protected void accept(ServerSocketChannel server) {
+        SocketChannel ch=null;
+        try {
+            while((ch=server.accept()) != null) {
+                setSocketParameters(ch.socket());
+                ch.configureBlocking(false);
+                IoThread io_thread=nextIoThread();
+                io_thread.register(ch, SelectionKey.OP_READ, new NioConnection(ch, null, io_thread));
+            }
+        }
+        catch(IOException ex) {
+            Util.close(ch);
+            if(running && log.isWarnEnabled())
+                log.warn("failed accepting connection: " + ex);
+        }
+    }
+
+
+    /** Called when the handshake of an accepted connection has been read */
+    protected void addAcceptedConnection(NioConnection conn) {
+        // If we already have a connection to the peer (e.g. both sides connected concurrently), we keep using the
+        // existing one for sending, but keep reading from both
+        NioConnection existing=conns.putIfAbsent(conn.peer_addr, conn);
+        if(existing != null && !existing.isOpen())
+            conns.replace(conn.peer_addr, existing, conn);
+    }
+
+
+    protected IoThread nextIoThread() {
+        int index=next_io_thread.getAndIncrement() & Integer.MAX_VALUE;
+        return io_threads[index % io_threads.length];
+    }
+
+
+    protected void setSocketParameters(Socket sock) throws SocketException {
+        try {
+            sock.setSendBufferSize(send_buf_size);
+        }
+        catch(IllegalArgumentException ex) {
+            if(log.isErrorEnabled()) log.error("exception setting send buffer size to " + send_buf_size + " bytes", ex);
+        }
+        try {
+            sock.setReceiveBufferSize(recv_buf_size);
+        }
+        catch(IllegalArgumentException ex) {
+            if(log.isErrorEnabled()) log.error("exception setting receive buffer size to " + recv_buf_size + " bytes", ex);
+        }
+        sock.setKeepAlive(true);
+        sock.setTcpNoDelay(tcp_nodelay);
+        if(linger > 0)
+            sock.setSoLinger(true, linger);
+        else
+            sock.setSoLinger(false, -1);
+    }
+
+
+    protected ByteBuffer createHandshake() throws Exception {
+        ExposedByteArrayOutputStream out=new ExposedByteArrayOutputStream(64);
+        ExposedDataOutputStream dos=new ExposedDataOutputStream(out);
+        dos.writeInt(0); // placeholder for the length
+        dos.write(COOKIE, 0, COOKIE.length);
+        dos.writeShort(Version.version);
+        Util.writeAddress(local_addr, dos);
+        ByteBuffer buf=ByteBuffer.wrap(out.getRawBuffer(), 0, out.size());
+        buf.putInt(0, out.size() - Global.INT_SIZE);
+        return buf;
+    }
+
+
+    protected Address readHandshake(byte[] buf, int offset, int length) throws Exception {
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(buf, offset, length));
+        byte[] input_cookie=new byte[COOKIE.length];
+        in.readFully(input_cookie, 0, input_cookie.length);
+        if(!Arrays.equals(COOKIE, input_cookie))
+            throw new SocketException("ConnectionMap.Connection.readPeerAddress(): cookie sent by peer does not " +
+                                        "match own cookie; terminating connection");
+        short version=in.readShort();
+        if(!Version.isBinaryCompatible(version) && log.isWarnEnabled())
+            log.warn(new StringBuilder("packet from ").append(local_addr).append(" has different version (").
+              append(Version.print(version)).append(") from ours (").append(Version.printVersion()).
+              append("). This may cause problems").toString());
+        return Util.readAddress(in);
+    }
+
+
+    protected static ServerSocketChannel createServerChannel(InetAddress bind_addr, int start_port, int end_port) throws Exception {
+        int port=start_port, max_port=start_port > 0? Math.max(start_port, end_port) : 0;
+        while(port <= max_port) {
+            ServerSocketChannel ch=ServerSocketChannel.open();
+            try {
+                ch.socket().setReuseAddress(true);
+                ch.socket().bind(new InetSocketAddress(bind_addr, port));
+                return ch;
+            }
+            catch(SocketException bind_ex) {
+                Util.close(ch);
+                if(start_port == 0)
+                    throw bind_ex;
+                port++;
+            }
+        }
+        throw new SocketException("failed to open a server socket in range " + start_port + '-' + max_port);
+    }
+
+
+
+    /**
+     * A connection to a peer. Reading is done by the I/O thread only; sending is done by the sender threads (direct
+     * writes) and the I/O thread (draining the write queue), serialized by lock.
+     */
+    public class NioConnection {
+        protected final SocketChannel     channel;
+        protected final IoThread          io_thread;
+        protected volatile Address        peer_addr;    // null until the handshake of an accepted connection is read
+        protected volatile SelectionKey   key;
+        protected volatile boolean        closed=false;
+        protected volatile long           last_access=System.currentTimeMillis();
+
+        // reading: only accessed by the I/O thread
+        protected final ByteBuffer        length_buf=ByteBuffer.allocate(Global.INT_SIZE);
+        protected ByteBuffer              data_buf;
+        protected BufferPool.Slab         slab;
+
+        // writing
+        protected final Lock              lock=new ReentrantLock();
+        protected final Condition         not_full=lock.newCondition();
+        protected final Deque<ByteBuffer> write_queue=new ArrayDeque<ByteBuffer>(); // guarded by lock
+        protected final ByteBuffer        send_length_buf=ByteBuffer.allocate(Global.INT_SIZE); // guarded by lock
+        protected final ByteBuffer[]      write_bufs=new ByteBuffer[MAX_GATHER];     // guarded by lock
+        protected boolean                 write_interest=false;                       // guarded by lock
+
+
+        protected NioConnection(SocketChannel channel, Address peer_addr, IoThread io_thread) {
+            this.channel=channel;
+            this.peer_addr=peer_addr;
+            this.io_thread=io_thread;
+        }
+
+        public Address getPeerAddress() {return peer_addr;}
+        public boolean isOpen()         {return !closed && channel.isOpen();}
+
+        public int getQueueSize() {
+            lock.lock();
+            try {
+                return write_queue.size();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Writes the message directly if the write queue is empty, and queues a copy of what could not be written.
+         * Blocks while the write queue is full.
+         */
+        protected void send(byte[] data, int offset, int length) throws Exception {
+            send(new Buffer[]{new Buffer(data, offset, length)}, length);
+        }
+
+        /** Same as {@link #send(byte[], int, int)}, but the message consists of multiple buffers */
+        protected void send(Buffer[] bufs, int length) throws Exception {
+            if(bufs.length >= MAX_GATHER) // rare: more buffers than we can write in a single gathering write
+                bufs=new Buffer[]{new Buffer(concat(bufs, length))};
+            lock.lock();
+            try {
+                if(write_queue.size() >= send_queue_size && !closed) {
+                    num_blocked_sends.incrementAndGet();
+                    long start=System.nanoTime();
+                    try {
+                        while(write_queue.size() >= send_queue_size && !closed)
+                            not_full.await();
+                    }
+                    finally {
+                        total_block_time.addAndGet(System.nanoTime() - start);
+                    }
+                }
+                if(closed)
+                    throw new ClosedChannelException();
+
+                last_access=System.currentTimeMillis();
+                if(write_queue.isEmpty()) {
+                    send_length_buf.clear();
+                    send_length_buf.putInt(length).flip();
+                    int num=bufs.length + 1;
+                    write_bufs[0]=send_length_buf;
+                    for(int i=0; i < bufs.length; i++)
+                        write_bufs[i+1]=ByteBuffer.wrap(bufs[i].getBuf(), bufs[i].getOffset(), bufs[i].getLength());
+                    int remaining=0;
+                    try {
+                        channel.write(write_bufs, 0, num); // gathering write of length and data
+                        for(int i=0; i < num; i++)
+                            remaining+=write_bufs[i].remaining();
+                        if(remaining > 0) {
+                            // the socket's send buffer is full: queue the rest and let the I/O thread write it
+                            ByteBuffer rest=ByteBuffer.allocate(remaining);
+                            for(int i=0; i < num; i++)
+                                rest.put(write_bufs[i]);
+                            rest.flip();
+                            write_queue.add(rest);
+                        }
+                    }
+                    catch(IOException ex) {
+                        close();
+                        throw ex;
+                    }
+                    finally {
+                        Arrays.fill(write_bufs, 0, num, null);
+                    }
+                    if(remaining == 0)
+                        return;
+                }
+                else {
+                    ByteBuffer frame=ByteBuffer.allocate(Global.INT_SIZE + length);
+                    frame.putInt(length);
+                    for(Buffer buf: bufs)
+                        frame.put(buf.getBuf(), buf.getOffset(), buf.getLength());
+                    frame.flip();
+                    write_queue.add(frame);
+                }
+                num_queued_sends.incrementAndGet();
+                if(!write_interest) {
+                    write_interest=true;
+                    io_thread.execute(new Runnable() {
+                        public void run() {
+                            SelectionKey tmp=key;
+                            if(tmp != null && tmp.isValid())
+                                tmp.interestOps(tmp.interestOps() | SelectionKey.OP_WRITE);
+                        }
+                    });
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+
+        /** Called by the I/O thread when the channel is writable: drains the write queue with gathering writes */
+        protected void flush() throws IOException {
+            lock.lock();
+            try {
+                while(!write_queue.isEmpty()) {
+                    int num=0;
+                    for(ByteBuffer buf: write_queue) {
+                        write_bufs[num++]=buf;
+                        if(num >= write_bufs.length)
+                            break;
+                    }
+                    try {
+                        channel.write(write_bufs, 0, num);
+                    }
+                    finally {
+                        Arrays.fill(write_bufs, 0, num, null);
+                    }
+                    ByteBuffer head;
+                    while((head=write_queue.peekFirst()) != null && !head.hasRemaining())
+                        write_queue.removeFirst();
+                    if(head != null && head.hasRemaining()) // socket send buffer is full
+                        break;
+                }
+                not_full.signalAll();
+                if(write_queue.isEmpty()) {
+                    write_interest=false;
+                    if(key != null && key.isValid())
+                        key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+
+        /** Called by the I/O thread when the channel is readable. Reads all complete frames available */
+        protected void read() throws Exception {
+            for(;;) {
+                if(data_buf == null) {
+                    if(channel.read(length_buf) < 0)
+                        throw new EOFException();
+                    if(length_buf.hasRemaining())
+                        return;
+                    length_buf.flip();
+                    int len=length_buf.getInt();
+                    length_buf.clear();
+                    if(len < 0 || len > max_frame_size)
+                        throw new IOException("invalid frame length (" + len + ") from " + channel.socket().getRemoteSocketAddress());
+                    BufferPool pool=buffer_pool;
+                    if(peer_addr != null && pool != null && receiver instanceof TCPConnectionMap.PooledReceiver) {
+                        slab=pool.acquire(len);
+                        data_buf=ByteBuffer.wrap(slab.getBuf(), 0, len);
+                    }
+                    else
+                        data_buf=ByteBuffer.allocate(len);
+                }
+
+                if(data_buf.hasRemaining() && channel.read(data_buf) < 0)
+                    throw new EOFException();
+                if(data_buf.hasRemaining())
+                    return;
+
+                ByteBuffer buf=data_buf;
+                BufferPool.Slab tmp_slab=slab;
+                data_buf=null; slab=null;
+                last_access=System.currentTimeMillis();
+
+                if(peer_addr == null) {
+                    peer_addr=readHandshake(buf.array(), 0, buf.limit());
+                    addAcceptedConnection(this);
+                    continue;
+                }
+                if(tmp_slab != null)
+                    ((TCPConnectionMap.PooledReceiver)receiver).receive(peer_addr, tmp_slab, 0, buf.limit());
+                else
+                    receiver.receive(peer_addr, buf.array(), 0, buf.limit());
+            }
+        }
+
+
+        public void close() {
+            if(closed)
+                return;
+            closed=true;
+            if(peer_addr != null)
+                conns.remove(peer_addr, this);
+            SelectionKey tmp=key;
+            if(tmp != null)
+                tmp.cancel();
+            Util.close(channel);
+            if(slab != null) {
+                slab.release();
+                slab=null;
+            }
+            lock.lock();
+            try {
+                write_queue.clear();
+                not_full.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        public String toString() {
+            Socket sock=channel.socket();
+            return sock.getLocalSocketAddress() + " --> " + sock.getRemoteSocketAddress() + " (queued=" +
+              getQueueSize() + (closed? ", closed" : "") + ")";
+        }
+    }
+
+
+
+    /** Runs a selector loop, handling accept, read and write readiness of the channels registered with it */
+    protected class IoThread implements Runnable {
+        protected final String          name;
+        protected final Selector        selector;
+        protected final Queue<Runnable> tasks=new ConcurrentLinkedQueue<Runnable>();
+        protected volatile Thread       thread;
+
+        protected IoThread(String name) throws IOException {
+            this.name=name;
+            this.selector=Selector.open();
+        }
+
+        protected void start() {
+            thread=factory.newThread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        protected void stop() {
+            Thread tmp=thread;
+            thread=null;
+            selector.wakeup();
+            if(tmp != null) {
+                try {
+                    tmp.join(500);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            try {selector.close();} catch(IOException e) {}
+        }
+
+        /** Runs task on the I/O thread. Selection keys are only changed by the I/O thread */
+        protected void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        protected void register(final SelectableChannel ch, final int ops, final NioConnection conn) {
+            execute(new Runnable() {
+                public void run() {
+                    try {
+                        SelectionKey key=ch.register(selector, ops, conn);
+                        if(conn != null) {
+                            conn.key=key;
+                            if(conn.closed)
+                                key.cancel();
+                        }
+                    }
+                    catch(ClosedChannelException ex) {
+                        if(conn != null)
+                            conn.close();
+                    }
+                }
+            });
+        }
+
+        public void run() {
+            while(thread != null && running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while((task=tasks.poll()) != null)
+                        task.run();
+
+                    Set<SelectionKey> keys=selector.selectedKeys();
+                    for(Iterator<SelectionKey> it=keys.iterator(); it.hasNext();) {
+                        SelectionKey key=it.next();
+                        it.remove();
+                        handle(key);
+                    }
+                }
+                catch(ClosedSelectorException closed) {
+                    break;
+                }
+                catch(Throwable t) {
+                    if(running && log.isErrorEnabled())
+                        log.error(name + ": failure in selector loop", t);
+                }
+            }
+        }
+
+        protected void handle(SelectionKey key) {
+            if(!key.isValid())
+                return;
+            if(key.isAcceptable()) {
+                accept((ServerSocketChannel)key.channel());
+                return;
+            }
+            NioConnection conn=(NioConnection)key.attachment();
+            try {
+                if(key.isReadable())
+                    conn.read();
+                if(key.isValid() && key.isWritable())
+                    conn.flush();
+            }
+            catch(Exception ex) {
+                if(!(ex instanceof EOFException) && running && log.isTraceEnabled())
+                    log.trace("closing connection to " + conn.peer_addr + ": " + ex);
+                conn.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Completes a request as soon as a quorum of members has returned equal (as defined by equals()) values. The value
+ * agreed upon can be fetched with {@link #getValue()} once the request has completed. Exceptions are not counted.
+ * A filter holds per-request state, so a new instance has to be used for each request.
+ * @author agent
+ * @since 3.1
+ */
+public class QuorumRspFilter implements RspFilter {
+    protected final int                  quorum;
+    protected final Map<Object,Integer>  votes=new HashMap<Object,Integer>();
+    protected Object                     value;
+    protected boolean                    reached;
+
+    public QuorumRspFilter(int quorum) {
+        if(quorum <= 0)
+            throw new IllegalArgumentException("quorum (" + quorum + ") has to be > 0");
+        this.quorum=quorum;
+    }
+
+    public synchronized boolean isAcceptable(Object response, Address sender) {
+        if(response instanceof Throwable)
+            return false;
+        if(reached)
+            return true;
+        Integer count=votes.get(response);
+        count=count == null? 1 : count + 1;
+        votes.put(response, count);
+        if(count >= quorum) {
+            reached=true;
+            value=response;
+        }
+        return true;
+    }
+
+    public synchronized boolean needMoreResponses() {
+        return !reached;
+    }
+
+    /** Whether a quorum has been reached */
+    public synchronized boolean isReached() {return reached;}
+
+    /** Returns the value returned by a quorum of members, or null if no quorum has been reached */
+    public synchronized Object getValue() {return value;}
+
+    public synchronized String toString() {
+        return "quorum=" + quorum + ", votes=" + votes + (reached? ", value=" + value : "");
+    }
+}
@@ -9,7 +9,10 @@ import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.util.FutureListener;
 import org.jgroups.util.NotifyingFuture;
+import org.jgroups.util.TimeScheduler;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -43,7 +46,15 @@ public abstract class Request implements RspCollector, NotifyingFuture {
     protected boolean                 block_for_results=true;
     protected final long              req_id; // request ID for this request
 
-    protected volatile FutureListener listener;
+    /** Notified (once) when the request completes */
+    @GuardedBy("lock")
+    protected List<FutureListener<?>> listeners;
+
+    @GuardedBy("lock")
+    protected boolean                 listeners_notified;
+
+    /** Completes a non-blocking request when the timeout has elapsed */
+    protected volatile Future<?>      timeout_task;
 
 
     
@@ -67,10 +78,28 @@ public abstract class Request implements RspCollector, NotifyingFuture {
         this.block_for_results=block_for_results;
     }
 
+    /**
+     * Adds a listener which is notified when the request completes (all responses have been received, or the timeout
+     * elapsed, or the request was cancelled). Can be called more than once, every listener is notified exactly once;
+     * if the request has already completed, the listener is notified immediately (on the caller's thread)
+     */
     public NotifyingFuture setListener(FutureListener listener) {
-        this.listener=listener;
-        if(done)
-            listener.futureDone(this);
+        if(listener == null)
+            return this;
+        boolean notify_now;
+        lock.lock();
+        try {
+            if(!(notify_now=listeners_notified)) {
+                if(listeners == null)
+                    listeners=new ArrayList<FutureListener<?>>(1);
+                listeners.add(listener);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if(notify_now)
+            notifyListener(listener);
         return this;
     }
 
@@ -81,8 +110,21 @@ public abstract class Request implements RspCollector, NotifyingFuture {
         }
 
         sendRequest();
-        if(!block_for_results || options.getMode() == ResponseMode.GET_NONE)
+        if(options.getMode() == ResponseMode.GET_NONE) {
+            notifyListeners(); // no responses will be received
+            return true;
+        }
+        if(!block_for_results) {
+            TimeScheduler timer=corr.getTimer();
+            long timeout=options.getTimeout();
+            if(timer != null && timeout > 0 && !done)
+                timeout_task=timer.schedule(new Runnable() {
+                    public void run() {
+                        timeout();
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
             return true;
+        }
 
         lock.lock();
         try {
@@ -117,18 +159,20 @@ public abstract class Request implements RspCollector, NotifyingFuture {
 
 
     public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean retval;
         lock.lock();
         try {
-            boolean retval=!done;
+            retval=!done;
             done=true;
             if(corr != null)
                 corr.done(req_id);
             completed.signalAll();
-            return retval;
         }
         finally {
             lock.unlock();
         }
+        notifyListeners();
+        return retval;
     }
 
     public boolean isCancelled() {
@@ -159,8 +203,57 @@ public abstract class Request implements RspCollector, NotifyingFuture {
 
 
     protected void checkCompletion(Future future) {
-        if(listener != null && responsesComplete())
-            listener.futureDone(future);
+        if(responsesComplete())
+            notifyListeners();
+    }
+
+    /** Completes the request with the responses received so far, if it hasn't completed before the timeout elapsed */
+    protected void timeout() {
+        lock.lock();
+        try {
+            if(done)
+                return;
+            done=true;
+            if(corr != null)
+                corr.done(req_id);
+            completed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        notifyListeners();
+    }
+
+    /** Notifies all listeners added so far, and cancels the timeout task. Listeners are only notified once */
+    protected void notifyListeners() {
+        Future<?> task=timeout_task;
+        if(task != null)
+            task.cancel(false);
+        List<FutureListener<?>> tmp;
+        lock.lock();
+        try {
+            if(listeners_notified)
+                return;
+            listeners_notified=true;
+            tmp=listeners; // no listeners can be added after listeners_notified was set
+            listeners=null;
+        }
+        finally {
+            lock.unlock();
+        }
+        if(tmp != null)
+            for(FutureListener<?> l: tmp)
+                notifyListener(l);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void notifyListener(FutureListener<?> l) {
+        try {
+            ((FutureListener<Object>)l).futureDone(this);
+        }
+        catch(Throwable t) {
+            log.error("failed notifying listener " + l, t);
+        }
     }
 
     /** Generates a new unique request ID */
@@ -9,6 +9,7 @@ import org.jgroups.protocols.TP;
 import org.jgroups.stack.DiagnosticsHandler;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.Buffer;
+import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
 import java.io.DataInput;
@@ -59,6 +60,12 @@ public class RequestCorrelator {
 
     protected boolean started=false;
 
+    /** If true and the request handler is an AsyncRequestHandler, responses can be sent after handle() returned */
+    protected boolean async_dispatching=false;
+
+    /** Used to time out requests which don't block for their results */
+    protected TimeScheduler timer;
+
     private final MyProbeHandler probe_handler=new MyProbeHandler(requests);
 
     protected static final Log log=LogFactory.getLog(RequestCorrelator.class);
@@ -102,6 +109,22 @@ public class RequestCorrelator {
 
 
 
+    public boolean getAsyncDispatching() {
+        return async_dispatching;
+    }
+
+    public void setAsyncDispatching(boolean flag) {
+        this.async_dispatching=flag;
+    }
+
+    public TimeScheduler getTimer() {
+        return timer;
+    }
+
+    public void setTimer(TimeScheduler timer) {
+        this.timer=timer;
+    }
+
     public RpcDispatcher.Marshaller getMarshaller() {
         return marshaller;
     }
@@ -361,7 +384,7 @@ public class RequestCorrelator {
                     boolean is_exception=hdr.type == Header.EXC_RSP;
                     Address sender=msg.getSrc();
                     Object retval;
-                    byte[] buf=msg.getBuffer();
+                    byte[] buf=msg.getRawBuffer();
                     int offset=msg.getOffset(), length=msg.getLength();
                     try {
                         retval=marshaller != null? marshaller.objectFromBuffer(buf, offset, length) :
@@ -426,9 +449,6 @@ public class RequestCorrelator {
      */
     protected void handleRequest(Message req, Header hdr) {
         Object        retval;
-        Object        rsp_buf; // either byte[] or Buffer
-        Header        rsp_hdr;
-        Message       rsp;
         boolean       threw_exception=false;
 
         // i. Get the request correlator header from the msg and pass it to
@@ -443,6 +463,20 @@ public class RequestCorrelator {
                       append(") with request ").append(hdr.id));
         }
 
+        if(async_dispatching && request_handler instanceof AsyncRequestHandler) {
+            Response rsp=hdr.rsp_expected? new ResponseImpl(req, hdr.id) : null;
+            try {
+                ((AsyncRequestHandler)request_handler).handle(req, rsp);
+            }
+            catch(Throwable t) {
+                if(rsp != null)
+                    rsp.send(t, true);
+                else if(log.isErrorEnabled())
+                    log.error("failed handling request " + hdr.id + " from " + req.getSrc(), t);
+            }
+            return;
+        }
+
         try {
             retval=request_handler.handle(req);
         }
@@ -455,22 +489,38 @@ public class RequestCorrelator {
         if(!hdr.rsp_expected) // asynchronous call, we don't need to send a response; terminate call here
             return;
 
+        sendReply(req, hdr.id, retval, threw_exception);
+    }
+
+
+    /**
+     * Sends the response to a request
+     * @param req The request
+     * @param req_id The ID of the request
+     * @param reply The return value, or the exception thrown by the request handler
+     * @param is_exception True if reply is an exception
+     */
+    protected void sendReply(Message req, long req_id, Object reply, boolean is_exception) {
+        Object        rsp_buf; // either byte[] or Buffer
+        Header        rsp_hdr;
+        Message       rsp;
+
         if(transport == null) {
             if(log.isErrorEnabled()) log.error("failure sending response; no transport available");
             return;
         }
 
         // changed (bela Feb 20 2004): catch exception and return exception
-        try {  // retval could be an exception, or a real value
-            rsp_buf=marshaller != null? marshaller.objectToBuffer(retval) : Util.objectToByteBuffer(retval);
+        try {  // reply could be an exception, or a real value
+            rsp_buf=marshaller != null? marshaller.objectToBuffer(reply) : Util.objectToByteBuffer(reply);
         }
         catch(Throwable t) {
             try {  // this call should succeed (all exceptions are serializable)
                 rsp_buf=marshaller != null? marshaller.objectToBuffer(t) : Util.objectToByteBuffer(t);
-                threw_exception=true;
+                is_exception=true;
             }
             catch(Throwable tt) {
-                if(log.isErrorEnabled()) log.error("failed sending rsp: return value (" + retval + ") is not serializable");
+                if(log.isErrorEnabled()) log.error("failed sending rsp: return value (" + reply + ") is not serializable");
                 return;
             }
         }
@@ -491,7 +541,7 @@ public class RequestCorrelator {
         else if (rsp_buf instanceof byte[])
             rsp.setBuffer((byte[])rsp_buf);
 
-        rsp_hdr=new Header(threw_exception? Header.EXC_RSP : Header.RSP, hdr.id, false, this.id);
+        rsp_hdr=new Header(is_exception? Header.EXC_RSP : Header.RSP, req_id, false, this.id);
         rsp.putHeader(this.id, rsp_hdr);
         if(log.isTraceEnabled())
             log.trace(new StringBuilder("sending rsp for ").append(rsp_hdr.id).append(" to ").append(rsp.getDest()));
@@ -509,6 +559,28 @@ public class RequestCorrelator {
 
 
 
+    /** Sends the response to a request handled by an {@link AsyncRequestHandler}; only the first response is sent */
+    protected class ResponseImpl implements Response {
+        protected final Message req;
+        protected final long    req_id;
+        protected boolean       sent;
+
+        public ResponseImpl(Message req, long req_id) {
+            this.req=req;
+            this.req_id=req_id;
+        }
+
+        public void send(Object reply, boolean is_exception) {
+            synchronized(this) {
+                if(sent)
+                    return;
+                sent=true;
+            }
+            sendReply(req, req_id, reply, is_exception);
+        }
+    }
+
+
     /**
      * The header for <tt>RequestCorrelator</tt> messages
      */
@@ -0,0 +1,16 @@
+package org.jgroups.blocks;
+
+/**
+ * Sends the response to a request handled by an {@link AsyncRequestHandler}. Can be invoked from any thread, after
+ * the handler has returned.
+ * @author agent
+ * @since 3.1
+ */
+public interface Response {
+    /**
+     * Sends the response back to the caller
+     * @param reply The return value, or the exception thrown when handling the request
+     * @param is_exception True if reply is an exception, which will be thrown at the caller
+     */
+    void send(Object reply, boolean is_exception);
+}
@@ -5,8 +5,9 @@ package org.jgroups.blocks;
 import org.jgroups.*;
 import org.jgroups.util.*;
 
-import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 
 /**
@@ -30,6 +31,9 @@ public class RpcDispatcher extends MessageDispatcher implements ChannelListener
 
     protected MethodLookup  method_lookup=null;
 
+    /** Caches the methods of server_obj, created on the first invocation */
+    protected volatile MethodTable method_table;
+
 
     public RpcDispatcher() {
     }
@@ -102,6 +106,7 @@ public class RpcDispatcher extends MessageDispatcher implements ChannelListener
 
     public void setMethodLookup(MethodLookup method_lookup) {
         this.method_lookup=method_lookup;
+        this.method_table=null;
     }
 
 
@@ -208,6 +213,67 @@ public class RpcDispatcher extends MessageDispatcher implements ChannelListener
     }
 
 
+    /**
+     * Invokes a method in all members contained in dests (or all members if dests is null), and hands each result to
+     * a reducer as soon as it is received. The results are not retained, and the call returns as soon as the reducer
+     * has determined the result, or the response mode is satisfied, or the timeout elapsed.
+     * @param dests A list of addresses. If null, the method will be invoked on all cluster members
+     * @param method_call The method (plus args) to be invoked
+     * @param options A collection of call options, e.g. sync versus async, timeout etc. The response filter is ignored
+     * @param reducer The reducer to which the results are passed, see {@link RspReducers} for built-in reducers
+     * @return The result of the reducer
+     * @throws Exception If the sending of the message threw an exception. Exceptions thrown by the target members
+     *                   are passed to the reducer
+     * @since 3.1
+     */
+    public <T,R> R callRemoteMethods(Collection<Address> dests, MethodCall method_call, RequestOptions options,
+                                     RspReducer<T,R> reducer) throws Exception {
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder("dests=").append(dests).append(", method_call=").append(method_call).
+              append(", options=").append(options).append(", reducer=").append(reducer));
+        return super.castMessage(dests, createMessage(null, method_call), options, reducer);
+    }
+
+    /**
+     * Same as {@link #callRemoteMethods(java.util.Collection, MethodCall, RequestOptions, RspReducer)}, but doesn't block
+     * @return NotifyingFuture A future from which the result of the reducer can be fetched
+     * @since 3.1
+     */
+    public <T,R> NotifyingFuture<R> callRemoteMethodsWithFuture(Collection<Address> dests, MethodCall method_call,
+                                                                RequestOptions options,
+                                                                RspReducer<T,R> reducer) throws Exception {
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder("dests=").append(dests).append(", method_call=").append(method_call).
+              append(", options=").append(options).append(", reducer=").append(reducer));
+        return super.castMessageWithFuture(dests, createMessage(null, method_call), options, reducer);
+    }
+
+
+    /**
+     * Invokes a different method call in each of a number of members. The calls are sent back-to-back under the same
+     * request, so the transport can bundle them.
+     * @param calls The method calls to be invoked, keyed by the member on which they are to be invoked
+     * @param options A collection of call options, e.g. sync versus async, timeout etc
+     * @return RspList A list of responses, one per member
+     * @throws Exception If the sending of the messages threw an exception
+     * @since 3.1
+     */
+    public <T> RspList<T> callRemoteMethods(Map<Address,MethodCall> calls, RequestOptions options) throws Exception {
+        return super.sendMessages(createMessages(calls), options);
+    }
+
+    /**
+     * Invokes a different method call in each of a number of members and returns a future. Same as
+     * {@link #callRemoteMethods(java.util.Map, RequestOptions)}, but doesn't block
+     * @return NotifyingFuture A future from which the results can be fetched
+     * @since 3.1
+     */
+    public <T> NotifyingFuture<RspList<T>> callRemoteMethodsWithFuture(Map<Address,MethodCall> calls,
+                                                                       RequestOptions options) throws Exception {
+        return super.sendMessagesWithFuture(createMessages(calls), options);
+    }
+
+
     /**
      * Invokes a method in a cluster member and - if blocking - returns the result
      * @param dest The target member on which to invoke the method
@@ -285,11 +351,59 @@ public class RpcDispatcher extends MessageDispatcher implements ChannelListener
     }
 
 
+    protected List<Message> createMessages(Map<Address,MethodCall> calls) throws Exception {
+        List<Message> msgs=new ArrayList<Message>(calls.size());
+        for(Map.Entry<Address,MethodCall> entry: calls.entrySet())
+            msgs.add(createMessage(entry.getKey(), entry.getValue()));
+        return msgs;
+    }
+
+    protected Message createMessage(Address dest, MethodCall call) throws Exception {
+        Object buf=req_marshaller != null? req_marshaller.objectToBuffer(call) : Util.objectToByteBuffer(call);
+        Message msg=new Message(dest, null, null);
+        if(buf instanceof Buffer)
+            msg.setBuffer((Buffer)buf);
+        else
+            msg.setBuffer((byte[])buf);
+        return msg;
+    }
+
+
     /**
-     * Message contains MethodCall. Execute it against *this* object and return result.
-     * Use MethodCall.invoke() to do this. Return result.
+     * Invokes the method contained in the request. If the method returns a {@link Future}, this call blocks until
+     * the future is done, and returns its result
      */
     public Object handle(Message req) throws Exception {
+        Object retval=invoke(req);
+        return retval instanceof Future? getResult((Future<?>)retval) : retval;
+    }
+
+    /**
+     * Invokes the method contained in the request, used when async dispatching is enabled. If the method returns a
+     * {@link NotifyingFuture}, the response is sent when the future completes, so the method can return immediately,
+     * and doesn't need to block the thread which delivered the request
+     */
+    public void handle(Message req, final Response rsp) throws Exception {
+        Object retval=invoke(req);
+        if(rsp == null)
+            return;
+        if(retval instanceof NotifyingFuture) {
+            ((NotifyingFuture<Object>)retval).setListener(new FutureListener<Object>() {
+                public void futureDone(Future<Object> future) {
+                    try {
+                        rsp.send(getResult(future), false);
+                    }
+                    catch(Throwable t) {
+                        rsp.send(t, true);
+                    }
+                }
+            });
+            return;
+        }
+        rsp.send(retval instanceof Future? getResult((Future<?>)retval) : retval, false);
+    }
+
+    protected Object invoke(Message req) throws Exception {
         Object      body;
         MethodCall  method_call;
 
@@ -304,7 +418,7 @@ public class RpcDispatcher extends MessageDispatcher implements ChannelListener
         }
 
         body=req_marshaller != null?
-          req_marshaller.objectFromBuffer(req.getBuffer(), req.getOffset(), req.getLength()) : req.getObject();
+          req_marshaller.objectFromBuffer(req.getRawBuffer(), req.getOffset(), req.getLength()) : req.getObject();
 
         if(!(body instanceof MethodCall))
             throw new IllegalArgumentException("message does not contain a MethodCall object") ;
@@ -314,17 +428,29 @@ public class RpcDispatcher extends MessageDispatcher implements ChannelListener
         if(log.isTraceEnabled())
             log.trace("[sender=" + req.getSrc() + "], method_call: " + method_call);
 
-        if(method_call.getMode() == MethodCall.ID) {
-            if(method_lookup == null)
-                throw new Exception("MethodCall uses ID=" + method_call.getId() + ", but method_lookup has not been set");
-            Method m=method_lookup.findMethod(method_call.getId());
-            if(m == null)
-                throw new Exception("no method found for " + method_call.getId());
-            method_call.setMethod(m);
-        }
-            
+        method_call.setMethod(getMethodTable().findMethod(method_call));
         return method_call.invoke(server_obj);
     }
 
+    /** Returns the method table for the current server object, creating it if needed */
+    protected MethodTable getMethodTable() {
+        MethodTable table=method_table;
+        Object obj=server_obj;
+        if(table == null || table.getTargetClass() != obj.getClass())
+            method_table=table=new MethodTable(obj.getClass(), method_lookup);
+        return table;
+    }
+
+    /** Returns the result of a future, or throws the exception the future completed with */
+    protected static Object getResult(Future<?> future) throws Exception {
+        try {
+            return future.get();
+        }
+        catch(ExecutionException e) {
+            Throwable cause=e.getCause();
+            throw cause instanceof Exception? (Exception)cause : e;
+        }
+    }
+
 
 }
@@ -0,0 +1,39 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+
+/**
+ * Consumes the responses of a group request as they arrive and reduces them to a single result. Contrary to a
+ * {@link GroupRequest}, a {@link StreamingGroupRequest} doesn't keep the responses in a
+ * {@link org.jgroups.util.RspList}, but hands each response to the reducer and then drops it.
+ * <p/>
+ * The methods of a reducer are called with the request's lock held, so implementations don't need to be thread-safe,
+ * but they should not block. A reducer instance can only be used for a single request.
+ * See {@link RspReducers} for a number of built-in reducers.
+ * @author agent
+ * @since 3.1
+ */
+public interface RspReducer<T,R> {
+
+    /**
+     * Called once before the request is sent
+     * @param num_targets The number of members from which responses are expected
+     */
+    void init(int num_targets);
+
+    /**
+     * Called for every response received
+     * @param value The value returned by the target, or null if the invocation threw an exception
+     * @param exception The exception thrown by the invocation on the target, or null
+     * @param sender The member which sent the response
+     * @return True if the result has been determined and the caller can be unblocked, without waiting for the
+     * remaining responses (early termination), false otherwise
+     */
+    boolean add(T value, Throwable exception, Address sender);
+
+    /**
+     * Returns the result of the reduction. Called when the request is done, which is when {@link #add(Object,Throwable,Address)}
+     * returned true, or the response mode was satisfied, or the timeout elapsed
+     */
+    R getResult();
+}
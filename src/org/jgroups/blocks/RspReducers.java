@@ -0,0 +1,168 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+
+import java.util.*;
+
+/**
+ * Built-in {@link RspReducer} implementations. Exceptions thrown by the invocations on the targets are counted, but
+ * otherwise ignored by all reducers.
+ * @author agent
+ * @since 3.1
+ */
+public final class RspReducers {
+
+    private RspReducers() {
+    }
+
+    /** Returns the first non-null value, and terminates the request as soon as it has been received */
+    public static <T> FirstNonNull<T> firstNonNull() {
+        return new FirstNonNull<T>();
+    }
+
+    /**
+     * Returns the value returned by a majority of the targets (or null if there's none), and terminates the request
+     * as soon as a value has been returned by a majority
+     */
+    public static <T> Majority<T> majority() {
+        return new Majority<T>();
+    }
+
+    /**
+     * Returns the sum of all numeric values as a Long, or as a Double if at least one of the values is a floating
+     * point number
+     */
+    public static Sum sum() {
+        return new Sum();
+    }
+
+    /** Merges all values, which have to be collections, into a single list */
+    public static <E> Merge<E> merge() {
+        return new Merge<E>();
+    }
+
+    /** Merges all values, which have to be maps, into a single map. Keys returned by more than one target are overwritten */
+    public static <K,V> MapMerge<K,V> mapMerge() {
+        return new MapMerge<K,V>();
+    }
+
+
+
+    /** Base class for the built-in reducers, keeping track of the number of values and exceptions */
+    public abstract static class Base<T,R> implements RspReducer<T,R> {
+        protected int num_targets, num_values, num_exceptions;
+
+        public void init(int num_targets) {
+            this.num_targets=num_targets;
+        }
+
+        public boolean add(T value, Throwable exception, Address sender) {
+            if(exception != null) {
+                num_exceptions++;
+                return false;
+            }
+            num_values++;
+            return addValue(value, sender);
+        }
+
+        public int getNumValues()     {return num_values;}
+        public int getNumExceptions() {return num_exceptions;}
+
+        /** Called for every value which is not an exception. Returns true if no more values are needed */
+        protected abstract boolean addValue(T value, Address sender);
+
+        public String toString() {
+            return getClass().getSimpleName() + ": " + getResult() + " (" + num_values + " values, " +
+              num_exceptions + " exceptions)";
+        }
+    }
+
+
+    public static class FirstNonNull<T> extends Base<T,T> {
+        protected T result;
+
+        protected boolean addValue(T value, Address sender) {
+            if(value == null)
+                return false;
+            result=value;
+            return true;
+        }
+
+        public T getResult() {
+            return result;
+        }
+    }
+
+
+    public static class Majority<T> extends Base<T,T> {
+        /** Number of occurrences of every distinct value: O(targets) in the worst case, when all values differ */
+        protected final Map<T,Integer> counts=new HashMap<T,Integer>();
+        protected T result;
+
+        protected boolean addValue(T value, Address sender) {
+            Integer count=counts.get(value);
+            count=count == null? 1 : count + 1;
+            counts.put(value, count);
+            if(count >= num_targets / 2 + 1) {
+                result=value;
+                return true;
+            }
+            return false;
+        }
+
+        public T getResult() {
+            return result;
+        }
+    }
+
+
+    public static class Sum extends Base<Number,Number> {
+        protected long    sum;
+        protected double  dsum;
+        protected boolean floating_point;
+
+        protected boolean addValue(Number value, Address sender) {
+            if(value == null)
+                return false;
+            if(value instanceof Double || value instanceof Float)
+                floating_point=true;
+            sum+=value.longValue();
+            dsum+=value.doubleValue();
+            return false;
+        }
+
+        public Number getResult() {
+            return floating_point? (Number)dsum : (Number)sum;
+        }
+    }
+
+
+    public static class Merge<E> extends Base<Collection<E>,List<E>> {
+        protected final List<E> result=new ArrayList<E>();
+
+        protected boolean addValue(Collection<E> value, Address sender) {
+            if(value != null)
+                result.addAll(value);
+            return false;
+        }
+
+        public List<E> getResult() {
+            return result;
+        }
+    }
+
+
+    public static class MapMerge<K,V> extends Base<Map<K,V>,Map<K,V>> {
+        protected final Map<K,V> result=new HashMap<K,V>();
+
+        protected boolean addValue(Map<K,V> value, Address sender) {
+            if(value != null)
+                result.putAll(value);
+            return false;
+        }
+
+        public Map<K,V> getResult() {
+            return result;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package org.jgroups.blocks;
+
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.View;
+import org.jgroups.annotations.GuardedBy;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Sends a message to a number of members, like {@link GroupRequest}, but hands every response to a
+ * {@link RspReducer} as soon as it arrives, instead of keeping it in a {@link org.jgroups.util.RspList}. Responses are
+ * not retained, and the mapping from members to positions ({@link MemberIndex}) is built once per view and shared by
+ * all requests, so a request only holds a reference to that index plus one bit per position (to discard responses
+ * from non-targets, duplicate responses and suspicions), regardless of the size of the responses. The reducer may
+ * keep additional state (e.g. {@link RspReducers.Majority} counts every distinct value). This is meant for large
+ * fan-outs, e.g. GET_ALL calls to hundreds of members.
+ * <p/>
+ * The request completes when the reducer returns true (early termination), when the response mode is satisfied, or
+ * when the timeout elapses. The result is the reducer's result ({@link RspReducer#getResult()}).
+ * @author agent
+ * @since 3.1
+ */
+public class StreamingGroupRequest<T,R> extends Request {
+    /** Maps members to positions, usually shared with all other requests sent in the same view */
+    protected final MemberIndex       index;
+
+    /** The (distinct) targets, only kept until the request has been sent */
+    protected List<Address>           dests;
+
+    protected final int               num_targets;
+
+    protected final RspReducer<T,R>   reducer;
+
+    /**
+     * Bit n is set if index.get(n) is not a target, or a response from it was received, or it was suspected. The
+     * request is waiting only for the members whose bits are clear
+     */
+    @GuardedBy("lock")
+    protected final BitSet            handled;
+
+    @GuardedBy("lock")
+    protected int                     num_received, num_suspected;
+
+    /** Set when the reducer doesn't need any more responses */
+    @GuardedBy("lock")
+    protected boolean                 reduced;
+
+
+    /**
+     * @param msg The message to be sent
+     * @param corr The request correlator to be used
+     * @param targets The targets, which are supposed to receive the message. Duplicates are removed
+     * @param options The request options to be used for this call. Response filters are ignored, the reducer
+     *                decides when the request can be terminated early
+     * @param reducer The reducer which is handed all responses. Must not be used for any other request
+     */
+    public StreamingGroupRequest(Message msg, RequestCorrelator corr, Collection<Address> targets,
+                                 RequestOptions options, RspReducer<T,R> reducer) {
+        this(msg, corr, targets, null, options, reducer);
+    }
+
+    /**
+     * @param index The positions of the members of the current view. If null, or if it doesn't contain all targets
+     *              (e.g. because the view changed in the meantime), an index of the targets is created
+     */
+    public StreamingGroupRequest(Message msg, RequestCorrelator corr, Collection<Address> targets, MemberIndex index,
+                                 RequestOptions options, RspReducer<T,R> reducer) {
+        super(msg, corr, options);
+        if(reducer == null)
+            throw new IllegalArgumentException("reducer must not be null");
+        if(index == null || !index.containsAll(targets))
+            index=new MemberIndex(targets);
+        this.index=index;
+        this.reducer=reducer;
+        this.handled=new BitSet(index.size());
+        handled.set(0, index.size());
+        this.dests=new ArrayList<Address>(targets.size());
+        for(Address target: targets) {
+            int pos=index.indexOf(target);
+            if(handled.get(pos)) { // skips duplicates
+                handled.clear(pos);
+                dests.add(target);
+            }
+        }
+        this.num_targets=dests.size();
+        reducer.init(num_targets);
+    }
+
+
+    public RspReducer<T,R> getReducer() {
+        return reducer;
+    }
+
+    public boolean getAnycasting() {
+        return options.getAnycasting();
+    }
+
+    public void setAnycasting(boolean anycasting) {
+        options.setAnycasting(anycasting);
+    }
+
+    public int getNumReceived() {
+        lock.lock();
+        try {
+            return num_received;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public int getNumSuspected() {
+        lock.lock();
+        try {
+            return num_suspected;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    public void sendRequest() throws Exception {
+        try {
+            corr.sendRequest(req_id, dests, request_msg,
+                             options.getMode() == ResponseMode.GET_NONE? null : this, options);
+        }
+        catch(Exception ex) {
+            if(corr != null)
+                corr.done(req_id);
+            throw ex;
+        }
+        finally {
+            dests=null;
+        }
+    }
+
+
+    /* ---------------------- Interface RspCollector -------------------------- */
+
+    /** Passes the response to the reducer, unless a response from the same sender has already been received */
+    @SuppressWarnings("unchecked")
+    public void receiveResponse(Object response_value, Address sender, boolean is_exception) {
+        if(done)
+            return;
+        int pos=index.indexOf(sender);
+        if(pos < 0)
+            return;
+
+        lock.lock();
+        try {
+            if(done || handled.get(pos))
+                return;
+            handled.set(pos);
+            num_received++;
+            boolean exception=is_exception && response_value instanceof Throwable;
+            try {
+                if(reducer.add(exception? null : (T)response_value, exception? (Throwable)response_value : null, sender))
+                    reduced=true;
+            }
+            catch(Throwable t) {
+                log.error("reducer " + reducer + " failed processing response from " + sender, t);
+            }
+            setDoneIfComplete();
+        }
+        finally {
+            lock.unlock();
+        }
+        if(done)
+            checkCompletion(this);
+    }
+
+
+    public void suspect(Address suspected_member) {
+        int pos=index.indexOf(suspected_member);
+        if(pos < 0)
+            return;
+
+        lock.lock();
+        try {
+            if(done || handled.get(pos))
+                return;
+            handled.set(pos);
+            num_suspected++;
+            setDoneIfComplete();
+        }
+        finally {
+            lock.unlock();
+        }
+        if(done)
+            checkCompletion(this);
+    }
+
+
+    /** Any target which is not in the new view is suspected, see {@link GroupRequest#viewChange(org.jgroups.View)} */
+    public void viewChange(View new_view) {
+        List<Address> mbrs=new_view != null? new_view.getMembers() : null;
+        if(mbrs == null)
+            return;
+
+        lock.lock();
+        try {
+            if(done)
+                return;
+            Set<Address> new_mbrs=new HashSet<Address>(mbrs);
+            for(int pos=handled.nextClearBit(0); pos < index.size(); pos=handled.nextClearBit(pos + 1)) {
+                if(!new_mbrs.contains(index.get(pos))) {
+                    handled.set(pos);
+                    num_suspected++;
+                }
+            }
+            setDoneIfComplete();
+        }
+        finally {
+            lock.unlock();
+        }
+        if(done)
+            checkCompletion(this);
+    }
+
+    /* -------------------- End of Interface RspCollector ----------------------------------- */
+
+
+
+    /** Returns the result of the reducer */
+    public R getResult() {
+        lock.lock();
+        try {
+            return reducer.getResult();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    public R get() throws InterruptedException, ExecutionException {
+        lock.lock();
+        try {
+            waitForResults(0);
+            return reducer.getResult();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public R get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        lock.lock();
+        try {
+            if(!waitForResults(unit.toMillis(timeout)))
+                throw new TimeoutException();
+            return reducer.getResult();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    public String toString() {
+        StringBuilder ret=new StringBuilder(128);
+        ret.append(super.toString());
+        ret.append(", targets=").append(num_targets).append(", received=").append(num_received)
+          .append(", suspected=").append(num_suspected).append(", reducer=").append(reducer);
+        return ret.toString();
+    }
+
+
+    /* --------------------------------- Private Methods -------------------------------------*/
+
+    /**
+     * Marks the request as done and wakes up the caller if all required responses have been received. Contrary to
+     * GroupRequest, the caller is only woken up once, as there are no partial results to look at
+     */
+    @GuardedBy("lock")
+    protected void setDoneIfComplete() {
+        if(!done && responsesComplete()) {
+            done=true;
+            if(corr != null)
+                corr.done(req_id);
+            completed.signalAll();
+        }
+    }
+
+
+    @GuardedBy("lock")
+    protected boolean responsesComplete() {
+        if(done || reduced)
+            return true;
+
+        final int num_total=num_targets;
+
+        switch(options.getMode()) {
+            case GET_FIRST:
+                return num_received >= 1 || num_suspected >= num_total;
+            case GET_ALL:
+                return num_received + num_suspected >= num_total;
+            case GET_MAJORITY:
+                int majority=num_total < 2? num_total : (num_total / 2) + 1;
+                return num_received + num_suspected >= majority;
+            case GET_NONE:
+                return true;
+            default:
+                if(log.isErrorEnabled()) log.error("rsp_mode " + options.getMode() + " unknown !");
+                break;
+        }
+        return false;
+    }
+}
@@ -6,6 +6,7 @@ import org.jgroups.Version;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.stack.IpAddress;
+import org.jgroups.util.BufferPool;
 import org.jgroups.util.DefaultSocketFactory;
 import org.jgroups.util.SocketFactory;
 import org.jgroups.util.ThreadFactory;
@@ -41,6 +42,7 @@ public class TCPConnectionMap{
     private final AtomicBoolean running = new AtomicBoolean(false);
     private volatile boolean use_send_queues=false;
     protected SocketFactory socket_factory=new DefaultSocketFactory();
+    protected volatile BufferPool buffer_pool=null;
 
 
     public TCPConnectionMap(String service_name,
@@ -117,6 +119,18 @@ public class TCPConnectionMap{
         this.socket_factory=socket_factory;
     }
 
+    public BufferPool getBufferPool() {
+        return buffer_pool;
+    }
+
+    /**
+     * Sets a pool from which buffers for incoming messages are taken. Only used if the receiver is a
+     * {@link PooledReceiver}; other receivers get a newly allocated byte[] per message
+     */
+    public void setBufferPool(BufferPool buffer_pool) {
+        this.buffer_pool=buffer_pool;
+    }
+
     public void addConnectionMapListener(AbstractConnectionMap.ConnectionMapListener<TCPConnection> l) {
         mapper.addConnectionMapListener(l);
     }
@@ -231,6 +245,14 @@ public class TCPConnectionMap{
         void receive(Address sender, byte[] data, int offset, int length);
     }
 
+    /**
+     * Receiver which accepts messages read into pooled buffers. The receiver takes over the reference to the slab
+     * and has to release it when done
+     */
+    public interface PooledReceiver extends Receiver {
+        void receive(Address sender, BufferPool.Slab slab, int offset, int length);
+    }
+
     private class ConnectionAcceptor implements Runnable {
 
         /**
@@ -582,6 +604,20 @@ public class TCPConnectionMap{
                     while(!Thread.currentThread().isInterrupted() && canRun()) {
                         try {                    
                             int len=in.readInt();
+                            BufferPool pool=buffer_pool;
+                            if(pool != null && receiver instanceof PooledReceiver) {
+                                BufferPool.Slab slab=pool.acquire(len);
+                                try {
+                                    in.readFully(slab.getBuf(), 0, len);
+                                }
+                                catch(IOException io_ex) {
+                                    slab.release();
+                                    throw io_ex;
+                                }
+                                updateLastAccessed();
+                                ((PooledReceiver)receiver).receive(peer_addr, slab, 0, len);
+                                continue;
+                            }
                             byte[] buf=new byte[len];
                             in.readFully(buf, 0, len);
                             updateLastAccessed();
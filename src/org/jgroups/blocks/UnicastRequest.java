@@ -159,10 +159,18 @@ public class UnicastRequest<T> extends Request {
     }
 
 
+    /**
+     * Returns the response value
+     * @throws ExecutionException If the target threw an exception, or if the request completed (e.g. timed out)
+     *                            without having received a response. The cause is the exception, or a
+     *                            {@link org.jgroups.TimeoutException} respectively
+     */
     public T getValue() throws ExecutionException {
-        if(!result.hasException())
-            return result.getValue();
-        throw new ExecutionException(result.getException());
+        if(result.hasException())
+            throw new ExecutionException(result.getException());
+        if(done && num_received == 0 && !result.wasSuspected())
+            throw new ExecutionException(new org.jgroups.TimeoutException("timeout waiting for response from " + target));
+        return result.getValue();
     }
 
 
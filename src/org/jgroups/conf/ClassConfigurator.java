@@ -6,6 +6,7 @@ import org.jgroups.Address;
 import org.jgroups.Global;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
+import org.jgroups.util.TypeCodec;
 import org.jgroups.util.Tuple;
 import org.jgroups.util.Util;
 import org.w3c.dom.Document;
@@ -46,6 +47,10 @@ public class ClassConfigurator {
     private static final Map<Class,Short> protocol_ids=Util.createConcurrentMap(150, 0.75f, 150);
     private static final Map<Short,Class> protocol_names=Util.createConcurrentMap(150, 0.75f, 150);
 
+    /** Codecs used to marshal classes which are not Streamable, keyed by class and by magic number */
+    private static final Map<Class<?>,TypeCodec<?>> codecs=Util.createConcurrentMap(16, 0.75f, 16);
+    private static final Map<Short,TypeCodec<?>>    codec_magics=Util.createConcurrentMap(16, 0.75f, 16);
+
     protected static final Log log=LogFactory.getLog(ClassConfigurator.class);
 
 
@@ -122,6 +127,40 @@ public class ClassConfigurator {
     }
 
 
+    /**
+     * Registers a codec for a class at runtime. The codec is used to marshal instances of exactly this class (not
+     * subclasses), e.g. RPC arguments and return values, instead of Java serialization. All members need to register
+     * the same codec under the same magic number
+     * @param magic The magic number. Needs to be > 1024
+     * @param clazz The class
+     * @param codec The codec which writes and reads instances of clazz
+     * @throws IllegalArgumentException If the magic number is already taken, or the magic number is <= 1024
+     */
+    public static <T> void addCodec(short magic, Class<T> clazz, TypeCodec<T> codec) throws IllegalArgumentException {
+        if(codec == null)
+            throw new IllegalArgumentException("codec for " + clazz.getName() + " must not be null");
+        add(magic, clazz);
+        codec_magics.put(magic, codec);
+        codecs.put(clazz, codec);
+    }
+
+    /** Returns the codec registered for clazz, or null if none was registered */
+    public static <T> TypeCodec<T> getCodec(Class<?> clazz) {
+        return codecs.isEmpty()? null : ClassConfigurator.<T>cast(codecs.get(clazz));
+    }
+
+    /** Returns the codec registered under a magic number, or null if none was registered */
+    public static <T> TypeCodec<T> getCodec(short magic) {
+        return cast(codec_magics.get(magic));
+    }
+
+    /** Codecs are only registered by {@link #addCodec(short, Class, TypeCodec)}, so the type always matches the class */
+    @SuppressWarnings("unchecked")
+    private static <T> TypeCodec<T> cast(TypeCodec<?> codec) {
+        return (TypeCodec<T>)codec;
+    }
+
+
     public static void addProtocol(short id, Class protocol) {
         if(id <= MIN_CUSTOM_PROTOCOL_ID)
             throw new IllegalArgumentException("protocol ID (" + id + ") needs to be greater than " + MIN_CUSTOM_PROTOCOL_ID);
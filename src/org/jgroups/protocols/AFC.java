@@ -0,0 +1,494 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Message;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.util.Util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Adaptive flow control. Like {@link UFC} and {@link MFC}, receivers send credits back to a sender once they have
+ * delivered messages from it, but the number of bytes a sender can have outstanding to a member (its window) is not
+ * fixed at max_credits: it is adjusted dynamically, in the spirit of TCP congestion control (Vegas):
+ * <ul>
+ * <li>Senders periodically send a probe to each member. The probe is a regular message, so it is queued behind the
+ *     regular messages sent before it, and its round trip time includes the time the receiver takes to process them
+ * <li>The difference between the smoothed and the minimal round trip time is an estimate of the number of bytes
+ *     queued at the receiver. If it is below queue_low, the window is increased by ack_size per round trip
+ *     (doubled during slow start), if it is above queue_high, the window is decreased by ack_size
+ * <li>When a sender blocks for max_block_time, the window is halved and credits are requested from the receiver
+ * </ul>
+ * Windows are between min_window and max_credits. Both unicast and multicast messages are flow controlled: a
+ * multicast needs to fit into the window of every member, so a slow member throttles multicasts.
+ * Receivers send credits for every ack_size bytes received from a sender.
+ * @author agent
+ * @since 3.1
+ */
+@MBean(description="Adaptive flow control protocol adjusting the window per member to round trip time and delivery rate")
+public class AFC extends FlowControl {
+
+    /* -----------------------------------------    Properties     -------------------------------------------------- */
+    @Property(description="Min size (in bytes) of the window of a member. Needs to be at least 2 * ack_size")
+    protected long min_window=100000;
+
+    @Property(description="A receiver sends credits to a sender after it received ack_size bytes from it. " +
+      "This is also the amount by which windows are increased or decreased per round trip")
+    protected long ack_size=25000;
+
+    @Property(description="If the estimated number of bytes queued at a receiver is below this, its window is increased")
+    protected long queue_low=25000;
+
+    @Property(description="If the estimated number of bytes queued at a receiver is above this, its window is decreased")
+    protected long queue_high=100000;
+
+    @Property(description="Min interval (ms) between round trip time probes to the same member")
+    protected long probe_interval=20;
+
+
+    /* ---------------------------------------------   JMX      ------------------------------------------------------ */
+    @ManagedAttribute(description="Number of round trip time probes sent")
+    protected final AtomicInteger num_probes_sent=new AtomicInteger(0);
+
+    @ManagedAttribute(description="Number of times a window was halved because a sender blocked for max_block_time")
+    protected final AtomicInteger num_timeouts=new AtomicInteger(0);
+
+
+    /* --------------------------------------------- Fields ------------------------------------------------------ */
+
+    /** The sender side window per member */
+    protected final ConcurrentMap<Address,Window> windows=Util.createConcurrentMap();
+
+    /** Bytes received from a sender for which no credits have been sent yet */
+    protected final ConcurrentMap<Address,AtomicLong> pending=Util.createConcurrentMap();
+
+    protected final static FcHeader PROBE_HDR=new FcHeader(FcHeader.PROBE);
+    protected final static FcHeader PROBE_RSP_HDR=new FcHeader(FcHeader.PROBE_RSP);
+
+
+
+    @ManagedOperation(description="Prints the window, outstanding bytes, round trip times and delivery rate per member")
+    public String printWindows() {
+        return printWindowMap();
+    }
+
+    @ManagedOperation(description="Print sender credits")
+    public String printSenderCredits() {
+        return printWindowMap();
+    }
+
+    @ManagedOperation(description="Print credits")
+    public String printCredits() {
+        return "senders:\n" + printWindowMap();
+    }
+
+    public Map<String,Object> dumpStats() {
+        Map<String,Object> retval=super.dumpStats();
+        retval.put("windows", printWindowMap());
+        return retval;
+    }
+
+    /** Returns the current window for member, or -1 if member is not known */
+    public long getWindow(Address member) {
+        Window win=windows.get(member);
+        return win != null? win.window : -1;
+    }
+
+    @ManagedAttribute(description="Number of times flow control blocks sender")
+    public int getNumberOfBlockings() {
+        int retval=0;
+        for(Window win: windows.values())
+            retval+=win.num_blockings;
+        return retval;
+    }
+
+    @ManagedAttribute(description="Total time (ms) spent in flow control block")
+    public long getTotalTimeBlocked() {
+        long retval=0;
+        for(Window win: windows.values())
+            retval+=win.total_blocking_time;
+        return retval;
+    }
+
+    @ManagedAttribute(description="Number of senders currently blocked waiting for credits")
+    public int getNumberOfBlockedSenders() {
+        int retval=0;
+        for(Window win: windows.values())
+            retval+=win.num_blocked.get();
+        return retval;
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_probes_sent.set(0);
+        num_timeouts.set(0);
+    }
+
+    /** Sets the outstanding bytes of all members to 0, unblocking blocked senders */
+    @ManagedOperation(description="Unblocks all senders")
+    public void unblock() {
+        for(Window win: windows.values())
+            win.reset();
+    }
+
+    protected boolean handleMulticastMessage() {
+        return true;
+    }
+
+    protected boolean isFlowControlled(boolean multicast) {
+        return true;
+    }
+
+    public void init() throws Exception {
+        super.init();
+        if(ack_size <= 0)
+            throw new IllegalArgumentException("ack_size (" + ack_size + ") has to be > 0");
+        if(min_window < 2 * ack_size) {
+            log.warn("min_window (" + min_window + ") has to be at least 2 * ack_size (" + ack_size + "); setting it to " + 2 * ack_size);
+            min_window=2 * ack_size;
+        }
+        if(max_credits < min_window)
+            throw new IllegalArgumentException("max_credits (" + max_credits + ") has to be >= min_window (" + min_window + ")");
+        if(queue_high <= queue_low)
+            throw new IllegalArgumentException("queue_high (" + queue_high + ") has to be > queue_low (" + queue_low + ")");
+    }
+
+    public void stop() {
+        super.stop();
+        for(Window win: windows.values())
+            win.reset();
+    }
+
+
+    public Object up(Event evt) {
+        if(evt.getType() == Event.MSG) {
+            Message msg=(Message)evt.getArg();
+            FcHeader hdr=(FcHeader)msg.getHeader(this.id);
+            if(hdr != null) {
+                switch(hdr.type) {
+                    case FcHeader.PROBE:
+                        sendProbeResponse(msg.getSrc(), (Long)msg.getObject());
+                        return null;
+                    case FcHeader.PROBE_RSP:
+                        Window win=windows.get(msg.getSrc());
+                        if(win != null)
+                            win.probeResponse((Long)msg.getObject());
+                        return null;
+                }
+            }
+        }
+        return super.up(evt);
+    }
+
+
+    protected Object handleDownMessage(final Event evt, final Message msg, Address dest, int length) {
+        if(dest != null) {
+            Window win=windows.get(dest);
+            if(win == null)
+                return down_prot.down(evt);
+            acquire(dest, win, length);
+            Object retval=down_prot.down(evt);
+            if(win.needToSendProbe())
+                sendProbe(dest);
+            return retval;
+        }
+
+        // a multicast needs to fit into the windows of all members
+        for(Map.Entry<Address,Window> entry: windows.entrySet())
+            acquire(entry.getKey(), entry.getValue(), length);
+        Object retval=down_prot.down(evt);
+        for(Map.Entry<Address,Window> entry: windows.entrySet())
+            if(entry.getValue().needToSendProbe())
+                sendProbe(entry.getKey());
+        return retval;
+    }
+
+
+    /** Blocks until length bytes fit into the window of dest, the member left, or the protocol was stopped */
+    protected void acquire(Address dest, Window win, int length) {
+        long block_time=max_block_times != null? getMaxBlockTime(length) : max_block_time;
+        while(running && windows.get(dest) == win) {
+            if(win.acquire(length, block_time) || !running || max_block_times != null)
+                break;
+
+            // blocked for block_time: this is the equivalent of a retransmission timeout in TCP
+            win.timeout();
+            num_timeouts.incrementAndGet();
+            if(win.needToSendCreditRequest())
+                sendCreditRequest(dest, Math.max(0, win.outstanding.get()));
+        }
+    }
+
+
+    protected void handleCredit(Address sender, long increase) {
+        Window win;
+        if(sender == null || (win=windows.get(sender)) == null || increase <= 0)
+            return;
+        if(log.isTraceEnabled())
+            log.trace("received " + increase + " credits from " + sender + ": " + win);
+        win.ack(increase);
+    }
+
+
+    /** Sends credits to the sender for every ack_size bytes received from it */
+    protected long adjustCredit(Map<Address,Credit> map, Address sender, long length) {
+        if(sender == null || length == 0)
+            return 0;
+        AtomicLong bytes=pending.get(sender);
+        if(bytes == null) {
+            AtomicLong tmp=pending.putIfAbsent(sender, bytes=new AtomicLong(0));
+            if(tmp != null)
+                bytes=tmp;
+        }
+        if(bytes.addAndGet(length) < ack_size)
+            return 0;
+        return bytes.getAndSet(0);
+    }
+
+    /** The sender blocked for max_block_time; we send it the credits it asked for and reset the pending bytes */
+    protected void handleCreditRequest(Map<Address,Credit> map, Address sender, long requested_credits) {
+        if(requested_credits <= 0 || sender == null)
+            return;
+        AtomicLong bytes=pending.get(sender);
+        if(bytes != null)
+            bytes.set(0);
+        if(log.isTraceEnabled())
+            log.trace("received credit request from " + sender + ": sending " + requested_credits + " credits");
+        sendCredit(sender, requested_credits);
+    }
+
+
+    protected void handleViewChange(List<Address> mbrs) {
+        super.handleViewChange(mbrs);
+        if(mbrs == null) return;
+
+        for(Address addr: mbrs) {
+            if(!windows.containsKey(addr))
+                windows.put(addr, new Window(addr));
+        }
+
+        for(Iterator<Map.Entry<Address,Window>> it=windows.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Address,Window> entry=it.next();
+            if(!mbrs.contains(entry.getKey())) {
+                it.remove();
+                entry.getValue().reset(); // unblocks senders blocked on the window of the member which left
+            }
+        }
+        pending.keySet().retainAll(mbrs);
+    }
+
+
+    protected void sendProbe(Address dest) {
+        Message msg=new Message(dest, null, System.nanoTime());
+        msg.putHeader(this.id, PROBE_HDR);
+        down_prot.down(new Event(Event.MSG, msg));
+        num_probes_sent.incrementAndGet();
+    }
+
+    protected void sendProbeResponse(Address dest, Long timestamp) {
+        if(dest == null || timestamp == null)
+            return;
+        Message msg=new Message(dest, null, timestamp);
+        msg.setFlag(Message.OOB);
+        msg.putHeader(this.id, PROBE_RSP_HDR);
+        down_prot.down(new Event(Event.MSG, msg));
+    }
+
+    protected String printWindowMap() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,Window> entry: windows.entrySet())
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        return sb.toString();
+    }
+
+
+
+    /**
+     * The window of a member. Acquiring and releasing bytes is lock-free; the monitor is only acquired by senders which
+     * block and by round trip time probe responses.
+     */
+    protected class Window {
+        /** The max number of bytes that can be outstanding (sent, but not yet acked) */
+        protected volatile long       window=min_window;
+        protected final AtomicLong    outstanding=new AtomicLong(0);
+        protected final AtomicBoolean probe_pending=new AtomicBoolean(false);
+        protected final AtomicInteger num_blocked=new AtomicInteger(0);
+        protected volatile int        num_blockings=0;
+        protected volatile long       total_blocking_time=0;
+        protected volatile long       last_probe=0;       // ns
+        protected long                last_credit_request=0;
+
+        protected final Address       member;
+        protected volatile boolean    slow_start=true;
+        protected volatile long       max_outstanding=0; // the highest outstanding bytes since the last probe
+        protected volatile long       srtt=0, min_rtt=Long.MAX_VALUE;  // ns
+        protected volatile double     delivery_rate=0; // bytes/sec
+        protected final AtomicLong    acked_bytes=new AtomicLong(0);   // acked since the last rate computation
+        protected volatile long       rate_start=System.nanoTime();
+
+        protected Window(Address member) {
+            this.member=member;
+        }
+
+
+        /**
+         * Adds length bytes to the outstanding bytes if they fit into the window. Blocks for up to timeout ms
+         * otherwise. A message larger than the window is sent when nothing is outstanding.
+         * @return True if the bytes were acquired, false if the timeout elapsed
+         */
+        protected boolean acquire(long length, long timeout) {
+            if(tryAcquire(length))
+                return true;
+            if(timeout <= 0)
+                return false;
+
+            synchronized(this) {
+                // ack() and reset() notify us (with the monitor held) if they see num_blocked > 0
+                num_blocked.incrementAndGet();
+                long start=System.nanoTime(), deadline=start + TimeUnit.MILLISECONDS.toNanos(timeout);
+                try {
+                    for(;;) {
+                        if(tryAcquire(length))
+                            return true;
+                        long wait_time=TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if(wait_time <= 0 || !running || windows.get(member) != this)
+                            return false;
+                        this.wait(wait_time);
+                    }
+                }
+                catch(InterruptedException e) {
+                    return tryAcquire(length);
+                }
+                finally {
+                    num_blocked.decrementAndGet();
+                    total_blocking_time+=TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    num_blockings++;
+                }
+            }
+        }
+
+        protected boolean tryAcquire(long length) {
+            for(;;) {
+                long current=outstanding.get();
+                if(current + length > window && current > 0)
+                    return false;
+                if(outstanding.compareAndSet(current, current + length)) {
+                    if(current + length > max_outstanding)
+                        max_outstanding=current + length; // racy, but only used as a hint
+                    return true;
+                }
+            }
+        }
+
+        /** Credits were received from the member: removes them from the outstanding bytes */
+        protected void ack(long credits) {
+            for(;;) {
+                long current=outstanding.get();
+                if(outstanding.compareAndSet(current, Math.max(0, current - credits)))
+                    break;
+            }
+            long now=System.nanoTime();
+            long acked=acked_bytes.addAndGet(credits), elapsed=now - rate_start;
+            if(elapsed >= Math.max(srtt, TimeUnit.MILLISECONDS.toNanos(1)) && acked_bytes.compareAndSet(acked, 0)) {
+                rate_start=now;
+                double rate=acked / (elapsed / 1000000000.0);
+                delivery_rate=delivery_rate == 0? rate : 0.75 * delivery_rate + 0.25 * rate;
+            }
+            signalBlockedSenders();
+        }
+
+        /** Returns true if a probe should be sent now (and marks it as sent) */
+        protected boolean needToSendProbe() {
+            if(probe_pending.get())
+                return false;
+            long now=System.nanoTime();
+            if(now - last_probe < TimeUnit.MILLISECONDS.toNanos(probe_interval))
+                return false;
+            if(!probe_pending.compareAndSet(false, true))
+                return false;
+            last_probe=now;
+            return true;
+        }
+
+        /** A response to a probe was received: updates the round trip times and adjusts the window */
+        protected synchronized void probeResponse(long timestamp) {
+            probe_pending.set(false);
+            long rtt=Math.max(1, System.nanoTime() - timestamp);
+            min_rtt=Math.min(min_rtt, rtt);
+            srtt=srtt == 0? rtt : (7 * srtt + rtt) / 8;
+
+            // estimate of the bytes queued at the receiver (Vegas): window * (1 - min_rtt / srtt)
+            long queued=(long)(window * (1.0 - min_rtt / (double)srtt));
+            boolean window_limited=max_outstanding >= window / 2; // don't grow the window if we don't use it
+            max_outstanding=outstanding.get();
+            long new_window=window;
+            if(queued > queue_high) {
+                slow_start=false;
+                new_window-=ack_size;
+            }
+            else if(queued < queue_low && window_limited)
+                new_window=slow_start? new_window * 2 : new_window + ack_size;
+            setWindow(new_window);
+        }
+
+        /** A sender blocked for max_block_time: halve the window (multiplicative decrease) */
+        protected synchronized void timeout() {
+            slow_start=false;
+            setWindow(window / 2);
+        }
+
+        protected synchronized boolean needToSendCreditRequest() {
+            long current_time=System.currentTimeMillis();
+            if(current_time - last_credit_request >= max_block_time) {
+                last_credit_request=current_time;
+                return true;
+            }
+            return false;
+        }
+
+        /** Clears the outstanding bytes and wakes up blocked senders */
+        protected void reset() {
+            outstanding.set(0);
+            probe_pending.set(false);
+            synchronized(this) {
+                notifyAll();
+            }
+        }
+
+        protected void setWindow(long new_window) {
+            long old_window=window;
+            window=Math.max(min_window, Math.min(max_credits, new_window));
+            if(window > old_window)
+                signalBlockedSenders();
+        }
+
+        protected void signalBlockedSenders() {
+            if(num_blocked.get() > 0) {
+                synchronized(this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder("window=").append(window).append(", outstanding=").append(outstanding);
+            if(srtt > 0)
+                sb.append(", srtt=").append(TimeUnit.NANOSECONDS.toMicros(srtt)).append(" us, min_rtt=")
+                  .append(TimeUnit.NANOSECONDS.toMicros(min_rtt)).append(" us");
+            sb.append(String.format(", rate=%.2f KB/sec", delivery_rate / 1000.0));
+            if(slow_start)
+                sb.append(" (slow start)");
+            return sb.toString();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
@@ -148,6 +149,51 @@ public class BARRIER extends Protocol {
         return up_prot.up(evt);
     }
 
+    /** Multicast batches are blocked while the barrier is closed, same as individual multicast messages */
+    public void up(MessageBatch batch) {
+        if(batch.dest() != null) { // https://issues.jboss.org/browse/JGRP-1341: let unicast messages pass
+            up_prot.up(batch);
+            return;
+        }
+        Thread current_thread=Thread.currentThread();
+        in_flight_threads.put(current_thread, NULL);
+        if(barrier_closed.get()) {
+            lock.lock();
+            try {
+                in_flight_threads.remove(current_thread);
+                while(barrier_closed.get()) {
+                    try {
+                        barrier_opened.await();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                }
+            }
+            finally {
+                in_flight_threads.put(current_thread, NULL);
+                lock.unlock();
+            }
+        }
+
+        try {
+            up_prot.up(batch);
+        }
+        finally {
+            if(in_flight_threads.remove(current_thread) == NULL &&
+                    barrier_closed.get() &&
+                    in_flight_threads.isEmpty()) {
+                lock.lock();
+                try {
+                    no_msgs_pending.signalAll();
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+
 
     /** Close the barrier. Temporarily remove all threads which are waiting or blocked, re-insert them after the call */
     private void closeBarrier() {
@@ -5,73 +5,178 @@ import org.jgroups.Global;
 import org.jgroups.Header;
 import org.jgroups.Message;
 import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
 
-import java.io.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.zip.DataFormatException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 /**
  * Compresses the payload of a message. Goal is to reduce the number of messages
  * sent across the wire. Should ideally be layered somewhere above a
- * fragmentation protocol (e.g. FRAG).
- * 
+ * fragmentation protocol (e.g. FRAG).<p/>
+ * The compression algorithm is pluggable (see {@link Codec}): "deflate" (java.util.zip), "lz" (a fast LZ77 codec in
+ * pure Java), "none", or the class name of a custom codec. Codecs are taken from a pool per codec (of at most
+ * pool_size idle instances) and returned after use, so concurrent senders and receivers never share a codec, and
+ * codecs which don't fit into the pool are destroyed. The ID of the codec is shipped with a compressed message, so members
+ * using different codecs can still decompress each other's messages.<p/>
+ * In adaptive mode, compression is skipped for a while when the ratio of recently compressed messages is poor, e.g.
+ * because the payloads are already compressed or encrypted.
+ *
  * @author Bela Ban
  */
 @MBean(description="Compresses messages to send and uncompresses received messages")
-public class COMPRESS extends Protocol {   
+public class COMPRESS extends Protocol {
 
     /* -----------------------------------------    Properties     -------------------------------------------------- */
-    
-    @Property(description="Compression level 0-9 (0=no compression, 9=best compression). Default is 9")
+
+    @Property(description="Compression level 0-9 (0=no compression, 9=best compression) of the deflate codec. Default is 9")
     private int compression_level=Deflater.BEST_COMPRESSION; // this is 9
-   
+
     @Property(description="Minimal payload size of a message (in bytes) for compression to kick in. Default is 500 bytes")
     private long min_size=500;
-    
-    @Property(description="Number of inflaters/deflaters for concurrent processing. Default is 2 ")
-    private int pool_size=2;
-    
-    
+
+    @Property(description="Max number of idle codecs (per codec type) kept for reuse. A thread takes a codec from the " +
+      "pool for a single compression or decompression, or creates a new one if the pool is empty. Codecs returned " +
+      "to a full pool are destroyed, releasing their native memory")
+    protected int pool_size=16;
+
+    @Property(description="The codec used to compress messages: \"deflate\", \"lz\" (fast, but lower ratio), " +
+      "\"none\" or the fully qualified name of a class implementing org.jgroups.util.Codec",writable=false)
+    protected String codec="deflate";
+
+    @Property(description="If true, compression is skipped for adaptive_skip messages when the average compression " +
+      "ratio of recent messages is above adaptive_max_ratio")
+    protected boolean adaptive=false;
+
+    @Property(description="Average ratio (compressed size / original size) of recent messages above which compression " +
+      "is skipped in adaptive mode. E.g. 0.9 means that compression saving less than 10% is considered not worth it")
+    protected double adaptive_max_ratio=0.9;
+
+    @Property(description="Number of messages for which compression is skipped in adaptive mode, before trying again")
+    protected int adaptive_skip=100;
+
+
     /* --------------------------------------------- Fields ------------------------------------------------------ */
-    
-    
-    BlockingQueue<Deflater> deflater_pool=null;
-    
-    BlockingQueue<Inflater> inflater_pool=null;
 
-    
+    /** The ID of the codec used for compression */
+    protected byte                               codec_id;
+
+    /** The class of a custom codec, or null if one of the built-in codecs is used */
+    protected Class<? extends Codec>             codec_class;
+
+    protected byte                               custom_codec_id;
+
+    /** Idle codecs, keyed by codec ID. Bounded by pool_size, so the number of codecs (and their native memory)
+     * doesn't grow with the number of threads which ever compressed or decompressed a message */
+    protected final ConcurrentMap<Byte,BlockingQueue<Codec>> pools=new ConcurrentHashMap<Byte,BlockingQueue<Codec>>();
+
+    /** Buffer for compression, per thread. Heap memory only, so it is reclaimed when a thread terminates */
+    protected final ThreadLocal<byte[]>          buffers=new ThreadLocal<byte[]>();
+
+    protected volatile boolean                   destroyed;
+
+    /** Stats per codec, indexed by codec ID */
+    protected final CodecStats[]                 codec_stats=new CodecStats[256];
+
+    /** Moving average of the compression ratio of recent messages (adaptive mode only) */
+    protected volatile double                    avg_ratio;
+
+    /** Number of messages for which compression is still skipped (adaptive mode only) */
+    protected final AtomicInteger                skip=new AtomicInteger(0);
+
+    protected final AtomicLong                   num_skipped_adaptive=new AtomicLong(0);
+
+
+
+    public COMPRESS() {
+        codec_stats[DeflateCodec.ID]=new CodecStats("deflate");
+        codec_stats[LZCodec.ID]=new CodecStats("lz");
+        codec_stats[NoopCodec.ID]=new CodecStats("none");
+    }
+
+    @ManagedAttribute(description="Moving average of the compression ratio (compressed size / original size) of " +
+      "recent messages, only computed in adaptive mode")
+    public double getAverageRatio() {return avg_ratio;}
+
+    @ManagedAttribute(description="Number of messages which were not compressed as adaptive mode skipped compression")
+    public long getNumSkippedAdaptive() {return num_skipped_adaptive.get();}
+
+    @ManagedAttribute(description="Number of compressed messages sent, with the configured codec")
+    public long getNumCompressed() {return stats(codec_id).compressed_msgs.get();}
 
-    public COMPRESS() {      
+    @ManagedAttribute(description="Overall compression ratio (compressed size / original size) of the configured codec")
+    public double getCompressionRatio() {return stats(codec_id).ratio();}
+
+    public void resetStats() {
+        super.resetStats();
+        for(int i=0; i < codec_stats.length; i++)
+            if(codec_stats[i] != null)
+                codec_stats[i].reset();
+        num_skipped_adaptive.set(0);
+    }
+
+    @ManagedOperation(description="Prints ratio and throughput of all codecs")
+    public String printCodecStats() {
+        StringBuilder sb=new StringBuilder();
+        for(int i=0; i < codec_stats.length; i++)
+            if(codec_stats[i] != null)
+                sb.append(codec_stats[i]).append("\n");
+        return sb.toString();
+    }
+
+    public Map<String,Object> dumpStats() {
+        Map<String,Object> retval=super.dumpStats();
+        retval.put("codecs", printCodecStats());
+        retval.put("skipped_adaptive", num_skipped_adaptive.get());
+        return retval;
     }
 
 
     public void init() throws Exception {
-        deflater_pool=new ArrayBlockingQueue<Deflater>(pool_size);
-        for(int i=0; i < pool_size; i++) {
-            deflater_pool.add(new Deflater(compression_level));
-        }
-        inflater_pool=new ArrayBlockingQueue<Inflater>(pool_size);
-        for(int i=0; i < pool_size; i++) {
-            inflater_pool.add(new Inflater());
+        if(codec.equalsIgnoreCase("deflate"))
+            codec_id=DeflateCodec.ID;
+        else if(codec.equalsIgnoreCase("lz"))
+            codec_id=LZCodec.ID;
+        else if(codec.equalsIgnoreCase("none"))
+            codec_id=NoopCodec.ID;
+        else {
+            codec_class=((Class<?>)Util.loadClass(codec, getClass())).asSubclass(Codec.class);
+            Codec tmp=codec_class.newInstance();
+            custom_codec_id=codec_id=tmp.getId();
+            tmp.destroy();
+            if(codec_id >= 0 && codec_id <= 31)
+                throw new IllegalArgumentException("ID " + codec_id + " of codec " + codec + " is reserved (0-31)");
+            codec_stats[codec_id & 0xff]=new CodecStats(tmp.getName());
         }
+        if(adaptive_skip < 1)
+            throw new IllegalArgumentException("adaptive_skip (" + adaptive_skip + ") has to be >= 1");
     }
 
     public void destroy() {
-        for(Deflater deflater: deflater_pool)
-            deflater.end();
-        for(Inflater inflater: inflater_pool)
-            inflater.end();
-    }   
+        destroyed=true;
+        for(BlockingQueue<Codec> pool: pools.values()) {
+            Codec tmp;
+            while((tmp=pool.poll()) != null)
+                tmp.destroy();
+        }
+    }
 
 
     /**
      * We compress the payload if it is larger than <code>min_size</code>. In this case we add a header containing
-     * the original size before compression. Otherwise we add no header.<br/>
+     * the original size before compression and the codec used. Otherwise we add no header.<br/>
      * Note that we compress either the entire buffer (if offset/length are not used), or a subset (if offset/length
      * are used)
      * @param evt
@@ -80,41 +185,8 @@ public class COMPRESS extends Protocol {
         if(evt.getType() == Event.MSG) {
             Message msg=(Message)evt.getArg();
             int length=msg.getLength(); // takes offset/length (if set) into account
-            if(length >= min_size) {
-                byte[] payload=msg.getRawBuffer(); // here we get the ref so we can avoid copying
-                byte[] compressed_payload=new byte[length];
-                int compressed_size;
-                Deflater deflater=null;
-                try {
-                    deflater=deflater_pool.take();
-                    deflater.reset();
-                    deflater.setInput(payload, msg.getOffset(), length);
-                    deflater.finish();
-                    deflater.deflate(compressed_payload);
-                    compressed_size=deflater.getTotalOut();
-
-                    if ( compressed_size < length ) { // JGRP-1000
-                        byte[] new_payload=new byte[compressed_size];
-                        System.arraycopy(compressed_payload, 0, new_payload, 0, compressed_size);
-                        msg.setBuffer(new_payload);
-                        msg.putHeader(this.id, new CompressHeader(length));
-                        if(log.isTraceEnabled())
-                            log.trace("compressed payload from " + length + " bytes to " + compressed_size + " bytes");
-                    }
-                    else {
-                        if(log.isTraceEnabled())
-                            log.trace("Skipping compression since the compressed message is larger than the original");
-                    }
-                }
-                catch(InterruptedException e) {
-                    Thread.currentThread().interrupt(); // set interrupt flag again
-                    throw new RuntimeException(e);
-                }
-                finally {
-                    if(deflater != null)
-                        deflater_pool.offer(deflater);
-                }
-            }
+            if(length >= min_size && !skipCompression())
+                compress(msg, length);
         }
         return down_prot.down(evt);
     }
@@ -130,51 +202,210 @@ public class COMPRESS extends Protocol {
             Message msg=(Message)evt.getArg();
             CompressHeader hdr=(CompressHeader)msg.getHeader(this.id);
             if(hdr != null) {
-                byte[] compressed_payload=msg.getRawBuffer();
-                if(compressed_payload != null && compressed_payload.length > 0) {
-                    int original_size=hdr.original_size;
-                    byte[] uncompressed_payload=new byte[original_size];
-                    Inflater inflater=null;
-                    try {
-                        inflater=inflater_pool.take();
-                        inflater.reset();
-                        inflater.setInput(compressed_payload, msg.getOffset(), msg.getLength());
-                        try {
-                            inflater.inflate(uncompressed_payload);
-                            if(log.isTraceEnabled())
-                                log.trace("uncompressed " + compressed_payload.length + " bytes to " + original_size +
-                                        " bytes");
-                            // we need to copy: https://jira.jboss.org/jira/browse/JGRP-867
-                            Message copy=msg.copy(false);
-                            copy.setBuffer(uncompressed_payload);
-                            return up_prot.up(new Event(Event.MSG, copy));
-                            // msg.setBuffer(uncompressed_payload);
-                        }
-                        catch(DataFormatException e) {
-                            if(log.isErrorEnabled()) log.error("exception on uncompression", e);
-                        }
-                    }
-                    catch(InterruptedException e) {
-                        Thread.currentThread().interrupt(); // set the interrupt bit again, so caller can handle it
-                    }
-                    finally {
-                        if(inflater != null)
-                            inflater_pool.offer(inflater);
-                    }
-
-                }
+                Message copy=uncompress(msg, hdr);
+                if(copy != null)
+                    return up_prot.up(new Event(Event.MSG, copy));
             }
         }
         return up_prot.up(evt);
     }
 
+    protected boolean accept(Message msg) {
+        return msg.getHeader(id) != null;
+    }
+
+
+    /** Returns true if adaptive mode is on and compression is currently skipped */
+    protected boolean skipCompression() {
+        if(!adaptive || skip.get() <= 0)
+            return false;
+        if(skip.decrementAndGet() < 0)
+            return false;
+        num_skipped_adaptive.incrementAndGet();
+        return true;
+    }
+
+    protected void compress(Message msg, int length) {
+        byte[] payload=msg.getRawBuffer(); // here we get the ref so we can avoid copying
+        CodecStats cs=stats(codec_id);
+        Codec tmp=null;
+        try {
+            tmp=acquireCodec(codec_id);
+            byte[] buf=getBuffer(length);
+            long start=System.nanoTime();
+            // we're only interested in the compressed data if it is smaller than the original (JGRP-1000)
+            int compressed_size=tmp.compress(payload, msg.getOffset(), length, buf, 0, length - 1);
+            long time=System.nanoTime() - start;
+            if(adaptive)
+                updateRatio(compressed_size > 0? compressed_size / (double)length : 1.0);
+
+            if(compressed_size > 0) {
+                byte[] new_payload=new byte[compressed_size];
+                System.arraycopy(buf, 0, new_payload, 0, compressed_size);
+                msg.setBuffer(new_payload);
+                msg.putHeader(this.id, new CompressHeader(length, codec_id));
+                cs.compressed(length, compressed_size, time);
+                if(log.isTraceEnabled())
+                    log.trace("compressed payload from " + length + " bytes to " + compressed_size + " bytes");
+            }
+            else {
+                cs.not_smaller.incrementAndGet();
+                if(log.isTraceEnabled())
+                    log.trace("Skipping compression since the compressed message is larger than the original");
+            }
+        }
+        catch(Throwable t) {
+            // the message is simply sent uncompressed
+            log.error("compression with " + codec + " failed", t);
+        }
+        finally {
+            releaseCodec(codec_id, tmp);
+        }
+    }
+
+    /** Returns a copy of msg with the uncompressed payload, or null if the payload could not be uncompressed */
+    protected Message uncompress(Message msg, CompressHeader hdr) {
+        byte[] compressed_payload=msg.getRawBuffer();
+        if(compressed_payload == null || compressed_payload.length == 0)
+            return null;
+        int original_size=hdr.original_size;
+        byte[] uncompressed_payload=new byte[original_size];
+        Codec tmp=null;
+        try {
+            tmp=acquireCodec(hdr.codec);
+            if(tmp == null) {
+                log.error("codec with ID " + hdr.codec + " not found; cannot uncompress message from " + msg.getSrc());
+                return null;
+            }
+            long start=System.nanoTime();
+            tmp.decompress(compressed_payload, msg.getOffset(), msg.getLength(), uncompressed_payload, 0, original_size);
+            stats(hdr.codec).decompressed(System.nanoTime() - start);
+            if(log.isTraceEnabled())
+                log.trace("uncompressed " + msg.getLength() + " bytes to " + original_size + " bytes");
+            // we need to copy: https://jira.jboss.org/jira/browse/JGRP-867
+            Message copy=msg.copy(false);
+            copy.setBuffer(uncompressed_payload);
+            return copy;
+        }
+        catch(Throwable t) {
+            if(log.isErrorEnabled()) log.error("exception on uncompression", t);
+            return null;
+        }
+        finally {
+            releaseCodec(hdr.codec, tmp);
+        }
+    }
+
+    /** Updates the moving average of the ratio and skips compression for a while if the ratio is poor */
+    protected void updateRatio(double ratio) {
+        double tmp=avg_ratio == 0? ratio : avg_ratio * 0.9 + ratio * 0.1; // races only make the average less exact
+        avg_ratio=tmp;
+        if(tmp > adaptive_max_ratio)
+            skip.set(adaptive_skip);
+    }
+
+    protected CodecStats stats(byte id) {
+        CodecStats retval=codec_stats[id & 0xff];
+        return retval != null? retval : codec_stats[NoopCodec.ID];
+    }
+
+    protected Codec createCodec(byte id) throws Exception {
+        switch(id) {
+            case DeflateCodec.ID: return new DeflateCodec(compression_level);
+            case LZCodec.ID:      return new LZCodec();
+            case NoopCodec.ID:    return new NoopCodec();
+        }
+        if(codec_class != null && id == custom_codec_id)
+            return codec_class.newInstance();
+        return null;
+    }
+
+
+    /** Takes an idle codec from the pool, or creates a new one. Returns null if the ID is unknown */
+    protected Codec acquireCodec(byte id) throws Exception {
+        Codec retval=pool(id).poll();
+        return retval != null? retval : createCodec(id);
+    }
+
+    /** Returns a codec to the pool, or destroys it if the pool is full */
+    protected void releaseCodec(byte id, Codec codec) {
+        if(codec != null && (destroyed || !pool(id).offer(codec)))
+            codec.destroy();
+    }
+
+    protected BlockingQueue<Codec> pool(byte id) {
+        BlockingQueue<Codec> retval=pools.get(id);
+        if(retval == null) {
+            BlockingQueue<Codec> tmp=pools.putIfAbsent(id, retval=new ArrayBlockingQueue<Codec>(Math.max(1, pool_size)));
+            if(tmp != null)
+                retval=tmp;
+        }
+        return retval;
+    }
+
+    protected byte[] getBuffer(int length) {
+        byte[] buf=buffers.get();
+        if(buf == null || buf.length < length)
+            buffers.set(buf=new byte[Math.max(length, 1024)]);
+        return buf;
+    }
+
+
+    /** Ratio and throughput of a codec */
+    protected static class CodecStats {
+        protected final String     name;
+        protected final AtomicLong compressed_msgs=new AtomicLong(0);
+        protected final AtomicLong bytes_in=new AtomicLong(0);     // original sizes of compressed messages
+        protected final AtomicLong bytes_out=new AtomicLong(0);    // compressed sizes
+        protected final AtomicLong compress_time=new AtomicLong(0);   // ns
+        protected final AtomicLong not_smaller=new AtomicLong(0);     // compressed size was >= original size
+        protected final AtomicLong decompressed_msgs=new AtomicLong(0);
+        protected final AtomicLong decompress_time=new AtomicLong(0); // ns
+
+        protected CodecStats(String name) {this.name=name;}
+
+        protected void compressed(int original_size, int compressed_size, long time) {
+            compressed_msgs.incrementAndGet();
+            bytes_in.addAndGet(original_size);
+            bytes_out.addAndGet(compressed_size);
+            compress_time.addAndGet(time);
+        }
+
+        protected void decompressed(long time) {
+            decompressed_msgs.incrementAndGet();
+            decompress_time.addAndGet(time);
+        }
+
+        protected double ratio() {
+            long in=bytes_in.get();
+            return in > 0? bytes_out.get() / (double)in : 0;
+        }
+
+        /** Compression throughput in MB/sec of original data */
+        protected double throughput() {
+            long time=compress_time.get();
+            return time > 0? (bytes_in.get() / 1000000.0) / (time / 1000000000.0) : 0;
+        }
 
+        protected void reset() {
+            for(AtomicLong l: new AtomicLong[]{compressed_msgs, bytes_in, bytes_out, compress_time, not_smaller,
+              decompressed_msgs, decompress_time})
+                l.set(0);
+        }
 
+        public String toString() {
+            long decompressed=decompressed_msgs.get();
+            return String.format("%s: compressed=%d (ratio=%.2f, %.2f MB/sec), not smaller=%d, decompressed=%d (avg %.2f us)",
+                                 name, compressed_msgs.get(), ratio(), throughput(), not_smaller.get(), decompressed,
+                                 decompressed > 0? decompress_time.get() / 1000.0 / decompressed : 0.0);
+        }
+    }
 
 
 
     public static class CompressHeader extends Header {
-        int original_size=0;
+        int  original_size=0;
+        byte codec=DeflateCodec.ID;
 
         public CompressHeader() {
             super();
@@ -184,16 +415,27 @@ public class COMPRESS extends Protocol {
             original_size=s;
         }
 
+        public CompressHeader(int s, byte codec) {
+            original_size=s;
+            this.codec=codec;
+        }
+
         public int size() {
-            return Global.INT_SIZE;
+            return Global.INT_SIZE + Global.BYTE_SIZE;
         }
 
         public void writeTo(DataOutput out) throws Exception {
             out.writeInt(original_size);
+            out.writeByte(codec);
         }
 
         public void readFrom(DataInput in) throws Exception {
             original_size=in.readInt();
+            codec=in.readByte();
+        }
+
+        public String toString() {
+            return "original_size=" + original_size + ", codec=" + codec;
         }
     }
 }
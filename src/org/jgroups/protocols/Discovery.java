@@ -481,6 +481,10 @@ public abstract class Discovery extends Protocol {
         return up_prot.up(evt);
     }
 
+    protected boolean accept(Message msg) {
+        return msg.getHeader(this.id) != null;
+    }
+
 
     /**
      * An event is to be sent down the stack. The layer may want to examine its type and perform
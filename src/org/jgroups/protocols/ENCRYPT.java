@@ -2,7 +2,6 @@
 package org.jgroups.protocols;
 
 import org.jgroups.*;
-import org.jgroups.annotations.GuardedBy;
 import org.jgroups.annotations.MBean;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
@@ -10,19 +9,19 @@ import org.jgroups.util.QueueClosedException;
 import org.jgroups.util.Util;
 
 import javax.crypto.*;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.lang.reflect.Constructor;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.X509EncodedKeySpec;
-import java.util.List;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ENCRYPT layer. Encrypt and decrypt the group communication in JGroups
@@ -49,6 +48,14 @@ import java.util.concurrent.locks.ReentrantLock;
  * which identifies the type of encrypt header and an MD5 digest that identifies
  * the version of the key being used to encrypt/decrypt the messages.
  * <p>
+ * Ciphers are not thread safe, so every thread encrypting or decrypting messages uses its own Cipher instances
+ * (per key version). This allows messages to be encrypted and decrypted concurrently.
+ * <p>
+ * If sym_algorithm uses a mode requiring an initialization vector (e.g. "AES/CBC/PKCS5Padding"), or an authenticated
+ * (AEAD) mode such as "AES/GCM/NoPadding", a fresh IV (nonce) is generated for every message and shipped in the
+ * EncryptHeader. For GCM and CTR, the nonce is a per-key random prefix followed by a counter, so nonces are never
+ * reused with the same key; other modes use random IVs.
+ * <p>
  * <p>
  * <h2>Option 1</h2>
  * <br>
@@ -114,6 +121,27 @@ public class ENCRYPT extends Protocol {
     }
 
     private static final String DEFAULT_SYM_ALGO="AES";
+
+    /** Recommended IV length (in bytes) and authentication tag length (in bits) for GCM */
+    protected static final int GCM_IV_LENGTH=12, GCM_TAG_LENGTH=128;
+
+    /** GCMParameterSpec(int,byte[]) is only available in JDK 7 and higher, so we look it up via reflection */
+    protected static final Constructor<? extends AlgorithmParameterSpec> GCM_SPEC;
+
+    static {
+        Constructor<? extends AlgorithmParameterSpec> tmp=null;
+        try {
+            Class<? extends AlgorithmParameterSpec> clazz=Class.forName("javax.crypto.spec.GCMParameterSpec")
+              .asSubclass(AlgorithmParameterSpec.class);
+            tmp=clazz.getConstructor(int.class, byte[].class);
+        }
+        catch(Throwable t) {
+        }
+        GCM_SPEC=tmp;
+    }
+
+    /** Used to generate IVs */
+    protected final SecureRandom random=new SecureRandom();
     // address info
     Address local_addr=null;
     // keyserver address
@@ -134,7 +162,8 @@ public class ENCRYPT extends Protocol {
     @Property(name="asym_algorithm", description="Cipher engine transformation for asymmetric algorithm. Default is RSA")
     String asymAlgorithm="RSA";
 
-    @Property(name="sym_algorithm", description="Cipher engine transformation for symmetric algorithm. Default is AES")
+    @Property(name="sym_algorithm", description="Cipher engine transformation for symmetric algorithm. Default is AES. " +
+      "Modes with an IV are supported, e.g. AES/CBC/PKCS5Padding or (authenticated) AES/GCM/NoPadding")
     String symAlgorithm=DEFAULT_SYM_ALGO;
 
     @Property(name="asym_init", description="Initial public/private key length. Default is 512")
@@ -165,30 +194,21 @@ public class ENCRYPT extends Protocol {
     //	 for client to store server's public Key
     PublicKey serverPubKey=null;
 
-    // needed because we do simultaneous encode/decode with these ciphers - which
-    // would be a threading issue
-    Cipher symEncodingCipher;
-
-    @GuardedBy("decrypt_lock")
-    Cipher symDecodingCipher;
-
-    /** To synchronize access to symDecodingCipher */
-    protected final Lock decrypt_lock=new ReentrantLock();
+    /** The current secret key, its version and the (per-thread) ciphers used to encrypt and decrypt messages */
+    protected volatile SymCiphers symCiphers;
 
-    // version filed for secret key
-    private String symVersion=null;
     // dhared secret key to encrypt/decrypt messages
     SecretKey secretKey=null;
 
     // map to hold previous keys so we can decrypt some earlier messages if we need to
-    final Map<String,Cipher> keyMap=new WeakHashMap<String,Cipher>();
+    final Map<String,SymCiphers> keyMap=Collections.synchronizedMap(new WeakHashMap<String,SymCiphers>());
 
     // queues to buffer data while we are swapping shared key
     // or obtsining key for first time
 
-    private boolean queue_up=true;
+    private volatile boolean queue_up=true;
 
-    private boolean queue_down=false;
+    private volatile boolean queue_down=false;
 
     // queue to hold upcoming messages while key negotiation is happening
     private BlockingQueue<Event> upMessageQueue=new LinkedBlockingQueue<Event>();
@@ -339,33 +359,36 @@ public class ENCRYPT extends Protocol {
      * @throws Exception
      */
     private void initSymCiphers(String algorithm, SecretKey secret) throws Exception {
+        initSymCiphers(algorithm, secret, null);
+    }
+
+    private void initSymCiphers(String algorithm, SecretKey secret, String version) throws Exception {
 
         if(log.isDebugEnabled())
             log.debug(" Initializing symmetric ciphers");
 
-        if(symProvider != null && symProvider.trim().length() > 0) {
-            symEncodingCipher=Cipher.getInstance(algorithm, symProvider);
-            symDecodingCipher=Cipher.getInstance(algorithm, symProvider);
-        }
-        else {
-            symEncodingCipher=Cipher.getInstance(algorithm);
-            symDecodingCipher=Cipher.getInstance(algorithm);
+        if(version == null) {
+            //set the version
+            MessageDigest digest=MessageDigest.getInstance("MD5");
+            digest.reset();
+            digest.update(secret.getEncoded());
+            version=byteArrayToHexString(digest.digest());
         }
 
-        symEncodingCipher.init(Cipher.ENCRYPT_MODE, secret);
-        symDecodingCipher.init(Cipher.DECRYPT_MODE, secret);
-
-        //set the version
-        MessageDigest digest=MessageDigest.getInstance("MD5");
-        digest.reset();
-        digest.update(secret.getEncoded());
-
-        symVersion = byteArrayToHexString(digest.digest());
+        SymCiphers tmp=new SymCiphers(algorithm, secret, version);
+        tmp.getEncoder(); // fails early if algorithm and key don't match
+        symCiphers=tmp;
         if(log.isDebugEnabled()) {
-            log.debug(" Initialized symmetric ciphers with secret key (" + symVersion.length() + " bytes)");
+            log.debug(" Initialized symmetric ciphers with secret key (" + version.length() + " bytes)");
         }
     }
 
+    protected Cipher createSymCipher(String algorithm) throws Exception {
+        if(symProvider != null && symProvider.trim().length() > 0)
+            return Cipher.getInstance(algorithm, symProvider);
+        return Cipher.getInstance(algorithm);
+    }
+
     public static String byteArrayToHexString(byte[] b){
         StringBuilder sb = new StringBuilder(b.length * 2);
         for (int i = 0; i < b.length; i++){
@@ -562,6 +585,9 @@ public class ENCRYPT extends Protocol {
                 if(log.isTraceEnabled())
                     log.trace("queueing up message as no session key established: " + evt.getArg());
                 upMessageQueue.put(evt);
+                // the key might have been installed (and the queue drained) after we checked queue_up
+                if(!queue_up)
+                    drainUpQueue();
             }
             else {
                 // make sure we pass up any queued messages first
@@ -572,7 +598,7 @@ public class ENCRYPT extends Protocol {
                 }
                 // try and decrypt the message - we need to copy msg as we modify its
                 // buffer (http://jira.jboss.com/jira/browse/JGRP-538)
-                Message tmpMsg=decryptMessage(symDecodingCipher, msg.copy());
+                Message tmpMsg=decryptMessage(msg.copy());
                 if(tmpMsg != null) {
                     if(log.isTraceEnabled())
                         log.trace("decrypted message " + tmpMsg);
@@ -662,7 +688,7 @@ public class ENCRYPT extends Protocol {
         }
         Event tmp=null;
         while((tmp=upMessageQueue.poll(0L, TimeUnit.MILLISECONDS)) != null) {
-            Message msg=decryptMessage(symDecodingCipher, ((Message)tmp.getArg()).copy());
+            Message msg=decryptMessage(((Message)tmp.getArg()).copy());
 
             if(msg != null)
                 passItUp(new Event(Event.MSG, msg));
@@ -686,11 +712,13 @@ public class ENCRYPT extends Protocol {
 
         // put the previous key into the map
         // if the keys are already there then they will overwrite
-        keyMap.put(getSymVersion(), getSymDecodingCipher());
+        SymCiphers prev=symCiphers;
+        if(prev != null)
+            keyMap.put(prev.version, prev);
 
         setSecretKey(key);
-        initSymCiphers(key.getAlgorithm(), key);
-        setSymVersion(version);
+        // use symAlgorithm rather than key.getAlgorithm(), which doesn't include the mode and padding
+        initSymCiphers(symAlgorithm, key, version);
 
         // drain the up queue
         log.debug("setting queue up to false in setKeys");
@@ -705,46 +733,38 @@ public class ENCRYPT extends Protocol {
      * Does the actual work for decrypting - if version does not match current
      * cipher then tries to use previous cipher
      * 
-     * @param cipher
      * @param msg
      * @return
      * @throws Exception
      */
-    private Message decryptMessage(Cipher cipher, Message msg) throws Exception {
+    private Message decryptMessage(Message msg) throws Exception {
         EncryptHeader hdr=(EncryptHeader)msg.getHeader(this.id);
-        if(!hdr.getVersion().equals(getSymVersion())) {
+        SymCiphers ciphers=symCiphers;
+        if(!hdr.getVersion().equals(ciphers.version)) {
             log.warn("attempting to use stored cipher as message does not use current encryption version ");
-            cipher=keyMap.get(hdr.getVersion());
-            if(cipher == null) {
+            ciphers=keyMap.get(hdr.getVersion());
+            if(ciphers == null) {
                 log.warn("Unable to find a matching cipher in previous key map");
                 return null;
             }
             else {
                 if(log.isTraceEnabled())
                     log.trace("decrypting using previous cipher version " + hdr.getVersion());
-                return _decrypt(cipher, msg, hdr.encrypt_entire_msg);
+                return _decrypt(ciphers, msg, hdr);
             }
         }
 
         else {
 
             // reset buffer with decrypted message
-            return _decrypt(cipher, msg, hdr.encrypt_entire_msg);
+            return _decrypt(ciphers, msg, hdr);
         }
     }
 
-    private Message _decrypt(Cipher cipher, Message msg, boolean decrypt_entire_msg) throws Exception {
-        byte[] decrypted_msg;
+    private static Message _decrypt(SymCiphers ciphers, Message msg, EncryptHeader hdr) throws Exception {
+        byte[] decrypted_msg=ciphers.decrypt(msg.getRawBuffer(), msg.getOffset(), msg.getLength(), hdr.iv);
 
-        decrypt_lock.lock();
-        try {
-            decrypted_msg=cipher.doFinal(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
-        }
-        finally {
-            decrypt_lock.unlock();
-        }
-
-        if(!decrypt_entire_msg) {
+        if(!hdr.encrypt_entire_msg) {
             msg.setBuffer(decrypted_msg);
             return msg;
         }
@@ -827,6 +847,9 @@ public class ENCRYPT extends Protocol {
                         if(log.isTraceEnabled())
                             log.trace("queueing down message as no session key established" + evt.getArg());
                         downMessageQueue.put(evt); // queue messages if we are waiting for a new key
+                        // the key might have been installed (and the queue drained) after we checked queue_down
+                        if(!queue_down)
+                            drainDownQueue();
                     }
                     else {
                         // make sure the down queue is drained first to keep ordering
@@ -908,15 +931,14 @@ public class ENCRYPT extends Protocol {
             return;
         }
 
-        EncryptHeader hdr=new EncryptHeader(EncryptHeader.ENCRYPT, getSymVersion());
+        SymCiphers ciphers=symCiphers; // version, IV and cipher have to match, even if the key is changed concurrently
+        EncryptHeader hdr=new EncryptHeader(EncryptHeader.ENCRYPT, ciphers.version);
         hdr.encrypt_entire_msg=this.encrypt_entire_message;
+        hdr.iv=ciphers.nextIV();
 
         if(encrypt_entire_message) {
             byte[] serialized_msg=Util.streamableToByteBuffer(msg);
-            byte[] encrypted_msg=encryptMessage(symEncodingCipher,
-                                                serialized_msg,
-                                                0,
-                                                serialized_msg.length);
+            byte[] encrypted_msg=ciphers.encrypt(serialized_msg, 0, serialized_msg.length, hdr.iv);
             Message tmp=msg.copy(false); // we need to preserve headers which may already be present
             tmp.setBuffer(encrypted_msg);
             if(tmp.getSrc() == null)
@@ -931,24 +953,10 @@ public class ENCRYPT extends Protocol {
 
         // copy neeeded because same message (object) may be retransmitted -> no double encryption
         Message msgEncrypted=msg.copy(false);
-        msgEncrypted.setBuffer(encryptMessage(symEncodingCipher,
-                                              msg.getRawBuffer(),
-                                              msg.getOffset(),
-                                              msg.getLength()));
+        msgEncrypted.setBuffer(ciphers.encrypt(msg.getRawBuffer(), msg.getOffset(), msg.getLength(), hdr.iv));
         passItDown(new Event(Event.MSG, msgEncrypted));
     }
 
-    /**
-     * 
-     * @param cipher
-     * @param plain
-     * @return
-     * @throws Exception
-     */
-    private synchronized byte[] encryptMessage(Cipher cipher, byte[] plain, int offset, int length) throws Exception {
-        return cipher.doFinal(plain, offset, length);
-    }
-
     private SecretKeySpec decodeKey(byte[] encodedKey) throws Exception {
         // try and decode secrey key sent from keyserver
         byte[] keyBytes;
@@ -1070,15 +1078,8 @@ public class ENCRYPT extends Protocol {
      * @return Returns the symVersion.
      */
     private String getSymVersion() {
-        return symVersion;
-    }
-
-    /**
-     * @param symVersion
-     *                The symVersion to set.
-     */
-    private void setSymVersion(String symVersion) {
-        this.symVersion=symVersion;
+        SymCiphers tmp=symCiphers;
+        return tmp != null? tmp.version : null;
     }
 
     /**
@@ -1104,17 +1105,18 @@ public class ENCRYPT extends Protocol {
     }
 
     /**
-     * @return Returns the symDecodingCipher.
+     * @return Returns the calling thread's decoding cipher for the current key. Ciphers using an IV have to be
+     * re-initialized with the message's IV before use
      */
-    protected Cipher getSymDecodingCipher() {
-        return symDecodingCipher;
+    protected Cipher getSymDecodingCipher() throws Exception {
+        return symCiphers.getDecoder();
     }
 
     /**
-     * @return Returns the symEncodingCipher.
+     * @return Returns the calling thread's encoding cipher for the current key
      */
-    protected Cipher getSymEncodingCipher() {
-        return symEncodingCipher;
+    protected Cipher getSymEncodingCipher() throws Exception {
+        return symCiphers.getEncoder();
     }
 
     /**
@@ -1147,6 +1149,114 @@ public class ENCRYPT extends Protocol {
         this.keyServerAddr=keyServerAddr;
     }
 
+
+    /**
+     * A secret key with its version, plus the ciphers for it. Ciphers are not thread safe, so every thread gets its
+     * own encoding and decoding cipher. Ciphers for modes without an IV are initialized once; ciphers for modes with an
+     * IV are re-initialized with the message's IV for every message.
+     */
+    protected class SymCiphers {
+        protected final String              algorithm;
+        protected final SecretKey           key;
+        protected final String              version;
+        protected final int                 iv_length; // 0 if the mode doesn't use an IV
+        protected final boolean             counter_iv; // true: IV must be unique (GCM, CTR), false: random IV
+        protected final byte[]              iv_prefix; // random prefix for counter based IVs
+        protected final AtomicLong          iv_counter;
+        protected final ThreadLocal<Cipher> encoders=new ThreadLocal<Cipher>();
+        protected final ThreadLocal<Cipher> decoders=new ThreadLocal<Cipher>();
+
+        protected SymCiphers(String algorithm, SecretKey key, String version) throws Exception {
+            this.algorithm=algorithm;
+            this.key=key;
+            this.version=version;
+            String[] tmp=algorithm.toUpperCase().split("/");
+            String mode=tmp.length > 1? tmp[1] : "ECB";
+            boolean gcm=mode.equals("GCM");
+            counter_iv=gcm || mode.startsWith("CTR");
+            if(mode.equals("ECB") || mode.equals("NONE"))
+                iv_length=0;
+            else
+                iv_length=gcm? GCM_IV_LENGTH : createSymCipher(algorithm).getBlockSize();
+
+            // the IV of GCM and CTR is <random prefix><counter (starting at a random value)>, so the chance of 2
+            // members generating the same IV for the same key is negligible. CTR's IV has 4 more (zero) bytes
+            // for the block counter
+            byte[] seed=new byte[GCM_IV_LENGTH];
+            random.nextBytes(seed);
+            iv_prefix=Arrays.copyOf(seed, 4);
+            long start=0;
+            for(int i=4; i < seed.length; i++)
+                start=(start << 8) | (seed[i] & 0xff);
+            iv_counter=new AtomicLong(start);
+        }
+
+        protected Cipher getEncoder() throws Exception {
+            Cipher cipher=encoders.get();
+            if(cipher == null) {
+                cipher=createSymCipher(algorithm);
+                if(iv_length == 0)
+                    cipher.init(Cipher.ENCRYPT_MODE, key);
+                encoders.set(cipher);
+            }
+            return cipher;
+        }
+
+        protected Cipher getDecoder() throws Exception {
+            Cipher cipher=decoders.get();
+            if(cipher == null) {
+                cipher=createSymCipher(algorithm);
+                if(iv_length == 0)
+                    cipher.init(Cipher.DECRYPT_MODE, key);
+                decoders.set(cipher);
+            }
+            return cipher;
+        }
+
+        /** Returns a new IV, or null if the mode doesn't use one */
+        protected byte[] nextIV() {
+            if(iv_length == 0)
+                return null;
+            byte[] iv=new byte[iv_length];
+            if(!counter_iv) {
+                random.nextBytes(iv);
+                return iv;
+            }
+            System.arraycopy(iv_prefix, 0, iv, 0, iv_prefix.length);
+            long counter=iv_counter.getAndIncrement();
+            for(int i=iv_prefix.length + 7; i >= iv_prefix.length; i--) {
+                iv[i]=(byte)counter;
+                counter>>>=8;
+            }
+            return iv;
+        }
+
+        protected byte[] encrypt(byte[] buf, int offset, int length, byte[] iv) throws Exception {
+            Cipher cipher=getEncoder();
+            if(iv_length > 0)
+                cipher.init(Cipher.ENCRYPT_MODE, key, createParameterSpec(iv));
+            return cipher.doFinal(buf, offset, length);
+        }
+
+        protected byte[] decrypt(byte[] buf, int offset, int length, byte[] iv) throws Exception {
+            Cipher cipher=getDecoder();
+            if(iv_length > 0) {
+                if(iv == null || iv.length != iv_length)
+                    throw new IllegalArgumentException("IV of " + (iv != null? iv.length : 0) +
+                                                         " bytes doesn't match the expected length of " + iv_length);
+                cipher.init(Cipher.DECRYPT_MODE, key, createParameterSpec(iv));
+            }
+            return cipher.doFinal(buf, offset, length);
+        }
+
+        protected AlgorithmParameterSpec createParameterSpec(byte[] iv) throws Exception {
+            if(iv_length == GCM_IV_LENGTH && GCM_SPEC != null && algorithm.toUpperCase().contains("/GCM"))
+                return GCM_SPEC.newInstance(GCM_TAG_LENGTH, iv);
+            return new IvParameterSpec(iv);
+        }
+    }
+
+
     public static class EncryptHeader extends org.jgroups.Header {
         short type;
         public static final short ENCRYPT=0;
@@ -1157,6 +1267,7 @@ public class ENCRYPT extends Protocol {
 
         String version;
         boolean encrypt_entire_msg=false;
+        byte[] iv; // the IV (nonce) used to encrypt the message, null if the cipher doesn't use one
 
         public EncryptHeader() {}
 
@@ -1176,25 +1287,34 @@ public class ENCRYPT extends Protocol {
             out.writeShort(type);
             Util.writeString(version, out);
             out.writeBoolean(encrypt_entire_msg);
+            out.writeByte(iv != null? iv.length : 0);
+            if(iv != null)
+                out.write(iv);
         }
 
         public void readFrom(DataInput in) throws Exception {
             type=in.readShort();
             version=Util.readString(in);
             encrypt_entire_msg=in.readBoolean();
+            int iv_length=in.readUnsignedByte();
+            if(iv_length > 0) {
+                iv=new byte[iv_length];
+                in.readFully(iv);
+            }
         }
 
         public String toString() {
             return "ENCRYPT [type=" + type
                    + " version=\""
                    + (version != null? version.length() + " bytes" : "n/a")
-                   + "\"]";
+                   + "\"" + (iv != null? " iv=" + iv.length + " bytes" : "") + "]";
         }
 
         public int size() {
             int retval=Global.SHORT_SIZE + Global.BYTE_SIZE + Global.BYTE_SIZE;
             if(version != null)
                 retval+=version.length() + 2;
+            retval+=Global.BYTE_SIZE + (iv != null? iv.length : 0);
             return retval;
         }
 
@@ -6,6 +6,8 @@ import org.jgroups.*;
 import org.jgroups.annotations.*;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.BoundedList;
+import org.jgroups.util.LivenessTracker;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
@@ -33,7 +35,9 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>
  * When a message is received from the monitored neighbor member, it causes the
  * pinger thread to 'skip' sending the next are-you-alive message. Thus, traffic
- * is reduced.
+ * is reduced. Received messages are recorded by the transport (see
+ * {@link TP#getLivenessTracker()}), or by FD itself if the transport doesn't
+ * track liveness.
  *
  * @author Bela Ban
  */
@@ -84,6 +88,9 @@ public class FD extends Protocol {
    
     private TimeScheduler timer=null;
 
+    /** Times at which messages were last received from members, maintained by the transport. Null if disabled */
+    protected LivenessTracker liveness;
+
     @GuardedBy("lock")
     private Future<?> monitor_future=null; // task that performs the actual monitoring for failure detection
     
@@ -126,6 +133,7 @@ public class FD extends Protocol {
         timer=getTransport().getTimer();
         if(timer == null)
             throw new Exception("timer cannot be retrieved");
+        liveness=getTransport().getLivenessTracker();
     }
 
 
@@ -225,7 +233,8 @@ public class FD extends Protocol {
                 Message msg=(Message)evt.getArg();
                 FdHeader hdr=(FdHeader)msg.getHeader(this.id);
                 if(hdr == null) {
-                    updateTimestamp(msg.getSrc());
+                    if(liveness == null) // else the transport records the traffic from ping_dest
+                        updateTimestamp(msg.getSrc());
                     break;  // message did not originate from FD layer, just pass up
                 }
 
@@ -273,6 +282,22 @@ public class FD extends Protocol {
         return up_prot.up(evt); // pass up to the layer above us
     }
 
+    public void up(MessageBatch batch) {
+        if(liveness == null) {
+            Address last=null;
+            for(Message msg: batch) { // any message from ping_dest counts as a heartbeat (same as in up(Event))
+                Address sender=msg.getSrc();
+                if(msg.getHeader(this.id) == null && sender != null && !sender.equals(last))
+                    updateTimestamp(last=sender);
+            }
+        }
+        super.up(batch);
+    }
+
+    protected boolean accept(Message msg) {
+        return msg.getHeader(this.id) != null;
+    }
+
 
 
 
@@ -335,11 +360,16 @@ public class FD extends Protocol {
 
     @GuardedBy("lock")
     private void updateTimestamp(Address sender) {
+        updateTimestamp(sender, System.currentTimeMillis());
+    }
+
+    @GuardedBy("lock")
+    private void updateTimestamp(Address sender, long timestamp) {
         if(ping_dest != null && sender != null && ping_dest.equals(sender)) {
-            long tmp=System.currentTimeMillis();
             lock.lock();
             try {
-                last_ack=tmp;
+                if(timestamp > last_ack)
+                    last_ack=timestamp;
                 num_tries=0;
             }
             finally {
@@ -436,6 +466,14 @@ public class FD extends Protocol {
                 lock.unlock();
             }
 
+            // any traffic from dest counts as a heartbeat ack: don't send a heartbeat if we heard from dest recently
+            if(liveness != null) {
+                long last_heard=liveness.lastHeard(dest);
+                if(last_heard > 0 && System.currentTimeMillis() - last_heard < timeout) {
+                    updateTimestamp(dest, last_heard);
+                    return;
+                }
+            }
 
             // 1. send heartbeat request
             hb_req=new Message(dest, null, null);
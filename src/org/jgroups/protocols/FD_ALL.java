@@ -4,6 +4,8 @@ import org.jgroups.*;
 import org.jgroups.annotations.*;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.BoundedList;
+import org.jgroups.util.LivenessTracker;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Tuple;
 import org.jgroups.util.Util;
@@ -21,6 +23,11 @@ import java.util.concurrent.locks.ReentrantLock;
  * Failure detection based on simple heartbeat protocol. Every member periodically multicasts a heartbeat.
  * Every member also maintains a table of all members (minus itself). When data or a heartbeat from P is received,
  * we reset the timestamp for P to the current time. Periodically, we check for expired members, and suspect those.</p>
+ * If the transport tracks liveness ({@link TP#getLivenessTracker()}), any message received from P counts as a
+ * heartbeat. If suppress_heartbeats is also enabled, a member doesn't send a heartbeat if it multicast a message
+ * during the last interval, so busy clusters send hardly any heartbeats. This relies on the other members treating
+ * that multicast as a heartbeat, so suppress_heartbeats (and track_liveness in the transport) has to be enabled on
+ * <em>every</em> member; otherwise busy members are falsely suspected by the members which don't track liveness.</p>
  * Reduced number of messages exchanged on suspect event: https://jira.jboss.org/browse/JGRP-1241
  * 
  * @author Bela Ban
@@ -40,6 +47,11 @@ public class FD_ALL extends Protocol {
             "a value in a hashmap every time a message is passing up the stack through FD_ALL, which is costly. Default is false")
     boolean msg_counts_as_heartbeat=false;
 
+    @Property(description="Don't send a heartbeat if a message was multicast during the last interval. Requires " +
+      "track_liveness in the transport, and has to be enabled on all members, or else busy members are suspected " +
+      "by members which don't treat their messages as heartbeats. Default is false")
+    protected boolean suppress_heartbeats=false;
+
     /* ---------------------------------------------   JMX      ------------------------------------------------------ */
     @ManagedAttribute(description="Number of heartbeats sent")
     protected int num_heartbeats_sent;
@@ -64,6 +76,12 @@ public class FD_ALL extends Protocol {
 
     private TimeScheduler timer=null;
 
+    /** Times at which messages were last received from members, maintained by the transport. Null if disabled */
+    protected LivenessTracker liveness;
+
+    /** Time at which we last sent a multicast message */
+    protected volatile long last_mcast_sent;
+
     // task which multicasts HEARTBEAT message after 'interval' ms
     @GuardedBy("lock")
     private Future<?> heartbeat_sender_future=null;
@@ -137,6 +155,9 @@ public class FD_ALL extends Protocol {
         timer=getTransport().getTimer();
         if(timer == null)
             throw new Exception("timer not set");
+        liveness=getTransport().getLivenessTracker();
+        if(suppress_heartbeats && liveness == null)
+            log.warn("suppress_heartbeats is ignored as the transport doesn't track liveness (track_liveness=false)");
     }
 
 
@@ -167,9 +188,29 @@ public class FD_ALL extends Protocol {
         return up_prot.up(evt); // pass up to the layer above us
     }
 
+    public void up(MessageBatch batch) {
+        if(msg_counts_as_heartbeat) {
+            Address last=null;
+            for(Message msg: batch) {
+                Address sender=msg.getSrc();
+                if(msg.getHeader(this.id) == null && sender != null && !sender.equals(last))
+                    update(last=sender);
+            }
+        }
+        super.up(batch);
+    }
+
+    protected boolean accept(Message msg) {
+        return msg.getHeader(this.id) != null;
+    }
+
 
     public Object down(Event evt) {
         switch(evt.getType()) {
+            case Event.MSG:
+                if(suppress_heartbeats && liveness != null && ((Message)evt.getArg()).getDest() == null)
+                    last_mcast_sent=System.currentTimeMillis();
+                break;
             case Event.VIEW_CHANGE:
                 down_prot.down(evt);
                 View v=(View)evt.getArg();
@@ -329,6 +370,9 @@ public class FD_ALL extends Protocol {
      */
     class HeartbeatSender implements Runnable {
         public void run() {
+            // the other members treat our multicasts as heartbeats (requires suppress_heartbeats on all members)
+            if(suppress_heartbeats && liveness != null && System.currentTimeMillis() - last_mcast_sent < interval)
+                return;
             Message heartbeat=new Message(); // send to all
             heartbeat.setFlag(Message.OOB);
             heartbeat.putHeader(id, new HeartbeatHeader());
@@ -351,7 +395,10 @@ public class FD_ALL extends Protocol {
                     it.remove();
                     continue;
                 }
-                diff=current_time - val.longValue();
+                long timestamp=val.longValue();
+                if(liveness != null)
+                    timestamp=Math.max(timestamp, liveness.lastHeard(key));
+                diff=current_time - timestamp;
                 if(diff > timeout) {
                     if(log.isDebugEnabled())
                         log.debug("haven't received a heartbeat from " + key + " for " + diff +
@@ -0,0 +1,528 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.annotations.*;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.BoundedList;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+import org.jgroups.util.ExposedDataOutputStream;
+import org.jgroups.util.LivenessTracker;
+import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.Tuple;
+import org.jgroups.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Failure detection based on gossiped heartbeat counters and a phi accrual suspicion level. Every member increments
+ * its own heartbeat counter every interval ms and sends its table of heartbeat counters to <code>fanout</code>
+ * random members. A receiver merges the table into its own: when the counter of a member P increases, the time since
+ * the last increase is added to the arrival history of P.
+ * <p/>
+ * Every interval ms, we compute phi for every member, based on the time since its counter last increased and the
+ * mean and standard deviation of its arrival history. Phi is the negative base 10 logarithm of the probability that
+ * a heartbeat arrives later than now, so phi=8 means that we would be wrong in 1 out of 10^8 cases to suspect P.
+ * Members whose phi exceeds <code>phi_threshold</code> are suspected.
+ * <p/>
+ * Contrary to {@link FD_ALL}, where every member receives N-1 heartbeats per interval, every member here sends and
+ * receives on average <code>fanout</code> messages per interval, each containing at most
+ * <code>max_entries</code> entries, regardless of the cluster size. Entries are member indices into the current
+ * view, so only the sender's own heartbeat is processed if sender and receiver have different views.
+ * <p/>
+ * If the transport tracks liveness ({@link TP#getLivenessTracker()}), the time since P was last heard from is the
+ * time since its counter last increased or since we last received a message from P, whichever is shorter.
+ * @author agent
+ * @since 3.1
+ */
+@MBean(description="Failure detection based on gossiped heartbeats and a phi accrual suspicion level")
+public class FD_GOSSIP extends Protocol {
+
+    /* -----------------------------------------    Properties     -------------------------------------------------- */
+
+    @Property(description="Interval (ms) in which the heartbeat counter is incremented and gossiped, and phi is computed")
+    protected long interval=1000;
+
+    @Property(description="Number of random members to which a gossip is sent every interval")
+    protected int fanout=3;
+
+    @Property(description="Max number of heartbeat entries in a gossip. If the view is larger, a random subset is " +
+      "sent (always including our own entry). 0 sends all entries")
+    protected int max_entries=100;
+
+    @Property(description="Members whose phi exceeds this value are suspected")
+    protected double phi_threshold=8.0;
+
+    @Property(description="Number of heartbeat inter-arrival times kept per member to compute mean and standard deviation")
+    protected int max_samples=100;
+
+    @Property(description="Min standard deviation (ms) of the heartbeat inter-arrival times, to prevent phi from " +
+      "increasing too fast when the arrival times are very regular")
+    protected long min_std_deviation=500;
+
+    @Property(description="Time (ms) added to the mean inter-arrival time, to tolerate pauses (e.g. GC)")
+    protected long acceptable_pause=0;
+
+
+    /* ---------------------------------------------   JMX      ------------------------------------------------------ */
+    protected final AtomicLong num_gossips_sent=new AtomicLong(0), num_gossips_received=new AtomicLong(0);
+    protected final AtomicLong num_bytes_sent=new AtomicLong(0);
+    protected final AtomicLong num_gossips_dropped=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of suspected events generated")
+    protected int num_suspect_events=0;
+
+
+    /* --------------------------------------------- Fields ------------------------------------------------------ */
+
+    protected Address local_addr;
+
+    /** The members of the current view, and the hash of the member list, which identifies a view in gossips */
+    protected volatile Address[] members={};
+    protected volatile int view_hash;
+
+    protected final ConcurrentMap<Address,HeartbeatHistory> histories=Util.createConcurrentMap();
+
+    protected final AtomicLong heartbeat=new AtomicLong(0);
+
+    protected final Set<Address> suspected_mbrs=new HashSet<Address>();
+
+    protected TimeScheduler timer;
+
+    /** Times at which messages were last received from members, maintained by the transport. Null if disabled */
+    protected LivenessTracker liveness;
+
+    @GuardedBy("lock")
+    protected Future<?> gossip_task_future;
+
+    protected final BoundedList<Tuple<Address,Long>> suspect_history=new BoundedList<Tuple<Address,Long>>(20);
+
+    protected final Lock lock=new ReentrantLock();
+
+
+    @ManagedAttribute(description="Number of gossips sent")
+    public long getNumGossipsSent()     {return num_gossips_sent.get();}
+    @ManagedAttribute(description="Number of gossips received")
+    public long getNumGossipsReceived() {return num_gossips_received.get();}
+    @ManagedAttribute(description="Number of gossips dropped because the sender had a different view")
+    public long getNumGossipsDropped()  {return num_gossips_dropped.get();}
+    @ManagedAttribute(description="Number of bytes sent in gossips")
+    public long getNumBytesSent()       {return num_bytes_sent.get();}
+    @ManagedAttribute(description="Our own heartbeat counter")
+    public long getHeartbeat()          {return heartbeat.get();}
+    public int  getSuspectEventsSent()  {return num_suspect_events;}
+    @ManagedAttribute(description="Currently suspected members")
+    public synchronized String getSuspectedMembers() {return suspected_mbrs.toString();}
+
+    @ManagedAttribute(description="Whether the gossip task is running")
+    public boolean isRunning() {
+        lock.lock();
+        try {
+            return gossip_task_future != null && !gossip_task_future.isDone();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the current phi of a member, or -1 if the member is not known */
+    public double phi(Address mbr) {
+        HeartbeatHistory history=histories.get(mbr);
+        return history != null? history.phi(System.currentTimeMillis(), lastHeard(mbr)) : -1;
+    }
+
+    @ManagedOperation(description="Prints the heartbeat counter, time since the last increase and phi of all members")
+    public String printHistories() {
+        StringBuilder sb=new StringBuilder();
+        long now=System.currentTimeMillis();
+        for(Map.Entry<Address,HeartbeatHistory> entry: histories.entrySet())
+            sb.append(entry.getKey()).append(": ").append(entry.getValue().toString(now)).append("\n");
+        return sb.toString();
+    }
+
+    @ManagedOperation(description="Prints suspect history")
+    public String printSuspectHistory() {
+        StringBuilder sb=new StringBuilder();
+        for(Tuple<Address,Long> tmp: suspect_history)
+            sb.append(new Date(tmp.getVal2())).append(": ").append(tmp.getVal1()).append("\n");
+        return sb.toString();
+    }
+
+    public void resetStats() {
+        num_gossips_sent.set(0);
+        num_gossips_received.set(0);
+        num_gossips_dropped.set(0);
+        num_bytes_sent.set(0);
+        num_suspect_events=0;
+        suspect_history.clear();
+    }
+
+
+    public void init() throws Exception {
+        timer=getTransport().getTimer();
+        if(timer == null)
+            throw new Exception("timer not set");
+        if(fanout < 1)
+            throw new IllegalArgumentException("fanout (" + fanout + ") has to be >= 1");
+        liveness=getTransport().getLivenessTracker();
+    }
+
+    public void stop() {
+        stopGossipTask();
+        synchronized(this) {
+            suspected_mbrs.clear();
+        }
+    }
+
+
+    public Object up(Event evt) {
+        switch(evt.getType()) {
+            case Event.MSG:
+                Message msg=(Message)evt.getArg();
+                if(msg.getHeader(this.id) == null)
+                    break;
+                num_gossips_received.incrementAndGet();
+                try {
+                    handleGossip(msg.getSrc(), msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+                }
+                catch(Exception e) {
+                    log.error("failed handling gossip from " + msg.getSrc(), e);
+                }
+                return null;
+        }
+        return up_prot.up(evt);
+    }
+
+    protected boolean accept(Message msg) {
+        return msg.getHeader(this.id) != null;
+    }
+
+
+    public Object down(Event evt) {
+        switch(evt.getType()) {
+            case Event.VIEW_CHANGE:
+                Object retval=down_prot.down(evt);
+                handleViewChange((View)evt.getArg());
+                return retval;
+            case Event.SET_LOCAL_ADDRESS:
+                local_addr=(Address)evt.getArg();
+                break;
+        }
+        return down_prot.down(evt);
+    }
+
+
+    protected void handleViewChange(View v) {
+        List<Address> mbrs=v.getMembers();
+        long now=System.currentTimeMillis();
+        synchronized(this) {
+            members=mbrs.toArray(new Address[mbrs.size()]);
+            view_hash=mbrs.hashCode();
+            suspected_mbrs.retainAll(mbrs);
+            histories.keySet().retainAll(mbrs);
+            for(Address mbr: mbrs) {
+                if(mbr.equals(local_addr))
+                    continue;
+                HeartbeatHistory history=histories.get(mbr);
+                if(history == null)
+                    histories.put(mbr, new HeartbeatHistory(now, initialEstimate(mbrs.size())));
+                else
+                    history.reset(now); // gossips may have been dropped while views differed
+            }
+        }
+        if(mbrs.size() > 1)
+            startGossipTask();
+        else
+            stopGossipTask();
+    }
+
+    /**
+     * The expected time (ms) for an increase of a heartbeat counter to reach us, used as the first sample of a new
+     * member: a counter reaches all members in roughly log2(N) rounds, and is contained in a gossip with a
+     * probability of max_entries/N
+     */
+    protected long initialEstimate(int size) {
+        int rounds=Math.max(1, (int)Math.ceil(Math.log(size) / Math.log(2)));
+        double factor=max_entries > 0 && size > max_entries? (double)size / max_entries : 1;
+        return (long)(interval * rounds * factor);
+    }
+
+
+    /** Increments our heartbeat counter, sends a gossip to fanout random members and checks for suspects */
+    protected void gossip() {
+        Address[] mbrs=members;
+        if(mbrs.length < 2)
+            return;
+        long hb=heartbeat.incrementAndGet();
+        try {
+            Buffer buf=marshal(mbrs, hb);
+            for(Address dest: pickTargets(mbrs)) {
+                Message msg=new Message(dest, null, buf.getBuf(), buf.getOffset(), buf.getLength());
+                msg.setFlag(Message.OOB, Message.Flag.NO_RELIABILITY, Message.Flag.NO_FC);
+                msg.putHeader(id, new GossipHeader());
+                down_prot.down(new Event(Event.MSG, msg));
+                num_gossips_sent.incrementAndGet();
+                num_bytes_sent.addAndGet(buf.getLength());
+            }
+        }
+        catch(Exception e) {
+            log.error("failed sending gossip", e);
+        }
+        checkSuspects();
+    }
+
+    protected Collection<Address> pickTargets(Address[] mbrs) {
+        int num=Math.min(fanout, mbrs.length -1);
+        Set<Address> targets=new HashSet<Address>(num);
+        while(targets.size() < num) {
+            Address mbr=mbrs[(int)Util.random(mbrs.length) -1];
+            if(!mbr.equals(local_addr))
+                targets.add(mbr);
+        }
+        return targets;
+    }
+
+    protected long lastHeard(Address mbr) {
+        return liveness != null? liveness.lastHeard(mbr) : 0;
+    }
+
+    protected void checkSuspects() {
+        List<Address> suspects=null;
+        long now=System.currentTimeMillis();
+        for(Map.Entry<Address,HeartbeatHistory> entry: histories.entrySet()) {
+            double phi=entry.getValue().phi(now, lastHeard(entry.getKey()));
+            if(phi > phi_threshold) {
+                if(log.isDebugEnabled())
+                    log.debug(local_addr + ": phi of " + entry.getKey() + " is " + phi + " (" +
+                                entry.getValue().toString(now) + "), adding it to suspect list");
+                if(suspects == null)
+                    suspects=new ArrayList<Address>();
+                suspects.add(entry.getKey());
+            }
+        }
+        if(suspects != null)
+            suspect(suspects);
+    }
+
+
+    /**
+     * Marshals a gossip: our own heartbeat, the hash of the view, followed by the number of entries and
+     * (member index, heartbeat) for each entry
+     */
+    protected Buffer marshal(Address[] mbrs, long hb) throws Exception {
+        List<Integer> indices=new ArrayList<Integer>(mbrs.length);
+        for(int i=0; i < mbrs.length; i++)
+            if(histories.containsKey(mbrs[i])) // excludes ourself
+                indices.add(i);
+        int num=indices.size();
+        if(max_entries > 0 && num >= max_entries) {
+            Collections.shuffle(indices);
+            num=max_entries -1;
+        }
+
+        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(Util.size(hb) + Global.INT_SIZE +
+                                                                                   Global.SHORT_SIZE + num * (Global.SHORT_SIZE + 4));
+        ExposedDataOutputStream out=new ExposedDataOutputStream(out_stream);
+        Util.writeLong(hb, out);
+        out.writeInt(view_hash);
+        out.writeShort(num);
+        for(int i=0; i < num; i++) {
+            int index=indices.get(i);
+            HeartbeatHistory history=histories.get(mbrs[index]);
+            out.writeShort(index);
+            Util.writeLong(history != null? Math.max(0, history.heartbeat()) : 0, out);
+        }
+        out.flush();
+        return out_stream.getBuffer();
+    }
+
+    protected void handleGossip(Address sender, byte[] buf, int offset, int length) throws Exception {
+        Address[] mbrs=members;
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(buf, offset, length));
+        long now=System.currentTimeMillis();
+        long sender_hb=Util.readLong(in);
+        HeartbeatHistory sender_history=histories.get(sender);
+        if(sender_history != null && sender_history.update(sender_hb, now))
+            unsuspect(sender);
+
+        // the other entries are indices into the sender's view, and can only be used if we have the same view
+        if(in.readInt() != view_hash) {
+            num_gossips_dropped.incrementAndGet();
+            return;
+        }
+        int num=in.readShort();
+        for(int i=0; i < num; i++) {
+            int index=in.readShort();
+            long hb=Util.readLong(in);
+            if(index < 0 || index >= mbrs.length)
+                continue;
+            Address mbr=mbrs[index];
+            HeartbeatHistory history=histories.get(mbr);
+            if(history != null && history.update(hb, now))
+                unsuspect(mbr);
+        }
+    }
+
+
+    protected void suspect(List<Address> suspects) {
+        final List<Address> eligible_mbrs=new ArrayList<Address>();
+        synchronized(this) {
+            for(Address suspect: suspects) {
+                if(suspected_mbrs.add(suspect)) {
+                    num_suspect_events++;
+                    suspect_history.add(new Tuple<Address,Long>(suspect, System.currentTimeMillis()));
+                }
+            }
+            eligible_mbrs.addAll(Arrays.asList(members));
+            eligible_mbrs.removeAll(suspected_mbrs);
+        }
+
+        // Check if we're coord, then send up the stack
+        if(local_addr != null && !eligible_mbrs.isEmpty()) {
+            Address first=eligible_mbrs.get(0);
+            if(local_addr.equals(first)) {
+                if(log.isDebugEnabled())
+                    log.debug("suspecting " + suspects);
+                for(Address suspect: suspects) {
+                    up_prot.up(new Event(Event.SUSPECT, suspect));
+                    down_prot.down(new Event(Event.SUSPECT, suspect));
+                }
+            }
+        }
+    }
+
+    protected synchronized void unsuspect(Address mbr) {
+        suspected_mbrs.remove(mbr);
+    }
+
+
+    protected void startGossipTask() {
+        lock.lock();
+        try {
+            if(gossip_task_future == null || gossip_task_future.isDone()) {
+                gossip_task_future=timer.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {gossip();}
+                    public String toString() {return FD_GOSSIP.class.getSimpleName() + ": GossipTask (interval=" + interval + " ms)";}
+                }, interval, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    protected void stopGossipTask() {
+        lock.lock();
+        try {
+            if(gossip_task_future != null) {
+                gossip_task_future.cancel(true);
+                gossip_task_future=null;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+
+    /**
+     * The heartbeat counter of a member, the time it last increased, and a sliding window of the times between
+     * increases, from which mean and standard deviation are computed
+     */
+    protected class HeartbeatHistory {
+        protected long           heartbeat=-1;
+        protected long           last_update;
+        protected final long[]   samples=new long[Math.max(1, max_samples)];
+        protected int            index, count;
+        protected double         sum, sum_squares;
+
+        protected HeartbeatHistory(long now, long initial_estimate) {
+            last_update=now;
+            add(initial_estimate);
+        }
+
+        protected synchronized long heartbeat() {return heartbeat;}
+
+        protected synchronized void reset(long now) {last_update=Math.max(last_update, now);}
+
+        /** Sets the heartbeat counter if it is higher than the current one, returns true if so */
+        protected synchronized boolean update(long hb, long now) {
+            if(hb <= heartbeat)
+                return false;
+            boolean first=heartbeat < 0;
+            heartbeat=hb;
+            if(!first) // the time until the first heartbeat includes joining, and is not a representative sample
+                add(now - last_update);
+            last_update=now;
+            return true;
+        }
+
+        protected void add(long sample) {
+            if(count == samples.length) {
+                long old=samples[index];
+                sum-=old;
+                sum_squares-=(double)old * old;
+            }
+            else
+                count++;
+            samples[index]=sample;
+            index=(index+1) % samples.length;
+            sum+=sample;
+            sum_squares+=(double)sample * sample;
+        }
+
+        protected double phi(long now) {
+            return phi(now, 0);
+        }
+
+        /** Computes phi for the time since the last heartbeat or last_heard (time of the last message), if later */
+        protected synchronized double phi(long now, long last_heard) {
+            double mean=sum / count + acceptable_pause;
+            double variance=Math.max(0, sum_squares / count - (sum / count) * (sum / count));
+            double std_dev=Math.max(Math.sqrt(variance), min_std_deviation);
+            return FD_GOSSIP.phi(now - Math.max(last_update, last_heard), mean, std_dev);
+        }
+
+        protected synchronized String toString(long now) {
+            return "hb=" + heartbeat + ", last update=" + (now - last_update) + " ms ago, mean=" +
+              String.format("%.2f", sum / count) + " ms, phi=" + String.format("%.2f", phi(now));
+        }
+    }
+
+
+    /**
+     * Computes phi = -log10(1 - F(time_diff)), where F is the cumulative distribution function of a normal
+     * distribution with the given mean and standard deviation. Uses the logistic approximation
+     * 1 - F(y) = 1 / (1 + e^(y * (1.5976 + 0.070566 * y^2))), which is accurate to within 0.0002. The logarithm is
+     * computed without evaluating 1 - F, so phi doesn't become infinite for large time differences.
+     */
+    protected static double phi(long time_diff, double mean, double std_dev) {
+        double y=(time_diff - mean) / std_dev;
+        double x=y * (1.5976 + 0.070566 * y * y);
+        // -log10(1 / (1 + e^x)) = log10(1 + e^x)
+        double ln=x > 0? x + Math.log1p(Math.exp(-x)) : Math.log1p(Math.exp(x));
+        return ln / LN_10;
+    }
+
+    protected static final double LN_10=Math.log(10);
+
+
+    public static class GossipHeader extends Header {
+        public GossipHeader() {}
+        public String toString() {return "gossip";}
+        public int size() {return 0;}
+        public void writeTo(DataOutput out) throws Exception {}
+        public void readFrom(DataInput in) throws Exception {}
+    }
+}
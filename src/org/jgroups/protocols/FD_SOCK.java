@@ -284,6 +284,10 @@ public class FD_SOCK extends Protocol implements Runnable {
         return up_prot.up(evt);                                        // pass up to the layer above us
     }
 
+    protected boolean accept(Message msg) {
+        return msg.getHeader(this.id) != null;
+    }
+
 
     public Object down(Event evt) {
         switch(evt.getType()) {
@@ -6,11 +6,15 @@ import org.jgroups.Message;
 import org.jgroups.View;
 import org.jgroups.annotations.*;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.Range;
 import org.jgroups.util.Util;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -34,6 +38,10 @@ import java.util.concurrent.locks.ReentrantLock;
  * byte[] array anyway. We assume that the size addition for headers and src and
  * dest address is minimal when the transport finally has to serialize the
  * message, so we add a constant (200 bytes).
+ * <p>
+ * On the receiver side, fragments are copied into the buffer of the assembled message as soon as they're received,
+ * so the fragments can be garbage collected right away, and the assembled message doesn't need to be copied again.
+ * The memory used by incomplete messages of a given sender can be bounded with max_frag_bytes.
  * 
  * @author Bela Ban
  */
@@ -45,6 +53,11 @@ public class FRAG2 extends Protocol {
     
     @Property(description="The max number of bytes in a message. Larger messages will be fragmented")
     int frag_size=60000;
+
+    @Property(description="Max number of bytes of incomplete messages to keep per sender. When exceeded, the oldest " +
+      "incomplete messages of that sender are discarded. Discarded messages are lost, so this should only be used " +
+      "to protect against misbehaving senders. 0 disables the bound")
+    protected long max_frag_bytes=0;
   
     /* --------------------------------------------- Fields ------------------------------------------------------ */
     
@@ -52,10 +65,10 @@ public class FRAG2 extends Protocol {
     /*the fragmentation list contains a fragmentation table per sender
      *this way it becomes easier to clean up if a sender (member) leaves or crashes
      */
-    private final ConcurrentMap<Address,ConcurrentMap<Long,FragEntry>> fragment_list=Util.createConcurrentMap(11);
+    private final ConcurrentMap<Address,FragTable> fragment_list=Util.createConcurrentMap(11);
 
     /** Used to assign fragmentation-specific sequence IDs (monotonically increasing) */
-    private int curr_id=1;
+    protected final AtomicLong curr_id=new AtomicLong(1);
 
     private final List<Address> members=new ArrayList<Address>(11);
 
@@ -67,6 +80,8 @@ public class FRAG2 extends Protocol {
     AtomicLong num_sent_frags=new AtomicLong(0);
     @ManagedAttribute(description="Number of received fragments")
     AtomicLong num_received_frags=new AtomicLong(0);
+    @ManagedAttribute(description="Number of incomplete messages discarded because max_frag_bytes was exceeded")
+    protected final AtomicLong num_evicted_msgs=new AtomicLong(0);
 
     public int getFragSize() {return frag_size;}
     public void setFragSize(int s) {frag_size=s;}
@@ -74,10 +89,27 @@ public class FRAG2 extends Protocol {
     public long getNumberOfSentFragments() {return num_sent_frags.get();}
     public long getNumberOfReceivedMessages() {return num_received_msgs.get();}
     public long getNumberOfReceivedFragments() {return num_received_frags.get();}
+    public long getNumberOfEvictedMessages() {return num_evicted_msgs.get();}
+
+    @ManagedAttribute(description="Number of bytes of incomplete messages (all senders)")
+    public long getFragBytes() {
+        long retval=0;
+        for(FragTable table: fragment_list.values())
+            retval+=table.bytes.get();
+        return retval;
+    }
+
+    @ManagedOperation(description="Prints the number of incomplete messages and their size per sender")
+    public String printFragmentTables() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,FragTable> entry: fragment_list.entrySet())
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        return sb.toString();
+    }
 
 
-    synchronized int getNextId() {
-        return curr_id++;
+    long getNextId() {
+        return curr_id.getAndIncrement();
     }  
 
     public void init() throws Exception {
@@ -108,6 +140,7 @@ public class FRAG2 extends Protocol {
         num_sent_frags.set(0);
         num_received_frags.set(0);
         num_received_msgs.set(0);
+        num_evicted_msgs.set(0);
     }
 
 
@@ -159,7 +192,15 @@ public class FRAG2 extends Protocol {
                 Message msg=(Message)evt.getArg();
                 FragHeader hdr=(FragHeader)msg.getHeader(this.id);
                 if(hdr != null) { // needs to be defragmented
-                    unfragment(msg, hdr); // Unfragment and possibly pass up
+                    Message assembled_msg=unfragment(msg, hdr);
+                    if(assembled_msg != null) {
+                        try {
+                            up_prot.up(new Event(Event.MSG, assembled_msg));
+                        }
+                        catch(Exception e) {
+                            if(log.isErrorEnabled()) log.error("unfragmentation failed", e);
+                        }
+                    }
                     return null;
                 }
                 else {
@@ -182,6 +223,28 @@ public class FRAG2 extends Protocol {
     }
 
 
+    /**
+     * Adds all fragments of the batch to their fragmentation tables. A fragment which completes a message is replaced
+     * by the assembled message, all other fragments are removed from the batch
+     */
+    public void up(MessageBatch batch) {
+        int num_regular=0;
+        for(Message msg: batch) {
+            FragHeader hdr=(FragHeader)msg.getHeader(this.id);
+            if(hdr == null) {
+                num_regular++;
+                continue;
+            }
+            Message assembled_msg=unfragment(msg, hdr);
+            batch.replace(msg, assembled_msg); // removes msg if assembled_msg is null
+        }
+        if(num_regular > 0)
+            num_received_msgs.addAndGet(num_regular);
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+
     private void handleViewChange(View view) {
         List<Address> new_mbrs=view.getMembers();
         List<Address> left_mbrs=Util.determineLeftMembers(members, new_mbrs);
@@ -223,15 +286,16 @@ public class FRAG2 extends Protocol {
      */
     private void fragment(Message msg) {
         try {
-            byte[] buffer=msg.getRawBuffer();
-            List<Range> fragments=Util.computeFragOffsets(msg.getOffset(), msg.getLength(), frag_size);
+            Buffer[] segments=msg.getBuffers(); // if not null, fragments refer to slices of the segments
+            byte[] buffer=segments == null? msg.getRawBuffer() : null;
+            List<Range> fragments=Util.computeFragOffsets(segments == null? msg.getOffset() : 0, msg.getLength(), frag_size);
             int num_frags=fragments.size();
             num_sent_frags.addAndGet(num_frags);
 
             if(log.isTraceEnabled()) {
                 Address dest=msg.getDest();
                 StringBuilder sb=new StringBuilder("fragmenting packet to ");
-                sb.append((dest != null ? dest.toString() : "<all members>")).append(" (size=").append(buffer.length);
+                sb.append((dest != null ? dest.toString() : "<all members>")).append(" (size=").append(msg.getLength());
                 sb.append(") into ").append(num_frags).append(" fragment(s) [frag_size=").append(frag_size).append(']');
                 log.trace(sb.toString());
             }
@@ -241,8 +305,11 @@ public class FRAG2 extends Protocol {
                 Range r=fragments.get(i);
                 // don't copy the buffer, only src, dest and headers. Only copy the headers one time !
                 Message frag_msg=msg.copy(false, i == 0);
-                frag_msg.setBuffer(buffer, (int)r.low, (int)r.high);
-                FragHeader hdr=new FragHeader(frag_id, i, num_frags);
+                if(segments != null)
+                    frag_msg.setBuffers(slice(segments, (int)r.low, (int)r.high));
+                else
+                    frag_msg.setBuffer(buffer, (int)r.low, (int)r.high);
+                FragHeader hdr=new FragHeader(frag_id, i, num_frags, msg.getLength());
                 frag_msg.putHeader(this.id, hdr);
                 down_prot.down(new Event(Event.MSG, frag_msg));
             }
@@ -253,57 +320,106 @@ public class FRAG2 extends Protocol {
     }
 
 
+    /** Returns the parts of segments covering length bytes starting at offset (counted over all segments) */
+    protected static Buffer[] slice(Buffer[] segments, int offset, int length) {
+        List<Buffer> retval=new ArrayList<Buffer>(2);
+        for(Buffer segment: segments) {
+            if(length <= 0)
+                break;
+            int len=segment.getLength();
+            if(offset >= len) {
+                offset-=len;
+                continue;
+            }
+            int num=Math.min(len - offset, length);
+            retval.add(new Buffer(segment.getBuf(), segment.getOffset() + offset, num));
+            length-=num;
+            offset=0;
+        }
+        return retval.toArray(new Buffer[retval.size()]);
+    }
+
     /**
-     1. Get all the fragment buffers
-     2. When all are received -> Assemble them into one big buffer
-     3. Read headers and byte buffer from big buffer
-     4. Set headers and buffer in msg
-     5. Pass msg up the stack
+     * Adds a fragment to its fragmentation table
+     * @return The assembled message if msg was the last missing fragment, or null
      */
-    private void unfragment(Message msg, FragHeader hdr) {
+    private Message unfragment(Message msg, FragHeader hdr) {
         Address            sender=msg.getSrc();
         Message            assembled_msg=null;
 
-        ConcurrentMap<Long,FragEntry> frag_table=fragment_list.get(sender);
+        FragTable frag_table=fragment_list.get(sender);
         if(frag_table == null) {
-            frag_table=Util.createConcurrentMap(16, .075f, 16);
-            ConcurrentMap<Long,FragEntry> tmp=fragment_list.putIfAbsent(sender, frag_table);
+            frag_table=new FragTable();
+            FragTable tmp=fragment_list.putIfAbsent(sender, frag_table);
             if(tmp != null) // value was already present
                 frag_table=tmp;
         }
         num_received_frags.incrementAndGet();
 
-        FragEntry entry=frag_table.get(hdr.id);
+        FragEntry entry=frag_table.entries.get(hdr.id);
         if(entry == null) {
+            if(hdr.id <= frag_table.highest_evicted) // fragment of an evicted (or even older) message
+                return null;
             entry=new FragEntry(hdr.num_frags);
-            FragEntry tmp=frag_table.putIfAbsent(hdr.id, entry);
+            FragEntry tmp=frag_table.entries.putIfAbsent(hdr.id, entry);
             if(tmp != null)
                 entry=tmp;
         }
 
+        int added;
         entry.lock();
         try {
-            entry.set(hdr.frag_id, msg);
+            if(entry.evicted)
+                return null;
+            added=entry.set(hdr.frag_id, msg, hdr.msg_length);
             if(entry.isComplete()) {
                 assembled_msg=entry.assembleMessage();
-                frag_table.remove(hdr.id);
+                frag_table.entries.remove(hdr.id);
+                added-=entry.size;
             }
         }
         finally {
             entry.unlock();
         }
 
-        // assembled_msg=frag_table.add(hdr.id, hdr.frag_id, hdr.num_frags, msg);
+        if(added != 0 && frag_table.bytes.addAndGet(added) > max_frag_bytes && max_frag_bytes > 0)
+            evict(sender, frag_table);
+
         if(assembled_msg != null) {
+            if(log.isTraceEnabled()) log.trace("assembled_msg is " + assembled_msg);
+            assembled_msg.setSrc(sender); // needed ? YES, because fragments have a null src !!
+            num_received_msgs.incrementAndGet();
+        }
+        return assembled_msg;
+    }
+
+    /**
+     * Removes the oldest incomplete messages of sender until the table is below max_frag_bytes. Fragments of removed
+     * messages received later on are discarded
+     */
+    protected void evict(Address sender, FragTable frag_table) {
+        for(Long key: frag_table.entries.keySet()) {
+            if(frag_table.bytes.get() <= max_frag_bytes)
+                break;
+            FragEntry entry=frag_table.entries.remove(key);
+            if(entry == null)
+                continue;
+            int size;
+            entry.lock();
             try {
-                if(log.isTraceEnabled()) log.trace("assembled_msg is " + assembled_msg);
-                assembled_msg.setSrc(sender); // needed ? YES, because fragments have a null src !!
-                num_received_msgs.incrementAndGet();
-                up_prot.up(new Event(Event.MSG, assembled_msg));
+                entry.evicted=true;
+                size=entry.size;
+                entry.clear();
             }
-            catch(Exception e) {
-                if(log.isErrorEnabled()) log.error("unfragmentation failed", e);
+            finally {
+                entry.unlock();
             }
+            frag_table.bytes.addAndGet(-size);
+            frag_table.highest_evicted=Math.max(frag_table.highest_evicted, key);
+            num_evicted_msgs.incrementAndGet();
+            if(log.isWarnEnabled())
+                log.warn("discarded incomplete message " + key + " from " + sender + ": max_frag_bytes (" +
+                           max_frag_bytes + ") exceeded");
         }
     }
 
@@ -320,17 +436,42 @@ public class FRAG2 extends Protocol {
 
 
 
+    /** The incomplete messages of a given sender, ordered by fragmentation ID, and the number of bytes they use */
+    protected static class FragTable {
+        protected final ConcurrentNavigableMap<Long,FragEntry> entries=new ConcurrentSkipListMap<Long,FragEntry>();
+        protected final AtomicLong                            bytes=new AtomicLong(0);
+        protected volatile long                               highest_evicted; // fragment IDs start at 1
+
+        public String toString() {
+            return entries.size() + " incomplete messages (" + Util.printBytes(bytes.get()) + ")";
+        }
+    }
+
+
     /**
-     * Class represents an entry for a message. Each entry holds an array of byte arrays sorted
-     * once all the byte buffer entries have been filled the fragmentation is considered complete.<br/>
-     * All methods are unsynchronized, use getLock() to obtain a lock for concurrent access.
+     * Class represents an entry for a message. The fragments are copied into the buffer of the message to be
+     * assembled as they are received. The buffer is allocated with the length of the original message (sent in every
+     * fragment's header) when the first fragment is received. As all fragments except the last one have the same size
+     * (the sender's frag_size), fragment N is placed at offset N * its length; the last fragment is placed at the end
+     * of the buffer.<br/>
+     * All methods are unsynchronized, use lock() to obtain a lock for concurrent access.
      */
     private static class FragEntry {
-        // each fragment is a byte buffer
-        final Message fragments[];
+        final boolean received[];
         //the number of fragments we have received
         int number_of_frags_recvd=0;
 
+        /** The buffer into which the fragments are copied, allocated when the first fragment is received */
+        byte[] buffer;
+
+        /** The first fragment without payload, its headers and flags are used for the assembled message */
+        Message template;
+
+        /** The number of bytes held by this entry */
+        int size;
+
+        boolean evicted;
+
         private final Lock lock=new ReentrantLock();
 
 
@@ -339,9 +480,7 @@ public class FRAG2 extends Protocol {
          * @param tot_frags the number of fragments to expect for this message
          */
         private FragEntry(int tot_frags) {
-            fragments=new Message[tot_frags];
-            for(int i=0; i < tot_frags; i++)
-                fragments[i]=null;
+            received=new boolean[tot_frags];
         }
 
         /** Use to synchronize on FragEntry */
@@ -354,17 +493,31 @@ public class FRAG2 extends Protocol {
         }
 
         /**
-         * adds on fragmentation buffer to the message
+         * Adds a fragment to the message
          * @param frag_id the number of the fragment being added 0..(tot_num_of_frags - 1)
-         * @param frag the byte buffer containing the data for this fragmentation, should not be null
+         * @param frag the fragment, should not be null
+         * @param msg_length the length of the original message
+         * @return the number of bytes by which the memory held by this entry increased
          */
-        public void set(int frag_id, Message frag) {
+        public int set(int frag_id, Message frag, int msg_length) {
             // don't count an already received fragment (should not happen though because the
             // reliable transmission protocol(s) below should weed out duplicates
-            if(fragments[frag_id] == null) {
-                fragments[frag_id]=frag;
-                number_of_frags_recvd++;
+            if(received[frag_id])
+                return 0;
+            received[frag_id]=true;
+            number_of_frags_recvd++;
+            if(frag_id == 0)
+                template=frag.copy(false); // doesn't copy the payload, but copies the headers
+
+            int old_size=size;
+            if(buffer == null) {
+                buffer=new byte[msg_length];
+                size=buffer.length;
             }
+            int length=frag.getLength();
+            int offset=frag_id == received.length -1? buffer.length - length : frag_id * length;
+            System.arraycopy(frag.getRawBuffer(), frag.getOffset(), buffer, offset, length);
+            return size - old_size;
         }
 
         /** returns true if this fragmentation is complete
@@ -372,56 +525,30 @@ public class FRAG2 extends Protocol {
          *
          */
         public boolean isComplete() {
-            /*first make a simple check*/
-            if(number_of_frags_recvd < fragments.length) {
-                return false;
-            }
-            /*then double check just in case*/
-            for(Message msg: fragments) {
-                if(msg == null)
-                    return false;
-            }
-            /*all fragmentations have been received*/
-            return true;
+            return number_of_frags_recvd == received.length;
         }
 
         /**
-         * Assembles all the fragments into one buffer. Takes all Messages, and combines their buffers into one
-         * buffer.
-         * This method does not check if the fragmentation is complete (use {@link #isComplete()} to verify
-         * before calling this method)
+         * Returns the assembled message, whose buffer has exactly the length of the payload. This method does not
+         * check if the fragmentation is complete (use {@link #isComplete()} to verify before calling this method)
          * @return the complete message in one buffer
          *
          */
         private Message assembleMessage() {
-            Message retval;
-            byte[]  combined_buffer, tmp;
-            int     combined_length=0, length, offset;
-            int     index=0;
-
-            for(Message fragment: fragments)
-                combined_length+=fragment.getLength();
-
-            combined_buffer=new byte[combined_length];
-            retval=fragments[0].copy(false); // doesn't copy the payload, but copies the headers
-
-            for(int i=0; i < fragments.length; i++) {
-                Message fragment=fragments[i];
-                fragments[i]=null; // help garbage collection a bit
-                tmp=fragment.getRawBuffer();
-                length=fragment.getLength();
-                offset=fragment.getOffset();
-                System.arraycopy(tmp, offset, combined_buffer, index, length);
-                index+=length;
-            }
-
-            retval.setBuffer(combined_buffer);
+            Message retval=template;
+            retval.setBuffer(buffer);
             return retval;
         }
 
+        public void clear() {
+            buffer=null;
+            template=null;
+            size=0;
+        }
+
         public String toString() {
             StringBuilder ret=new StringBuilder();
-            ret.append("[tot_frags=").append(fragments.length).append(", number_of_frags_recvd=").append(number_of_frags_recvd).append(']');
+            ret.append("[tot_frags=").append(received.length).append(", number_of_frags_recvd=").append(number_of_frags_recvd).append(']');
             return ret.toString();
         }
 
@@ -13,6 +13,8 @@ import java.io.DataOutput;
 public class FcHeader extends Header {
     public static final byte REPLENISH=1;
     public static final byte CREDIT_REQUEST=2; // the sender of the message is the requester
+    public static final byte PROBE=3;          // round trip time probe, queued behind regular messages
+    public static final byte PROBE_RSP=4;      // response to a PROBE, sent as OOB message
 
     byte type=REPLENISH;
 
@@ -42,6 +44,10 @@ public class FcHeader extends Header {
                 return "REPLENISH";
             case CREDIT_REQUEST:
                 return "CREDIT_REQUEST";
+            case PROBE:
+                return "PROBE";
+            case PROBE_RSP:
+                return "PROBE_RSP";
             default:
                 return "<invalid type>";
         }
@@ -9,9 +9,12 @@ import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.Util;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -215,6 +218,9 @@ public abstract class FlowControl extends Protocol {
 
     public abstract long getTotalTimeBlocked();
 
+    /** Returns the number of senders currently blocked waiting for credits */
+    public abstract int getNumberOfBlockedSenders();
+
     @ManagedAttribute(description="Average time spent in a flow control block")
     public double getAverageTimeBlocked() {
         long number_of_blockings=getNumberOfBlockings();
@@ -281,6 +287,11 @@ public abstract class FlowControl extends Protocol {
      */
     protected abstract boolean handleMulticastMessage();
 
+    /** Whether multicast (or unicast) messages are subject to flow control by this protocol */
+    protected boolean isFlowControlled(boolean multicast) {
+        return handleMulticastMessage() == multicast;
+    }
+
     protected abstract void handleCredit(Address sender, long increase);
 
 
@@ -323,10 +334,7 @@ public abstract class FlowControl extends Protocol {
                     break;
 
                 Address dest=msg.getDest();
-                boolean multicast=dest == null;
-                boolean handle_multicasts=handleMulticastMessage();
-                boolean process=(handle_multicasts && multicast) || (!handle_multicasts && !multicast);
-                if(!process)
+                if(!isFlowControlled(dest == null))
                     break;
 
                 int length=msg.getLength();
@@ -362,10 +370,8 @@ public abstract class FlowControl extends Protocol {
                     break;
 
                 Address dest=msg.getDest();
-                boolean multicast=dest == null;
-                boolean handle_multicasts=handleMulticastMessage();
                 FcHeader hdr=(FcHeader)msg.getHeader(this.id);
-                boolean process=(handle_multicasts && multicast) || (!handle_multicasts && !multicast) || hdr != null;
+                boolean process=isFlowControlled(dest == null) || hdr != null;
                 if(!process)
                     break;
                 
@@ -419,6 +425,50 @@ public abstract class FlowControl extends Protocol {
     }
 
 
+    /**
+     * Handles credit messages individually, and adjusts the credits of the sender of the batch once for the total
+     * length of the remaining messages before passing the batch up
+     */
+    public void up(MessageBatch batch) {
+        Address sender=batch.sender();
+        long length=0;
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            if(msg.isFlagSet(Message.NO_FC))
+                continue;
+            if(msg.getHeader(this.id) != null) { // REPLENISH or CREDIT_REQUEST
+                it.remove();
+                up(new Event(Event.MSG, msg));
+                continue;
+            }
+            if(!isFlowControlled(msg.getDest() == null))
+                continue;
+            if(sender != null && sender.equals(msg.getSrc()))
+                length+=msg.getLength();
+            else {
+                long new_credits=adjustCredit(received, msg.getSrc(), msg.getLength());
+                if(new_credits > 0)
+                    sendCredit(msg.getSrc(), new_credits);
+            }
+        }
+        if(batch.isEmpty())
+            return;
+
+        long new_credits=adjustCredit(received, sender, length);
+        if(ignore_synchronous_response)
+            ignore_thread.set(true);
+        try {
+            up_prot.up(batch);
+        }
+        finally {
+            if(ignore_synchronous_response)
+                ignore_thread.set(false); // need to revert because the thread is placed back into the pool
+            if(new_credits > 0)
+                sendCredit(sender, new_credits);
+        }
+    }
+
+
     protected void handleConfigEvent(Map<String,Object> info) {
         if(info != null) {
             Integer frag_size=(Integer)info.get("frag_size");
@@ -447,7 +497,7 @@ public abstract class FlowControl extends Protocol {
      * the purpose of flow control
      * @return long Number of credits to be sent. Greater than 0 if credits needs to be sent, 0 otherwise
      */
-    protected long adjustCredit(Map<Address,Credit> map, Address sender, int length) {
+    protected long adjustCredit(Map<Address,Credit> map, Address sender, long length) {
         Credit cred;
         if(sender == null || length == 0 || (cred=map.get(sender)) == null)
             return 0;
@@ -529,63 +579,88 @@ public abstract class FlowControl extends Protocol {
 
 
 
+    /**
+     * Credits for a single member. Decrementing and incrementing credits is lock-free; only a sender which has to
+     * block because credits are exhausted acquires the monitor of its Credit instance, so senders to different
+     * members never contend with each other.
+     */
     protected class Credit {
-        protected long credits_left;
-        protected int  num_blockings=0;
-        protected long total_blocking_time=0;
-        protected long last_credit_request=0;
+        protected final AtomicLong    credits_left;
+        protected final AtomicInteger num_blocked=new AtomicInteger(0);
+        protected volatile int        num_blockings=0;
+        protected volatile long       total_blocking_time=0;
+        protected long                last_credit_request=0;
 
         
         protected Credit(long credits) {
-            this.credits_left=credits;
+            this.credits_left=new AtomicLong(credits);
         }
 
 
-        protected synchronized boolean decrementIfEnoughCredits(long credits, long timeout) {
+        protected boolean decrementIfEnoughCredits(long credits, long timeout) {
             if(decrement(credits))
                 return true;
 
             if(timeout <= 0)
                 return false;
 
-            long start=System.currentTimeMillis();
-            try {
-                this.wait(timeout);
-            }
-            catch(InterruptedException e) {
-            }
-            finally {
-                total_blocking_time+=System.currentTimeMillis() - start;
-                num_blockings++;
+            synchronized(this) {
+                // a sender which sees num_blocked > 0 after incrementing credits notifies us (with the monitor held)
+                num_blocked.incrementAndGet();
+                try {
+                    if(decrement(credits))
+                        return true;
+                    long start=System.currentTimeMillis();
+                    try {
+                        this.wait(timeout);
+                    }
+                    catch(InterruptedException e) {
+                    }
+                    finally {
+                        total_blocking_time+=System.currentTimeMillis() - start;
+                        num_blockings++;
+                    }
+                }
+                finally {
+                    num_blocked.decrementAndGet();
+                }
             }
-
             return decrement(credits);
         }
 
         
         protected boolean decrement(long credits) {
-            if(credits <= credits_left) {
-                credits_left-=credits;
-                return true;
+            for(;;) {
+                long current=credits_left.get();
+                if(credits > current)
+                    return false;
+                if(credits_left.compareAndSet(current, current - credits))
+                    return true;
             }
-            return false;
         }
 
 
-        protected synchronized long decrementAndGet(long credits) {
-            credits_left=Math.max(0, credits_left - credits);
-            if(credits_left <= min_credits) {
-                long credit_response=Math.min(max_credits, max_credits - credits_left);
-                credits_left=max_credits;
-                return credit_response;
+        protected long decrementAndGet(long credits) {
+            for(;;) {
+                long current=credits_left.get();
+                long new_credits=Math.max(0, current - credits);
+                if(new_credits <= min_credits) {
+                    if(credits_left.compareAndSet(current, max_credits))
+                        return Math.min(max_credits, max_credits - new_credits);
+                }
+                else if(credits_left.compareAndSet(current, new_credits))
+                    return 0;
             }
-            return 0;
         }
 
 
-        protected synchronized void increment(long credits) {
-            credits_left=Math.min(max_credits, credits_left + credits);
-            notifyAll();
+        protected void increment(long credits) {
+            for(;;) {
+                long current=credits_left.get();
+                if(credits_left.compareAndSet(current, Math.min(max_credits, current + credits)))
+                    break;
+            }
+            signalBlockedSenders();
         }
 
         protected synchronized boolean needToSendCreditRequest() {
@@ -601,11 +676,21 @@ public abstract class FlowControl extends Protocol {
 
         protected long getTotalBlockingTime() {return total_blocking_time;}
 
-        protected synchronized long get() {return credits_left;}
+        protected int getNumBlockedSenders() {return num_blocked.get();}
+
+        protected long get() {return credits_left.get();}
 
-        protected synchronized void set(long new_credits) {
-            credits_left=Math.min(max_credits, new_credits);
-            notifyAll();
+        protected void set(long new_credits) {
+            credits_left.set(Math.min(max_credits, new_credits));
+            signalBlockedSenders();
+        }
+
+        protected void signalBlockedSenders() {
+            if(num_blocked.get() > 0) {
+                synchronized(this) {
+                    notifyAll();
+                }
+            }
         }
 
         public String toString() {
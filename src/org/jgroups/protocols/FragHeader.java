@@ -13,6 +13,8 @@ public class FragHeader extends Header {
     public long id=0;
     public int  frag_id=0;
     public int  num_frags=0;
+    /** The length of the original message, so the receiver can allocate the buffer for reassembly up front (FRAG2) */
+    public int  msg_length=0;
 
 
     public FragHeader() {
@@ -24,8 +26,13 @@ public class FragHeader extends Header {
         this.num_frags=num_frags;
     }
 
+    public FragHeader(long id, int frag_id, int num_frags, int msg_length) {
+        this(id, frag_id, num_frags);
+        this.msg_length=msg_length;
+    }
+
     public String toString() {
-        return "[id=" + id + ", frag_id=" + frag_id + ", num_frags=" + num_frags + ']';
+        return "[id=" + id + ", frag_id=" + frag_id + ", num_frags=" + num_frags + ", msg_length=" + msg_length + ']';
     }
 
 
@@ -33,16 +40,18 @@ public class FragHeader extends Header {
         Util.writeLong(id, out);
         out.writeInt(frag_id);
         out.writeInt(num_frags);
+        Util.writeLong(msg_length, out);
     }
 
     public int size() {
-        return Util.size(id) + 2*Global.INT_SIZE;
+        return Util.size(id) + 2*Global.INT_SIZE + Util.size((long)msg_length);
     }
 
     public void readFrom(DataInput in) throws Exception {
         id=Util.readLong(in);
         frag_id=in.readInt();
         num_frags=in.readInt();
+        msg_length=(int)Util.readLong(in);
     }
 
 }
@@ -205,6 +205,10 @@ public class MERGE2 extends Protocol {
         return up_prot.up(evt);
     }
 
+    protected boolean accept(Message msg) {
+        return merge_fast && msg.getDest() == null && !members.contains(msg.getSrc());
+    }
+
     /**
 	 * Task periodically executing (if role is coordinator). Gets the initial membership and determines
 	 * whether there are subgroups (multiple coordinators for the same group). If yes, it sends a MERGE event
@@ -290,6 +290,10 @@ public class MERGE3 extends Protocol {
         return up_prot.up(evt);
     }
 
+    protected boolean accept(Message msg) {
+        return msg.getHeader(this.id) != null;
+    }
+
 
 
 
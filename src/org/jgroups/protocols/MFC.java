@@ -78,6 +78,11 @@ public class MFC extends FlowControl {
         return credits.getTotalBlockTime();
     }
 
+    @ManagedAttribute(description="Number of senders currently blocked waiting for credits")
+    public int getNumberOfBlockedSenders() {
+        return credits.getNumBlockedSenders();
+    }
+
     protected boolean handleMulticastMessage() {
         return true;
     }
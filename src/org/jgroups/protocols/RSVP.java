@@ -7,6 +7,7 @@ import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.AckCollector;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.TimeScheduler;
 
 import java.io.DataInput;
@@ -189,6 +190,53 @@ public class RSVP extends Protocol {
         return up_prot.up(evt);
     }
 
+    /**
+     * Handles the RSVP messages of a batch in place, so that the order of the batch (e.g. FIFO order established by
+     * NAKACK2 or UNICAST2) is preserved: REQs are acked and left in the batch, FLUSH and RSP messages are consumed.
+     * With ack_on_delivery, REQs are acked after the batch has been passed up
+     */
+    public void up(MessageBatch batch) {
+        List<Message> reqs=null; // REQs to be acked after delivery
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            if(!msg.isFlagSet(Message.Flag.RSVP))
+                continue;
+            RsvpHeader hdr=(RsvpHeader)msg.getHeader(id);
+            if(hdr == null) {
+                log.error("message with RSVP flag needs to have an RsvpHeader");
+                continue;
+            }
+            switch(hdr.type) {
+                case RsvpHeader.REQ:
+                    if(ack_on_delivery) {
+                        if(reqs == null)
+                            reqs=new ArrayList<Message>();
+                        reqs.add(msg);
+                    }
+                    else
+                        sendResponse(msg.getSrc(), hdr.id);
+                    break;
+                case RsvpHeader.FLUSH:
+                    it.remove();
+                    sendResponse(msg.getSrc(), hdr.id);
+                    break;
+                case RsvpHeader.RSP:
+                    it.remove();
+                    handleResponse(msg.getSrc(), hdr.id);
+                    break;
+            }
+        }
+        try {
+            if(!batch.isEmpty())
+                up_prot.up(batch);
+        }
+        finally {
+            if(reqs != null)
+                for(Message msg: reqs)
+                    sendResponse(msg.getSrc(), ((RsvpHeader)msg.getHeader(id)).id);
+        }
+    }
+
     protected void handleResponse(Address member, short id) {
         synchronized(ids) {
             Entry entry=ids.get(id);
@@ -2,20 +2,37 @@
 package org.jgroups.protocols;
 
 import org.jgroups.*;
+import org.jgroups.annotations.GuardedBy;
 import org.jgroups.annotations.MBean;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.ExposedByteArrayInputStream;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+import org.jgroups.util.ExposedDataOutputStream;
 import org.jgroups.util.SeqnoTable;
+import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * Implementation of total order protocol using a sequencer. Consult doc/design/SEQUENCER.txt for details
+ * <p/>
+ * If max_batch_size is greater than 1, messages are batched: members forward messages queued for the coordinator
+ * in a single FORWARD_BATCH message, and the coordinator broadcasts all forwarded messages queued for broadcasting
+ * in a single BCAST_BATCH message. There is no batching thread and no timeout: a sender which adds a message to an
+ * empty queue sends it right away, and messages added while a batch is being sent are sent in the next batch.
+ * Batches therefore only form under load. A sender sends at most one batch; if messages are left, the next batch is
+ * sent by a timer thread, so that a sender isn't stuck sending the messages of other threads under sustained load.
  * @author Bela Ban
  */
 @MBean(description="Implementation of total order protocol using a sequencer")
@@ -24,11 +41,29 @@ public class SEQUENCER extends Protocol {
     private final Collection<Address>  members=new ArrayList<Address>();
     private volatile boolean           is_coord=false;
     private AtomicLong                 seqno=new AtomicLong(0);
+    protected TimeScheduler            timer;
+
+    @Property(description="Max number of messages forwarded to the coordinator, or broadcast by the coordinator, " +
+      "in a single batch. Batching is disabled if <= 1")
+    protected int max_batch_size=200;
+
+    @Property(description="Max number of bytes of the messages in a single batch")
+    protected int max_batch_bytes=60000;
 
     /** Maintains messages forwarded to the coord which which no ack has been received yet.
      * Needs to be sorted so we resend them in the right order
      */
-    private final Map<Long,byte[]> forward_table=new TreeMap<Long,byte[]>();
+    private final ConcurrentSkipListMap<Long,byte[]> forward_table=new ConcurrentSkipListMap<Long,byte[]>();
+
+    /** Messages to be forwarded to the coordinator (batching only) */
+    protected final BatchQueue forward_queue=new BatchQueue() {
+        protected void send(List<Entry> batch) {sendForwardBatch(batch);}
+    };
+
+    /** Forwarded messages to be broadcast by the coordinator (batching only) */
+    protected final BatchQueue bcast_queue=new BatchQueue() {
+        protected void send(List<Entry> batch) {sendBroadcastBatch(batch);}
+    };
 
     /** Map<Address, seqno>: maintains the highest seqnos seen for a given member */
     private final SeqnoTable received_table=new SeqnoTable(0);
@@ -37,6 +72,8 @@ public class SEQUENCER extends Protocol {
     private long bcast_msgs=0;
     private long received_forwards=0;
     private long received_bcasts=0;
+    private long forwarded_batches=0;
+    private long bcast_batches=0;
 
     @ManagedAttribute
     public boolean isCoordinator() {return is_coord;}
@@ -50,10 +87,17 @@ public class SEQUENCER extends Protocol {
     public long getReceivedForwards() {return received_forwards;}
     @ManagedAttribute
     public long getReceivedBroadcasts() {return received_bcasts;}
+    @ManagedAttribute(description="Number of batches forwarded to the coordinator")
+    public long getForwardedBatches() {return forwarded_batches;}
+    @ManagedAttribute(description="Number of batches broadcast by the coordinator")
+    public long getBroadcastBatches() {return bcast_batches;}
+    @ManagedAttribute(description="Number of forwarded messages which have not yet been received in a broadcast")
+    public int getForwardTableSize() {return forward_table.size();}
+    public boolean isBatching() {return max_batch_size > 1;}
 
     @ManagedOperation
     public void resetStats() {
-        forwarded_msgs=bcast_msgs=received_forwards=received_bcasts=0L;
+        forwarded_msgs=bcast_msgs=received_forwards=received_bcasts=forwarded_batches=bcast_batches=0L;
     }
 
     @ManagedOperation
@@ -63,6 +107,8 @@ public class SEQUENCER extends Protocol {
         m.put("broadcast", new Long(bcast_msgs));
         m.put("received_forwards", new Long(received_forwards));
         m.put("received_bcasts", new Long(received_bcasts));
+        m.put("forwarded_batches", new Long(forwarded_batches));
+        m.put("bcast_batches", new Long(bcast_batches));
         return m;
     }
 
@@ -73,6 +119,11 @@ public class SEQUENCER extends Protocol {
 
 
     
+    public void init() throws Exception {
+        super.init();
+        timer=getTransport().getTimer();
+    }
+
     public Object down(Event evt) {
         switch(evt.getType()) {
             case Event.MSG:
@@ -130,10 +181,27 @@ public class SEQUENCER extends Protocol {
                                 log.error(local_addr + ": non-coord; dropping FORWARD request from " + msg.getSrc());
                             return null;
                         }
-                        broadcast(msg, true); // do copy the message
+                        if(isBatching())
+                            bcast_queue.add(new Entry(hdr.getOriginalSender(), hdr.getSeqno(), msg.getRawBuffer(),
+                                                      msg.getOffset(), msg.getLength()));
+                        else
+                            broadcast(msg, true); // do copy the message
                         received_forwards++;
                         return null;
 
+                    case SequencerHeader.FORWARD_BATCH:
+                        if(!is_coord) {
+                            if(log.isErrorEnabled())
+                                log.error(local_addr + ": non-coord; dropping FORWARD_BATCH request from " + msg.getSrc());
+                            return null;
+                        }
+                        handleForwardBatch(msg, hdr);
+                        return null;
+
+                    case SequencerHeader.BCAST_BATCH:
+                        unwrapAndDeliverBatch(msg);
+                        return null;
+
                     case SequencerHeader.BCAST:
                         deliver(msg, evt, hdr);
                         received_bcasts++;
@@ -213,9 +281,16 @@ public class SEQUENCER extends Protocol {
      * from being inserted until we're done, that's why there's synchronization.
      */
     private void resendMessagesInForwardTable() {
-        Map<Long,byte[]> copy;
-        synchronized(forward_table) {
-            copy=new TreeMap<Long,byte[]>(forward_table);
+        Map<Long,byte[]> copy=new TreeMap<Long,byte[]>(forward_table);
+        if(isBatching()) {
+            List<Entry> batch=new ArrayList<Entry>(copy.size());
+            for(Map.Entry<Long,byte[]> entry: copy.entrySet())
+                batch.add(new Entry(local_addr, entry.getKey(), entry.getValue(), 0, entry.getValue().length));
+            if(log.isTraceEnabled())
+                log.trace("resending " + batch.size() + " msgs to coord (" + coord + ")");
+            for(List<Entry> list: split(batch))
+                sendForwardBatch(list);
+            return;
         }
         for(Map.Entry<Long,byte[]> entry: copy.entrySet()) {
             Long key=entry.getKey();
@@ -242,8 +317,10 @@ public class SEQUENCER extends Protocol {
         byte[] marshalled_msg;
         try {
             marshalled_msg=Util.objectToByteBuffer(msg);
-            synchronized(forward_table) {
-                forward_table.put(seqno, marshalled_msg);
+            forward_table.put(seqno, marshalled_msg);
+            if(isBatching()) {
+                forward_queue.add(new Entry(local_addr, seqno, marshalled_msg, 0, marshalled_msg.length));
+                return;
             }
             Message forward_msg=new Message(coord, null, marshalled_msg);
             SequencerHeader hdr=new SequencerHeader(SequencerHeader.FORWARD, local_addr, seqno);
@@ -317,11 +394,8 @@ public class SEQUENCER extends Protocol {
 
     private boolean canDeliver(Address sender, long seqno) {
         // this is the ack for the message sent by myself
-        if(sender.equals(local_addr)) {
-            synchronized(forward_table) {
-                forward_table.remove(seqno);
-            }
-        }
+        if(sender.equals(local_addr))
+            forward_table.remove(seqno);
 
         // if msg was already delivered, discard it
         boolean added=received_table.add(sender, seqno);
@@ -334,9 +408,244 @@ public class SEQUENCER extends Protocol {
         return added;
     }
 
+
+    /** Sends a batch of marshalled messages to the coordinator in a single FORWARD_BATCH message */
+    protected void sendForwardBatch(List<Entry> batch) {
+        Address target=coord;
+        try {
+            Buffer buf=marshal(batch, false);
+            Message forward_msg=new Message(target, null, buf.getBuf(), buf.getOffset(), buf.getLength());
+            forward_msg.putHeader(this.id, new SequencerHeader(SequencerHeader.FORWARD_BATCH, local_addr, -1));
+            if(log.isTraceEnabled())
+                log.trace("forwarding batch of " + batch.size() + " msgs to coord (" + target + ")");
+            down_prot.down(new Event(Event.MSG, forward_msg));
+            forwarded_msgs+=batch.size();
+            forwarded_batches++;
+        }
+        catch(Exception e) {
+            log.error("failed marshalling batch", e);
+        }
+    }
+
+    /** Broadcasts a batch of forwarded messages in a single BCAST_BATCH message */
+    protected void sendBroadcastBatch(List<Entry> batch) {
+        try {
+            Buffer buf=marshal(batch, true);
+            Message bcast_msg=new Message(null, local_addr, buf.getBuf(), buf.getOffset(), buf.getLength());
+            bcast_msg.putHeader(this.id, new SequencerHeader(SequencerHeader.BCAST_BATCH, local_addr, -1));
+            if(log.isTraceEnabled())
+                log.trace("broadcasting batch of " + batch.size() + " msgs");
+            down_prot.down(new Event(Event.MSG, bcast_msg));
+            bcast_msgs+=batch.size();
+            bcast_batches++;
+        }
+        catch(Exception e) {
+            log.error("failed marshalling batch", e);
+        }
+    }
+
+    /** Queues the messages of a FORWARD_BATCH for broadcasting, preserving their order */
+    protected void handleForwardBatch(Message msg, SequencerHeader hdr) {
+        try {
+            List<Entry> batch=unmarshal(msg.getRawBuffer(), msg.getOffset(), msg.getLength(), hdr.getOriginalSender());
+            received_forwards+=batch.size();
+            if(isBatching())
+                bcast_queue.addAll(batch);
+            else
+                sendBroadcastBatch(batch);
+        }
+        catch(Exception e) {
+            log.error("failed unmarshalling batch from " + msg.getSrc(), e);
+        }
+    }
+
+    /** Unmarshals the messages of a BCAST_BATCH and passes them up in order (unless already delivered) */
+    protected void unwrapAndDeliverBatch(Message msg) {
+        List<Entry> batch;
+        try {
+            batch=unmarshal(msg.getRawBuffer(), msg.getOffset(), msg.getLength(), null);
+        }
+        catch(Exception e) {
+            log.error("failed unmarshalling batch from " + msg.getSrc(), e);
+            return;
+        }
+        for(Entry entry: batch) {
+            try {
+                Message msg_to_deliver=(Message)Util.objectFromByteBuffer(entry.buf, entry.offset, entry.length);
+                received_bcasts++;
+                if(!canDeliver(entry.sender, entry.seqno))
+                    continue;
+                if(log.isTraceEnabled())
+                    log.trace("delivering msg " + msg_to_deliver + " (seqno " + entry.seqno +
+                                "), original sender " + entry.sender);
+                up_prot.up(new Event(Event.MSG, msg_to_deliver));
+            }
+            catch(Throwable t) {
+                log.error("failed delivering message " + entry.sender + "::" + entry.seqno, t);
+            }
+        }
+    }
+
+    /** Splits a list of entries into batches according to max_batch_size and max_batch_bytes */
+    protected List<List<Entry>> split(List<Entry> entries) {
+        List<List<Entry>> retval=new ArrayList<List<Entry>>();
+        List<Entry> batch=new ArrayList<Entry>();
+        int bytes=0;
+        for(Entry entry: entries) {
+            if(!batch.isEmpty() && (batch.size() >= max_batch_size || bytes + entry.length > max_batch_bytes)) {
+                retval.add(batch);
+                batch=new ArrayList<Entry>();
+                bytes=0;
+            }
+            batch.add(entry);
+            bytes+=entry.length;
+        }
+        if(!batch.isEmpty())
+            retval.add(batch);
+        return retval;
+    }
+
+    /**
+     * Marshals a batch: the number of entries, followed by (original sender (only if with_sender is true), seqno,
+     * length, marshalled message) for each entry
+     */
+    protected static Buffer marshal(List<Entry> batch, boolean with_sender) throws Exception {
+        int size=Global.INT_SIZE;
+        for(Entry entry: batch)
+            size+=(with_sender? Util.size(entry.sender) : 0) + Global.LONG_SIZE + Global.INT_SIZE + entry.length;
+        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(size);
+        DataOutputStream out=new ExposedDataOutputStream(out_stream);
+        out.writeInt(batch.size());
+        for(Entry entry: batch) {
+            if(with_sender)
+                Util.writeAddress(entry.sender, out);
+            out.writeLong(entry.seqno);
+            out.writeInt(entry.length);
+            out.write(entry.buf, entry.offset, entry.length);
+        }
+        out.flush();
+        return out_stream.getBuffer();
+    }
+
+    /**
+     * Unmarshals a batch created by {@link #marshal(java.util.List, boolean)}. The entries refer to buf, no bytes
+     * are copied. If sender is null, the sender is read for each entry
+     */
+    protected static List<Entry> unmarshal(byte[] buf, int offset, int length, Address sender) throws Exception {
+        ExposedByteArrayInputStream in_stream=new ExposedByteArrayInputStream(buf, offset, length);
+        DataInputStream in=new DataInputStream(in_stream);
+        int num=in.readInt();
+        List<Entry> retval=new ArrayList<Entry>(num);
+        for(int i=0; i < num; i++) {
+            Address entry_sender=sender != null? sender : Util.readAddress(in);
+            long entry_seqno=in.readLong();
+            int len=in.readInt();
+            int pos=in_stream.getPos();
+            retval.add(new Entry(entry_sender, entry_seqno, buf, pos, len));
+            in.skipBytes(len);
+        }
+        return retval;
+    }
+
 /* ----------------------------- End of Private Methods -------------------------------- */
 
 
+    /** A marshalled message with its original sender and seqno */
+    protected static class Entry {
+        protected final Address sender;
+        protected final long    seqno;
+        protected final byte[]  buf;
+        protected final int     offset, length;
+
+        protected Entry(Address sender, long seqno, byte[] buf, int offset, int length) {
+            this.sender=sender;
+            this.seqno=seqno;
+            this.buf=buf;
+            this.offset=offset;
+            this.length=length;
+        }
+    }
+
+
+    /**
+     * Queue of entries which are sent in batches. The thread adding an entry to the queue sends all queued entries
+     * unless another thread is already doing so; this preserves the order of the entries, and entries added while
+     * a batch is sent are picked up by the sending thread
+     */
+    protected abstract class BatchQueue implements Runnable {
+        protected final Queue<Entry>  queue=new ConcurrentLinkedQueue<Entry>();
+        protected final AtomicBoolean sending=new AtomicBoolean(false);
+        protected final AtomicBoolean drain_scheduled=new AtomicBoolean(false);
+
+        protected void add(Entry entry) {
+            queue.add(entry);
+            drain();
+        }
+
+        protected void addAll(Collection<Entry> entries) {
+            queue.addAll(entries);
+            drain();
+        }
+
+        /**
+         * Sends a single batch, unless a different thread is sending. Messages left after the batch has been sent
+         * are sent by a timer thread
+         */
+        protected void drain() {
+            while(!queue.isEmpty() && sending.compareAndSet(false, true)) {
+                try {
+                    sendBatch();
+                }
+                finally {
+                    sending.set(false);
+                }
+                // re-check after releasing sending: a thread which added a message while we were sending may
+                // have returned without sending it
+                if(queue.isEmpty() || scheduleDrain())
+                    return;
+            }
+        }
+
+        /** Runs drain() on a timer thread. Returns false if there's no timer, the caller then has to drain */
+        protected boolean scheduleDrain() {
+            if(timer == null)
+                return false;
+            if(drain_scheduled.compareAndSet(false, true)) {
+                try {
+                    timer.execute(this);
+                }
+                catch(Throwable t) {
+                    drain_scheduled.set(false);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public void run() {
+            drain_scheduled.set(false);
+            drain();
+        }
+
+        @GuardedBy("sending")
+        protected void sendBatch() {
+            List<Entry> batch=new ArrayList<Entry>();
+            int bytes=0;
+            Entry entry;
+            while((entry=queue.peek()) != null) {
+                if(!batch.isEmpty() && (batch.size() >= max_batch_size || bytes + entry.length > max_batch_bytes))
+                    break;
+                batch.add(queue.poll());
+                bytes+=entry.length;
+            }
+            if(!batch.isEmpty())
+                send(batch);
+        }
+
+        protected abstract void send(List<Entry> batch);
+    }
+
+
 
 
 
@@ -344,6 +653,8 @@ public class SEQUENCER extends Protocol {
         private static final byte FORWARD       = 1;
         private static final byte BCAST         = 2;
         private static final byte WRAPPED_BCAST = 3;
+        private static final byte FORWARD_BATCH = 4;
+        private static final byte BCAST_BATCH   = 5;
 
         byte    type=-1;
         /** the original sender's address and a seqno */
@@ -379,6 +690,8 @@ public class SEQUENCER extends Protocol {
                 case FORWARD:        return "FORWARD";
                 case BCAST:          return "BCAST";
                 case WRAPPED_BCAST:  return "WRAPPED_BCAST";
+                case FORWARD_BATCH:  return "FORWARD_BATCH";
+                case BCAST_BATCH:    return "BCAST_BATCH";
                 default:             return "n/a";
             }
         }
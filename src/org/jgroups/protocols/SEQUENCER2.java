@@ -0,0 +1,666 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.annotations.GuardedBy;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+import org.jgroups.util.ExposedDataOutputStream;
+import org.jgroups.util.Util;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Total order protocol in which members multicast their messages directly, and only the ordering information flows
+ * through the sequencer (the coordinator). Contrary to {@link SEQUENCER}, payloads are not forwarded to and
+ * re-broadcast by the coordinator, so the bandwidth for payloads is spread across all members.
+ * <p/>
+ * Every multicast is tagged with a seqno local to its sender. When the coordinator receives a multicast, it assigns
+ * it the next position in the total order by multicasting an ORDER message, which contains the position of the first
+ * message and the sender and local seqno of a number of messages. Members buffer multicasts until their position is
+ * known, and deliver them in the order of their positions.
+ * <p/>
+ * Orders are kept across a coordinator change: on every view change, each member reports the position of the next
+ * message it will deliver to the coordinator. A new coordinator waits for the reports of all members, then
+ * re-announces the order from the lowest reported position (REORDER), followed by the messages which have not yet
+ * been ordered. Messages which were ordered by a crashed coordinator, but whose ORDER message was not received by
+ * the new coordinator, may be delivered in a different order by the remaining members. As with SEQUENCER, a flush
+ * protocol is needed if this is not acceptable.
+ * @author agent
+ * @since 3.1
+ */
+@MBean(description="Total order protocol in which payloads are multicast directly and only the order is " +
+  "determined by the coordinator")
+public class SEQUENCER2 extends Protocol {
+
+    @Property(description="Max number of messages ordered by a single ORDER message")
+    protected int max_order_batch=500;
+
+    @Property(description="Number of delivered positions (and IDs of delivered messages) to remember, so that a " +
+      "new coordinator can re-announce the order to members which are behind, and to discard messages which are " +
+      "ordered again by a new coordinator")
+    protected int max_delivered=10000;
+
+
+    protected Address                local_addr, coord;
+    protected volatile boolean       is_coord=false;
+    protected volatile Set<Address>  members=new HashSet<Address>();
+    protected final AtomicLong       seqno=new AtomicLong(0);
+
+    /** Received multicasts whose position in the total order is not yet known */
+    protected final ConcurrentMap<MessageId,Message> unordered=new ConcurrentHashMap<MessageId,Message>();
+
+    /** The total order (positions and message IDs), as received from the coordinator. Entries below next_pos have
+     * been delivered; the last max_delivered of them are kept, so a new coordinator can re-announce them */
+    protected final NavigableMap<Long,MessageId> order=new ConcurrentSkipListMap<Long,MessageId>();
+
+    /** The position of the next message to be delivered, -1 until the first ORDER message has been received */
+    protected final AtomicLong       next_pos=new AtomicLong(-1);
+
+    /** Messages ordered by the coordinator but not yet multicast in an ORDER message (coordinator only) */
+    protected final Queue<MessageId> to_be_ordered=new ConcurrentLinkedQueue<MessageId>();
+
+    /** The next position to be assigned by the coordinator. Only accessed by the thread holding the ordering flag */
+    protected long                   next_order_pos;
+
+    /** The IDs of the last delivered messages; used to drop messages ordered again after a coordinator change */
+    protected final Set<MessageId>   delivered=Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<MessageId,Boolean>() {
+        protected boolean removeEldestEntry(Map.Entry<MessageId,Boolean> eldest) {
+            return size() > max_delivered;
+        }
+    }));
+
+    /** The ID of the current view, and of the first view we installed. Multicasts sent in a view preceding our
+     * first view are not received by us, so we skip their order */
+    protected volatile long          view_id=-1, join_view_id=-1;
+
+    /** ORDER messages received from a new coordinator before we installed its view */
+    @GuardedBy("this")
+    protected final List<Message>    future_orders=new LinkedList<Message>();
+
+    /** The positions of the next messages to be delivered, reported by the members for view reports_view_id */
+    @GuardedBy("this")
+    protected final Map<Address,Long> reports=new HashMap<Address,Long>();
+
+    @GuardedBy("this")
+    protected long                   reports_view_id=-1;
+
+    /** Set by a new coordinator until it has re-announced the order; no messages are ordered in the meantime */
+    protected volatile boolean       reordering=false;
+
+    /** The position from which the order has to be re-announced, -1 if no re-announcement is queued */
+    protected final AtomicLong       reannounce_from=new AtomicLong(-1);
+
+    @GuardedBy("this")
+    protected boolean                reannouncing=false;
+
+    protected final AtomicBoolean    delivering=new AtomicBoolean(false), ordering=new AtomicBoolean(false);
+
+    protected final AtomicLong       num_order_msgs_sent=new AtomicLong(0), num_ordered=new AtomicLong(0);
+    protected final AtomicLong       num_delivered=new AtomicLong(0), num_reannounced=new AtomicLong(0);
+
+
+    @ManagedAttribute
+    public boolean isCoordinator()           {return is_coord;}
+    public Address getCoordinator()          {return coord;}
+    @ManagedAttribute(description="Number of multicasts sent")
+    public long    getNumSent()              {return seqno.get();}
+    @ManagedAttribute(description="Number of ORDER messages sent by the coordinator")
+    public long    getNumOrderMessagesSent() {return num_order_msgs_sent.get();}
+    @ManagedAttribute(description="Number of messages ordered by the coordinator")
+    public long    getNumOrdered()           {return num_ordered.get();}
+    @ManagedAttribute(description="Number of messages delivered in total order")
+    public long    getNumDelivered()         {return num_delivered.get();}
+    @ManagedAttribute(description="Number of orders re-announced after becoming coordinator")
+    public long    getNumReannounced()       {return num_reannounced.get();}
+    @ManagedAttribute(description="Number of received messages whose position in the total order is not yet known")
+    public int     getNumUnordered()         {return unordered.size();}
+    @ManagedAttribute(description="Number of ordered messages which have not yet been received or delivered")
+    public int     getNumPendingOrders()     {return pendingOrders().size();}
+    @ManagedAttribute(description="Position of the next message to be delivered")
+    public long    getNextPosition()         {return next_pos.get();}
+
+    @ManagedOperation
+    public void resetStats() {
+        super.resetStats();
+        num_order_msgs_sent.set(0);
+        num_ordered.set(0);
+        num_delivered.set(0);
+        num_reannounced.set(0);
+    }
+
+    @ManagedOperation(description="Prints the messages which have not yet been ordered or delivered")
+    public String printPending() {
+        return "unordered: " + unordered.keySet() + "\norder: " + pendingOrders();
+    }
+
+
+    protected boolean accept(Message msg) {
+        return msg.getHeader(id) != null;
+    }
+
+
+    public Object down(Event evt) {
+        switch(evt.getType()) {
+            case Event.MSG:
+                Message msg=(Message)evt.getArg();
+                if(msg.getDest() != null || msg.isFlagSet(Message.NO_TOTAL_ORDER))
+                    break;
+                msg.putHeader(this.id, new Sequencer2Header(Sequencer2Header.DATA, seqno.getAndIncrement(), view_id));
+                break;
+
+            case Event.VIEW_CHANGE:
+                handleViewChange((View)evt.getArg());
+                break;
+
+            case Event.SET_LOCAL_ADDRESS:
+                local_addr=(Address)evt.getArg();
+                break;
+        }
+        return down_prot.down(evt);
+    }
+
+
+    public Object up(Event evt) {
+        switch(evt.getType()) {
+            case Event.MSG:
+                Message msg=(Message)evt.getArg();
+                Sequencer2Header hdr=(Sequencer2Header)msg.getHeader(this.id);
+                if(hdr == null)
+                    break;
+                switch(hdr.type) {
+                    case Sequencer2Header.DATA:
+                        handleData(msg, hdr);
+                        return null;
+                    case Sequencer2Header.ORDER:
+                    case Sequencer2Header.REORDER:
+                        handleOrder(msg, hdr);
+                        return null;
+                    case Sequencer2Header.REPORT:
+                        handleReport(msg.getSrc(), hdr.seqno, hdr.view_id);
+                        return null;
+                }
+                break;
+
+            case Event.VIEW_CHANGE:
+                Object retval=up_prot.up(evt);
+                handleViewChange((View)evt.getArg());
+                return retval;
+        }
+        return up_prot.up(evt);
+    }
+
+
+    protected void handleData(Message msg, Sequencer2Header hdr) {
+        Address sender=msg.getSrc();
+        if(sender == null) {
+            log.error("sender is null, cannot deliver msg " + msg);
+            return;
+        }
+        MessageId msg_id=new MessageId(sender, hdr.seqno, hdr.view_id);
+        unordered.put(msg_id, msg);
+        if(is_coord)
+            addToOrder(Collections.singletonList(msg_id));
+        deliver();
+    }
+
+
+    protected void handleOrder(Message msg, Sequencer2Header hdr) {
+        Address sender=msg.getSrc();
+        synchronized(this) {
+            if(sender == null || !sender.equals(coord)) {
+                if(hdr.view_id > view_id) { // from the coordinator of a view which we haven't yet installed
+                    future_orders.add(msg);
+                    return;
+                }
+                if(log.isWarnEnabled())
+                    log.warn(local_addr + ": dropping ORDER message from " + sender + " as it is not the coordinator (" + coord + ")");
+                return;
+            }
+            addOrder(msg, hdr);
+        }
+        deliver();
+    }
+
+    /** Adds the IDs of an ORDER message to the order, starting at the position in the header */
+    @GuardedBy("this")
+    protected void addOrder(Message msg, Sequencer2Header hdr) {
+        List<MessageId> ids;
+        try {
+            ids=unmarshal(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+        }
+        catch(Exception e) {
+            log.error("failed unmarshalling ORDER message from " + msg.getSrc(), e);
+            return;
+        }
+        long pos=hdr.seqno;
+        if(hdr.type == Sequencer2Header.REORDER) {
+            // orders (from the previous coordinator) at or above pos are superseded by the new coordinator
+            order.tailMap(pos, true).clear();
+            // we didn't report a position (e.g. joined during the coordinator change), or are behind the retained
+            // orders of the new coordinator: skip the positions we'll never receive
+            long current;
+            while((current=next_pos.get()) < pos && !next_pos.compareAndSet(current, pos))
+                ;
+        }
+        else
+            next_pos.compareAndSet(-1, pos); // the first ORDER message we received
+        for(MessageId msg_id: ids)
+            order.put(pos++, msg_id);
+    }
+
+
+    /** A member reports the position of the next message it will deliver (sent on every view change) */
+    protected void handleReport(Address sender, long pos, long vid) {
+        long low;
+        synchronized(this) {
+            if(vid < reports_view_id)
+                return;
+            if(vid > reports_view_id) {
+                reports.clear();
+                reports_view_id=vid;
+            }
+            reports.put(sender, pos);
+            if((low=getLowestReportedPosition()) < 0)
+                return;
+        }
+        reannounce(low);
+    }
+
+    /**
+     * Returns the lowest position reported by the members of the current view (including ourself), if we're a new
+     * coordinator which hasn't yet re-announced the order and all members have reported, or else -1. If no member
+     * has received an order yet, 0 is returned
+     */
+    @GuardedBy("this")
+    protected long getLowestReportedPosition() {
+        if(!reordering || reannouncing || reports_view_id != view_id)
+            return -1;
+        long low=next_pos.get();
+        for(Address mbr: members) {
+            if(mbr.equals(local_addr))
+                continue;
+            Long pos=reports.get(mbr);
+            if(pos == null)
+                return -1; // not all members have reported yet
+            if(pos >= 0 && (low < 0 || pos < low))
+                low=pos;
+        }
+        reannouncing=true;
+        return Math.max(low, 0);
+    }
+
+
+    /**
+     * Called by a new coordinator when all members have reported their positions: re-announces the order from the
+     * lowest reported position, followed by all received messages which have not yet been ordered or delivered.
+     * If a different thread is ordering (it might be blocked sending an ORDER message, e.g. by flow control), the
+     * re-announcement is queued and run by that thread when it's done
+     */
+    protected void reannounce(long low) {
+        reannounce_from.set(low);
+        processReannounce();
+    }
+
+    /** Runs the queued re-announcement, if any, unless a different thread is ordering */
+    protected void processReannounce() {
+        while(reannounce_from.get() >= 0 && ordering.compareAndSet(false, true)) {
+            long low=reannounce_from.getAndSet(-1);
+            try {
+                if(low >= 0)
+                    sendReannouncement(low);
+            }
+            finally {
+                if(low >= 0) {
+                    synchronized(this) {
+                        reordering=reannouncing=false;
+                    }
+                }
+                ordering.set(false);
+            }
+            if(low >= 0)
+                addToOrder(Collections.<MessageId>emptyList()); // orders messages received in the meantime
+        }
+    }
+
+    /** Sends the order from position low in REORDER and ORDER messages. Called with the ordering flag set */
+    protected void sendReannouncement(long low) {
+        Map.Entry<Long,MessageId> first=order.firstEntry();
+        if(first != null && low < first.getKey()) {
+            if(log.isWarnEnabled())
+                log.warn(local_addr + ": members need the order from position " + low + ", but only positions from " +
+                           first.getKey() + " are retained; members below it will skip the missing positions");
+            low=first.getKey();
+        }
+        // the order known to us, which has to be contiguous
+        Set<MessageId> ids=new LinkedHashSet<MessageId>();
+        long pos=low;
+        MessageId msg_id;
+        while((msg_id=order.get(pos)) != null) {
+            ids.add(msg_id);
+            pos++;
+        }
+        int num_known=ids.size();
+
+        // followed by the messages which have not yet been ordered. A message received between the snapshot
+        // and draining to_be_ordered might be ordered twice; its second position is skipped on delivery
+        List<MessageId> not_ordered=new ArrayList<MessageId>(unordered.keySet());
+        while((msg_id=to_be_ordered.poll()) != null)
+            not_ordered.add(msg_id);
+        Collections.sort(not_ordered);
+        for(MessageId id: not_ordered)
+            if(!delivered.contains(id))
+                ids.add(id);
+
+        if(log.isDebugEnabled())
+            log.debug(local_addr + ": became coordinator, re-announcing " + num_known + " orders from position " +
+                        low + " and ordering " + (ids.size() - num_known) + " undelivered msgs");
+        num_reannounced.addAndGet(num_known);
+        next_order_pos=low;
+        List<MessageId> list=new ArrayList<MessageId>(ids);
+        int index=0;
+        do { // the first ORDER message is a REORDER, even if empty
+            List<MessageId> batch=list.subList(index, Math.min(index + max_order_batch, list.size()));
+            sendOrder(batch, index == 0? Sequencer2Header.REORDER : Sequencer2Header.ORDER);
+            index+=batch.size();
+        }
+        while(index < list.size());
+    }
+
+
+    /**
+     * Delivers messages in the order determined by the coordinator, as long as they have been received. Only one
+     * thread delivers at a time; messages which become deliverable while a thread is delivering are delivered by it.
+     */
+    protected void deliver() {
+        while(delivering.compareAndSet(false, true)) {
+            try {
+                long pos;
+                MessageId msg_id;
+                while((pos=next_pos.get()) >= 0 && (msg_id=order.get(pos)) != null) {
+                    if(!delivered.contains(msg_id)) { // else already delivered at a different position
+                        Message msg=unordered.remove(msg_id);
+                        if(msg == null) {
+                            if(!neverReceived(msg_id))
+                                break; // the message has not yet been received
+                        }
+                        else {
+                            delivered.add(msg_id);
+                            try {
+                                if(log.isTraceEnabled())
+                                    log.trace("delivering " + msg_id + " (position " + pos + ")");
+                                up_prot.up(new Event(Event.MSG, msg));
+                                num_delivered.incrementAndGet();
+                            }
+                            catch(Throwable t) {
+                                log.error("failed delivering message " + msg_id, t);
+                            }
+                        }
+                    }
+                    if(next_pos.compareAndSet(pos, pos + 1)) {
+                        Map.Entry<Long,MessageId> first;
+                        while((first=order.firstEntry()) != null && first.getKey() < pos - max_delivered)
+                            order.remove(first.getKey());
+                    }
+                }
+            }
+            finally {
+                delivering.set(false);
+            }
+            // a message (or its order) might have been received after we found it missing, but before we cleared the flag
+            long pos=next_pos.get();
+            MessageId head=pos >= 0? order.get(pos) : null;
+            if(head == null || !(unordered.containsKey(head) || delivered.contains(head) || neverReceived(head)))
+                break;
+        }
+    }
+
+    /** Whether a message will never be received: sent before we joined, or by a member which left */
+    protected boolean neverReceived(MessageId msg_id) {
+        return msg_id.view_id < join_view_id || !members.contains(msg_id.sender);
+    }
+
+    protected Collection<MessageId> pendingOrders() {
+        long pos=next_pos.get();
+        return (pos < 0? order : order.tailMap(pos, true)).values();
+    }
+
+
+    /** Adds message IDs to the total order and multicasts them in ORDER messages (coordinator only) */
+    protected void addToOrder(Collection<MessageId> ids) {
+        to_be_ordered.addAll(ids);
+        while(!reordering && !to_be_ordered.isEmpty() && ordering.compareAndSet(false, true)) {
+            try {
+                if(reordering) // re-check: the new coordinator might have started re-announcing
+                    break;
+                List<MessageId> batch=new ArrayList<MessageId>();
+                MessageId msg_id;
+                while((msg_id=to_be_ordered.poll()) != null) {
+                    batch.add(msg_id);
+                    if(batch.size() >= max_order_batch) {
+                        sendOrder(batch, Sequencer2Header.ORDER);
+                        batch=new ArrayList<MessageId>();
+                    }
+                }
+                if(!batch.isEmpty())
+                    sendOrder(batch, Sequencer2Header.ORDER);
+            }
+            finally {
+                ordering.set(false);
+            }
+        }
+        processReannounce(); // queued while we were ordering
+    }
+
+
+    /** Multicasts an ORDER message, assigning the next positions to the IDs. Called with the ordering flag set */
+    protected void sendOrder(List<MessageId> batch, byte type) {
+        try {
+            Buffer buf=marshal(batch);
+            Message order_msg=new Message(null, local_addr, buf.getBuf(), buf.getOffset(), buf.getLength());
+            order_msg.putHeader(this.id, new Sequencer2Header(type, next_order_pos, view_id));
+            if(log.isTraceEnabled())
+                log.trace("ordering " + batch.size() + " msgs from position " + next_order_pos);
+            next_order_pos+=batch.size();
+            down_prot.down(new Event(Event.MSG, order_msg));
+            num_order_msgs_sent.incrementAndGet();
+            num_ordered.addAndGet(batch.size());
+        }
+        catch(Exception e) {
+            log.error("failed sending ORDER message", e);
+        }
+    }
+
+
+    protected void handleViewChange(View view) {
+        List<Address> mbrs=view.getMembers();
+        if(mbrs.isEmpty())
+            return;
+        long low=-1;
+        Address new_coord;
+        synchronized(this) {
+            long new_view_id=view.getViewId().getId();
+            if(new_view_id <= view_id)
+                return; // already handled (we see the view change going down and coming up)
+            members=new HashSet<Address>(mbrs);
+            view_id=new_view_id;
+            if(join_view_id < 0)
+                join_view_id=view_id;
+            Address prev_coord=coord;
+            new_coord=coord=mbrs.get(0);
+            boolean coord_changed=prev_coord != null && !prev_coord.equals(coord);
+            boolean was_coord=is_coord;
+            is_coord=local_addr != null && local_addr.equals(coord);
+            if(is_coord && !was_coord && coord_changed) {
+                // don't order anything until all members have reported their positions and we re-announced the order
+                reordering=true;
+                if(log.isDebugEnabled())
+                    log.debug(local_addr + ": became coordinator, waiting for the positions of " + (mbrs.size() -1) + " members");
+            }
+            if(!is_coord)
+                reordering=false;
+            if(view_id > reports_view_id) {
+                reports.clear();
+                reports_view_id=view_id;
+            }
+
+            for(Iterator<Message> it=future_orders.iterator(); it.hasNext();) {
+                Message msg=it.next();
+                Sequencer2Header hdr=(Sequencer2Header)msg.getHeader(this.id);
+                if(coord.equals(msg.getSrc()))
+                    addOrder(msg, hdr);
+                if(hdr.view_id <= view_id)
+                    it.remove();
+            }
+            if(reordering)
+                low=getLowestReportedPosition();
+        }
+
+        if(!new_coord.equals(local_addr))
+            sendReport(new_coord);
+        if(low >= 0)
+            reannounce(low);
+
+        // messages from left members which have not been ordered (e.g. not received by the coordinator) never will be
+        Collection<MessageId> pending=pendingOrders();
+        for(Iterator<MessageId> it=unordered.keySet().iterator(); it.hasNext();) {
+            MessageId msg_id=it.next();
+            if(!members.contains(msg_id.sender) && !pending.contains(msg_id))
+                it.remove();
+        }
+        deliver();
+    }
+
+
+    /** Sends the position of the next message to be delivered to the coordinator */
+    protected void sendReport(Address dest) {
+        Message report=new Message(dest, local_addr, null);
+        report.setFlag(Message.OOB);
+        report.putHeader(this.id, new Sequencer2Header(Sequencer2Header.REPORT, next_pos.get(), view_id));
+        down_prot.down(new Event(Event.MSG, report));
+    }
+
+
+    /** Marshals a batch of message IDs: the number of IDs, followed by sender, seqno and view ID of each ID */
+    protected static Buffer marshal(List<MessageId> batch) throws Exception {
+        int size=Global.INT_SIZE;
+        for(MessageId msg_id: batch)
+            size+=Util.size(msg_id.sender) + Util.size(msg_id.seqno) + Util.size(msg_id.view_id);
+        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(size);
+        DataOutputStream out=new ExposedDataOutputStream(out_stream);
+        out.writeInt(batch.size());
+        for(MessageId msg_id: batch) {
+            Util.writeAddress(msg_id.sender, out);
+            Util.writeLong(msg_id.seqno, out);
+            Util.writeLong(msg_id.view_id, out);
+        }
+        out.flush();
+        return out_stream.getBuffer();
+    }
+
+    protected static List<MessageId> unmarshal(byte[] buf, int offset, int length) throws Exception {
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(buf, offset, length));
+        int num=in.readInt();
+        List<MessageId> retval=new ArrayList<MessageId>(num);
+        for(int i=0; i < num; i++)
+            retval.add(new MessageId(Util.readAddress(in), Util.readLong(in), Util.readLong(in)));
+        return retval;
+    }
+
+
+    /** Identifies a multicast by its sender and the sender's local seqno. The view ID is not part of the identity */
+    protected static class MessageId implements Comparable<MessageId> {
+        protected final Address sender;
+        protected final long    seqno;
+        protected final long    view_id; // the ID of the sender's view when the message was sent
+
+        protected MessageId(Address sender, long seqno, long view_id) {
+            this.sender=sender;
+            this.seqno=seqno;
+            this.view_id=view_id;
+        }
+
+        public int compareTo(MessageId other) {
+            int rc=sender.compareTo(other.sender);
+            return rc != 0? rc : seqno < other.seqno? -1 : seqno > other.seqno? 1 : 0;
+        }
+
+        public boolean equals(Object obj) {
+            if(!(obj instanceof MessageId))
+                return false;
+            MessageId other=(MessageId)obj;
+            return seqno == other.seqno && sender.equals(other.sender);
+        }
+
+        public int hashCode() {
+            return sender.hashCode() + (int)(seqno ^ (seqno >>> 32));
+        }
+
+        public String toString() {
+            return sender + "::" + seqno;
+        }
+    }
+
+
+    public static class Sequencer2Header extends Header {
+        protected static final byte DATA    = 1;
+        protected static final byte ORDER   = 2;
+        protected static final byte REORDER = 3; // ORDER sent by a new coordinator, supersedes all previous orders
+        protected static final byte REPORT  = 4; // position of the next message to be delivered, sent to the coord
+
+        protected byte type;
+        protected long seqno;   // the local seqno of the sender (DATA), or a position in the total order
+        protected long view_id; // the ID of the sender's view
+
+        public Sequencer2Header() {
+        }
+
+        public Sequencer2Header(byte type, long seqno, long view_id) {
+            this.type=type;
+            this.seqno=seqno;
+            this.view_id=view_id;
+        }
+
+        public int size() {
+            return Global.BYTE_SIZE + Util.size(seqno) + Util.size(view_id);
+        }
+
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeByte(type);
+            Util.writeLong(seqno, out);
+            Util.writeLong(view_id, out);
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            type=in.readByte();
+            seqno=Util.readLong(in);
+            view_id=Util.readLong(in);
+        }
+
+        public String toString() {
+            switch(type) {
+                case DATA:    return "DATA (seqno=" + seqno + ", view_id=" + view_id + ")";
+                case ORDER:   return "ORDER (pos=" + seqno + ", view_id=" + view_id + ")";
+                case REORDER: return "REORDER (pos=" + seqno + ", view_id=" + view_id + ")";
+                case REPORT:  return "REPORT (pos=" + seqno + ", view_id=" + view_id + ")";
+                default:      return "n/a";
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.jgroups.Message;
 import org.jgroups.Address;
 import org.jgroups.View;
 import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.util.MessageBatch;
 
 import java.util.*;
 
@@ -72,6 +73,24 @@ public class STATS extends Protocol {
         return up_prot.up(evt);
     }
 
+    /** Updates the stats of the batch's sender once for all messages of the batch */
+    public void up(MessageBatch batch) {
+        Address sender=batch.sender();
+        int num_msgs=0;
+        long length=0;
+        for(Message msg: batch) {
+            if(sender != null && sender.equals(msg.getSrc())) {
+                num_msgs++;
+                length+=msg.getLength();
+            }
+            else
+                updateStats(msg, UP);
+        }
+        if(num_msgs > 0)
+            updateStats(batch.dest(), sender, num_msgs, length, UP);
+        up_prot.up(batch);
+    }
+
 
 
     public Object down(Event evt) {
@@ -118,38 +137,35 @@ public class STATS extends Protocol {
     }
 
     private void updateStats(Message msg, short direction) {
-        int     length;
-        HashMap map;
-        boolean mcast;
-        Address dest, src;
-
         if(msg == null) return;
-        length=msg.getLength();
-        dest=msg.getDest();
-        src=msg.getSrc();
-        mcast=dest == null;
+        updateStats(msg.getDest(), msg.getSrc(), 1, msg.getLength(), direction);
+    }
+
+    private void updateStats(Address dest, Address src, int num_msgs, long length, short direction) {
+        HashMap map;
+        boolean mcast=dest == null;
 
         if(direction == UP) { // received
-            received_msgs++;
+            received_msgs+=num_msgs;
             received_bytes+=length;
             if(mcast) {
-                received_mcasts++;
+                received_mcasts+=num_msgs;
                 received_mcast_bytes+=length;
             }
             else {
-                received_ucasts++;
+                received_ucasts+=num_msgs;
                 received_ucast_bytes+=length;
             }
         }
         else {                // sent
-            sent_msgs++;
+            sent_msgs+=num_msgs;
             sent_bytes+=length;
             if(mcast) {
-                sent_mcasts++;
+                sent_mcasts+=num_msgs;
                 sent_mcast_bytes+=length;
             }
             else {
-                sent_ucasts++;
+                sent_ucasts+=num_msgs;
                 sent_ucast_bytes+=length;
             }
         }
@@ -161,14 +177,14 @@ public class STATS extends Protocol {
             entry=new Entry();
             map.put(key, entry);
         }
-        entry.msgs++;
+        entry.msgs+=num_msgs;
         entry.bytes+=length;
         if(mcast) {
-            entry.mcasts++;
+            entry.mcasts+=num_msgs;
             entry.mcast_bytes+=length;
         }
         else {
-            entry.ucasts++;
+            entry.ucasts+=num_msgs;
             entry.ucast_bytes+=length;
         }
     }
@@ -7,6 +7,7 @@ import org.jgroups.Global;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.blocks.TCPConnectionMap;
+import org.jgroups.util.BufferPool;
 import org.jgroups.util.SocketFactory;
 
 import java.net.InetAddress;
@@ -29,7 +30,7 @@ import java.util.Collection;
  * 
  * @author Bela Ban
  */
-public class TCP extends BasicTCP implements TCPConnectionMap.Receiver {
+public class TCP extends BasicTCP implements TCPConnectionMap.PooledReceiver {
     
     private TCPConnectionMap ct=null;
 
@@ -56,6 +57,10 @@ public class TCP extends BasicTCP implements TCPConnectionMap.Receiver {
         ct.send(dest, data, offset, length);
     }
 
+    public void receive(Address sender, BufferPool.Slab slab, int offset, int length) {
+        super.receive(sender, slab, offset, length);
+    }
+
     public void retainAll(Collection<Address> members) {
         ct.retainAll(members);
     }
@@ -76,6 +81,7 @@ public class TCP extends BasicTCP implements TCPConnectionMap.Receiver {
         ct.setTcpNodelay(tcp_nodelay);
         ct.setLinger(linger);
         ct.setSocketFactory(getSocketFactory());
+        ct.setBufferPool(getBufferPool()); // messages are read straight into pooled buffers if enabled
 
         // we first start threads in TP (http://jira.jboss.com/jira/browse/JGRP-626)
         super.start();
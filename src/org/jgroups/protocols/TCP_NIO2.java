@@ -0,0 +1,169 @@
+
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.blocks.NioConnectionMap;
+import org.jgroups.blocks.TCPConnectionMap;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.BufferPool;
+
+import java.util.Collection;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCP based transport which uses non-blocking channels. A small, fixed number of I/O threads (each running a
+ * selector) handle all connections, instead of one reader thread per connection as in {@link TCP}. This reduces
+ * the number of threads (and context switches) in large clusters.<p/>
+ * Sends are written directly to the channel if possible; if the socket's send buffer is full, messages are queued
+ * (up to send_queue_size per connection) and written by the I/O threads, and senders block when the queue is full.
+ * See {@link NioConnectionMap} for details.
+ * @author agent
+ * @since 3.1
+ */
+public class TCP_NIO2 extends BasicTCP implements TCPConnectionMap.PooledReceiver {
+
+    @Property(description="Number of I/O threads (selectors) handling reads and writes of all connections")
+    protected int io_threads=2;
+
+    protected NioConnectionMap ct=null;
+
+    protected Future<?>        reaper=null;
+
+
+    public TCP_NIO2() {}
+
+
+    @ManagedAttribute
+    public int getOpenConnections() {
+        return ct != null? ct.getNumConnections() : 0;
+    }
+
+    @ManagedAttribute(description="Number of sends which blocked because the send queue of a connection was full")
+    public long getNumBlockedSends() {
+        return ct != null? ct.getNumBlockedSends() : 0;
+    }
+
+    @ManagedAttribute(description="Total time (ms) senders were blocked on full send queues")
+    public long getTotalBlockTime() {
+        return ct != null? ct.getTotalBlockTime() : 0;
+    }
+
+    @ManagedAttribute(description="Number of sends which could not be written directly and had to be queued")
+    public long getNumQueuedSends() {
+        return ct != null? ct.getNumQueuedSends() : 0;
+    }
+
+    @ManagedAttribute(description="Number of messages in all send queues")
+    public int getNumQueuedMessages() {
+        return ct != null? ct.getNumQueuedMessages() : 0;
+    }
+
+    @ManagedOperation
+    public String printConnections() {
+        return ct.printConnections();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        if(ct != null)
+            ct.resetStats();
+    }
+
+    public void send(Address dest, byte[] data, int offset, int length) throws Exception {
+        ct.send(dest, data, offset, length);
+    }
+
+    public boolean supportsGatheringWrites() {
+        return true;
+    }
+
+    public void sendUnicast(PhysicalAddress dest, Buffer[] bufs, int length) throws Exception {
+        if(log.isTraceEnabled()) log.trace("dest=" + dest + " (" + length + " bytes in " + bufs.length + " buffers)");
+        ct.send(dest, bufs, length);
+    }
+
+    public void receive(Address sender, BufferPool.Slab slab, int offset, int length) {
+        super.receive(sender, slab, offset, length);
+    }
+
+    public void retainAll(Collection<Address> members) {
+        ct.retainAll(members);
+    }
+
+    public void start() throws Exception {
+        ct=new NioConnectionMap(getThreadFactory(), this, bind_addr, external_addr, bind_port,
+                                bind_port+port_range, io_threads);
+        ct.setReceiveBufferSize(recv_buf_size);
+        ct.setSendQueueSize(send_queue_size);
+        ct.setSendBufferSize(send_buf_size);
+        ct.setSocketConnectionTimeout(sock_conn_timeout);
+        ct.setTcpNodelay(tcp_nodelay);
+        ct.setLinger(linger);
+        ct.setBufferPool(getBufferPool());
+
+        // we first start threads in TP (http://jira.jboss.com/jira/browse/JGRP-626)
+        super.start();
+    }
+
+    public void stop() {
+        if(log.isDebugEnabled()) log.debug("closing sockets and stopping threads");
+        stopReaper();
+        ct.stop(); //not needed, but just in case
+        super.stop();
+    }
+
+
+    protected void handleConnect() throws Exception {
+        if(isSingleton()) {
+            if(connect_count == 0) {
+                ct.start();
+                startReaper();
+            }
+            super.handleConnect();
+        }
+        else {
+            ct.start();
+            startReaper();
+        }
+    }
+
+    protected void handleDisconnect() {
+        if(isSingleton()) {
+            super.handleDisconnect();
+            if(connect_count == 0) {
+                stopReaper();
+                ct.stop();
+            }
+        }
+        else {
+            stopReaper();
+            ct.stop();
+        }
+    }
+
+    protected synchronized void startReaper() {
+        if(reaper_interval <= 0 || conn_expire_time <= 0 || (reaper != null && !reaper.isDone()))
+            return;
+        reaper=timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                ct.reap(conn_expire_time);
+            }
+        }, reaper_interval, reaper_interval, TimeUnit.MILLISECONDS);
+    }
+
+    protected synchronized void stopReaper() {
+        if(reaper != null) {
+            reaper.cancel(false);
+            reaper=null;
+        }
+    }
+
+    protected PhysicalAddress getPhysicalAddress() {
+        return ct != null? (PhysicalAddress)ct.getLocalAddress() : null;
+    }
+}
@@ -234,6 +234,11 @@ public abstract class TP extends Protocol {
     @Property(description="whether or not warnings about messages from different groups are logged")
     protected boolean log_discard_msgs=true;
 
+    @Property(description="Records the time at which a message was last received from each member, so that failure " +
+      "detection protocols can treat regular traffic as heartbeats. Only affects local failure detection; " +
+      "FD_ALL.suppress_heartbeats additionally relies on all members tracking liveness")
+    protected boolean track_liveness=true;
+
 
 
 
@@ -256,6 +261,31 @@ public abstract class TP extends Protocol {
     @Property(description="The max number of elements in a bundler if the bundler supports size limitations")
     protected int bundler_capacity=200000;
 
+    @Property(name="output_buffer.reuse",description="Marshal outgoing messages and bundles into per-thread, " +
+      "reusable buffers instead of allocating a new buffer for each send",writable=false)
+    protected boolean reuse_output_buffers=true;
+
+    @Property(name="output_buffer.initial_size",description="Initial size (in bytes) of a reusable output buffer",writable=false)
+    protected int output_buffer_initial_size=1024;
+
+    @Property(name="output_buffer.max_size",description="Max size (in bytes) of a reusable output buffer. Buffers " +
+      "which grew beyond this size while marshalling are shrunk back to it",writable=false)
+    protected int output_buffer_max_size=70000;
+
+    @Property(name="buffer_pool.enabled",description="Unmarshal incoming packets from pooled, reference-counted " +
+      "buffers rather than allocating a new byte[] for each packet",writable=false)
+    protected boolean buffer_pool_enabled=false;
+
+    @Property(name="buffer_pool.min_size",description="Size (in bytes) of the smallest buffer in the pool",writable=false)
+    protected int buffer_pool_min_size=512;
+
+    @Property(name="buffer_pool.max_size",description="Size (in bytes) of the biggest buffer in the pool. Bigger " +
+      "packets are received into unpooled buffers",writable=false)
+    protected int buffer_pool_max_size=66000;
+
+    @Property(name="buffer_pool.max_buffers",description="Max number of buffers kept in the pool per buffer size",writable=false)
+    protected int buffer_pool_max_buffers=200;
+
 
     @Property(name="max_bundle_size", description="Maximum number of bytes for messages to be queued until they are sent")
     public void setMaxBundleSize(int size) {
@@ -404,6 +434,41 @@ public abstract class TP extends Protocol {
     @ManagedAttribute(description="Number of regular messages received")
     protected long num_incoming_msgs_received=0;
 
+    @ManagedAttribute(description="Number of packets received into a buffer taken from the buffer pool")
+    public long getBufferPoolHits() {
+        return buffer_pool != null? buffer_pool.getNumHits() : 0;
+    }
+
+    @ManagedAttribute(description="Number of packets for which the buffer pool had to allocate a new buffer")
+    public long getBufferPoolMisses() {
+        return buffer_pool != null? buffer_pool.getNumMisses() : 0;
+    }
+
+    @ManagedAttribute(description="Number of buffers currently available in the buffer pool")
+    public int getBufferPoolAvailable() {
+        return buffer_pool != null? buffer_pool.getNumAvailable() : 0;
+    }
+
+    @ManagedAttribute(description="Number of sends which reused a cached output buffer")
+    public long getOutputBufferReuses() {
+        return output_buffers != null? output_buffers.getNumReuses() : 0;
+    }
+
+    @ManagedAttribute(description="Number of output buffers created")
+    public long getOutputBufferCreations() {
+        return output_buffers != null? output_buffers.getNumCreations() : 0;
+    }
+
+    @ManagedAttribute(description="Number of times an output buffer had to be grown")
+    public long getOutputBufferGrowths() {
+        return output_buffers != null? output_buffers.getNumGrowths() : 0;
+    }
+
+    @ManagedAttribute(description="Number of bytes allocated for output buffers")
+    public long getOutputBufferBytesAllocated() {
+        return output_buffers != null? output_buffers.getNumBytesAllocated() : 0;
+    }
+
     @ManagedAttribute(description="Class of the timer implementation")
     public String getTimerClass() {
         return timer != null? timer.getClass().getSimpleName() : "null";
@@ -464,6 +529,15 @@ public abstract class TP extends Protocol {
 
     protected Bundler bundler=null;
 
+    /** Per-thread output buffers used for marshalling, only created when reuse_output_buffers is true */
+    protected OutputBufferPool output_buffers=null;
+
+    /** Pool of buffers for incoming packets, only created when buffer_pool_enabled is true */
+    protected BufferPool buffer_pool=null;
+
+    /** Times at which messages were last received from the members, fed by the receive path */
+    protected final LivenessTracker liveness=new LivenessTracker();
+
     protected DiagnosticsHandler diag_handler=null;
     protected final List<DiagnosticsHandler.ProbeHandler> preregistered_probe_handlers=new LinkedList<DiagnosticsHandler.ProbeHandler>();
 
@@ -534,6 +608,10 @@ public abstract class TP extends Protocol {
     public void resetStats() {
         num_msgs_sent=num_msgs_received=num_bytes_sent=num_bytes_received=0;
         num_oob_msgs_received=num_incoming_msgs_received=0;
+        if(buffer_pool != null)
+            buffer_pool.resetStats();
+        if(output_buffers != null)
+            output_buffers.resetStats();
     }
 
     public void registerProbeHandler(DiagnosticsHandler.ProbeHandler handler) {
@@ -617,6 +695,12 @@ public abstract class TP extends Protocol {
 
     public TimeScheduler getTimer() {return timer;}
 
+    /** Returns the pool of buffers for incoming packets, or null if buffer_pool_enabled is false */
+    public BufferPool getBufferPool() {return buffer_pool;}
+
+    /** Returns the times at which messages were last received from the members, or null if track_liveness is false */
+    public LivenessTracker getLivenessTracker() {return track_liveness? liveness : null;}
+
     /**
      * Sets a new timer. This should be done before the transport is initialized; be very careful, as replacing a
      * running timer with tasks in it can wreak havoc !
@@ -767,6 +851,11 @@ public abstract class TP extends Protocol {
         return logical_addr_cache.printCache(print_function);
     }
 
+    @ManagedOperation(description="Prints the time since a message was last received from each member")
+    public String printLiveness() {
+        return liveness.toString();
+    }
+
     @ManagedOperation(description="Evicts elements in the logical address cache which have expired")
     public void evictLogicalAddressCache() {
         logical_addr_cache.removeMarkedElements();
@@ -793,6 +882,32 @@ public abstract class TP extends Protocol {
      */
     public abstract void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception;
 
+    /**
+     * Whether the transport can send a unicast consisting of multiple buffers without copying them into a single
+     * buffer first, see {@link #sendUnicast(PhysicalAddress, Buffer[], int)}. If true, non-bundled unicasts whose
+     * payload consists of multiple buffers ({@link Message#getBuffers()}) are sent without copying the payload
+     */
+    public boolean supportsGatheringWrites() {
+        return false;
+    }
+
+    /**
+     * Sends a unicast consisting of multiple buffers, e.g. with a gathering write. The default implementation copies
+     * the buffers into a single buffer and calls {@link #sendUnicast(PhysicalAddress, byte[], int, int)}
+     * @param dest Must be a non-null unicast address
+     * @param bufs The buffers to be sent. They're not copies, so don't modify them
+     * @param length The number of bytes in all buffers
+     */
+    public void sendUnicast(PhysicalAddress dest, Buffer[] bufs, int length) throws Exception {
+        byte[] data=new byte[length];
+        int index=0;
+        for(Buffer buf: bufs) {
+            System.arraycopy(buf.getBuf(), buf.getOffset(), data, index, buf.getLength());
+            index+=buf.getLength();
+        }
+        sendUnicast(dest, data, 0, length);
+    }
+
     public abstract String getInfo();
 
     /* ------------------------------------------------------------------------------- */
@@ -848,6 +963,12 @@ public abstract class TP extends Protocol {
 
         who_has_cache=new AgeOutCache<Address>(timer, 5000L);
 
+        if(reuse_output_buffers && output_buffers == null)
+            output_buffers=new OutputBufferPool(output_buffer_initial_size, output_buffer_max_size);
+
+        if(buffer_pool_enabled && buffer_pool == null)
+            buffer_pool=new BufferPool(buffer_pool_min_size, buffer_pool_max_size, buffer_pool_max_buffers);
+
         Util.verifyRejectionPolicy(oob_thread_pool_rejection_policy);
         Util.verifyRejectionPolicy(thread_pool_rejection_policy);
 
@@ -930,6 +1051,9 @@ public abstract class TP extends Protocol {
         if(thread_pool instanceof ThreadPoolExecutor) {
             shutdownThreadPool(thread_pool);
         }
+
+        if(buffer_pool != null)
+            buffer_pool.clear();
     }
 
     /**
@@ -1184,6 +1308,57 @@ public abstract class TP extends Protocol {
 
 
 
+    /**
+     * Passes the messages of a bundle up as a {@link MessageBatch}, so that the protocols above can process them
+     * together. Messages without a transport header or with a different cluster name than the first message are
+     * passed up individually; our own multicasts are discarded if loopback is enabled.
+     */
+    protected void passBatchUp(List<Message> msgs, boolean multicast) {
+        if(msgs.isEmpty())
+            return;
+        Message first=msgs.get(0);
+        TpHeader hdr=(TpHeader)first.getHeader(this.id);
+        if(hdr == null) {
+            for(Message msg: msgs)
+                passMessageUp(msg, true, multicast, true);
+            return;
+        }
+
+        String ch_name=hdr.channel_name;
+        final Protocol tmp_prot=isSingleton()? up_prots.get(ch_name) : up_prot;
+        if(tmp_prot == null)
+            return;
+        boolean is_protocol_adapter=tmp_prot instanceof ProtocolAdapter;
+        // Discard if the cluster name is not the same as our cluster name
+        if(!is_protocol_adapter && channel_name != null && !channel_name.equals(ch_name)) {
+            if(log.isWarnEnabled() && log_discard_msgs)
+                log.warn(new StringBuilder("discarded ").append(msgs.size()).append(" messages from different cluster \"").
+                           append(ch_name).append("\" (our cluster is \"").append(channel_name).append("\"). Sender was ").
+                           append(first.getSrc()).toString());
+            return;
+        }
+
+        Address local=is_protocol_adapter? ((ProtocolAdapter)tmp_prot).getAddress() : local_addr;
+        boolean discard_own_mcast=loopback && multicast && local != null;
+        boolean trace=log.isTraceEnabled();
+        MessageBatch batch=new MessageBatch(multicast? null : first.getDest(), first.getSrc(), ch_name, multicast, msgs.size());
+        for(Message msg: msgs) {
+            TpHeader tmp=(TpHeader)msg.getHeader(this.id);
+            if(tmp == null || !Util.match(ch_name, tmp.channel_name)) {
+                passMessageUp(msg, true, multicast, true);
+                continue;
+            }
+            if(discard_own_mcast && local.equals(msg.getSrc()))
+                continue;
+            if(trace)
+                log.trace(new StringBuilder("received ").append(msg).append(", headers are ").append(msg.printHeaders()));
+            batch.add(msg);
+        }
+        if(!batch.isEmpty())
+            tmp_prot.up(batch);
+    }
+
+
     /**
      * Subclasses must call this method when a unicast or multicast message has been received.
      *
@@ -1216,11 +1391,56 @@ public abstract class TP extends Protocol {
 
 
 
+    /**
+     * Subclasses can call this method when a packet has been received into a slab acquired from
+     * {@link #getBufferPool()}. The transport takes over the caller's reference to the slab, and releases it after
+     * the packet has been unmarshalled, so the packet is handed to the thread pool without a copy.
+     * @param sender
+     * @param slab
+     * @param offset
+     * @param length
+     */
+    protected void receive(Address sender, BufferPool.Slab slab, int offset, int length) {
+        if(slab == null) return;
+
+        try {
+            byte oob_flag=slab.getBuf()[offset + Global.SHORT_SIZE]; // we need to skip the first 2 bytes (version)
+            Executor pool;
+            if((oob_flag & OOB) == OOB) {
+                num_oob_msgs_received++;
+                pool=oob_thread_pool;
+            }
+            else {
+                num_incoming_msgs_received++;
+                pool=thread_pool;
+            }
+            pool.execute(new IncomingPacket(sender, slab, offset, length));
+        }
+        catch(Throwable t) {
+            slab.release();
+            if(log.isErrorEnabled())
+                log.error(new StringBuilder("failed handling data from ").append(sender).toString(), t);
+        }
+    }
+
+
     protected void dispatchToThreadPool(Executor pool, Address sender, byte[] data, int offset, int length) {
         if(pool instanceof DirectExecutor) {
             // we don't make a copy of the buffer if we execute on this thread
             pool.execute(new IncomingPacket(sender, data, offset, length));
         }
+        else if(buffer_pool != null) {
+            // the slab is released by IncomingPacket once the packet has been unmarshalled
+            BufferPool.Slab slab=buffer_pool.acquire(length);
+            System.arraycopy(data, offset, slab.getBuf(), 0, length);
+            try {
+                pool.execute(new IncomingPacket(sender, slab, 0, length));
+            }
+            catch(RuntimeException ex) {
+                slab.release();
+                throw ex;
+            }
+        }
         else {
             byte[] tmp=new byte[length];
             System.arraycopy(data, offset, tmp, 0, length);
@@ -1245,6 +1465,23 @@ public abstract class TP extends Protocol {
             }
         }
 
+        if(!multicast && msg.getBuffers() != null && supportsGatheringWrites()) {
+            sendGathered(msg, dest);
+            return;
+        }
+
+        if(output_buffers != null) {
+            OutputBufferPool.OutputBuffer out=output_buffers.acquire((int)(msg.size() + 50));
+            try {
+                writeMessage(msg, out.getDataOutputStream(), multicast);
+                doSend(out.getBuffer(), dest, multicast);
+            }
+            finally {
+                output_buffers.release(out);
+            }
+            return;
+        }
+
         // we can create between 300'000 - 400'000 output streams and do the marshalling per second,
         // so this is not a bottleneck !
         ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream((int)(msg.size() + 50));
@@ -1256,6 +1493,30 @@ public abstract class TP extends Protocol {
     }
 
 
+    /**
+     * Marshals a list of messages to the same destination and sends it. Uses a reusable output buffer if
+     * reuse_output_buffers is true
+     */
+    protected void sendMessageList(Address dest, Address src, List<Message> list, boolean multicast, long expected_size) throws Exception {
+        if(output_buffers != null) {
+            OutputBufferPool.OutputBuffer out=output_buffers.acquire((int)(expected_size + 50));
+            try {
+                writeMessageList(dest, src, list, out.getDataOutputStream(), multicast);
+                doSend(out.getBuffer(), dest, multicast);
+            }
+            finally {
+                output_buffers.release(out);
+            }
+            return;
+        }
+
+        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream((int)(expected_size + 50));
+        ExposedDataOutputStream dos=new ExposedDataOutputStream(out_stream);
+        writeMessageList(dest, src, list, dos, multicast);
+        doSend(new Buffer(out_stream.getRawBuffer(), 0, out_stream.size()), dest, multicast);
+    }
+
+
     protected void doSend(Buffer buf, Address dest, boolean multicast) throws Exception {
         if(stats) {
             num_msgs_sent++;
@@ -1270,7 +1531,44 @@ public abstract class TP extends Protocol {
     }
 
 
+    /**
+     * Sends a unicast message whose payload consists of multiple buffers: the message is marshalled without the
+     * payload, and the marshalled parts and the payload buffers are passed to the transport without copying the payload
+     */
+    protected void sendGathered(Message msg, Address dest) throws Exception {
+        Buffer[] segments=msg.getBuffers();
+        ExposedByteArrayOutputStream prefix=new ExposedByteArrayOutputStream(64), suffix=new ExposedByteArrayOutputStream(128);
+        ExposedDataOutputStream prefix_out=new ExposedDataOutputStream(prefix), suffix_out=new ExposedDataOutputStream(suffix);
+        prefix_out.writeShort(Version.version);
+        prefix_out.writeByte(msg.isFlagSet(Message.OOB)? OOB : 0);
+        msg.writeToWithoutPayload(prefix_out, suffix_out);
+
+        Buffer[] bufs=new Buffer[segments.length + 2];
+        bufs[0]=new Buffer(prefix.getRawBuffer(), 0, prefix.size());
+        System.arraycopy(segments, 0, bufs, 1, segments.length);
+        bufs[bufs.length-1]=new Buffer(suffix.getRawBuffer(), 0, suffix.size());
+        int length=prefix.size() + msg.getLength() + suffix.size();
+
+        PhysicalAddress physical_dest=resolvePhysicalAddress(dest);
+        if(physical_dest == null)
+            return;
+        if(stats) {
+            num_msgs_sent++;
+            num_bytes_sent+=length;
+        }
+        sendUnicast(physical_dest, bufs, length);
+    }
+
+
     protected void sendToSingleMember(Address dest, byte[] buf, int offset, int length) throws Exception {
+        PhysicalAddress physical_dest=resolvePhysicalAddress(dest);
+        if(physical_dest == null)
+            return;
+        sendUnicast(physical_dest, buf, offset, length);
+    }
+
+    /** Returns the physical address for dest, or null (after sending up a discovery request) if not found */
+    protected PhysicalAddress resolvePhysicalAddress(Address dest) {
         PhysicalAddress physical_dest=dest instanceof PhysicalAddress? (PhysicalAddress)dest : getPhysicalAddressFromCache(dest);
         if(physical_dest == null) {
             if(!who_has_cache.contains(dest)) {
@@ -1279,9 +1577,9 @@ public abstract class TP extends Protocol {
                     log.warn(local_addr+  ": no physical address for " + dest + ", dropping message");
                 up(new Event(Event.GET_PHYSICAL_ADDRESS, dest));
             }
-            return;
+            return null;
         }
-        sendUnicast(physical_dest, buf, offset, length);
+        return physical_dest;
     }
 
 
@@ -1424,6 +1722,8 @@ public abstract class TP extends Protocol {
                     logical_addr_cache.retainAll(members);
                     fetchLocalAddresses();
                     UUID.retainAll(members);
+                    if(track_liveness)
+                        liveness.setMembers(members);
                 }
 
                 break;
@@ -1641,15 +1941,30 @@ public abstract class TP extends Protocol {
     /* ----------------------------- Inner Classes ---------------------------------------- */
 
     class IncomingPacket implements Runnable {
-        final Address   sender;
-        final byte[]    buf;
-        final int       offset, length;
+        final Address         sender;
+        final byte[]          buf;
+        final int             offset, length;
+        /** The pooled buffer holding buf, released when done. Null if buf is not pooled */
+        final BufferPool.Slab slab;
 
         IncomingPacket(Address sender, byte[] buf, int offset, int length) {
             this.sender=sender;
             this.buf=buf;
             this.offset=offset;
             this.length=length;
+            this.slab=null;
+        }
+
+        /**
+         * Creates a packet backed by a pooled buffer. Message.readFrom() copies the payload out of the buffer, so no
+         * message references the slab after unmarshalling, and it can be released at the end of run()
+         */
+        IncomingPacket(Address sender, BufferPool.Slab slab, int offset, int length) {
+            this.sender=sender;
+            this.buf=slab.getBuf();
+            this.offset=offset;
+            this.length=length;
+            this.slab=slab;
         }
 
 
@@ -1692,15 +2007,23 @@ public abstract class TP extends Protocol {
 
                 if(is_message_list) { // used if message bundling is enabled
                     List<Message> msgs=readMessageList(dis);
+                    if(track_liveness && !msgs.isEmpty()) // all messages of a bundle have the same sender
+                        liveness.heardFrom(msgs.get(0).getSrc());
                     for(Message msg: msgs) {
                         if(msg.isFlagSet(Message.OOB)) {
                             log.warn("bundled message should not be marked as OOB");
                         }
-                        handleMyMessage(msg, multicast);
+                        if(stats) {
+                            num_msgs_received++;
+                            num_bytes_received+=msg.getLength();
+                        }
                     }
+                    passBatchUp(msgs, multicast);
                 }
                 else {
                     Message msg=readMessage(dis);
+                    if(track_liveness)
+                        liveness.heardFrom(msg.getSrc());
                     handleMyMessage(msg, multicast);
                 }
             }
@@ -1710,6 +2033,8 @@ public abstract class TP extends Protocol {
             }
             finally {
                 Util.close(dis);
+                if(slab != null)
+                    slab.release();
             }
         }
 
@@ -1823,9 +2148,6 @@ public abstract class TP extends Protocol {
                 log.trace(sb);
             }
 
-            ExposedByteArrayOutputStream bundler_out_stream=new ExposedByteArrayOutputStream((int)(count + 50));
-            ExposedDataOutputStream bundler_dos=new ExposedDataOutputStream(bundler_out_stream);
-
             for(Map.Entry<SingletonAddress,List<Message>> entry: msgs.entrySet()) {
                 List<Message> list=entry.getValue();
                 if(list.isEmpty())
@@ -1836,11 +2158,7 @@ public abstract class TP extends Protocol {
 
                 boolean multicast=dest == null;
                 try {
-                    bundler_out_stream.reset();
-                    bundler_dos.reset();
-                    writeMessageList(dest, src_addr, list, bundler_dos, multicast); // flushes output stream when done
-                    Buffer buffer=new Buffer(bundler_out_stream.getRawBuffer(), 0, bundler_out_stream.size());
-                    doSend(buffer, dest, multicast);
+                    sendMessageList(dest, src_addr, list, multicast, count);
                 }
                 catch(Throwable e) {
                     if(log.isErrorEnabled()) log.error("exception sending bundled msgs", e);
@@ -2030,9 +2348,6 @@ public abstract class TP extends Protocol {
                 num_msgs=0;
             }
 
-            ExposedByteArrayOutputStream bundler_out_stream=new ExposedByteArrayOutputStream((int)(count + 50));
-            ExposedDataOutputStream bundler_dos=new ExposedDataOutputStream(bundler_out_stream);
-
             for(Map.Entry<SingletonAddress,List<Message>> entry: msgs.entrySet()) {
                 List<Message> list=entry.getValue();
                 if(list.isEmpty())
@@ -2044,11 +2359,7 @@ public abstract class TP extends Protocol {
 
                 multicast=dest == null;
                 try {
-                    bundler_out_stream.reset();
-                    bundler_dos.reset();
-                    writeMessageList(dest, src_addr, list, bundler_dos, multicast); // flushes output stream when done
-                    Buffer buf=new Buffer(bundler_out_stream.getRawBuffer(), 0, bundler_out_stream.size());
-                    doSend(buf, dest, multicast);
+                    sendMessageList(dest, src_addr, list, multicast, count);
                 }
                 catch(Throwable e) {
                     if(log.isErrorEnabled()) log.error("exception sending bundled msgs: " + e + ":, cause: " + e.getCause());
@@ -3,14 +3,25 @@ package org.jgroups.protocols;
 
 import org.jgroups.Global;
 import org.jgroups.PhysicalAddress;
+import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.IpAddress;
+import org.jgroups.util.BufferPool;
 import org.jgroups.util.Util;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
@@ -36,6 +47,11 @@ import java.util.Map;
  * have lots of retransmissions because of network input buffer overflow,
  * consider setting this property to true.
  * </ul>
+ * If use_nio is true, packets are received through {@link DatagramChannel}s rather than java.net sockets: each of
+ * the nio.receiver_threads receiver threads of a channel has its own selector and (direct) receive buffer, and reads
+ * up to nio.max_batch_size packets per wakeup, copying each packet straight from the receive buffer into the buffer
+ * handed to the thread pool. Receiving multicasts on a channel requires JDK 7; on older JDKs, multicasts are
+ * received by a MulticastSocket.
  * 
  * @author Bela Ban
  */
@@ -88,6 +104,26 @@ public class UDP extends TP {
       "multicast packets). IP multicast packets send on a host P will therefore not be received by anyone on P. Use with caution.")
     protected boolean disable_loopback=false;
 
+    @Property(description="Use NIO DatagramChannels instead of java.net sockets to send and receive packets. " +
+      "Receiving multicasts on a channel requires JDK 7",writable=false)
+    protected boolean use_nio=false;
+
+    @Property(name="nio.receiver_threads",description="Number of receiver threads per channel. Only used if use_nio is true",
+              writable=false)
+    protected int nio_receiver_threads=1;
+
+    @Property(name="nio.direct_buffers",description="Receive packets into direct ByteBuffers. Only used if use_nio is true",
+              writable=false)
+    protected boolean nio_direct_buffers=true;
+
+    @Property(name="nio.max_batch_size",description="Max number of packets a receiver thread reads per selector wakeup. " +
+      "Only used if use_nio is true",writable=false)
+    protected int nio_max_batch_size=64;
+
+    @Property(name="nio.send_retries",description="Number of times a send is retried when the send buffer of a channel " +
+      "is full, before the packet is dropped. Only used if use_nio is true")
+    protected int nio_send_retries=10;
+
 
     /* --------------------------------------------- Fields ------------------------------------------------ */
 
@@ -115,6 +151,20 @@ public class UDP extends TP {
     /** Runnable to receive unicast packets */
     protected PacketReceiver ucast_receiver=null;
 
+    /** Channel for sending unicast and multicast packets and receiving unicast packets if use_nio is true. The
+     * unicast socket (sock) is this channel's socket */
+    protected DatagramChannel ucast_channel=null;
+
+    /** Channel for receiving multicast packets if use_nio is true. Null if JDK 7 is not available */
+    protected DatagramChannel mcast_channel=null;
+
+    protected ChannelReceiver ucast_channel_receiver=null;
+
+    protected ChannelReceiver mcast_channel_receiver=null;
+
+    @ManagedAttribute(description="Number of packets dropped because the send buffer of a channel was full (NIO only)")
+    protected volatile int num_nio_send_drops=0;
+
 
     /**
      * Usually, src addresses are nulled, and the receiver simply sets them to
@@ -144,7 +194,16 @@ public class UDP extends TP {
      */
     public void setMulticastTTL(int ttl) throws IOException {
         this.ip_ttl=ttl;
-        mcast_sock.setTimeToLive((byte)ttl);
+        if(mcast_sock != null)
+            mcast_sock.setTimeToLive((byte)ttl);
+        else if(mcast_channel != null && ucast_channel != null) {
+            try {
+                setOption(ucast_channel, "IP_MULTICAST_TTL", ttl);
+            }
+            catch(Exception ex) {
+                throw new IOException(ex.toString());
+            }
+        }
     }
 
     /**
@@ -184,6 +243,10 @@ public class UDP extends TP {
 
 
     protected void _send(InetAddress dest, int port, boolean mcast, byte[] data, int offset, int length) throws Exception {
+        if(ucast_channel != null && (!mcast || mcast_channel != null)) {
+            _sendOnChannel(new InetSocketAddress(dest, port), data, offset, length);
+            return;
+        }
         DatagramPacket packet=new DatagramPacket(data, offset, length, dest, port);
         try {
             if(mcast) {
@@ -209,6 +272,30 @@ public class UDP extends TP {
     }
 
 
+    /**
+     * Sends a packet on the (non-blocking) unicast channel. Multicasts are sent on the unicast channel too; the
+     * multicast options (TTL, interface, loopback) have been set on it in createChannels()
+     */
+    protected void _sendOnChannel(InetSocketAddress dest, byte[] data, int offset, int length) throws Exception {
+        ByteBuffer buf=ByteBuffer.wrap(data, offset, length);
+        try {
+            for(int i=0; i <= nio_send_retries; i++) {
+                if(ucast_channel.send(buf, dest) > 0)
+                    return;
+                LockSupport.parkNanos(1000); // send buffer is full, give the kernel some time to drain it
+            }
+            num_nio_send_drops++;
+            if(log.isTraceEnabled())
+                log.trace("send buffer full, dropped packet to " + dest + " (" + length + " bytes)");
+        }
+        catch(ClosedChannelException closed) {
+        }
+        catch(Exception ex) {
+            throw new Exception("dest=" + dest + " (" + length + " bytes)", ex);
+        }
+    }
+
+
     /* ------------------------------------------------------------------------------- */
 
 
@@ -221,9 +308,26 @@ public class UDP extends TP {
      * Creates the unicast and multicast sockets and starts the unicast and multicast receiver threads
      */
     public void start() throws Exception {
-        createSockets();
+        if(use_nio)
+            createChannels();
+        else
+            createSockets();
         super.start();
-        ucast_receiver=new PacketReceiver(sock,
+        if(use_nio) {
+            ucast_channel_receiver=new ChannelReceiver(ucast_channel, "unicast receiver", new Runnable() {
+                public void run() {
+                    closeUnicastSocket();
+                }
+            });
+            if(mcast_channel != null)
+                mcast_channel_receiver=new ChannelReceiver(mcast_channel, "multicast receiver", new Runnable() {
+                    public void run() {
+                        closeMulticastSocket();
+                    }
+                });
+        }
+        else
+            ucast_receiver=new PacketReceiver(sock,
                                           "unicast receiver",
                                           new Runnable() {
                                               public void run() {
@@ -231,7 +335,8 @@ public class UDP extends TP {
                                               }
                                           });
 
-        if(ip_mcast)
+        // mcast_sock is also used with use_nio if the multicast channel could not be created (JDK < 7)
+        if(ip_mcast && mcast_sock != null)
             mcast_receiver=new PacketReceiver(mcast_sock,
                                               "multicast receiver",
                                               new Runnable() {
@@ -389,6 +494,152 @@ public class UDP extends TP {
     }
 
 
+    /**
+     * Creates the channels used if use_nio is true. The unicast channel is bound like the unicast socket, and sock
+     * is set to its socket. The multicast channel is created and joined to the multicast group via reflection, as
+     * DatagramChannel only supports multicasting as of JDK 7; if that fails, a MulticastSocket is used to receive
+     * multicasts.
+     */
+    protected void createChannels() throws Exception {
+        if(bind_addr == null)
+            throw new IllegalArgumentException("bind_addr cannot be null");
+
+        ucast_channel=createDatagramChannel();
+        sock=ucast_channel.socket();
+        if(tos > 0) {
+            try {
+                sock.setTrafficClass(tos);
+            }
+            catch(SocketException e) {
+                log.warn("traffic class of " + tos + " could not be set, will be ignored: " + e);
+            }
+        }
+
+        if(ip_mcast) {
+            mcast_addr=new IpAddress(mcast_group_addr, mcast_port);
+            if(enable_diagnostics) {
+                if(diagnostics_addr != null && diagnostics_addr.equals(mcast_group_addr) ||
+                  diagnostics_port == mcast_port)
+                    throw new IllegalArgumentException("diagnostics_addr / diagnostics_port and mcast_addr / mcast_port " +
+                                                         "have to be different");
+            }
+            try {
+                mcast_channel=createMulticastChannel();
+                // multicasts are sent on the unicast channel
+                setOption(ucast_channel, "IP_MULTICAST_IF", NetworkInterface.getByInetAddress(bind_addr));
+                setOption(ucast_channel, "IP_MULTICAST_TTL", ip_ttl);
+                if(disable_loopback)
+                    setOption(ucast_channel, "IP_MULTICAST_LOOP", false);
+            }
+            catch(Exception ex) {
+                Util.close(mcast_channel);
+                mcast_channel=null;
+                if(log.isWarnEnabled())
+                    log.warn("failed creating multicast channel (JDK 7 is required), will use a MulticastSocket " +
+                               "to send and receive multicasts: " + ex);
+                createMulticastSocket();
+            }
+        }
+
+        ucast_channel.configureBlocking(false);
+        if(mcast_channel != null)
+            mcast_channel.configureBlocking(false);
+
+        setBufferSizes();
+        if(log.isDebugEnabled()) log.debug("socket information:\n" + dumpSocketInfo());
+    }
+
+
+    /**
+     * Creates a channel bound to bind_addr and bind_port (or the next free port up to bind_port+port_range). Binds
+     * to an ephemeral port if bind_port is 0
+     */
+    protected DatagramChannel createDatagramChannel() throws Exception {
+        int port=bind_port, max_port=bind_port > 0? bind_port + port_range : 0;
+        while(port <= max_port) {
+            DatagramChannel ch=DatagramChannel.open();
+            try {
+                ch.socket().bind(new InetSocketAddress(bind_addr, port));
+                return ch;
+            }
+            catch(SocketException bind_ex) {
+                Util.close(ch);
+                if(bind_port > 0)
+                    port++;
+            }
+        }
+        throw new Exception("failed to open a port in range " + bind_port + '-' + max_port);
+    }
+
+
+    /** Creates a channel bound to mcast_port which has joined mcast_group_addr. Requires JDK 7 */
+    protected DatagramChannel createMulticastChannel() throws Exception {
+        Class<?> family_class=Util.loadClass("java.net.StandardProtocolFamily", getClass());
+        Object family=family_class.getField(mcast_group_addr instanceof Inet6Address? "INET6" : "INET").get(null);
+        Method open=DatagramChannel.class.getMethod("open", Util.loadClass("java.net.ProtocolFamily", getClass()));
+        DatagramChannel ch=(DatagramChannel)open.invoke(null, family);
+        try {
+            ch.socket().setReuseAddress(true);
+            ch.socket().bind(can_bind_to_mcast_addr? new InetSocketAddress(mcast_group_addr, mcast_port)
+                               : new InetSocketAddress(mcast_port));
+
+            List<NetworkInterface> interfaces;
+            if(receive_interfaces != null && !receive_interfaces.isEmpty())
+                interfaces=receive_interfaces;
+            else if(receive_on_all_interfaces)
+                interfaces=Util.getAllAvailableInterfaces();
+            else
+                interfaces=Collections.singletonList(NetworkInterface.getByInetAddress(bind_addr));
+
+            Method join=DatagramChannel.class.getMethod("join", InetAddress.class, NetworkInterface.class);
+            int joined=0;
+            for(NetworkInterface intf: interfaces) {
+                try {
+                    join.invoke(ch, mcast_group_addr, intf);
+                    joined++;
+                    if(log.isTraceEnabled())
+                        log.trace("joined " + mcast_group_addr + " on " + intf.getName());
+                }
+                catch(Exception ex) {
+                    if(log.isWarnEnabled())
+                        log.warn("could not join " + mcast_group_addr + " on interface " + intf.getName());
+                }
+            }
+            if(joined == 0)
+                throw new Exception("could not join " + mcast_group_addr + " on any interface");
+            return ch;
+        }
+        catch(Exception ex) {
+            Util.close(ch);
+            throw ex;
+        }
+    }
+
+
+    /** Sets a java.net.StandardSocketOptions option on a channel. Requires JDK 7 */
+    protected void setOption(DatagramChannel ch, String option, Object value) throws Exception {
+        Class<?> options_class=Util.loadClass("java.net.StandardSocketOptions", getClass());
+        Object opt=options_class.getField(option).get(null);
+        Method set=DatagramChannel.class.getMethod("setOption", Util.loadClass("java.net.SocketOption", getClass()), Object.class);
+        set.invoke(ch, opt, value);
+    }
+
+
+    /** Creates the MulticastSocket used if the multicast channel could not be created */
+    protected void createMulticastSocket() throws Exception {
+        if(can_bind_to_mcast_addr)
+            mcast_sock=Util.createMulticastSocket(getSocketFactory(), Global.UDP_MCAST_SOCK, mcast_group_addr, mcast_port, log);
+        else
+            mcast_sock=getSocketFactory().createMulticastSocket(Global.UDP_MCAST_SOCK, mcast_port);
+        if(disable_loopback)
+            mcast_sock.setLoopbackMode(disable_loopback);
+        mcast_sock.setTimeToLive(ip_ttl);
+        if(bind_addr != null)
+            mcast_sock.setInterface(bind_addr);
+        mcast_sock.joinGroup(mcast_group_addr);
+    }
+
+
     protected void destroySockets() {
         closeMulticastSocket();
         closeUnicastSocket();
@@ -501,6 +752,13 @@ public class UDP extends TP {
             sb.append(", send buffer size=").append(sock.getSendBufferSize());
         }
 
+        if(mcast_channel != null) {
+            DatagramSocket tmp=mcast_channel.socket();
+            sb.append("\nmcast_channel: bound to ");
+            sb.append(tmp.getLocalAddress().getHostAddress()).append(':').append(tmp.getLocalPort());
+            sb.append(", receive buffer size=").append(tmp.getReceiveBufferSize());
+        }
+
         if(mcast_sock != null) {
             sb.append("\nmcast_sock: bound to ");
             sb.append(mcast_sock.getInterface().getHostAddress()).append(':').append(mcast_sock.getLocalPort());
@@ -517,6 +775,9 @@ public class UDP extends TP {
 
         if(mcast_sock != null)
             setBufferSize(mcast_sock, mcast_send_buf_size, mcast_recv_buf_size);
+
+        if(mcast_channel != null)
+            setBufferSize(mcast_channel.socket(), mcast_send_buf_size, mcast_recv_buf_size);
     }
 
     protected void setBufferSize(DatagramSocket sock, int send_buf_size, int recv_buf_size) {
@@ -552,6 +813,12 @@ public class UDP extends TP {
 
 
     void closeMulticastSocket() {
+        if(mcast_channel != null) {
+            Util.close(mcast_channel); // drops the channel's group memberships, too
+            mcast_channel=null;
+            mcast_addr=null;
+            if(log.isDebugEnabled()) log.debug("multicast channel closed");
+        }
         if(mcast_sock != null) {
             try {
                 if(mcast_addr != null) {
@@ -578,9 +845,14 @@ public class UDP extends TP {
      * Starts the unicast and multicast receiver threads
      */
     void startThreads() throws Exception {
-        ucast_receiver.start();
+        if(ucast_receiver != null)
+            ucast_receiver.start();
         if(mcast_receiver != null)
             mcast_receiver.start();
+        if(ucast_channel_receiver != null)
+            ucast_channel_receiver.start();
+        if(mcast_channel_receiver != null)
+            mcast_channel_receiver.start();
     }
 
 
@@ -590,7 +862,12 @@ public class UDP extends TP {
     void stopThreads() {
         if(mcast_receiver != null)
             mcast_receiver.stop();
-        ucast_receiver.stop();
+        if(mcast_channel_receiver != null)
+            mcast_channel_receiver.stop();
+        if(ucast_receiver != null)
+            ucast_receiver.stop();
+        if(ucast_channel_receiver != null)
+            ucast_channel_receiver.stop();
     }
 
 
@@ -701,4 +978,115 @@ public class UDP extends TP {
             return receiver_socket != null? receiver_socket.getLocalSocketAddress().toString() : "null";
         }
     }
+
+
+    /**
+     * Receives packets from a non-blocking channel. Each receiver thread has its own selector and receive buffer, and
+     * drains up to nio_max_batch_size packets per wakeup. Every packet is copied from the receive buffer into a
+     * right-sized (pooled, if the buffer pool is enabled) buffer, which is handed to the thread pool without a
+     * further copy.
+     */
+    public class ChannelReceiver implements Runnable {
+        protected final DatagramChannel channel;
+        protected final String          name;
+        protected final Runnable        close_strategy;
+        protected final List<Thread>    threads=new ArrayList<Thread>();
+        protected volatile boolean      running;
+
+        public ChannelReceiver(DatagramChannel channel, String name, Runnable close_strategy) {
+            this.channel=channel;
+            this.name=name;
+            this.close_strategy=close_strategy;
+        }
+
+        public synchronized void start() {
+            if(running)
+                return;
+            running=true;
+            int num_threads=Math.max(1, nio_receiver_threads);
+            for(int i=0; i < num_threads; i++) {
+                Thread thread=getThreadFactory().newThread(this, num_threads > 1? name + "-" + (i+1) : name);
+                threads.add(thread);
+                thread.start();
+            }
+            if(log.isDebugEnabled())
+                log.debug("created " + num_threads + " " + name + " thread(s)");
+        }
+
+        public synchronized void stop() {
+            running=false;
+            try {
+                close_strategy.run();
+            }
+            catch(Exception e1) {
+            }
+            finally {
+                Util.close(channel); // second line of defense
+            }
+            for(Thread thread: threads) {
+                thread.interrupt();
+                try {
+                    thread.join(Global.THREAD_SHUTDOWN_WAIT_TIME);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt(); // set interrupt flag again
+                }
+            }
+            threads.clear();
+        }
+
+        public void run() {
+            // to be on the safe side (IPv6 == 65575 bytes, IPv4 = 65535)
+            final ByteBuffer receive_buf=nio_direct_buffers? ByteBuffer.allocateDirect(66000) : ByteBuffer.allocate(66000);
+            Selector selector=null;
+            try {
+                selector=Selector.open();
+                channel.register(selector, SelectionKey.OP_READ);
+                while(running && channel.isOpen()) {
+                    try {
+                        if(selector.select() == 0)
+                            continue;
+                        selector.selectedKeys().clear();
+                        for(int i=0; i < nio_max_batch_size; i++) {
+                            receive_buf.clear();
+                            SocketAddress sender=channel.receive(receive_buf);
+                            if(sender == null)
+                                break;
+                            receive_buf.flip();
+                            handlePacket((InetSocketAddress)sender, receive_buf);
+                        }
+                    }
+                    catch(ClosedChannelException closed) {
+                        break;
+                    }
+                    catch(Throwable ex) {
+                        if(running && log.isErrorEnabled())
+                            log.error("failed receiving packet", ex);
+                    }
+                }
+            }
+            catch(IOException ex) {
+                if(log.isErrorEnabled())
+                    log.error("failed registering " + name + " with selector", ex);
+            }
+            finally {
+                if(selector != null) {
+                    try {selector.close();} catch(IOException e) {}
+                }
+            }
+            if(log.isDebugEnabled()) log.debug(Thread.currentThread().getName() + " thread terminated");
+        }
+
+        protected void handlePacket(InetSocketAddress sender, ByteBuffer packet) {
+            int len=packet.remaining();
+            BufferPool pool=getBufferPool();
+            BufferPool.Slab slab=pool != null? pool.acquire(len) : new BufferPool.Slab(new byte[len], null);
+            packet.get(slab.getBuf(), 0, len);
+            receive(new IpAddress(sender.getAddress(), sender.getPort()), slab, 0, len);
+        }
+
+        public String toString() {
+            return channel != null? channel.socket().getLocalSocketAddress().toString() : "null";
+        }
+    }
 }
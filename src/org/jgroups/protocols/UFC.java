@@ -89,6 +89,14 @@ public class UFC extends FlowControl {
         return retval;
     }
 
+    @ManagedAttribute(description="Number of senders currently blocked waiting for credits")
+    public int getNumberOfBlockedSenders() {
+        int retval=0;
+        for(Credit cred: sent.values())
+            retval+=cred.getNumBlockedSenders();
+        return retval;
+    }
+
     public void stop() {
         super.stop();
         for(Credit cred: sent.values())
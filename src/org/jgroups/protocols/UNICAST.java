@@ -59,6 +59,11 @@ public class UNICAST extends Protocol implements AckSenderWindow.RetransmitComma
       "connection will get re-established when used again. 0 disables connection reaping")
     protected long conn_expiry_timeout=60000;
 
+    @Property(description="Interval (in milliseconds) at which a single task retransmits the unacked messages of all " +
+      "send windows. If 0, every send window uses its own retransmitter (see timeout), which creates a timer task " +
+      "per message",writable=false)
+    protected long xmit_interval=0;
+
     @Property(description="Size (in bytes) of a Segment in the segments table. Only for experts, do not use !")
     protected int segment_capacity=1000;
 
@@ -96,6 +101,8 @@ public class UNICAST extends Protocol implements AckSenderWindow.RetransmitComma
 
     protected Future<?> connection_reaper; // closes idle connections
 
+    protected Future<?> xmit_task; // retransmits unacked messages of all send windows, if xmit_interval > 0
+
 
     public int[] getTimeout() {return timeout;}
 
@@ -283,11 +290,14 @@ public class UNICAST extends Protocol implements AckSenderWindow.RetransmitComma
         started=true;
         if(conn_expiry_timeout > 0)
             startConnectionReaper();
+        if(xmit_interval > 0)
+            startRetransmitTask();
     }
 
     public void stop() {
         started=false;
         stopConnectionReaper();
+        stopRetransmitTask();
         removeAllConnections();
     }
 
@@ -353,7 +363,8 @@ public class UNICAST extends Protocol implements AckSenderWindow.RetransmitComma
 
                 SenderEntry entry=send_table.get(dst);
                 if(entry == null) {
-                    entry=new SenderEntry(getNewConnectionId(), this, timeout, timer, local_addr);
+                    // no retransmitter is created if the retransmit task handles retransmission
+                    entry=new SenderEntry(getNewConnectionId(), this, timeout, xmit_interval > 0? null : timer, local_addr);
                     SenderEntry existing=send_table.putIfAbsent(dst, entry);
                     if(existing != null)
                         entry=existing;
@@ -764,6 +775,18 @@ public class UNICAST extends Protocol implements AckSenderWindow.RetransmitComma
         if(connection_reaper != null)
             connection_reaper.cancel(false);
     }
+
+    protected synchronized void startRetransmitTask() {
+        if(xmit_task == null || xmit_task.isDone())
+            xmit_task=timer.scheduleWithFixedDelay(new RetransmitTask(), xmit_interval, xmit_interval, TimeUnit.MILLISECONDS);
+    }
+
+    protected synchronized void stopRetransmitTask() {
+        if(xmit_task != null) {
+            xmit_task.cancel(true);
+            xmit_task=null;
+        }
+    }
    
     private short getNewConnectionId() {
         synchronized(this) {
@@ -1015,6 +1038,18 @@ public class UNICAST extends Protocol implements AckSenderWindow.RetransmitComma
         }
     }
 
+    /**
+     * Retransmitter task which periodically (every xmit_interval ms) looks at all send windows and retransmits the
+     * messages which haven't been acked since the previous run
+     */
+    protected class RetransmitTask implements Runnable {
+
+        public void run() {
+            for(SenderEntry entry: send_table.values())
+                entry.sent_msgs.retransmitUnacked();
+        }
+    }
+
 
 
 }
\ No newline at end of file
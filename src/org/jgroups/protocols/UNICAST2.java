@@ -8,7 +8,10 @@ import org.jgroups.annotations.Property;
 import org.jgroups.conf.PropertyConverters;
 import org.jgroups.stack.*;
 import org.jgroups.util.AgeOutCache;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.SeqnoList;
 import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.Tuple;
 import org.jgroups.util.Util;
 
 import java.io.DataInput;
@@ -89,6 +92,11 @@ public class UNICAST2 extends Protocol implements Retransmitter.RetransmitComman
     @Property(description="Time (in milliseconds) after which an idle incoming or outgoing connection is closed. The " +
       "connection will get re-established when used again. 0 disables connection reaping")
     protected long conn_expiry_timeout=60000;
+
+    @Property(description="Interval (in milliseconds) at which a single task sends retransmit requests for the missing " +
+      "messages of all receive windows. If 0, every receive window uses its own retransmitter (see timeout and " +
+      "exponential_backoff), which creates a timer task per gap",writable=false)
+    protected long xmit_interval=0;
     /* --------------------------------------------- JMX  ---------------------------------------------- */
 
 
@@ -120,6 +128,8 @@ public class UNICAST2 extends Protocol implements Retransmitter.RetransmitComman
 
     protected Future<?> connection_reaper; // closes idle connections
 
+    protected Future<?> xmit_task; // retransmits missing messages of all receive windows, if xmit_interval > 0
+
 
     public int[] getTimeout() {return timeout;}
 
@@ -330,12 +340,15 @@ public class UNICAST2 extends Protocol implements Retransmitter.RetransmitComman
             startStableTask();
         if(conn_expiry_timeout > 0)
             startConnectionReaper();
+        if(xmit_interval > 0)
+            startRetransmitTask();
     }
 
     public void stop() {
         started=false;
         stopStableTask();
         stopConnectionReaper();
+        stopRetransmitTask();
         removeAllConnections();
     }
 
@@ -365,7 +378,10 @@ public class UNICAST2 extends Protocol implements Retransmitter.RetransmitComman
                         handleDataReceived(src, hdr.seqno, hdr.conn_id, hdr.first, msg, evt);
                         return null; // we pass the deliverable message up in handleDataReceived()
                     case Unicast2Header.XMIT_REQ:  // received ACK for previously sent message
-                        handleXmitRequest(src, hdr.seqno, hdr.high_seqno);
+                        if(msg.getLength() > 0) // sent by the retransmit task: the missing seqnos are in a SeqnoList
+                            handleXmitRequest(src, (SeqnoList)msg.getObject());
+                        else
+                            handleXmitRequest(src, hdr.seqno, hdr.high_seqno);
                         break;
                     case Unicast2Header.SEND_FIRST_SEQNO:
                         handleResendingOfFirstMessage(src, hdr.seqno);
@@ -384,6 +400,45 @@ public class UNICAST2 extends Protocol implements Retransmitter.RetransmitComman
     }
 
 
+    /**
+     * Handles the DATA messages of a unicast batch together. Messages which start a new connection, messages from a
+     * different sender and all other UNICAST2 messages are handled individually
+     */
+    public void up(MessageBatch batch) {
+        if(batch.dest() == null) { // only unicast messages are handled
+            up_prot.up(batch);
+            return;
+        }
+
+        List<Tuple<Long,Message>> msgs=null;
+        Address sender=batch.sender();
+        short conn_id=0;
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            Unicast2Header hdr;
+            if(msg.isFlagSet(Message.NO_RELIABILITY) || (hdr=(Unicast2Header)msg.getHeader(this.id)) == null)
+                continue; // remains in the batch and is passed up
+            it.remove();
+
+            if(hdr.type == Unicast2Header.DATA && !hdr.first && sender != null && sender.equals(msg.getSrc())
+              && (msgs == null || hdr.conn_id == conn_id)) {
+                if(msgs == null) {
+                    msgs=new ArrayList<Tuple<Long,Message>>(batch.capacity());
+                    conn_id=hdr.conn_id;
+                }
+                msgs.add(new Tuple<Long,Message>(hdr.seqno, msg));
+            }
+            else
+                up(new Event(Event.MSG, msg));
+        }
+
+        if(msgs != null)
+            handleBatchReceived(sender, msgs, conn_id, batch.clusterName());
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+
 
     public Object down(Event evt) {
         switch (evt.getType()) {
@@ -603,6 +658,18 @@ public class UNICAST2 extends Protocol implements Retransmitter.RetransmitComman
             connection_reaper.cancel(false);
     }
 
+    protected synchronized void startRetransmitTask() {
+        if(xmit_task == null || xmit_task.isDone())
+            xmit_task=timer.scheduleWithFixedDelay(new RetransmitTask(), 0, xmit_interval, TimeUnit.MILLISECONDS);
+    }
+
+    protected synchronized void stopRetransmitTask() {
+        if(xmit_task != null) {
+            xmit_task.cancel(true);
+            xmit_task=null;
+        }
+    }
+
     /**
      * Removes and resets from connection table (which is already locked). Returns true if member was found, otherwise
      * false. This method is public only so it can be invoked by unit testing, but should not otherwise be used !
@@ -654,6 +721,24 @@ public class UNICAST2 extends Protocol implements Retransmitter.RetransmitComman
         down_prot.down(new Event(Event.MSG,xmit_req));
     }
 
+    /**
+     * Sends a single XMIT_REQ for all missing messages to sender. The header carries the range of the missing seqnos,
+     * so that a member which doesn't know about the SeqnoList payload still retransmits all of them
+     */
+    protected void retransmit(SeqnoList missing, Address sender) {
+        long low=Long.MAX_VALUE, high=0;
+        for(long seqno: missing) {
+            low=Math.min(low, seqno);
+            high=Math.max(high, seqno);
+        }
+        Message xmit_req=new Message(sender, null, missing);
+        xmit_req.setFlag(Message.OOB);
+        xmit_req.putHeader(this.id, Unicast2Header.createXmitReqHeader(low, high));
+        if(log.isTraceEnabled())
+            log.trace(local_addr + ": sending XMIT_REQ (" + missing + ") to " + sender);
+        down_prot.down(new Event(Event.MSG, xmit_req));
+    }
+
     
     /**
      * Called by AgeOutCache, to removed expired connections
@@ -763,6 +848,86 @@ public class UNICAST2 extends Protocol implements Retransmitter.RetransmitComman
             }
         }
 
+        removeAndPassUp(win, sender, null);
+    }
+
+
+    /**
+     * Adds a list of DATA messages from the same sender and connection to the receiver window (acquiring the
+     * window's lock only once) and passes the deliverable messages up as batches
+     */
+    protected void handleBatchReceived(Address sender, List<Tuple<Long,Message>> msgs, short conn_id, String cluster_name) {
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder().append(local_addr).append(" <-- DATA(").append(sender).append(": #").
+                        append(msgs.get(0).getVal1()).append(" - #").append(msgs.get(msgs.size()-1).getVal1()).
+                        append(", conn_id=").append(conn_id).append(')'));
+
+        ReceiverEntry entry;
+        NakReceiverWindow win;
+        recv_table_lock.lock();
+        try {
+            entry=recv_table.get(sender);
+            win=entry != null? entry.received_msgs : null;
+        }
+        finally {
+            recv_table_lock.unlock();
+        }
+        if(win == null || entry.recv_conn_id != conn_id) {
+            sendRequestForFirstSeqno(sender, msgs.get(0).getVal1()); // drops the messages
+            return;
+        }
+
+        entry.update();
+        List<Message> added=win.add(msgs);
+        num_msgs_received+=msgs.size();
+        for(Tuple<Long,Message> tuple: msgs)
+            num_bytes_received+=tuple.getVal2().getLength();
+
+        if(added != null) {
+            int len=0;
+            MessageBatch oob_batch=null;
+            for(Message msg: added) {
+                len+=msg.getLength();
+                // An OOB message is passed up immediately. Later, when remove() is called, we discard it
+                if(msg.isFlagSet(Message.OOB)) {
+                    if(oob_batch == null)
+                        oob_batch=new MessageBatch(local_addr, sender, cluster_name, false, added.size());
+                    oob_batch.add(msg);
+                }
+            }
+            if(len > 0) {
+                boolean send_stable_msg=false;
+                entry.lock();
+                try {
+                    entry.received_bytes+=len;
+                    if(entry.received_bytes >= max_bytes) {
+                        entry.received_bytes=0;
+                        send_stable_msg=true;
+                    }
+                }
+                finally {
+                    entry.unlock();
+                }
+
+                if(send_stable_msg)
+                    sendStableMessage(sender, entry.recv_conn_id, win.getHighestDelivered(), win.getHighestReceived());
+            }
+            if(oob_batch != null) {
+                try {
+                    up_prot.up(oob_batch);
+                }
+                catch(Throwable t) {
+                    log.error("couldn't deliver OOB batch " + oob_batch, t);
+                }
+            }
+        }
+
+        removeAndPassUp(win, sender, cluster_name);
+    }
+
+
+    /** Removes as many messages as possible from win and passes them up as batches */
+    protected void removeAndPassUp(NakReceiverWindow win, Address sender, String cluster_name) {
         final AtomicBoolean processing=win.getProcessing();
         if(!processing.compareAndSet(false, true)) {
             return;
@@ -785,16 +950,20 @@ public class UNICAST2 extends Protocol implements Retransmitter.RetransmitComman
                     return;
                 }
 
+                MessageBatch batch=new MessageBatch(local_addr, sender, cluster_name, false, msgs.size());
                 for(Message m: msgs) {
                     // discard OOB msg: it has already been delivered (http://jira.jboss.com/jira/browse/JGRP-377)
                     if(m.isFlagSet(Message.OOB))
                         continue;
-                    try {
-                        up_prot.up(new Event(Event.MSG, m));
-                    }
-                    catch(Throwable t) {
-                        log.error("couldn't deliver message " + m, t);
-                    }
+                    batch.add(m);
+                }
+                if(batch.isEmpty())
+                    continue;
+                try {
+                    up_prot.up(batch);
+                }
+                catch(Throwable t) {
+                    log.error("couldn't deliver batch " + batch, t);
                 }
             }
         }
@@ -808,7 +977,9 @@ public class UNICAST2 extends Protocol implements Retransmitter.RetransmitComman
 
 
     private ReceiverEntry getOrCreateReceiverEntry(Address sender, long seqno, short conn_id) {
-        NakReceiverWindow win=new NakReceiverWindow(sender, this, seqno-1, timer, use_range_based_retransmitter,
+        // no retransmitter is created if the retransmit task handles retransmission
+        NakReceiverWindow win=new NakReceiverWindow(sender, xmit_interval > 0? null : this, seqno-1, timer,
+                                                    use_range_based_retransmitter,
                                                     xmit_table_num_rows, xmit_table_msgs_per_row,
                                                     xmit_table_resize_factor, xmit_table_max_compaction_time,
                                                     xmit_table_automatic_purging);
@@ -836,23 +1007,38 @@ public class UNICAST2 extends Protocol implements Retransmitter.RetransmitComman
         SenderEntry entry=send_table.get(sender);
         AckSenderWindow win=entry != null? entry.sent_msgs : null;
         if(win != null) {
-            for(long i=low; i <= high; i++) {
-                Message msg=win.get(i);
-                if(msg == null) {
-                    if(log.isWarnEnabled() && !local_addr.equals(sender)) {
-                        StringBuilder sb=new StringBuilder();
-                        sb.append("(requester=").append(sender).append(", local_addr=").append(this.local_addr);
-                        sb.append(") message ").append(sender).append("::").append(i);
-                        sb.append(" not found in retransmission table of ").append(sender).append(":\n").append(win);
-                        log.warn(sb.toString());
-                    }
-                    continue;
-                }
-                
-                down_prot.down(new Event(Event.MSG, msg));
-                num_xmits++;
+            for(long i=low; i <= high; i++)
+                retransmit(win, sender, i);
+        }
+    }
+
+    private void handleXmitRequest(Address sender, SeqnoList missing) {
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder().append(local_addr).append(" <-- XMIT(").append(sender).
+                    append(": #").append(missing).append(')'));
+
+        SenderEntry entry=send_table.get(sender);
+        AckSenderWindow win=entry != null? entry.sent_msgs : null;
+        if(win != null) {
+            for(long seqno: missing)
+                retransmit(win, sender, seqno);
+        }
+    }
+
+    private void retransmit(AckSenderWindow win, Address sender, long seqno) {
+        Message msg=win.get(seqno);
+        if(msg == null) {
+            if(log.isWarnEnabled() && !local_addr.equals(sender)) {
+                StringBuilder sb=new StringBuilder();
+                sb.append("(requester=").append(sender).append(", local_addr=").append(this.local_addr);
+                sb.append(") message ").append(sender).append("::").append(seqno);
+                sb.append(" not found in retransmission table of ").append(sender).append(":\n").append(win);
+                log.warn(sb.toString());
             }
+            return;
         }
+        down_prot.down(new Event(Event.MSG, msg));
+        num_xmits++;
     }
 
 
@@ -1218,6 +1404,23 @@ public class UNICAST2 extends Protocol implements Retransmitter.RetransmitComman
         }
     }
 
+    /**
+     * Retransmitter task which periodically (every xmit_interval ms) looks at all receive windows and sends one
+     * retransmit request to every member from which we have missing messages
+     */
+    protected class RetransmitTask implements Runnable {
+
+        public void run() {
+            for(Map.Entry<Address,ReceiverEntry> entry: recv_table.entrySet()) {
+                Address target=entry.getKey(); // target to send retransmit requests to
+                NakReceiverWindow win=entry.getValue().received_msgs;
+                SeqnoList missing=win != null? win.getMissing() : null;
+                if(missing != null)
+                    retransmit(missing, target);
+            }
+        }
+    }
+
 
 
 }
\ No newline at end of file
@@ -8,6 +8,7 @@ import org.jgroups.annotations.Property;
 import org.jgroups.conf.PropertyConverters;
 import org.jgroups.stack.IpAddress;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.LivenessTracker;
 import org.jgroups.util.Util;
 
 import java.io.*;
@@ -20,6 +21,8 @@ import java.util.*;
  * Catches SUSPECT events traveling up the stack. Verifies that the suspected member is really dead. If yes,
  * passes SUSPECT event up the stack, otherwise discards it. Has to be placed somewhere above the FD layer and
  * below the GMS layer (receiver of the SUSPECT event). Note that SUSPECT events may be reordered by this protocol.
+ * If the transport tracks liveness, any message received from the suspected member after the verification started
+ * (not only an I_AM_NOT_DEAD response) clears the suspicion.
  * @author Bela Ban
  */
 @MBean(description="Double-checks suspicions reports")
@@ -58,6 +61,9 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
     protected final Map<Address,Long> suspects=new HashMap<Address,Long>();
     
     protected Thread timer=null;
+
+    /** Times at which messages were last received from members, maintained by the transport. Null if disabled */
+    protected LivenessTracker liveness;
     
     
     
@@ -140,6 +146,10 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
         return up_prot.up(evt);
     }
 
+    protected boolean accept(Message msg) {
+        return msg.getHeader(this.id) != null;
+    }
+
     /**
      * Removes all elements from suspects that are <em>not</em> in the new membership
      */
@@ -167,7 +177,7 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
         while(!suspects.isEmpty()) {
             diff=0;
 
-            List<Address> confirmed_suspects=new LinkedList<Address>();
+            List<Address> confirmed_suspects=new LinkedList<Address>(), alive=null;
             synchronized(suspects) {
                 for(Iterator<Map.Entry<Address,Long>> it=suspects.entrySet().iterator(); it.hasNext();) {
                     Map.Entry<Address,Long> entry=it.next();
@@ -176,6 +186,12 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
                     val=suspects.get(mbr).longValue();                    
                     diff=System.currentTimeMillis() - val;
                     if(diff >= timeout) {  // haven't been unsuspected, pass up SUSPECT
+                        if(liveness != null && liveness.lastHeard(mbr) >= val) { // mbr sent us a msg in the meantime
+                            if(alive == null)
+                                alive=new LinkedList<Address>();
+                            alive.add(mbr);
+                            continue;
+                        }
                         if(log.isTraceEnabled())
                             log.trace("diff=" + diff + ", mbr " + mbr + " is dead (passing up SUSPECT event)");                      
                         
@@ -188,7 +204,10 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
             }
             
             for(Address suspect:confirmed_suspects)
-                up_prot.up(new Event(Event.SUSPECT,suspect));            
+                up_prot.up(new Event(Event.SUSPECT,suspect));
+            if(alive != null)
+                for(Address mbr: alive)
+                    unsuspect(mbr);
 
             if(diff > 0)
                 Util.sleep(diff);
@@ -285,6 +304,7 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
         super.init();
         if(bind_addr != null)
             intf=NetworkInterface.getByInetAddress(bind_addr);
+        liveness=getTransport().getLivenessTracker();
     }
 
 
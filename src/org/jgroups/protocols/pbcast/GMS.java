@@ -884,6 +884,10 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         return up_prot.up(evt);
     }
 
+    protected boolean accept(Message msg) {
+        return msg.getHeader(this.id) != null;
+    }
+
 
 
     
@@ -7,12 +7,14 @@ import org.jgroups.protocols.TP;
 import org.jgroups.stack.*;
 import org.jgroups.util.BoundedList;
 import org.jgroups.util.Digest;
+import org.jgroups.util.SeqnoList;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -90,6 +92,11 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
             "it is only used to switch back to the old (and proven) retransmitter mechanism if issues occur")
     private boolean use_range_based_retransmitter=true;
 
+    @Property(description="Interval (in milliseconds) at which a single task sends retransmit requests for the missing " +
+      "messages of all retransmit windows. If 0, every window uses its own retransmitter (see retransmit_timeout and " +
+      "exponential_backoff), which creates a timer task per gap",writable=false)
+    protected long xmit_interval=0;
+
 
     /**
      * Messages that have been received in order are sent up the stack (=
@@ -169,6 +176,9 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
     private volatile boolean running=false;
     private TimeScheduler timer=null;
 
+    /** RetransmitTask running every xmit_interval ms, if xmit_interval > 0 */
+    protected Future<?> xmit_task;
+
     private final Lock rebroadcast_lock=new ReentrantLock();
 
     private final Condition rebroadcast_done=rebroadcast_lock.newCondition();
@@ -429,11 +439,14 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
             throw new Exception("timer is null");
         running=true;
         leaving=false;
+        if(xmit_interval > 0)
+            startRetransmitTask();
     }
 
 
     public void stop() {
         running=false;
+        stopRetransmitTask();
         reset();  // clears sent_msgs and destroys all NakReceiverWindows
     }
 
@@ -577,7 +590,10 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
                     }
                     return null;
                 }
-                handleXmitReq(msg.getSrc(), hdr.range.low, hdr.range.high, hdr.sender);
+                if(msg.getLength() > 0) // sent by the retransmit task: the missing seqnos are in a SeqnoList
+                    handleXmitReq(msg.getSrc(), (SeqnoList)msg.getObject(), hdr.sender);
+                else
+                    handleXmitReq(msg.getSrc(), hdr.range.low, hdr.range.high, hdr.sender);
                 return null;
 
             case NakAckHeader.XMIT_RSP:
@@ -785,23 +801,9 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
         if(stats)
             xmit_reqs_received.addAndGet(last_seqno - first_seqno +1);
 
-        NakReceiverWindow win=xmit_table.get(original_sender);
-        if(win == null) {
-            if(log.isErrorEnabled()) {
-                StringBuilder sb=new StringBuilder();
-                sb.append("(requester=").append(xmit_requester).append(", local_addr=").append(this.local_addr);
-                sb.append(") ").append(original_sender).append(" not found in retransmission table");
-                // don't print the table unless we are in trace mode because it can be LARGE
-                if (log.isTraceEnabled()) {
-                    sb.append(":\n").append(printMessages());
-                } 
-                if(print_stability_history_on_failed_xmit) {
-                    sb.append(" (stability history:\n").append(printStabilityHistory());
-                }
-                log.error(sb.toString());
-            }
+        NakReceiverWindow win=getWindow(xmit_requester, original_sender);
+        if(win == null)
             return;
-        }
 
         long diff=last_seqno - first_seqno +1;
         if(diff >= 10) {
@@ -812,24 +814,68 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
             }
         }
         else {
-            for(long i=first_seqno; i <= last_seqno; i++) {
-                Message msg=win.get(i);
-                if(msg == null) {
-                    if(log.isWarnEnabled() && log_not_found_msgs && !local_addr.equals(xmit_requester)) {
-                        StringBuilder sb=new StringBuilder();
-                        sb.append("(requester=").append(xmit_requester).append(", local_addr=").append(this.local_addr);
-                        sb.append(") message ").append(original_sender).append("::").append(i);
-                        sb.append(" not found in retransmission table of ").append(original_sender).append(":\n").append(win);
-                        if(print_stability_history_on_failed_xmit) {
-                            sb.append(" (stability history:\n").append(printStabilityHistory());
-                        }
-                        log.warn(sb.toString());
-                    }
-                    continue;
+            for(long i=first_seqno; i <= last_seqno; i++)
+                sendXmitRsp(win, xmit_requester, original_sender, i);
+        }
+    }
+
+    /**
+     * Retransmits the messages in missing_msgs from original_sender to xmit_requester, called when an XMIT_REQ sent
+     * by the retransmit task (see xmit_interval) is received
+     */
+    private void handleXmitReq(Address xmit_requester, SeqnoList missing_msgs, Address original_sender) {
+        if(log.isTraceEnabled()) {
+            StringBuilder sb=new StringBuilder();
+            sb.append(local_addr).append(": received xmit request from ").append(xmit_requester).append(" for ");
+            sb.append(original_sender).append(" ").append(missing_msgs);
+            log.trace(sb.toString());
+        }
+
+        if(stats)
+            xmit_reqs_received.addAndGet(missing_msgs.size());
+
+        NakReceiverWindow win=getWindow(xmit_requester, original_sender);
+        if(win == null)
+            return;
+        for(long seqno: missing_msgs)
+            sendXmitRsp(win, xmit_requester, original_sender, seqno);
+    }
+
+    /** Returns the window of original_sender, or null (logging an error) if not found */
+    private NakReceiverWindow getWindow(Address xmit_requester, Address original_sender) {
+        NakReceiverWindow win=xmit_table.get(original_sender);
+        if(win == null && log.isErrorEnabled()) {
+            StringBuilder sb=new StringBuilder();
+            sb.append("(requester=").append(xmit_requester).append(", local_addr=").append(this.local_addr);
+            sb.append(") ").append(original_sender).append(" not found in retransmission table");
+            // don't print the table unless we are in trace mode because it can be LARGE
+            if (log.isTraceEnabled()) {
+                sb.append(":\n").append(printMessages());
+            }
+            if(print_stability_history_on_failed_xmit) {
+                sb.append(" (stability history:\n").append(printStabilityHistory());
+            }
+            log.error(sb.toString());
+        }
+        return win;
+    }
+
+    private void sendXmitRsp(NakReceiverWindow win, Address xmit_requester, Address original_sender, long seqno) {
+        Message msg=win.get(seqno);
+        if(msg == null) {
+            if(log.isWarnEnabled() && log_not_found_msgs && !local_addr.equals(xmit_requester)) {
+                StringBuilder sb=new StringBuilder();
+                sb.append("(requester=").append(xmit_requester).append(", local_addr=").append(this.local_addr);
+                sb.append(") message ").append(original_sender).append("::").append(seqno);
+                sb.append(" not found in retransmission table of ").append(original_sender).append(":\n").append(win);
+                if(print_stability_history_on_failed_xmit) {
+                    sb.append(" (stability history:\n").append(printStabilityHistory());
                 }
-                sendXmitRsp(xmit_requester, msg);
+                log.warn(sb.toString());
             }
+            return;
         }
+        sendXmitRsp(xmit_requester, msg);
     }
 
 
@@ -1148,7 +1194,9 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
 
 
     private NakReceiverWindow createNakReceiverWindow(Address sender, long initial_seqno) {
-        NakReceiverWindow win=new NakReceiverWindow(sender, this, initial_seqno, timer, use_range_based_retransmitter,
+        // no retransmitter is created if the retransmit task handles retransmission
+        NakReceiverWindow win=new NakReceiverWindow(sender, xmit_interval > 0? null : this, initial_seqno, timer,
+                                                    use_range_based_retransmitter,
                                                     xmit_table_num_rows, xmit_table_msgs_per_row,
                                                     xmit_table_resize_factor, xmit_table_max_compaction_time, false);
 
@@ -1245,21 +1293,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
     protected void retransmit(long first_seqno, long last_seqno, final Address sender, boolean multicast_xmit_request) {
         NakAckHeader hdr;
         Message retransmit_msg;
-        Address dest=sender; // to whom do we send the XMIT request ?
-
-        if(multicast_xmit_request || this.use_mcast_xmit_req) {
-            dest=null;
-        }
-        else {
-            if(xmit_from_random_member && !local_addr.equals(sender)) {
-                Address random_member=(Address)Util.pickRandomElement(members);
-                if(random_member != null && !local_addr.equals(random_member)) {
-                    dest=random_member;
-                    if(log.isTraceEnabled())
-                        log.trace("picked random member " + dest + " to send XMIT request to");
-                }
-            }
-        }
+        Address dest=getXmitRequestTarget(sender, multicast_xmit_request); // to whom do we send the XMIT request ?
 
         hdr=NakAckHeader.createXmitRequestHeader(first_seqno, last_seqno, sender);
         retransmit_msg=new Message(dest, null, null);
@@ -1275,6 +1309,56 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
     /* ------------------- End of Interface Retransmitter.RetransmitCommand -------------------- */
 
 
+    /**
+     * Sends a single XMIT_REQ for all missing messages from sender. The header carries the range of the missing seqnos,
+     * so that a member which doesn't know about the SeqnoList payload still retransmits all of them
+     */
+    protected void retransmit(SeqnoList missing_msgs, final Address sender) {
+        long low=Long.MAX_VALUE, high=0;
+        for(long seqno: missing_msgs) {
+            low=Math.min(low, seqno);
+            high=Math.max(high, seqno);
+        }
+        Address dest=getXmitRequestTarget(sender, false);
+        Message retransmit_msg=new Message(dest, null, missing_msgs);
+        retransmit_msg.setFlag(Message.OOB);
+        if(log.isTraceEnabled())
+            log.trace(local_addr + ": sending XMIT_REQ (" + missing_msgs + ") to " + dest);
+        retransmit_msg.putHeader(this.id, NakAckHeader.createXmitRequestHeader(low, high, sender));
+
+        down_prot.down(new Event(Event.MSG, retransmit_msg));
+        if(stats)
+            xmit_reqs_sent.addAndGet(missing_msgs.size());
+    }
+
+    /** Returns the member to which to send an XMIT request for messages from sender; null means multicast */
+    protected Address getXmitRequestTarget(Address sender, boolean multicast_xmit_request) {
+        if(multicast_xmit_request || this.use_mcast_xmit_req)
+            return null;
+        if(xmit_from_random_member && !local_addr.equals(sender)) {
+            Address random_member=(Address)Util.pickRandomElement(members);
+            if(random_member != null && !local_addr.equals(random_member)) {
+                if(log.isTraceEnabled())
+                    log.trace("picked random member " + random_member + " to send XMIT request to");
+                return random_member;
+            }
+        }
+        return sender;
+    }
+
+    protected void startRetransmitTask() {
+        if(xmit_task == null || xmit_task.isDone())
+            xmit_task=timer.scheduleWithFixedDelay(new RetransmitTask(), 0, xmit_interval, TimeUnit.MILLISECONDS);
+    }
+
+    protected void stopRetransmitTask() {
+        if(xmit_task != null) {
+            xmit_task.cancel(true);
+            xmit_task=null;
+        }
+    }
+
+
 
     private void reset() {
         seqno_lock.lock();
@@ -1327,4 +1411,22 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
     /* ----------------------------- End of Private Methods ------------------------------------ */
 
 
-}
\ No newline at end of file
+
+    /**
+     * Retransmitter task which periodically (every xmit_interval ms) looks at all the retransmit windows and sends
+     * one retransmit request for every member from which we have missing messages
+     */
+    protected class RetransmitTask implements Runnable {
+
+        public void run() {
+            for(Map.Entry<Address,NakReceiverWindow> entry: xmit_table.entrySet()) {
+                Address target=entry.getKey(); // target to send retransmit requests to
+                NakReceiverWindow win=entry.getValue();
+                SeqnoList missing=win.getMissing();
+                if(missing != null)
+                    retransmit(missing, target);
+            }
+        }
+    }
+
+}
@@ -109,10 +109,27 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     @Property(description="Max number of messages in the retransmit buffer",writable=false)
     protected int xmit_buf_size=1000 * 1000;
 
+    @Property(description="If true, a lock-free ring buffer (RingBufferLockless) is used for the retransmit buffers, " +
+      "else a RingBuffer guarded by a lock",writable=false)
+    protected boolean use_lockless_ring_buffer=false;
+
     @Property(description="Interval (in millisconds) at which missing messages (from all retransmit buffers) " +
       "are retransmitted")
     protected long xmit_interval=1000;
 
+    @Property(description="If true, the copies of delivered messages retained for retransmission (own messages, or " +
+      "all messages if discard_delivered_msgs is false) are serialized into off-heap memory until they're stable",
+              writable=false)
+    protected boolean xmit_store_off_heap=false;
+
+    @Property(description="Max number of bytes of off-heap memory used to store messages for retransmission. " +
+      "Messages which don't fit are kept on the heap. Ignored if xmit_store_off_heap is false",writable=false)
+    protected long xmit_store_capacity=64 * 1024 * 1024;
+
+    @Property(description="Size (in bytes) of the segments of off-heap memory, messages bigger than this are kept " +
+      "on the heap. Ignored if xmit_store_off_heap is false",writable=false)
+    protected int xmit_store_segment_size=64 * 1024;
+
     /* -------------------------------------------------- JMX ---------------------------------------------------------- */
 
 
@@ -140,6 +157,19 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
 
+    @ManagedAttribute(description="Number of bytes of delivered messages retained off-heap (and on the heap if " +
+      "the off-heap store was full) for retransmission")
+    public long getXmitStoreBytesRetained() {return xmit_store != null? xmit_store.bytesRetained() : 0;}
+
+    @ManagedAttribute(description="Number of messages which couldn't be stored off-heap and were kept on the heap")
+    public long getXmitStoreOverflows() {return xmit_store != null? xmit_store.getOverflows() : 0;}
+
+    @ManagedOperation(description="Prints the number of bytes retained per sender by the off-heap store")
+    public String printXmitStore() {
+        return xmit_store != null? xmit_store.printBytesRetained() : "n/a (xmit_store_off_heap is false)";
+    }
+
+
     @ManagedOperation(description="Prints the saturation of all retransmit buffers")
     public String printSaturation() {
         StringBuilder sb=new StringBuilder();
@@ -165,6 +195,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     /** Map to store sent and received messages (keyed by sender) */
     protected final ConcurrentMap<Address,RingBuffer<Message>> xmit_table=Util.createConcurrentMap();
 
+    /** Stores delivered messages which are retained until they're stable off-heap, null if xmit_store_off_heap is false */
+    protected OffHeapMessageStore xmit_store;
+
     /** RetransmitTask running every xmit_interval ms */
     protected Future<?>           xmit_task;
 
@@ -294,6 +327,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 }
             }
         }
+
+        if(xmit_store_off_heap)
+            xmit_store=new OffHeapMessageStore(xmit_store_capacity, xmit_store_segment_size);
     }
 
 
@@ -527,6 +563,42 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
 
+    /**
+     * Handles all messages of a batch from the same sender together: messages with a NakAckHeader2 are removed from
+     * the batch and added to the sender's table in one go; the remaining messages (e.g. unicasts) are passed up
+     */
+    public void up(MessageBatch batch) {
+        List<Tuple<Long,Message>> msgs=null;
+        Address sender=batch.sender();
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            NakAckHeader2 hdr;
+            if(msg.isFlagSet(Message.NO_RELIABILITY) || (hdr=(NakAckHeader2)msg.getHeader(this.id)) == null)
+                continue; // remains in the batch and is passed up
+            it.remove();
+
+            if(!is_server) { // discard messages while not yet server (i.e., until JOIN has returned)
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": message " + msg.getSrc() + "::" + hdr.seqno + " was discarded (not yet server)");
+                continue;
+            }
+
+            if(hdr.type == NakAckHeader2.MSG && sender != null && sender.equals(msg.getSrc())) {
+                if(msgs == null)
+                    msgs=new ArrayList<Tuple<Long,Message>>(batch.capacity());
+                msgs.add(new Tuple<Long,Message>(hdr.seqno, msg));
+            }
+            else // XMIT_REQ, XMIT_RSP or a message whose sender is different from the batch's sender
+                up(new Event(Event.MSG, msg));
+        }
+
+        if(msgs != null)
+            handleMessages(sender, msgs, batch.clusterName());
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+
     // ProbeHandler interface
     public Map<String, String> handleProbe(String... keys) {
         Map<String,String> retval=new HashMap<String,String>();
@@ -654,6 +726,65 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             }
         }
 
+        removeAndPassUp(buf, sender, loopback, null);
+    }
+
+
+    /**
+     * Adds a list of messages from the same sender to the sender's table (acquiring the table's lock only once) and
+     * passes the deliverable messages up as batches
+     * @param sender The sender of all messages in msgs
+     * @param msgs A list of seqno/message pairs
+     * @param cluster_name The name of the cluster, passed on to the batches sent up. May be null
+     */
+    protected void handleMessages(Address sender, List<Tuple<Long,Message>> msgs, String cluster_name) {
+        RingBuffer<Message> buf=xmit_table.get(sender);
+        if(buf == null) {  // discard messages if there is no entry for sender
+            if(leaving)
+                return;
+            if(log.isWarnEnabled() && log_discard_msgs)
+                log.warn(local_addr + ": dropped " + msgs.size() + " messages from " + sender +
+                           " (sender not in table " + xmit_table.keySet() +"), view=" + view);
+            return;
+        }
+
+        boolean loopback=local_addr.equals(sender);
+        MessageBatch oob_batch=null;
+        if(loopback) { // our own messages have already been added to the table when sent
+            for(Tuple<Long,Message> tuple: msgs) {
+                Message msg=tuple.getVal2();
+                if(msg.isFlagSet(Message.OOB)) {
+                    msg=buf.get(tuple.getVal1());
+                    if(msg != null && msg.isFlagSet(Message.OOB) && msg.setTransientFlagIfAbsent(Message.OOB_DELIVERED))
+                        oob_batch=addToBatch(oob_batch, msg, sender, cluster_name, msgs.size());
+                }
+            }
+        }
+        else {
+            List<Message> added=buf.add(msgs);
+            if(added != null) {
+                if(log.isTraceEnabled())
+                    log.trace(new StringBuilder().append(local_addr).append(": received ").append(added.size()).
+                                append(" messages from ").append(sender));
+                for(Message msg: added)
+                    if(msg.isFlagSet(Message.OOB) && msg.setTransientFlagIfAbsent(Message.OOB_DELIVERED))
+                        oob_batch=addToBatch(oob_batch, msg, sender, cluster_name, added.size());
+            }
+        }
+
+        // OOB msgs are passed up. When removed, we discard them. Affects ordering: http://jira.jboss.com/jira/browse/JGRP-379
+        if(oob_batch != null)
+            up_prot.up(oob_batch);
+
+        removeAndPassUp(buf, sender, loopback, cluster_name);
+    }
+
+
+    /**
+     * Removes as many messages as possible from buf and passes them up as batches. Only one thread at a time can
+     * remove messages from a given sender's table
+     */
+    protected void removeAndPassUp(RingBuffer<Message> buf, Address sender, boolean loopback, String cluster_name) {
         // Efficient way of checking whether another thread is already processing messages from 'sender'.
         // If that's the case, we return immediately and let the existing thread process our message
         // (https://jira.jboss.org/jira/browse/JGRP-829). Benefit: fewer threads blocked on the same lock, these threads
@@ -663,31 +794,39 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             return;
         }
 
-        boolean remove_msgs=discard_delivered_msgs && !loopback;
+        boolean retain=!(discard_delivered_msgs && !loopback);
+        // retained messages are removed from buf, too, if they're moved to the off-heap store
+        boolean store_msgs=retain && xmit_store != null, remove_msgs=!retain || store_msgs;
         boolean released_processing=false;
+        final List<Message> msgs=new ArrayList<Message>(max_msg_batch_size > 0? max_msg_batch_size : 20);
         try {
             while(true) {
                 // we're removing a msg and set processing to false (if null) *atomically* (wrt to add())
-                List<Message> msgs=buf.removeMany(processing, remove_msgs, max_msg_batch_size);
-                if(msgs == null || msgs.isEmpty()) {
+                msgs.clear();
+                if(buf.removeMany(msgs, processing, remove_msgs, max_msg_batch_size) == 0) {
                     released_processing=true;
                     if(rebroadcasting)
                         checkForRebroadcasts();
                     return;
                 }
 
+                if(store_msgs)
+                    storeMessages(sender, msgs);
+
+                MessageBatch batch=new MessageBatch(null, sender, cluster_name, true, msgs.size());
                 for(final Message msg_to_deliver: msgs) {
                     // discard OOB msg if it has already been delivered (http://jira.jboss.com/jira/browse/JGRP-379)
                     if(msg_to_deliver.isFlagSet(Message.OOB) && !msg_to_deliver.setTransientFlagIfAbsent(Message.OOB_DELIVERED))
                         continue;
-
-                    //msg_to_deliver.removeHeader(getName()); // Changed by bela Jan 29 2003: not needed (see above)
-                    try {
-                        up_prot.up(new Event(Event.MSG, msg_to_deliver));
-                    }
-                    catch(Throwable t) {
-                        log.error("couldn't deliver message " + msg_to_deliver, t);
-                    }
+                    batch.add(msg_to_deliver);
+                }
+                if(batch.isEmpty())
+                    continue;
+                try {
+                    up_prot.up(batch);
+                }
+                catch(Throwable t) {
+                    log.error("couldn't deliver batch " + batch, t);
                 }
             }
         }
@@ -700,6 +839,27 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
 
+    /** Moves delivered messages to the off-heap store, where they're kept until they're stable */
+    protected void storeMessages(Address sender, List<Message> msgs) {
+        for(Message msg: msgs) {
+            NakAckHeader2 hdr=(NakAckHeader2)msg.getHeader(id);
+            try {
+                xmit_store.add(sender, hdr.seqno, msg);
+            }
+            catch(Throwable t) {
+                log.error("failed storing message " + sender + "::" + hdr.seqno + " off-heap", t);
+            }
+        }
+    }
+
+
+    protected static MessageBatch addToBatch(MessageBatch batch, Message msg, Address sender, String cluster_name, int capacity) {
+        if(batch == null)
+            batch=new MessageBatch(null, sender, cluster_name, true, capacity);
+        return batch.add(msg);
+    }
+
+
 
     /**
      * Retransmits messsages first_seqno to last_seqno from original_sender from xmit_table to xmit_requester,
@@ -739,6 +899,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
         for(long i: missing_msgs) {
             Message msg=buf.get(i);
+            if(msg == null && xmit_store != null)
+                msg=getStoredMessage(original_sender, i);
             if(msg == null) {
                 if(log.isWarnEnabled() && log_not_found_msgs && !local_addr.equals(xmit_requester)) {
                     StringBuilder sb=new StringBuilder();
@@ -760,6 +922,17 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
 
 
+    protected Message getStoredMessage(Address sender, long seqno) {
+        try {
+            return xmit_store.get(sender, seqno);
+        }
+        catch(Throwable t) {
+            log.error("failed reading message " + sender + "::" + seqno + " from off-heap store", t);
+            return null;
+        }
+    }
+
+
     protected void cancelRebroadcasting() {
         rebroadcast_lock.lock();
         try {
@@ -925,6 +1098,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 RingBuffer<Message> buf=xmit_table.remove(member);
                 if(buf != null) {
                     buf.destroy();
+                    if(xmit_store != null)
+                        xmit_store.remove(member);
                     if(log.isDebugEnabled())
                         log.debug("removed " + member + " from xmit_table (not member anymore)");
                 }
@@ -1005,6 +1180,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 }
                 xmit_table.remove(member);
                 buf.destroy(); // stops retransmission
+                if(xmit_store != null)
+                    xmit_store.remove(member);
             }
             buf=createRingBuffer(highest_delivered_seqno);
             xmit_table.put(member, buf);
@@ -1049,6 +1226,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
                 xmit_table.remove(member);
                 buf.destroy(); // stops retransmission
+                if(xmit_store != null)
+                    xmit_store.remove(member);
                 // to get here, merge must be false !
                 if(member.equals(local_addr)) { // Adjust the seqno: https://jira.jboss.org/browse/JGRP-1251
                     seqno_lock.lock();
@@ -1074,7 +1253,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
 
     protected RingBuffer<Message> createRingBuffer(long initial_seqno) {
-        return new RingBuffer<Message>(xmit_buf_size, initial_seqno);
+        return use_lockless_ring_buffer? new RingBufferLockless<Message>(xmit_buf_size, initial_seqno)
+          : new RingBuffer<Message>(xmit_buf_size, initial_seqno);
     }
 
 
@@ -1138,6 +1318,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             // delete *delivered* msgs that are stable
             if(buf != null)
                 buf.stable(high_seqno_delivered);  // delete all messages with seqnos <= seqno
+            if(xmit_store != null)
+                xmit_store.purge(member, high_seqno_delivered);
         }
     }
 
@@ -1195,6 +1377,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         for(RingBuffer<Message> buf: xmit_table.values())
             buf.destroy();
         xmit_table.clear();
+        if(xmit_store != null)
+            xmit_store.clear();
     }
 
 
@@ -5,6 +5,7 @@ import org.jgroups.*;
 import org.jgroups.annotations.*;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.Digest;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.MutableDigest;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
@@ -35,6 +36,11 @@ import java.util.concurrent.locks.ReentrantLock;
  * New: when <code>max_bytes</code> is exceeded (unless disabled by setting it
  * to 0), a STABLE task will be started (unless it is already running). Design
  * in docs/design/STABLE.txt
+ * <p>
+ * For large clusters, STABLE messages can be sent to the coordinator only
+ * (<code>send_stable_msgs_to_coord_only</code>), which aggregates them and multicasts
+ * the STABILITY message, and STABLE messages can contain only the entries which
+ * changed since the last STABILITY message (<code>use_delta_digests</code>).
  * 
  * @author Bela Ban
  */
@@ -74,6 +80,14 @@ public class STABLE extends Protocol {
       "Only used if ergonomics is enabled. 0 disables setting max_bytes dynamically.")
     protected double cap=0.10; // 10% of the max heap by default
 
+    @Property(description="Sends STABLE messages only to the coordinator, which aggregates them and multicasts the " +
+      "STABILITY message. Reduces the number of STABLE messages received by every member from N to 1 per round")
+    protected boolean send_stable_msgs_to_coord_only=false;
+
+    @Property(description="Sends only the digest entries which changed since the last STABILITY message. The first " +
+      "STABLE message after a view change, and after a STABILITY message was missed, contains the full digest")
+    protected boolean use_delta_digests=false;
+
     
     /* --------------------------------------------- JMX  ---------------------------------------------- */
 
@@ -81,6 +95,8 @@ public class STABLE extends Protocol {
     private int num_stable_msgs_received=0;
     private int num_stability_msgs_sent=0;
     private int num_stability_msgs_received=0;
+    private int num_delta_msgs_sent=0;
+    private int num_delta_msgs_dropped=0;
 
     
     /* --------------------------------------------- Fields ------------------------------------------------------ */
@@ -101,6 +117,19 @@ public class STABLE extends Protocol {
     @GuardedBy("lock")
     private final Set<Address> votes=new HashSet<Address>();
 
+    /** The digest of the last STABILITY message, against which deltas are computed. Null after a view change */
+    @GuardedBy("lock")
+    private Digest stability_base=null;
+
+    /** Identifies stability_base; sent with every delta, so that receivers with a different base drop the delta */
+    @GuardedBy("lock")
+    private long stability_base_id=0;
+
+    /** Whether a delta against stability_base has already been sent. Subsequent STABLE messages carry the full
+     * digest, so that a lost delta (or a base the receivers don't have) doesn't prevent stability */
+    @GuardedBy("lock")
+    private boolean delta_sent=false;
+
     private final Lock lock=new ReentrantLock();
 
     @GuardedBy("stability_lock")
@@ -163,6 +192,10 @@ public class STABLE extends Protocol {
     public int getStabilitySent() {return num_stability_msgs_sent;}
     @ManagedAttribute
     public int getStabilityReceived() {return num_stability_msgs_received;}
+    @ManagedAttribute(description="Number of STABLE messages sent with a delta digest")
+    public int getDeltaSent() {return num_delta_msgs_sent;}
+    @ManagedAttribute(description="Number of delta STABLE messages dropped as they didn't match our base digest")
+    public int getDeltaDropped() {return num_delta_msgs_dropped;}
 
     @ManagedAttribute
     public boolean getStableTaskRunning() {
@@ -178,6 +211,7 @@ public class STABLE extends Protocol {
     public void resetStats() {
         super.resetStats();
         num_stability_msgs_received=num_stability_msgs_sent=num_stable_msgs_sent=num_stable_msgs_received=0;
+        num_delta_msgs_sent=num_delta_msgs_dropped=0;
     }
 
 
@@ -248,6 +282,11 @@ public class STABLE extends Protocol {
             case StableHeader.STABLE_GOSSIP:
                 handleStableMessage(msg.getSrc(), hdr.stableDigest);
                 break;
+            case StableHeader.STABLE_GOSSIP_DELTA:
+                Digest d=applyDelta(hdr.stableDigest, hdr.base_id);
+                if(d != null)
+                    handleStableMessage(msg.getSrc(), d);
+                break;
             case StableHeader.STABILITY:
                 handleStabilityMessage(hdr.stableDigest, msg.getSrc());
                 break;
@@ -265,38 +304,57 @@ public class STABLE extends Protocol {
         return up_prot.up(evt);
     }
 
+    /** Handles STABLE messages individually and adds the bytes of all other messages with a single lock acquisition */
+    public void up(MessageBatch batch) {
+        long bytes=0;
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            if(msg.getHeader(this.id) != null) {
+                it.remove();
+                up(new Event(Event.MSG, msg));
+            }
+            else if(msg.getDest() == null)
+                bytes+=msg.getLength();
+        }
+        if(max_bytes > 0 && bytes > 0)
+            handleRegularBytes(bytes);
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+
 
 
     private void handleRegularMessage(Message msg) {
         // only if message counting is enabled, and only for multicast messages
         // fixes http://jira.jboss.com/jira/browse/JGRP-233
-        if(max_bytes <= 0)
-            return;
-        Address dest=msg.getDest();
-        if(dest == null) {
-            boolean send_stable_msg=false;
-            received.lock();
-            try {
-                num_bytes_received+=msg.getLength();
-                if(num_bytes_received >= max_bytes) {
-                    if(log.isTraceEnabled()) {
-                        log.trace(new StringBuilder("max_bytes has been reached (").append(max_bytes).
-                                append(", bytes received=").append(num_bytes_received).append("): triggers stable msg"));
-                    }
-                    num_bytes_received=0;
-                    send_stable_msg=true;
+        if(max_bytes > 0 && msg.getDest() == null)
+            handleRegularBytes(msg.getLength());
+    }
+
+    private void handleRegularBytes(long bytes) {
+        boolean send_stable_msg=false;
+        received.lock();
+        try {
+            num_bytes_received+=bytes;
+            if(num_bytes_received >= max_bytes) {
+                if(log.isTraceEnabled()) {
+                    log.trace(new StringBuilder("max_bytes has been reached (").append(max_bytes).
+                            append(", bytes received=").append(num_bytes_received).append("): triggers stable msg"));
                 }
+                num_bytes_received=0;
+                send_stable_msg=true;
             }
-            finally {
-                received.unlock();
-            }
+        }
+        finally {
+            received.unlock();
+        }
 
-            if(send_stable_msg) {
-                Digest my_digest=getDigest();  // asks the NAKACK protocol for the current digest,
-                if(log.isTraceEnabled())
-                    log.trace("setting latest_local_digest from NAKACK: " + my_digest.printHighestDeliveredSeqnos());
-                sendStableMessage(my_digest);
-            }
+        if(send_stable_msg) {
+            Digest my_digest=getDigest();  // asks the NAKACK protocol for the current digest,
+            if(log.isTraceEnabled())
+                log.trace("setting latest_local_digest from NAKACK: " + my_digest.printHighestDeliveredSeqnos());
+            sendStableMessage(my_digest);
         }
     }
 
@@ -353,6 +411,7 @@ public class STABLE extends Protocol {
         lock.lock();
         try {
             resetDigest();
+            stability_base=null;
             if(!initialized)
                 initialized=true;
 
@@ -561,6 +620,12 @@ public class STABLE extends Protocol {
             return;
         }
 
+        if(send_stable_msgs_to_coord_only && !isCoord()) {
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": STABLE message from " + sender + " will not be handled as I'm not the coordinator");
+            return;
+        }
+
         Digest copy=null;
         lock.lock();
         try {
@@ -624,6 +689,11 @@ public class STABLE extends Protocol {
             }
             num_stability_msgs_received++;
             resetDigest();
+            if(use_delta_digests) {
+                stability_base=stable_digest;
+                stability_base_id=digestId(stable_digest);
+                delta_sent=false;
+            }
         }
         finally {
             lock.unlock();
@@ -649,12 +719,18 @@ public class STABLE extends Protocol {
         }
 
         if(d != null && d.size() > 0) {
+            StableHeader hdr=use_delta_digests? createDelta(d) : null;
+            if(hdr == null)
+                hdr=new StableHeader(StableHeader.STABLE_GOSSIP, d);
+            else
+                num_delta_msgs_sent++;
             if(log.isTraceEnabled())
-                log.trace(local_addr + ": sending stable msg " + d.printHighestDeliveredSeqnos());
+                log.trace(local_addr + ": sending stable msg " + hdr.stableDigest.printHighestDeliveredSeqnos() +
+                            (hdr.type == StableHeader.STABLE_GOSSIP_DELTA? " (delta)" : ""));
             num_stable_msgs_sent++;
-            final Message msg=new Message(); // mcast message
+            Address dest=send_stable_msgs_to_coord_only? getCoord() : null;
+            final Message msg=new Message(dest); // mcast message, or unicast to the coordinator
             msg.setFlag(Message.OOB, Message.Flag.NO_RELIABILITY);
-            StableHeader hdr=new StableHeader(StableHeader.STABLE_GOSSIP, d);
             msg.putHeader(this.id, hdr);
 
             Runnable r=new Runnable() {
@@ -692,8 +768,8 @@ public class STABLE extends Protocol {
 
         // give other members a chance to mcast STABILITY message. if we receive STABILITY by the end of
         // our random sleep, we will not send the STABILITY msg. this prevents that all mbrs mcast a
-        // STABILITY msg at the same time
-        delay=Util.random(stability_delay);
+        // STABILITY msg at the same time. The coordinator is the only sender if STABLE msgs are sent only to it
+        delay=send_stable_msgs_to_coord_only? 0 : Util.random(stability_delay);
         if(log.isTraceEnabled()) log.trace(local_addr + ": sending stability msg (in " + delay + " ms) " + tmp.printHighestDeliveredSeqnos() +
         " (copy=" + tmp.hashCode() + ")");
         startStabilityTask(tmp, delay);
@@ -704,6 +780,74 @@ public class STABLE extends Protocol {
         return (Digest)down_prot.down(Event.GET_DIGEST_EVT);
     }
 
+    private Address getCoord() {
+        synchronized(mbrs) {
+            return mbrs.isEmpty()? null : mbrs.iterator().next();
+        }
+    }
+
+    private boolean isCoord() {
+        Address coord=getCoord();
+        return coord != null && coord.equals(local_addr);
+    }
+
+    /**
+     * Creates a STABLE header with the entries of d which differ from the digest of the last STABILITY message.
+     * Returns null if the full digest has to be sent: when there is no base, the base has different members, or a
+     * delta against the base has already been sent
+     */
+    private StableHeader createDelta(Digest d) {
+        lock.lock();
+        try {
+            if(stability_base == null || delta_sent || !stability_base.sameSenders(d))
+                return null;
+            MutableDigest delta=new MutableDigest(d.size());
+            for(Digest.DigestEntry entry: d) {
+                long[] base=stability_base.get(entry.getMember());
+                if(base[0] != entry.getHighestDeliveredSeqno() || base[1] != entry.getHighestReceivedSeqno())
+                    delta.add(entry.getMember(), entry.getHighestDeliveredSeqno(), entry.getHighestReceivedSeqno());
+            }
+            delta_sent=true;
+            return new StableHeader(StableHeader.STABLE_GOSSIP_DELTA, delta, stability_base_id);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the full digest for a delta, or null if the delta was computed against a different base */
+    private Digest applyDelta(Digest delta, long base_id) {
+        lock.lock();
+        try {
+            if(stability_base == null || base_id != stability_base_id) {
+                num_delta_msgs_dropped++;
+                return null;
+            }
+            MutableDigest retval=new MutableDigest(stability_base);
+            for(Digest.DigestEntry entry: delta) {
+                if(!retval.contains(entry.getMember())) {
+                    num_delta_msgs_dropped++;
+                    return null;
+                }
+                retval.setHighestDeliveredAndSeenSeqnos(entry.getMember(), entry.getHighestDeliveredSeqno(),
+                                                        entry.getHighestReceivedSeqno());
+            }
+            return retval;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Computes an ID for a stability digest. As the seqnos of successive stability digests increase, different
+     * digests in the same view have different IDs */
+    private static long digestId(Digest d) {
+        long id=0;
+        for(Digest.DigestEntry entry: d)
+            id+=entry.getHighestDeliveredSeqno() + entry.getHighestReceivedSeqno();
+        return id;
+    }
+
 
     /* ------------------------------------End of Private Methods ------------------------------------- */
 
@@ -716,10 +860,12 @@ public class STABLE extends Protocol {
     public static class StableHeader extends Header {
         public static final int STABLE_GOSSIP=1;
         public static final int STABILITY=2;
+        public static final int STABLE_GOSSIP_DELTA=3;
 
         int type=0;
         // Digest digest=new Digest();  // used for both STABLE_GOSSIP and STABILITY message
         Digest stableDigest=null; // changed by Bela April 4 2004
+        long base_id=0; // the ID of the digest against which the delta was computed (STABLE_GOSSIP_DELTA only)
 
         public StableHeader() {
         }
@@ -730,6 +876,11 @@ public class STABLE extends Protocol {
             this.stableDigest=digest;
         }
 
+        public StableHeader(int type, Digest digest, long base_id) {
+            this(type, digest);
+            this.base_id=base_id;
+        }
+
 
         static String type2String(int t) {
             switch(t) {
@@ -737,6 +888,8 @@ public class STABLE extends Protocol {
                     return "STABLE_GOSSIP";
                 case STABILITY:
                     return "STABILITY";
+                case STABLE_GOSSIP_DELTA:
+                    return "STABLE_GOSSIP_DELTA";
                 default:
                     return "<unknown>";
             }
@@ -755,17 +908,23 @@ public class STABLE extends Protocol {
             int retval=Global.INT_SIZE + Global.BYTE_SIZE; // type + presence for digest
             if(stableDigest != null)
                 retval+=stableDigest.serializedSize();
+            if(type == STABLE_GOSSIP_DELTA)
+                retval+=Util.size(base_id);
             return retval;
         }
 
         public void writeTo(DataOutput out) throws Exception {
             out.writeInt(type);
             Util.writeStreamable(stableDigest, out);
+            if(type == STABLE_GOSSIP_DELTA)
+                Util.writeLong(base_id, out);
         }
 
         public void readFrom(DataInput in) throws Exception {
             type=in.readInt();
             stableDigest=(Digest)Util.readStreamable(Digest.class, in);
+            if(type == STABLE_GOSSIP_DELTA)
+                base_id=Util.readLong(in);
         }
     }
 
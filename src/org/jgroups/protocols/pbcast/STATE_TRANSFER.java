@@ -178,6 +178,10 @@ public class STATE_TRANSFER extends Protocol {
         return up_prot.up(evt);
     }
 
+    protected boolean accept(Message msg) {
+        return msg.getHeader(this.id) != null;
+    }
+
     public Object down(Event evt) {
         switch(evt.getType()) {
 
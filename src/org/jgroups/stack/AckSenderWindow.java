@@ -7,6 +7,7 @@ import org.jgroups.Global;
 import org.jgroups.Message;
 import org.jgroups.util.TimeScheduler;
 
+import java.util.Map;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 
@@ -26,7 +27,8 @@ public class AckSenderWindow implements Retransmitter.RetransmitCommand {
     private Interval                          interval=new StaticInterval(400,800,1200,1600);
     private final DefaultRetransmitter        retransmitter;
     private long                              lowest=Global.DEFAULT_FIRST_UNICAST_SEQNO; // lowest seqno, used by ack()
-    private long                              highest=0;
+    private volatile long                     highest=0;
+    private long                              highest_at_last_xmit=0; // used by retransmitUnacked()
 
 
     public interface RetransmitCommand {
@@ -41,17 +43,19 @@ public class AckSenderWindow implements Retransmitter.RetransmitCommand {
     }
 
     public AckSenderWindow(RetransmitCommand com, Interval interval, TimeScheduler sched) {
-        retransmit_command = com;
-        this.interval = interval;
-        retransmitter = new DefaultRetransmitter(null, this, sched);
-        retransmitter.setRetransmitTimeouts(interval);
+        this(com, interval, sched, null);
     }
 
+    /**
+     * Creates an instance with a retransmitter. If sched is null, no retransmitter is created and unacked messages
+     * have to be retransmitted by calling {@link #retransmitUnacked()} periodically
+     */
     public AckSenderWindow(RetransmitCommand com, Interval interval, TimeScheduler sched, Address sender) {
         retransmit_command = com;
         this.interval = interval;
-        retransmitter = new DefaultRetransmitter(sender, this, sched);
-        retransmitter.setRetransmitTimeouts(interval);
+        retransmitter = sched != null? new DefaultRetransmitter(sender, this, sched) : null;
+        if(retransmitter != null)
+            retransmitter.setRetransmitTimeouts(interval);
     }
 
     /**
@@ -118,6 +122,21 @@ public class AckSenderWindow implements Retransmitter.RetransmitCommand {
     }
 
 
+    /**
+     * Retransmits all unacked messages which were already present at the time of the previous call. Messages added
+     * since then are likely still in transit and will be retransmitted on the next call, if still unacked. Used instead
+     * of a retransmitter by a task which periodically sweeps all windows; not to be called concurrently
+     */
+    public void retransmitUnacked() {
+        long to=highest_at_last_xmit;
+        highest_at_last_xmit=highest;
+        if(retransmit_command == null || msgs.isEmpty())
+            return;
+        for(Map.Entry<Long,Message> entry: msgs.headMap(to, true).entrySet())
+            retransmit_command.retransmit(entry.getKey(), entry.getValue());
+    }
+
+
     /** Returns the message with the lowest seqno */
     public synchronized Message getLowestMessage() {
         return msgs.get(lowest);
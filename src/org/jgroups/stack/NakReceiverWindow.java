@@ -9,8 +9,11 @@ import org.jgroups.annotations.GuardedBy;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.util.RetransmitTable;
+import org.jgroups.util.SeqnoList;
 import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.Tuple;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -136,7 +139,8 @@ public class NakReceiverWindow {
     }
 
     public void setRetransmitTimeouts(Interval timeouts) {
-        retransmitter.setRetransmitTimeouts(timeouts);
+        if(retransmitter != null)
+            retransmitter.setRetransmitTimeouts(timeouts);
     }
 
     public void setXmitStaggerTimeout(long timeout) {
@@ -180,10 +184,64 @@ public class NakReceiverWindow {
      * @return True if the message was added successfully, false otherwise (e.g. duplicate message)
      */
     public boolean add(final long seqno, final Message msg) {
-        long old_next, next_to_add;
-        boolean missing_msg_received=false;
+        boolean added, missing_msg_received;
+        lock.writeLock().lock();
+        try {
+            missing_msg_received=seqno <= highest_received; // case #3, provided the message is added
+            added=_add(seqno, msg);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        if(added && missing_msg_received && listener != null) {
+            try {listener.missingMessageReceived(seqno, msg.getSrc());} catch(Throwable t) {}
+        }
+        return added;
+    }
+
 
+    /**
+     * Adds a batch of messages, acquiring the lock only once. Every message is added according to the rules of
+     * {@link #add(long, org.jgroups.Message)}
+     * @param msgs A list of seqno/message pairs
+     * @return The messages which were added, in the order of msgs, or null if none of the messages were added
+     */
+    public List<Message> add(final List<Tuple<Long,Message>> msgs) {
+        List<Message> retval=null;
+        List<Tuple<Long,Message>> missing=null;
         lock.writeLock().lock();
+        try {
+            for(Tuple<Long,Message> tuple: msgs) {
+                long seqno=tuple.getVal1();
+                Message msg=tuple.getVal2();
+                boolean missing_msg_received=seqno <= highest_received;
+                if(!_add(seqno, msg))
+                    continue;
+                if(retval == null)
+                    retval=new ArrayList<Message>(msgs.size());
+                retval.add(msg);
+                if(missing_msg_received && listener != null) {
+                    if(missing == null)
+                        missing=new LinkedList<Tuple<Long,Message>>();
+                    missing.add(tuple);
+                }
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        if(missing != null) {
+            for(Tuple<Long,Message> tuple: missing) {
+                try {listener.missingMessageReceived(tuple.getVal1(), tuple.getVal2().getSrc());} catch(Throwable t) {}
+            }
+        }
+        return retval;
+    }
+
+
+    @GuardedBy("lock")
+    protected boolean _add(final long seqno, final Message msg) {
+        long old_next, next_to_add;
         try {
             if(!running)
                 return false;
@@ -210,8 +268,8 @@ public class NakReceiverWindow {
                 Message existing=xmit_table.putIfAbsent(seqno, msg);
                 if(existing != null)
                     return false; // key/value was present
-                retransmitter.remove(seqno);
-                missing_msg_received=true;
+                if(retransmitter != null)
+                    retransmitter.remove(seqno);
 
                 if(log.isTraceEnabled())
                     log.trace(new StringBuilder("added missing msg ").append(msg.getSrc()).append('#').append(seqno));
@@ -221,7 +279,8 @@ public class NakReceiverWindow {
             // Case #4: we received a seqno higher than expected: add to Retransmitter
             if(seqno > next_to_add) {
                 xmit_table.put(seqno, msg);
-                retransmitter.add(old_next, seqno -1);
+                if(retransmitter != null)
+                    retransmitter.add(old_next, seqno -1);
                 if(listener != null) {
                     try {listener.messageGapDetected(next_to_add, seqno, msg.getSrc());} catch(Throwable t) {}
                 }
@@ -230,10 +289,6 @@ public class NakReceiverWindow {
         }
         finally {
             highest_received=Math.max(highest_received, seqno);
-            lock.writeLock().unlock();
-            if(listener != null && missing_msg_received) {
-                try {listener.missingMessageReceived(seqno, msg.getSrc());} catch(Throwable t) {}
-            }
         }
         return true;
     }
@@ -356,7 +411,8 @@ public class NakReceiverWindow {
         lock.writeLock().lock();
         try {
             running=false;
-            retransmitter.reset();
+            if(retransmitter != null)
+                retransmitter.reset();
             xmit_table.clear();
             highest_delivered=highest_received=highest_stability_seqno=0;
         }
@@ -485,6 +541,37 @@ public class NakReceiverWindow {
         }
     }
 
+    /**
+     * Returns the seqnos of all missing messages in range [highest_delivered+1 .. highest_received], or null if no
+     * messages are missing. Used by protocols which retransmit missing messages periodically from a single task,
+     * instead of using a Retransmitter per window (the window is then created with a null RetransmitCommand)
+     */
+    public SeqnoList getMissing() {
+        lock.readLock().lock();
+        try {
+            SeqnoList missing=null;
+            for(long i=highest_delivered+1; i <= highest_received; i++) {
+                if(xmit_table.get(i) != null)
+                    continue;
+                if(missing == null)
+                    missing=new SeqnoList();
+                long end=i;
+                while(end+1 <= highest_received && xmit_table.get(end+1) == null)
+                    end++;
+                if(end == i)
+                    missing.add(i);
+                else {
+                    missing.add(i, end);
+                    i=end;
+                }
+            }
+            return missing;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
     public int getMissingMessages() {
         lock.readLock().lock();
         try {
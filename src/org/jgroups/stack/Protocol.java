@@ -4,6 +4,7 @@ package org.jgroups.stack;
 
 
 import org.jgroups.Event;
+import org.jgroups.Message;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.conf.ClassConfigurator;
@@ -11,6 +12,7 @@ import org.jgroups.jmx.ResourceDMBean;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.protocols.TP;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.SocketFactory;
 import org.jgroups.util.ThreadFactory;
 import org.jgroups.util.Util;
@@ -359,6 +361,43 @@ public abstract class Protocol {
     }
 
 
+    /**
+     * A batch of messages was received from the layer below. Every message {@link #accept(org.jgroups.Message) accepted}
+     * by this protocol is removed from the batch and passed to {@link #up(org.jgroups.Event)}; the remaining messages
+     * are passed up as a batch. As {@link #accept(org.jgroups.Message)} accepts all messages by default, protocols
+     * which override neither method see individual messages.<p/>
+     * Protocols which can process a batch more efficiently (e.g. by acquiring a lock only once) should override this
+     * method, remove the messages they consumed from the batch and pass the batch up via <code>up_prot.up(batch)</code>
+     * if it is not empty.
+     */
+    public void up(MessageBatch batch) {
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            if(accept(msg)) {
+                it.remove();
+                try {
+                    up(new Event(Event.MSG, msg));
+                }
+                catch(Throwable t) {
+                    log.error("failed passing up message from " + msg.getSrc(), t);
+                }
+            }
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+
+    /**
+     * Returns true if msg needs to be processed by {@link #up(org.jgroups.Event)} when it is received as part of a
+     * batch, or false if this protocol is not interested in msg and it can be passed up with the batch. Protocols
+     * which only handle messages carrying their own header typically return <code>msg.getHeader(id) != null</code>
+     */
+    protected boolean accept(Message msg) {
+        return true;
+    }
+
+
     /**
      * An event is to be sent down the stack. The layer may want to examine its type and perform
      * some action on it, depending on the event's type. If the event is a message MSG, then
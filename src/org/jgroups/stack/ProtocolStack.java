@@ -6,6 +6,7 @@ import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.conf.PropertyConverter;
 import org.jgroups.conf.ProtocolConfiguration;
 import org.jgroups.protocols.TP;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.Tuple;
 import org.jgroups.util.Util;
 
@@ -1015,6 +1016,10 @@ public class ProtocolStack extends Protocol {
         return channel.up(evt);
     }
 
+    public void up(MessageBatch batch) {
+        channel.up(batch);
+    }
+
     public Object down(Event evt) {
         if(top_prot != null)
             return top_prot.down(evt);
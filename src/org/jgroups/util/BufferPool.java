@@ -0,0 +1,170 @@
+package org.jgroups.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte[] buffers, grouped into buckets of power-of-2 sizes (slab sizes). Buffers are handed out as
+ * reference-counted {@link Slab}s; when the last reference to a slab has been released, its buffer is returned to
+ * the bucket it came from. Requests for buffers larger than max_size are served with a new byte[], which is not
+ * returned to the pool.<p/>
+ * A slab which is never released (e.g. because the task referencing it was discarded by a thread pool) is simply
+ * garbage collected; the pool will allocate a new buffer the next time its bucket is empty.
+ * @author agent
+ */
+public class BufferPool {
+    protected final int                     min_size;
+    protected final int                     max_size;
+    protected final int                     max_buffers;
+    protected final Bucket[]                buckets;
+
+    protected final AtomicLong              num_hits=new AtomicLong(0);
+    protected final AtomicLong              num_misses=new AtomicLong(0);
+    protected final AtomicLong              num_unpooled=new AtomicLong(0);
+    protected final AtomicLong              num_releases=new AtomicLong(0);
+
+
+    /**
+     * Creates a new pool
+     * @param min_size The size of the smallest slab; will be rounded up to the next power of 2
+     * @param max_size The size of the biggest slab; will be rounded up to the next power of 2
+     * @param max_buffers The max number of buffers kept in each bucket
+     */
+    public BufferPool(int min_size, int max_size, int max_buffers) {
+        if(min_size <= 0 || max_size < min_size)
+            throw new IllegalArgumentException("min_size (" + min_size + ") has to be > 0 and <= max_size (" + max_size + ")");
+        if(max_buffers <= 0)
+            throw new IllegalArgumentException("max_buffers (" + max_buffers + ") has to be > 0");
+        this.min_size=Util.getNextHigherPowerOfTwo(min_size);
+        this.max_size=Util.getNextHigherPowerOfTwo(max_size);
+        this.max_buffers=max_buffers;
+        int num_buckets=index(this.max_size) + 1;
+        buckets=new Bucket[num_buckets];
+        for(int i=0; i < buckets.length; i++)
+            buckets[i]=new Bucket(max_buffers);
+    }
+
+    public int  getMinSize()     {return min_size;}
+    public int  getMaxSize()     {return max_size;}
+    public int  getMaxBuffers()  {return max_buffers;}
+    public long getNumHits()     {return num_hits.get();}
+    public long getNumMisses()   {return num_misses.get();}
+    public long getNumUnpooled() {return num_unpooled.get();}
+    public long getNumReleases() {return num_releases.get();}
+
+    /** Returns the number of buffers currently available in the pool */
+    public int getNumAvailable() {
+        int retval=0;
+        for(BlockingQueue<byte[]> bucket: buckets)
+            retval+=bucket.size();
+        return retval;
+    }
+
+    public void resetStats() {
+        num_hits.set(0); num_misses.set(0); num_unpooled.set(0); num_releases.set(0);
+    }
+
+    /**
+     * Returns a slab whose buffer has at least size bytes. The slab's reference count is 1; the caller has to
+     * call {@link Slab#release()} when done with it
+     */
+    public Slab acquire(int size) {
+        if(size > max_size) {
+            num_unpooled.incrementAndGet();
+            return new Slab(new byte[size], null);
+        }
+        int idx=index(size);
+        byte[] buf=buckets[idx].poll();
+        if(buf != null)
+            num_hits.incrementAndGet();
+        else {
+            num_misses.incrementAndGet();
+            buf=new byte[min_size << idx];
+        }
+        return new Slab(buf, this);
+    }
+
+    /** Removes all buffers from the pool */
+    public void clear() {
+        for(BlockingQueue<byte[]> bucket: buckets)
+            bucket.clear();
+    }
+
+    public String toString() {
+        return "min_size=" + min_size + ", max_size=" + max_size + ", available=" + getNumAvailable() +
+          ", hits=" + num_hits + ", misses=" + num_misses + ", unpooled=" + num_unpooled;
+    }
+
+    protected void put(byte[] buf) {
+        num_releases.incrementAndGet();
+        int idx=index(buf.length);
+        if((min_size << idx) == buf.length) // only accept buffers of the exact slab size
+            buckets[idx].offer(buf);
+    }
+
+    /** Returns the index of the bucket whose slab size is the smallest size >= size */
+    protected int index(int size) {
+        if(size <= min_size)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros((size - 1) / min_size);
+    }
+
+
+
+    /** The buffers of one slab size. A concrete class, as an array of BlockingQueue<byte[]> cannot be created */
+    protected static class Bucket extends ArrayBlockingQueue<byte[]> {
+        private static final long serialVersionUID=-5328405717813475316L;
+
+        protected Bucket(int capacity) {
+            super(capacity);
+        }
+    }
+
+
+    /**
+     * A reference-counted buffer. The buffer is returned to the pool it was acquired from when the reference count
+     * drops to 0. The buffer must not be accessed after the last release().
+     */
+    public static class Slab {
+        protected final byte[]        buf;
+        protected final BufferPool    pool;
+        protected final AtomicInteger refs=new AtomicInteger(1);
+
+        /** Creates a slab over buf. If pool is null, the buffer is not returned to a pool on release */
+        public Slab(byte[] buf, BufferPool pool) {
+            this.buf=buf;
+            this.pool=pool;
+        }
+
+        public byte[] getBuf()   {return buf;}
+        public int    refCount() {return refs.get();}
+
+        /** Increments the reference count */
+        public Slab retain() {
+            if(refs.getAndIncrement() <= 0)
+                throw new IllegalStateException("slab has already been released");
+            return this;
+        }
+
+        /**
+         * Decrements the reference count and returns the buffer to the pool when the count drops to 0
+         * @return True if this was the last reference, false otherwise
+         */
+        public boolean release() {
+            int count=refs.decrementAndGet();
+            if(count > 0)
+                return false;
+            if(count < 0)
+                throw new IllegalStateException("slab has already been released");
+            if(pool != null)
+                pool.put(buf);
+            return true;
+        }
+
+        public String toString() {
+            return buf.length + " bytes (refs=" + refs.get() + ")";
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.jgroups.util;
+
+/**
+ * Compresses and decompresses byte arrays; used by COMPRESS. Implementations are <em>not</em> required to be thread
+ * safe: COMPRESS uses an instance by only one thread at a time, and pools instances between invocations, so an
+ * implementation can keep state (e.g. a Deflater or a hash table). Instances which are discarded by the pool are
+ * {@link #destroy() destroyed}.<p/>
+ * Every codec has a unique ID, which is shipped with a compressed message, so that receivers can pick the right codec
+ * for decompression. IDs 0-31 are reserved for the codecs shipped with JGroups; custom codecs need a public no-arg
+ * constructor and an ID > 31.
+ * @author agent
+ * @since 3.1
+ */
+public interface Codec {
+
+    /** The ID of this codec, shipped with every message compressed by it */
+    byte getId();
+
+    /** The name of this codec, e.g. "deflate" */
+    String getName();
+
+    /** The max number of bytes {@link #compress(byte[],int,int,byte[],int,int)} may need for length bytes of input */
+    int maxCompressedLength(int length);
+
+    /**
+     * Compresses length bytes of input at offset into output at out_offset, writing at most out_length bytes
+     * @return The number of bytes written to output, or -1 if the compressed data doesn't fit into out_length bytes.
+     * Callers pass an out_length of at least {@link #maxCompressedLength(int)} if they want the compressed data in any
+     * case, or a smaller out_length (e.g. length-1) to bail out early if the data doesn't compress well
+     */
+    int compress(byte[] input, int offset, int length, byte[] output, int out_offset, int out_length) throws Exception;
+
+    /**
+     * Decompresses length bytes of input at offset into output
+     * @param out_length The size of the original (uncompressed) data, as recorded by the sender
+     * @throws Exception If the compressed data is corrupt, or doesn't decompress to exactly out_length bytes
+     */
+    void decompress(byte[] input, int offset, int length, byte[] output, int out_offset, int out_length) throws Exception;
+
+    /** Releases resources held by this codec (e.g. native memory) */
+    void destroy();
+}
@@ -5,12 +5,19 @@ import org.jgroups.annotations.GuardedBy;
 
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Maintains credits for senders, when credits fall below 0, a sender blocks until new credits have been received.
+ * <p/>
+ * Decrementing credits is lock-free as long as enough credits are available: the lowest credits of all members
+ * ({@link #min_credits}) is decremented with a CAS and the decremented credits are added to
+ * {@link #accumulated_credits}, which is subtracted from the individual members lazily (under the lock). The lock is
+ * only acquired when credits are exhausted, and when credits are received, or members are added or removed.
  * @author Bela Ban
  */
 public class CreditMap {
@@ -18,33 +25,49 @@ public class CreditMap {
 
     @GuardedBy("lock")
     protected final Map<Address,Long> credits=new HashMap<Address,Long>();
-    protected long                    min_credits;
-    protected long                    accumulated_credits=0;
+
+    /** The credits available to senders: the lowest credits of all members minus the credits not yet flushed */
+    protected final AtomicLong        min_credits;
+
+    /** Credits decremented from min_credits, but not yet subtracted from the members in credits */
+    protected final AtomicLong        accumulated_credits=new AtomicLong(0);
+
+    /** The lowest credits of all members after the last flush. Changes are applied to min_credits as deltas */
+    @GuardedBy("lock")
+    protected long                    lowest_credits;
+
     protected final Lock              lock=new ReentrantLock();
     protected final Condition         credits_available=lock.newCondition();
-    protected int                     num_blockings=0;
-    protected long                    total_block_time=0;
+    protected final AtomicInteger     num_blockings=new AtomicInteger(0);
+    protected final AtomicLong        total_block_time=new AtomicLong(0);
+    protected final AtomicInteger     num_blocked=new AtomicInteger(0);
 
 
     public CreditMap(long max_credits) {
         this.max_credits=max_credits;
-        min_credits=max_credits;
+        min_credits=new AtomicLong(max_credits);
+        lowest_credits=max_credits;
     }
 
     public long getAccumulatedCredits() {
-        return accumulated_credits;
+        return accumulated_credits.get();
     }
 
     public long getMinCredits() {
-        return min_credits;
+        return min_credits.get();
     }
 
     public int getNumBlockings() {
-        return num_blockings;
+        return num_blockings.get();
     }
 
     public long getTotalBlockTime() {
-        return total_block_time;
+        return total_block_time.get();
+    }
+
+    /** Returns the number of senders currently blocked waiting for credits */
+    public int getNumBlockedSenders() {
+        return num_blocked.get();
     }
 
     public Set<Address> keys() {
@@ -72,11 +95,7 @@ public class CreditMap {
         try {
             Long retval=credits.remove(key);
             flushAccumulatedCredits();
-            long new_min=computeLowestCredit();
-            if(new_min > min_credits) {
-                min_credits=new_min;
-                credits_available.signalAll();
-            }
+            updateLowestCredit();
             return retval;
         }
         finally {
@@ -89,7 +108,11 @@ public class CreditMap {
         try {
             flushAccumulatedCredits();
             Long val=credits.get(key);
-            return val != null? val : credits.put(key, max_credits);
+            if(val != null)
+                return val;
+            credits.put(key, max_credits);
+            updateLowestCredit();
+            return null;
         }
         finally {
             lock.unlock();
@@ -102,7 +125,7 @@ public class CreditMap {
 
         lock.lock();
         try {
-            if(credit_needed > min_credits) {
+            if(credit_needed > min_credits.get()) {
                 flushAccumulatedCredits();
                 for(Map.Entry<Address,Long> entry: credits.entrySet()) {
                     if(entry.getValue().longValue() < credit_needed)
@@ -144,23 +167,28 @@ public class CreditMap {
      * @return True if decrementing credits bytes succeeded, false otherwise 
      */
     public boolean decrement(long credits, long timeout) {
+        if(decrement(credits))
+            return true;
+
+        if(timeout <= 0)
+            return false;
+
         lock.lock();
         try {
+            // credits are only increased with the lock held, so we cannot miss a signal
             if(decrement(credits))
                 return true;
-
-            if(timeout <= 0)
-                return false;
-
             long start=System.currentTimeMillis();
+            num_blocked.incrementAndGet();
             try {
                 credits_available.await(timeout, TimeUnit.MILLISECONDS);
             }
             catch(InterruptedException e) {
             }
             finally {
-                total_block_time+=System.currentTimeMillis() - start;
-                num_blockings++;
+                num_blocked.decrementAndGet();
+                total_block_time.addAndGet(System.currentTimeMillis() - start);
+                num_blockings.incrementAndGet();
             }
             
             return decrement(credits);
@@ -181,15 +209,12 @@ public class CreditMap {
             if(val == null)
                 return;
 
-            boolean potential_update=val.longValue() - accumulated_credits <= min_credits;
-            decrementAndAdd(sender, new_credits);
-            if(potential_update) {
-                long new_min=computeLowestCredit();
-                if(new_min > min_credits) {
-                    min_credits=new_min;
-                    credits_available.signalAll();
-                }
-            }
+            flushAccumulatedCredits();
+            boolean potential_update=credits.get(sender) <= lowest_credits;
+            if(new_credits > 0)
+                credits.put(sender, Math.min(max_credits, credits.get(sender) + new_credits));
+            if(potential_update)
+                updateLowestCredit();
         }
         finally {
             lock.unlock();
@@ -203,7 +228,7 @@ public class CreditMap {
             flushAccumulatedCredits();
             for(Map.Entry<Address,Long> entry: credits.entrySet())
                 entry.setValue(max_credits);
-            min_credits=computeLowestCredit();
+            updateLowestCredit();
             credits_available.signalAll();
         }
         finally {
@@ -215,9 +240,11 @@ public class CreditMap {
     public void clear() {
         lock.lock();
         try {
-            num_blockings=0;
-            total_block_time=0;
+            num_blockings.set(0);
+            total_block_time.set(0);
             credits.clear();
+            flushAccumulatedCredits();
+            updateLowestCredit();
             credits_available.signalAll();
         }
         finally {
@@ -233,6 +260,8 @@ public class CreditMap {
                 sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
             }
             sb.append("min_credits=" + min_credits + ", accumulated=" + accumulated_credits);
+            if(num_blocked.get() > 0)
+                sb.append(", blocked senders=" + num_blocked);
         }
         finally {
             lock.unlock();
@@ -240,14 +269,17 @@ public class CreditMap {
         return sb.toString();
     }
 
-    // need to be called with lock held
+    /** Lock-free: decrements credits from min_credits if enough credits are available */
     protected boolean decrement(long credits) {
-        if(credits <= min_credits) {
-            accumulated_credits+=credits;
-            min_credits-=credits;
-            return true;
+        for(;;) {
+            long current=min_credits.get();
+            if(credits > current)
+                return false;
+            if(min_credits.compareAndSet(current, current - credits)) {
+                accumulated_credits.addAndGet(credits);
+                return true;
+            }
         }
-        return false;
     }
 
     /** Needs to be called with lock held */
@@ -259,48 +291,35 @@ public class CreditMap {
     }
 
     public long computeLowestCreditWithAccumulated() {
-        long lowest=max_credits;
-        for(long cred: credits.values())
-            lowest=Math.min(cred, lowest);
-        return lowest - accumulated_credits;
+        return min_credits.get();
     }
 
     /**
-     * Decrements credits bytes from all elements and add new_credits to member (if non null).
-     * The lowest credit needs to be greater than min_credits. Needs to be called with lock held
-     * @param member The member to which new_credits are added. NOP if null
-     * @param new_credits Number of bytes to add to member. NOP if 0.
+     * Recomputes the lowest credits of all members and adds the difference to min_credits. Senders blocked on
+     * credits are woken up if min_credits increased. Needs to be called with lock held, after flushing the
+     * accumulated credits
      */
-    protected void decrementAndAdd(Address member, long new_credits) {
-        boolean replenish=member != null && new_credits > 0;
-
-        if(accumulated_credits > 0) {
-            for(Map.Entry<Address,Long> entry: this.credits.entrySet()) {
-                entry.setValue(Math.max(0, entry.getValue().longValue() - accumulated_credits));
-                if(replenish) {
-                    Address tmp=entry.getKey();
-                    if(tmp.equals(member))
-                        entry.setValue(Math.min(max_credits, entry.getValue().longValue() + new_credits));
-                }
-            }
-            accumulated_credits=0;
-        }
-        else {
-            if(replenish) {
-                Long val=this.credits.get(member);
-                if(val != null)
-                    this.credits.put(member, Math.min(max_credits, val.longValue() + new_credits));
-            }
-        }
+    protected void updateLowestCredit() {
+        long new_lowest=computeLowestCredit();
+        long delta=new_lowest - lowest_credits;
+        lowest_credits=new_lowest;
+        if(delta != 0)
+            min_credits.addAndGet(delta);
+        if(delta > 0)
+            credits_available.signalAll();
     }
 
-    // Called with lock held
+    /**
+     * Subtracts the accumulated credits from all members. Decrements which updated min_credits but not yet
+     * accumulated_credits are flushed on the next call. Needs to be called with lock held
+     */
     protected void flushAccumulatedCredits() {
-        if(accumulated_credits > 0) {
+        long accumulated=accumulated_credits.getAndSet(0);
+        if(accumulated > 0) {
             for(Map.Entry<Address,Long> entry: this.credits.entrySet()) {
-                entry.setValue(Math.max(0, entry.getValue().longValue() - accumulated_credits));
+                entry.setValue(Math.max(0, entry.getValue().longValue() - accumulated));
             }
-            accumulated_credits=0;
+            lowest_credits=Math.max(0, lowest_credits - accumulated);
         }
     }
 
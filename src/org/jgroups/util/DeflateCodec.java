@@ -0,0 +1,54 @@
+package org.jgroups.util;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec based on java.util.zip's {@link Deflater} and {@link Inflater}. Good compression ratios, but slow at higher
+ * compression levels
+ * @author agent
+ * @since 3.1
+ */
+public class DeflateCodec implements Codec {
+    public static final byte ID=1;
+
+    protected final Deflater deflater;
+    protected final Inflater inflater=new Inflater();
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public DeflateCodec(int level) {
+        deflater=new Deflater(level);
+    }
+
+    public byte   getId()                      {return ID;}
+    public String getName()                    {return "deflate";}
+    public int    maxCompressedLength(int len) {return len + (len >> 12) + (len >> 14) + (len >> 25) + 13;} // see zlib's deflateBound()
+
+    public int compress(byte[] input, int offset, int length, byte[] output, int out_offset, int out_length) throws Exception {
+        deflater.reset();
+        deflater.setInput(input, offset, length);
+        deflater.finish();
+        int size=deflater.deflate(output, out_offset, out_length);
+        return deflater.finished()? size : -1;
+    }
+
+    public void decompress(byte[] input, int offset, int length, byte[] output, int out_offset, int out_length) throws Exception {
+        inflater.reset();
+        inflater.setInput(input, offset, length);
+        int size=inflater.inflate(output, out_offset, out_length);
+        if(size != out_length || !inflater.finished())
+            throw new IllegalStateException("decompressed " + size + " bytes, but expected " + out_length);
+    }
+
+    public void destroy() {
+        deflater.end();
+        inflater.end();
+    }
+
+    public String toString() {
+        return getName();
+    }
+}
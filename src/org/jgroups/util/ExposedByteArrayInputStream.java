@@ -48,6 +48,11 @@ public class ExposedByteArrayInputStream extends ByteArrayInputStream {
         this.mark=offset;
     }
 
+    /** Returns the index of the next byte to be read */
+    public int getPos() {
+        return pos;
+    }
+
 
     public int read() {
         return (pos < count)? (buf[pos++] & 0xff) : -1;
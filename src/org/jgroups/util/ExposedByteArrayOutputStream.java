@@ -30,6 +30,15 @@ public class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
         }
     }
 
+    /** Grows the buffer to at least size bytes, preserving its contents. This method is not synchronized */
+    public void ensureCapacity(int size) {
+        if(buf.length < size) {
+            byte[] tmp=new byte[size];
+            System.arraycopy(buf, 0, tmp, 0, count);
+            buf=tmp;
+        }
+    }
+
     public byte[] getRawBuffer() {
         return buf;
     }
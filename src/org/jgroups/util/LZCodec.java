@@ -0,0 +1,206 @@
+package org.jgroups.util;
+
+import java.util.Arrays;
+
+/**
+ * Fast LZ77 codec, implemented in pure Java. The format is the same as the LZ4 block format: the compressed data is
+ * a number of sequences, each consisting of a token, literals which are copied verbatim, and a match (offset and
+ * length) which copies data which has already been decompressed. The token's high 4 bits are the number of literals,
+ * the low 4 bits the match length minus 4; a value of 15 means that the length continues in the following bytes
+ * (each byte is added to the length, a byte of less than 255 terminates the length). The offset is 2 bytes (little
+ * endian), so matches can refer back at most 64KB. The last sequence has only literals.<p/>
+ * Matches are found with a hash table of 4 byte sequences; only the most recent position of a given hash is kept. This
+ * trades compression ratio for speed: the codec is typically an order of magnitude faster than deflate, at a worse
+ * ratio.
+ * @author agent
+ * @since 3.1
+ */
+public class LZCodec implements Codec {
+    public static final byte   ID=2;
+
+    protected static final int MIN_MATCH=4;
+    protected static final int MAX_OFFSET=0xFFFF;
+    protected static final int LAST_LITERALS=5;           // the last bytes are always literals
+    protected static final int MIN_LENGTH=MIN_MATCH + LAST_LITERALS + 4; // inputs shorter than this are only literals
+    protected static final int RUN_MASK=0x0F;
+
+    protected final int        hash_log;
+
+    /** Last position of a given hash in the input, or -1. Reused between invocations */
+    protected final int[]      table;
+
+
+    public LZCodec() {
+        this(12);
+    }
+
+    /**
+     * Creates an LZCodec
+     * @param hash_log The size of the hash table, as a power of 2. Bigger tables find more matches in big inputs,
+     * but are more expensive to reset for small inputs
+     */
+    public LZCodec(int hash_log) {
+        if(hash_log < 8 || hash_log > 20)
+            throw new IllegalArgumentException("hash_log (" + hash_log + ") has to be in range [8 .. 20]");
+        this.hash_log=hash_log;
+        this.table=new int[1 << hash_log];
+    }
+
+    public byte   getId()                      {return ID;}
+    public String getName()                    {return "lz";}
+    public int    maxCompressedLength(int len) {return len + len / 255 + 16;}
+
+
+    public int compress(byte[] input, int offset, int length, byte[] output, int out_offset, int out_length) throws Exception {
+        final int end=offset + length, out_end=out_offset + out_length;
+        int anchor=offset, op=out_offset;
+
+        if(length >= MIN_LENGTH) {
+            Arrays.fill(table, -1);
+            final int match_limit=end - LAST_LITERALS, input_limit=match_limit - MIN_MATCH;
+            int ip=offset;
+            while(ip <= input_limit) {
+                int seq=readInt(input, ip), h=hash(seq);
+                int ref=table[h];
+                table[h]=ip;
+                if(ref < 0 || ip - ref > MAX_OFFSET || readInt(input, ref) != seq) {
+                    ip+=1 + ((ip - anchor) >>> 6); // skip faster over data that doesn't compress
+                    continue;
+                }
+
+                // extend the match backwards (over literals) and forwards
+                while(ip > anchor && ref > offset && input[ip-1] == input[ref-1]) {
+                    ip--; ref--;
+                }
+                int match_len=MIN_MATCH;
+                while(ip + match_len < match_limit && input[ref + match_len] == input[ip + match_len])
+                    match_len++;
+
+                if((op=writeSequence(input, anchor, ip - anchor, ip - ref, match_len, output, op, out_end)) < 0)
+                    return -1;
+                ip+=match_len;
+                anchor=ip;
+            }
+        }
+
+        // last sequence: literals only
+        int literals=end - anchor;
+        if(op + 1 + literals / 255 + 1 + literals > out_end)
+            return -1;
+        int token_pos=op++;
+        output[token_pos]=(byte)(Math.min(literals, RUN_MASK) << 4);
+        if(literals >= RUN_MASK)
+            op=writeLength(literals - RUN_MASK, output, op);
+        System.arraycopy(input, anchor, output, op, literals);
+        op+=literals;
+        return op - out_offset;
+    }
+
+
+    public void decompress(byte[] input, int offset, int length, byte[] output, int out_offset, int out_length) throws Exception {
+        final int end=offset + length, out_end=out_offset + out_length;
+        int ip=offset, op=out_offset;
+
+        while(ip < end) {
+            int token=input[ip++] & 0xFF;
+
+            // literals
+            int literals=token >>> 4;
+            if(literals == RUN_MASK) {
+                int b;
+                do {
+                    if(ip >= end)
+                        throw new IllegalStateException("corrupt input: literal length at " + (ip - offset));
+                    b=input[ip++] & 0xFF;
+                    literals+=b;
+                }
+                while(b == 255);
+            }
+            if(literals > end - ip || literals > out_end - op)
+                throw new IllegalStateException("corrupt input: " + literals + " literals at " + (ip - offset));
+            System.arraycopy(input, ip, output, op, literals);
+            ip+=literals;
+            op+=literals;
+            if(ip == end)
+                break; // the last sequence has no match
+
+            // match
+            if(ip + 2 > end)
+                throw new IllegalStateException("corrupt input: offset at " + (ip - offset));
+            int match_offset=(input[ip] & 0xFF) | ((input[ip+1] & 0xFF) << 8);
+            ip+=2;
+            int ref=op - match_offset;
+            if(match_offset == 0 || ref < out_offset)
+                throw new IllegalStateException("corrupt input: invalid offset " + match_offset + " at " + (ip - offset));
+
+            int match_len=token & RUN_MASK;
+            if(match_len == RUN_MASK) {
+                int b;
+                do {
+                    if(ip >= end)
+                        throw new IllegalStateException("corrupt input: match length at " + (ip - offset));
+                    b=input[ip++] & 0xFF;
+                    match_len+=b;
+                }
+                while(b == 255);
+            }
+            match_len+=MIN_MATCH;
+            if(match_len > out_end - op)
+                throw new IllegalStateException("corrupt input: match of " + match_len + " bytes exceeds output");
+
+            // byte by byte: the match may overlap with the bytes being written (e.g. runs)
+            for(int i=0; i < match_len; i++)
+                output[op++]=output[ref++];
+        }
+
+        if(op != out_end)
+            throw new IllegalStateException("decompressed " + (op - out_offset) + " bytes, but expected " + out_length);
+    }
+
+    public void destroy() {}
+
+    public String toString() {
+        return getName();
+    }
+
+
+    protected int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - hash_log);
+    }
+
+    protected static int readInt(byte[] buf, int index) {
+        return (buf[index] & 0xFF) | ((buf[index+1] & 0xFF) << 8) | ((buf[index+2] & 0xFF) << 16) | (buf[index+3] << 24);
+    }
+
+    /** Writes a sequence of literals followed by a match, returns the new output position or -1 if output is full */
+    protected static int writeSequence(byte[] input, int literal_offset, int literals, int match_offset, int match_len,
+                                       byte[] output, int op, int out_end) {
+        int len=match_len - MIN_MATCH;
+        // token + literal length + literals + offset + match length
+        if(op + 1 + (literals / 255 + 1) + literals + 2 + (len / 255 + 1) > out_end)
+            return -1;
+
+        int token_pos=op++;
+        int token=(Math.min(literals, RUN_MASK) << 4) | Math.min(len, RUN_MASK);
+        output[token_pos]=(byte)token;
+        if(literals >= RUN_MASK)
+            op=writeLength(literals - RUN_MASK, output, op);
+        System.arraycopy(input, literal_offset, output, op, literals);
+        op+=literals;
+
+        output[op++]=(byte)match_offset;
+        output[op++]=(byte)(match_offset >>> 8);
+        if(len >= RUN_MASK)
+            op=writeLength(len - RUN_MASK, output, op);
+        return op;
+    }
+
+    protected static int writeLength(int len, byte[] output, int op) {
+        while(len >= 255) {
+            output[op++]=(byte)255;
+            len-=255;
+        }
+        output[op++]=(byte)len;
+        return op;
+    }
+}
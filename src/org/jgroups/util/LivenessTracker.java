@@ -0,0 +1,73 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records for each member the time at which the transport last received a message (or message bundle) from it.
+ * Failure detection protocols consult it to treat any traffic as evidence of liveness, so they only need to send
+ * heartbeats when there's no traffic.<p/>
+ * Entries are added and removed on view changes only; recording a received message looks up the sender's entry and
+ * sets its timestamp, without allocating memory.
+ * @author agent
+ * @since 3.1
+ */
+public class LivenessTracker {
+    protected final ConcurrentMap<Address,Entry> entries=Util.createConcurrentMap();
+
+
+    /** Records that a message from sender was received just now. Ignored if sender is not a member */
+    public void heardFrom(Address sender) {
+        if(sender == null)
+            return;
+        Entry entry=entries.get(sender);
+        if(entry != null)
+            entry.update(System.currentTimeMillis());
+    }
+
+    /** Returns the time (ms) at which we last received a message from mbr, or 0 if we haven't (or mbr is unknown) */
+    public long lastHeard(Address mbr) {
+        Entry entry=mbr != null? entries.get(mbr) : null;
+        return entry != null? entry.timestamp : 0;
+    }
+
+    /** Adds entries for new members and removes the entries of members which are not in mbrs */
+    public void setMembers(Collection<Address> mbrs) {
+        entries.keySet().retainAll(mbrs);
+        for(Address mbr: mbrs)
+            if(!entries.containsKey(mbr))
+                entries.putIfAbsent(mbr, new Entry());
+    }
+
+    public int size() {return entries.size();}
+
+    public void clear() {entries.clear();}
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder();
+        long now=System.currentTimeMillis();
+        for(Map.Entry<Address,Entry> entry: entries.entrySet()) {
+            long timestamp=entry.getValue().timestamp;
+            sb.append(entry.getKey()).append(": ");
+            if(timestamp > 0)
+                sb.append(now - timestamp).append(" ms ago\n");
+            else
+                sb.append("n/a\n");
+        }
+        return sb.toString();
+    }
+
+
+    protected static class Entry {
+        protected volatile long timestamp;
+
+        /** Skips the write when messages from the same sender are received within the same ms */
+        protected void update(long now) {
+            if(now > timestamp)
+                timestamp=now;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Represents a number of messages received from the same sender (e.g. a message bundle), which are passed up the
+ * stack as a whole (see {@link org.jgroups.stack.Protocol#up(MessageBatch)}). A protocol processing the batch can
+ * remove (or replace) messages it consumed, and pass the batch up with the remaining messages.<p/>
+ * Removed messages are simply nulled; iteration skips null elements. The class is not thread safe: a batch is only
+ * ever processed by a single thread.
+ * @author agent
+ * @since 3.1
+ */
+public class MessageBatch implements Iterable<Message> {
+    /** The destination of the messages; null if multicast */
+    protected final Address  dest;
+
+    /** The sender of the messages */
+    protected final Address  sender;
+
+    /** The name of the cluster in which the messages were received */
+    protected final String   cluster_name;
+
+    protected final boolean  multicast;
+
+    protected Message[]      messages;
+
+    /** Index of the next message to be added */
+    protected int            index;
+
+
+    public MessageBatch(int capacity) {
+        this(null, null, null, false, capacity);
+    }
+
+    public MessageBatch(Address dest, Address sender, String cluster_name, boolean multicast, int capacity) {
+        this.dest=dest;
+        this.sender=sender;
+        this.cluster_name=cluster_name;
+        this.multicast=multicast;
+        this.messages=new Message[Math.max(capacity, 1)];
+    }
+
+    public MessageBatch(Address dest, Address sender, String cluster_name, boolean multicast, Collection<Message> msgs) {
+        this(dest, sender, cluster_name, multicast, msgs.size());
+        for(Message msg: msgs)
+            messages[index++]=msg;
+    }
+
+    public Address dest()         {return dest;}
+    public Address sender()       {return sender;}
+    public String  clusterName()  {return cluster_name;}
+    public boolean multicast()    {return multicast;}
+    public int     capacity()     {return messages.length;}
+
+    /** Adds a message to the batch, growing the batch if needed */
+    public MessageBatch add(Message msg) {
+        if(msg == null)
+            return this;
+        if(index >= messages.length)
+            messages=Arrays.copyOf(messages, messages.length * 2);
+        messages[index++]=msg;
+        return this;
+    }
+
+    /** Replaces existing_msg with new_msg. A new_msg of null removes existing_msg */
+    public MessageBatch replace(Message existing_msg, Message new_msg) {
+        for(int i=0; i < index; i++) {
+            if(messages[i] == existing_msg) {
+                messages[i]=new_msg;
+                break;
+            }
+        }
+        return this;
+    }
+
+    /** Removes msg from the batch */
+    public MessageBatch remove(Message msg) {
+        return replace(msg, null);
+    }
+
+    /** Removes all messages from the batch */
+    public MessageBatch clear() {
+        Arrays.fill(messages, 0, index, null);
+        index=0;
+        return this;
+    }
+
+    /** Returns the number of (non-null) messages in the batch */
+    public int size() {
+        int retval=0;
+        for(int i=0; i < index; i++)
+            if(messages[i] != null)
+                retval++;
+        return retval;
+    }
+
+    public boolean isEmpty() {
+        for(int i=0; i < index; i++)
+            if(messages[i] != null)
+                return false;
+        return true;
+    }
+
+    /** Returns the sum of the lengths of the payloads of all messages */
+    public long length() {
+        long retval=0;
+        for(int i=0; i < index; i++)
+            if(messages[i] != null)
+                retval+=messages[i].getLength();
+        return retval;
+    }
+
+    /** Iterates over all non-null messages. Iterator.remove() removes the current message from the batch */
+    public Iterator<Message> iterator() {
+        return new BatchIterator();
+    }
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder();
+        sb.append("dest=" + dest);
+        if(sender != null)
+            sb.append(", sender=").append(sender);
+        if(cluster_name != null)
+            sb.append(", cluster=").append(cluster_name);
+        sb.append(", ").append(multicast? "multicast" : "unicast").append(", ").append(size()).append(" msgs");
+        return sb.toString();
+    }
+
+
+    protected class BatchIterator implements Iterator<Message> {
+        protected int current_index=-1;
+
+        public boolean hasNext() {
+            for(int i=current_index+1; i < index; i++)
+                if(messages[i] != null)
+                    return true;
+            return false;
+        }
+
+        public Message next() {
+            for(int i=current_index+1; i < index; i++) {
+                if(messages[i] != null) {
+                    current_index=i;
+                    return messages[i];
+                }
+            }
+            throw new NoSuchElementException();
+        }
+
+        public void remove() {
+            if(current_index < 0 || current_index >= index)
+                throw new IllegalStateException();
+            messages[current_index]=null;
+        }
+    }
+}
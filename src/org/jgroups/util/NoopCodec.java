@@ -0,0 +1,35 @@
+package org.jgroups.util;
+
+/**
+ * Codec which doesn't compress at all, but only copies the data. As the "compressed" data is never smaller than the
+ * original, COMPRESS will never actually use it for a message. Useful to measure the overhead of COMPRESS itself,
+ * or to disable compression without changing the stack
+ * @author agent
+ * @since 3.1
+ */
+public class NoopCodec implements Codec {
+    public static final byte ID=3;
+
+    public byte   getId()                      {return ID;}
+    public String getName()                    {return "none";}
+    public int    maxCompressedLength(int len) {return len;}
+
+    public int compress(byte[] input, int offset, int length, byte[] output, int out_offset, int out_length) throws Exception {
+        if(out_length < length)
+            return -1;
+        System.arraycopy(input, offset, output, out_offset, length);
+        return length;
+    }
+
+    public void decompress(byte[] input, int offset, int length, byte[] output, int out_offset, int out_length) throws Exception {
+        if(length != out_length)
+            throw new IllegalStateException("length (" + length + ") != out_length (" + out_length + ")");
+        System.arraycopy(input, offset, output, out_offset, length);
+    }
+
+    public void destroy() {}
+
+    public String toString() {
+        return getName();
+    }
+}
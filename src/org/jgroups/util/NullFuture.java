@@ -34,7 +34,7 @@ public class NullFuture<T> implements NotifyingFuture<T> {
         return retval;
     }
 
-    public NotifyingFuture setListener(FutureListener<T> listener) {
+    public NotifyingFuture<T> setListener(FutureListener<T> listener) {
         if(listener != null)
             listener.futureDone(this);
         return this;
@@ -0,0 +1,301 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.annotations.GuardedBy;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores copies of messages for retransmission outside of the Java heap. Messages are serialized into segments of
+ * direct memory ({@link ByteBuffer#allocateDirect(int)}); only the seqnos and the offsets of the messages inside
+ * their segments are kept on the heap.<p/>
+ * Every sender has its own log of segments. Messages of a sender have to be added with increasing seqnos; consecutive
+ * seqnos are appended to the current segment, a gap or a full segment starts a new segment. Segments are taken from a
+ * pool shared by all senders, and allocated lazily up to capacity / segment_size segments. When {@link #purge(Address,long)}
+ * is called, segments whose messages are all stable are returned to the pool.<p/>
+ * When the pool is exhausted, or a message is bigger than a segment, the serialized message is kept on the heap
+ * instead (an overflow). This way, a message is never dropped because the store is full.<p/>
+ * Used by NAKACK2 for the copies of delivered messages which are retained until they're stable.
+ * @author agent
+ * @since 3.1
+ */
+public class OffHeapMessageStore {
+    /** Max number of bytes of direct memory used by all segments */
+    protected final long       capacity;
+
+    /** The size of a segment in bytes */
+    protected final int        segment_size;
+
+    /** Max number of segments, computed from capacity and segment_size */
+    protected final int        max_segments;
+
+    /** Segments which have been returned by purge() or remove() and can be reused */
+    @GuardedBy("this")
+    protected final Deque<ByteBuffer> free_segments=new ArrayDeque<ByteBuffer>();
+
+    /** Number of segments allocated so far (in use or free) */
+    @GuardedBy("this")
+    protected int              allocated_segments;
+
+    protected final ConcurrentMap<Address,SenderLog> logs=Util.createConcurrentMap();
+
+    /** Number of messages which couldn't be stored off-heap and were kept on the heap */
+    protected final AtomicLong overflows=new AtomicLong(0);
+
+
+    /**
+     * Creates a store
+     * @param capacity The max number of bytes of direct memory (for all senders)
+     * @param segment_size The size of a segment. Messages whose serialized size is bigger are kept on the heap
+     */
+    public OffHeapMessageStore(long capacity, int segment_size) {
+        if(segment_size <= 0)
+            throw new IllegalArgumentException("segment_size (" + segment_size + ") must be positive");
+        if(capacity < segment_size)
+            throw new IllegalArgumentException("capacity (" + capacity + ") must be >= segment_size (" + segment_size + ")");
+        this.capacity=capacity;
+        this.segment_size=segment_size;
+        this.max_segments=(int)Math.min(Integer.MAX_VALUE, capacity / segment_size);
+    }
+
+    public long getCapacity()                {return capacity;}
+    public int  getSegmentSize()             {return segment_size;}
+    public long getOverflows()               {return overflows.get();}
+    public synchronized int getAllocatedSegments() {return allocated_segments;}
+    public synchronized int getFreeSegments()      {return free_segments.size();}
+
+    /**
+     * Adds a message. Seqnos of a given sender have to be increasing; a seqno which is lower than or equal to the
+     * highest seqno added for that sender is ignored
+     * @return True if the message was added, false if it was ignored
+     */
+    public boolean add(Address sender, long seqno, Message msg) throws Exception {
+        SenderLog log=getLog(sender, true);
+        byte[] buf=Util.streamableToByteBuffer(msg);
+        return log.add(seqno, buf);
+    }
+
+    /** Returns a copy of the message with the given seqno, or null if not found */
+    public Message get(Address sender, long seqno) throws Exception {
+        SenderLog log=getLog(sender, false);
+        if(log == null)
+            return null;
+        byte[] buf=log.get(seqno);
+        return buf == null? null : (Message)Util.streamableFromByteBuffer(Message.class, buf, 0, buf.length);
+    }
+
+    /** Removes all messages of sender with seqnos <= seqno, returning fully purged segments to the pool */
+    public void purge(Address sender, long seqno) {
+        SenderLog log=getLog(sender, false);
+        if(log != null)
+            log.purge(seqno);
+    }
+
+    /** Removes all messages of sender */
+    public void remove(Address sender) {
+        SenderLog log=logs.remove(sender);
+        if(log != null)
+            log.clear();
+    }
+
+    /** Removes all messages of all senders */
+    public void clear() {
+        for(Address sender: new ArrayList<Address>(logs.keySet()))
+            remove(sender);
+    }
+
+    /** Returns the number of bytes retained for sender (off-heap and overflow) */
+    public long bytesRetained(Address sender) {
+        SenderLog log=getLog(sender, false);
+        return log != null? log.bytesRetained() : 0;
+    }
+
+    /** Returns the number of bytes retained for all senders */
+    public long bytesRetained() {
+        long retval=0;
+        for(SenderLog log: logs.values())
+            retval+=log.bytesRetained();
+        return retval;
+    }
+
+    /** Returns the number of messages retained for sender */
+    public int size(Address sender) {
+        SenderLog log=getLog(sender, false);
+        return log != null? log.size() : 0;
+    }
+
+    public String printBytesRetained() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,SenderLog> entry: logs.entrySet()) {
+            SenderLog log=entry.getValue();
+            sb.append(entry.getKey()).append(": ").append(log.bytesRetained()).append(" bytes (")
+              .append(log.size()).append(" msgs, ").append(log.numSegments()).append(" segments)\n");
+        }
+        return sb.toString();
+    }
+
+    public String toString() {
+        return "capacity=" + capacity + ", segment_size=" + segment_size + ", segments=" + getAllocatedSegments() +
+          " (free=" + getFreeSegments() + "), bytes retained=" + bytesRetained() + ", overflows=" + overflows;
+    }
+
+
+    protected SenderLog getLog(Address sender, boolean create) {
+        SenderLog log=logs.get(sender);
+        if(log == null && create) {
+            log=new SenderLog();
+            SenderLog existing=logs.putIfAbsent(sender, log);
+            if(existing != null)
+                log=existing;
+        }
+        return log;
+    }
+
+    /** Returns a free (or newly allocated) segment, or null if all segments are in use */
+    protected synchronized ByteBuffer acquireSegment() {
+        ByteBuffer buf=free_segments.poll();
+        if(buf == null && allocated_segments < max_segments) {
+            buf=ByteBuffer.allocateDirect(segment_size);
+            allocated_segments++;
+        }
+        return buf;
+    }
+
+    protected synchronized void releaseSegment(ByteBuffer buf) {
+        buf.clear();
+        free_segments.add(buf);
+    }
+
+
+    /** A number of consecutive messages, serialized into a direct ByteBuffer */
+    protected static class Segment {
+        protected final ByteBuffer buf;
+        protected final long       first_seqno;
+        protected int              count;
+        protected int[]            offsets=new int[16]; // offsets[i] is the offset of message first_seqno+i
+
+        protected Segment(ByteBuffer buf, long first_seqno) {
+            this.buf=buf;
+            this.first_seqno=first_seqno;
+        }
+
+        protected long    lastSeqno()                 {return first_seqno + count -1;}
+        protected boolean contains(long seqno)        {return seqno >= first_seqno && seqno <= lastSeqno();}
+        protected boolean canAppend(long seqno, int length) {
+            return seqno == first_seqno + count && buf.remaining() >= length;
+        }
+
+        protected void append(byte[] data) {
+            if(count >= offsets.length)
+                offsets=Arrays.copyOf(offsets, offsets.length * 2);
+            offsets[count++]=buf.position();
+            buf.put(data);
+        }
+
+        protected byte[] get(long seqno) {
+            int index=(int)(seqno - first_seqno);
+            int offset=offsets[index], end=index+1 < count? offsets[index+1] : buf.position();
+            byte[] retval=new byte[end - offset];
+            ByteBuffer tmp=buf.duplicate();
+            tmp.position(offset);
+            tmp.get(retval);
+            return retval;
+        }
+    }
+
+
+    /** The segments and overflow messages of a single sender */
+    protected class SenderLog {
+        protected final Deque<Segment>          segments=new ArrayDeque<Segment>();
+        protected final NavigableMap<Long,byte[]> overflow=new TreeMap<Long,byte[]>();
+        protected long                          overflow_bytes;
+        protected long                          highest=-1;  // highest seqno added
+        protected long                          low;         // all seqnos <= low have been purged
+        protected boolean                       closed;      // set by clear(), a closed log doesn't accept messages
+
+        protected synchronized boolean add(long seqno, byte[] data) {
+            if(closed || seqno <= highest || seqno <= low)
+                return false;
+            highest=seqno;
+            if(data.length <= segment_size) {
+                Segment last=segments.peekLast();
+                if(last == null || !last.canAppend(seqno, data.length)) {
+                    ByteBuffer buf=acquireSegment();
+                    last=buf != null? new Segment(buf, seqno) : null;
+                    if(last != null)
+                        segments.add(last);
+                }
+                if(last != null) {
+                    last.append(data);
+                    return true;
+                }
+            }
+            overflow.put(seqno, data);
+            overflow_bytes+=data.length;
+            overflows.incrementAndGet();
+            return true;
+        }
+
+        /** Returns a copy of the serialized message, or null if not found */
+        protected synchronized byte[] get(long seqno) {
+            if(seqno <= low)
+                return null;
+            byte[] data=overflow.get(seqno);
+            if(data != null)
+                return data;
+            // iterate from the end, as most retransmission requests are for recent messages
+            for(Iterator<Segment> it=segments.descendingIterator(); it.hasNext();) {
+                Segment segment=it.next();
+                if(segment.contains(seqno))
+                    return segment.get(seqno);
+                if(segment.lastSeqno() < seqno)
+                    break;
+            }
+            return null;
+        }
+
+        protected synchronized void purge(long seqno) {
+            if(seqno <= low)
+                return;
+            low=seqno;
+            Segment segment;
+            while((segment=segments.peekFirst()) != null && segment.lastSeqno() <= seqno) {
+                segments.poll();
+                releaseSegment(segment.buf);
+            }
+            for(Iterator<byte[]> it=overflow.headMap(seqno, true).values().iterator(); it.hasNext();) {
+                overflow_bytes-=it.next().length;
+                it.remove();
+            }
+        }
+
+        protected synchronized void clear() {
+            closed=true;
+            for(Segment segment: segments)
+                releaseSegment(segment.buf);
+            segments.clear();
+            overflow.clear();
+            overflow_bytes=0;
+        }
+
+        protected synchronized long bytesRetained() {
+            long retval=overflow_bytes;
+            for(Segment segment: segments)
+                retval+=segment.buf.position();
+            return retval;
+        }
+
+        protected synchronized int size() {
+            int retval=overflow.size();
+            for(Segment segment: segments)
+                retval+=segment.count;
+            return retval;
+        }
+
+        protected synchronized int numSegments() {return segments.size();}
+    }
+}
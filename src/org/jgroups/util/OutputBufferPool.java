@@ -0,0 +1,136 @@
+package org.jgroups.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-thread cache of output streams used to marshal messages. Each thread reuses its own buffer, which grows on
+ * demand; a buffer which grew beyond max_size is shrunk back to max_size when it is released.<p/>
+ * Acquisition is reentrant: if a thread acquires a buffer while it still holds its cached buffer (e.g. a message
+ * sent from within a receive() callback which was invoked synchronously by the send path), a new, uncached buffer is
+ * returned, so the outer buffer is never overwritten.<p/>
+ * The caller must not use the buffer after releasing it, and therefore transports must not hold on to the byte[]
+ * buffer after a send has returned.
+ * @author agent
+ * @since 3.1
+ */
+public class OutputBufferPool {
+    protected final int                       initial_size;
+    protected final int                       max_size;
+    protected final ThreadLocal<OutputBuffer> buffers=new ThreadLocal<OutputBuffer>();
+
+    protected final AtomicLong                num_reuses=new AtomicLong(0);
+    protected final AtomicLong                num_creations=new AtomicLong(0);
+    protected final AtomicLong                num_growths=new AtomicLong(0);
+    protected final AtomicLong                num_bytes_allocated=new AtomicLong(0);
+
+
+    /**
+     * Creates a pool
+     * @param initial_size The initial size of a newly created buffer
+     * @param max_size The max size of a cached buffer. Buffers can temporarily grow beyond this size, but will be
+     *                 shrunk to max_size on release
+     */
+    public OutputBufferPool(int initial_size, int max_size) {
+        if(initial_size <= 0 || max_size < initial_size)
+            throw new IllegalArgumentException("initial_size (" + initial_size + ") has to be > 0 and <= max_size (" +
+                                                 max_size + ")");
+        this.initial_size=initial_size;
+        this.max_size=max_size;
+    }
+
+    public int  getInitialSize()       {return initial_size;}
+    public int  getMaxSize()           {return max_size;}
+
+    /** Number of times a cached buffer was reused */
+    public long getNumReuses()         {return num_reuses.get();}
+
+    /** Number of buffers created (first use by a thread, or reentrant use) */
+    public long getNumCreations()      {return num_creations.get();}
+
+    /** Number of times a buffer had to be grown */
+    public long getNumGrowths()        {return num_growths.get();}
+
+    /** Total number of bytes allocated for buffers */
+    public long getNumBytesAllocated() {return num_bytes_allocated.get();}
+
+    public void resetStats() {
+        num_reuses.set(0); num_creations.set(0); num_growths.set(0); num_bytes_allocated.set(0);
+    }
+
+    /**
+     * Returns an empty buffer with a capacity of at least expected_size bytes (up to max_size). The buffer has to be
+     * released with {@link #release(OutputBuffer)} when done
+     */
+    public OutputBuffer acquire(int expected_size) {
+        int size=Math.max(initial_size, Math.min(expected_size, max_size));
+        OutputBuffer buf=buffers.get();
+        if(buf == null || buf.in_use) {
+            num_creations.incrementAndGet();
+            num_bytes_allocated.addAndGet(size);
+            OutputBuffer tmp=new OutputBuffer(size, buf == null);
+            if(buf == null)
+                buffers.set(tmp);
+            tmp.in_use=true;
+            tmp.capacity=size;
+            return tmp;
+        }
+
+        buf.in_use=true;
+        buf.out.reset();
+        buf.dos.reset();
+        if(buf.out.getCapacity() < size) {
+            num_growths.incrementAndGet();
+            num_bytes_allocated.addAndGet(size);
+            buf.out.ensureCapacity(size);
+        }
+        else
+            num_reuses.incrementAndGet();
+        buf.capacity=buf.out.getCapacity();
+        return buf;
+    }
+
+    /** Returns the buffer to the pool. The buffer must not be used after this call */
+    public void release(OutputBuffer buf) {
+        if(buf == null)
+            return;
+        int capacity=buf.out.getCapacity();
+        if(capacity > buf.capacity) { // the buffer grew while writing
+            num_growths.incrementAndGet();
+            num_bytes_allocated.addAndGet(capacity);
+        }
+        if(buf.cached) {
+            if(capacity > max_size) {
+                buf.out.reset(max_size);
+                num_bytes_allocated.addAndGet(max_size);
+            }
+            buf.in_use=false;
+        }
+    }
+
+    public String toString() {
+        return "initial_size=" + initial_size + ", max_size=" + max_size + ", reuses=" + num_reuses +
+          ", creations=" + num_creations + ", growths=" + num_growths + ", bytes allocated=" + num_bytes_allocated;
+    }
+
+
+    /** A reusable output stream and the data output stream wrapping it */
+    public static class OutputBuffer {
+        protected final ExposedByteArrayOutputStream out;
+        protected final ExposedDataOutputStream      dos;
+        protected final boolean                      cached;
+        protected boolean                            in_use;
+        protected int                                capacity; // at acquisition time
+
+        protected OutputBuffer(int size, boolean cached) {
+            this.out=new ExposedByteArrayOutputStream(size);
+            this.dos=new ExposedDataOutputStream(out);
+            this.cached=cached;
+        }
+
+        public ExposedByteArrayOutputStream getOutputStream()     {return out;}
+        public ExposedDataOutputStream      getDataOutputStream() {return dos;}
+
+        /** Returns a buffer over the bytes written so far. The buffer is only valid until the next release */
+        public Buffer getBuffer() {return out.getBuffer();}
+    }
+}
@@ -30,23 +30,24 @@ import java.util.concurrent.locks.ReentrantLock;
  * The {@link #stable(long)} method is called periodically; it nulls all elements between LOW and HD and advances LOW
  * to HD.
  * <p/>
- * The design of RingBuffer is discussed in doc/design/RingBuffer.txt.
+ * The design of RingBuffer is discussed in doc/design/RingBuffer.txt. A lock-free variant is
+ * {@link RingBufferLockless}.
  * <p/>
  * @author Bela Ban
  * @since 3.1
  */
 public class RingBuffer<T> implements Iterable<T> {
-    /** Atomic ref array so that elements can be checked for null and set atomically */
+    /** The elements; null in subclasses which provide their own storage */
     protected final T[]            buf;
 
     /** The lowest seqno. Moved forward by stable() */
-    protected long                 low;
+    protected volatile long        low;
 
     /** The highest delivered seqno. Moved forward by a remove method. The next message to be removed is hd +1 */
-    protected long                 hd;
+    protected volatile long        hd;
 
     /** The highest received seqno. Moved forward by add(). The next message to be added is hr +1 */
-    protected long                 hr;
+    protected volatile long        hr;
 
     protected final long           offset;
 
@@ -66,11 +67,16 @@ public class RingBuffer<T> implements Iterable<T> {
      * @param offset The offset. The first element to be added has to be offset +1.
      */
     public RingBuffer(int capacity, long offset) {
+        this(capacity, offset, true);
+    }
+
+    /** Used by subclasses which provide their own storage; if allocate is false, no array is created */
+    protected RingBuffer(int capacity, long offset, boolean allocate) {
         if(capacity < 1)
             throw new IllegalArgumentException("incorrect capacity of " + capacity);
         if(offset < 0)
             throw new IllegalArgumentException("invalid offset of " + offset);
-        this.buf=(T[])new Object[capacity];
+        this.buf=allocate? (T[])new Object[capacity] : null;
         this.low=this.hd=this.hr=this.offset=offset;
     }
 
@@ -124,6 +130,38 @@ public class RingBuffer<T> implements Iterable<T> {
     }
 
 
+    /**
+     * Adds a list of elements, acquiring the lock only once. Elements whose seqnos have already been delivered, which
+     * are already present or which don't fit into the buffer are not added
+     * @param list A list of seqno/element pairs
+     * @return The elements which were added, in the order of list, or null if none were added
+     */
+    public List<T> add(List<Tuple<Long,T>> list) {
+        List<T> retval=null;
+        lock.lock();
+        try {
+            for(Tuple<Long,T> tuple: list) {
+                long seqno=tuple.getVal1();
+                if(seqno <= hd || seqno - low > capacity())
+                    continue;
+                int index=index(seqno);
+                if(buf[index] != null)
+                    continue;
+                buf[index]=tuple.getVal2();
+                if(seqno > hr)
+                    hr=seqno;
+                if(retval == null)
+                    retval=new ArrayList<T>(list.size());
+                retval.add(tuple.getVal2());
+            }
+            return retval;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
     /**
      * Removes the next element (at hd +1). <em>Note that this method is not concurrent, as
      * RingBuffer can only have 1 remover thread active at any time !</em>
@@ -179,20 +217,32 @@ public class RingBuffer<T> implements Iterable<T> {
 
 
     public List<T> removeMany(final AtomicBoolean processing, boolean nullify, int max_results) {
-        List<T> list=null;
-        int num_results=0;
+        List<T> list=new ArrayList<T>(max_results > 0? max_results : 20);
+        return removeMany(list, processing, nullify, max_results) > 0? list : null;
+    }
+
+
+    /**
+     * Removes as many consecutive elements as possible, starting at hd+1, and adds them to list. This allows a caller
+     * to reuse the same list for multiple calls, instead of having a new list created on every call.
+     * <em>Note that this method is not concurrent, as RingBuffer can only have 1 remover thread active at any time !</em>
+     * @param list The list to which the removed elements are added. Must not be null
+     * @param processing If not null, set to false if no element was removed
+     * @param nullify Nulls the removed elements in the array if true
+     * @param max_results The max number of elements to remove; 0 removes all available elements
+     * @return The number of elements added to list
+     */
+    public int removeMany(final List<T> list, final AtomicBoolean processing, boolean nullify, int max_results) {
         T element;
 
         lock.lock();
         try {
-            long start=hd, end=hr;
+            long start=hd, end=hr, original_hd=hd;
+            if(max_results > 0)
+                end=Math.min(end, start + max_results);
             while(start+1 <= end && (element=buf[index(start+1)]) != null) {
-                if(list == null)
-                    list=new ArrayList<T>(max_results > 0? max_results : 20);
                 list.add(element);
                 start++;
-                if(max_results > 0 && ++num_results >= max_results)
-                    break;
             }
 
             if(start > hd) { // do we need to move HD forward ?
@@ -210,10 +260,11 @@ public class RingBuffer<T> implements Iterable<T> {
                     }
                 }
             }
-        
-            if((list == null || list.isEmpty()) && processing != null)
+
+            int removed=(int)(start - original_hd);
+            if(removed == 0 && processing != null)
                 processing.set(false);
-            return list;
+            return removed;
         }
         finally {
             lock.unlock();
@@ -305,7 +356,7 @@ public class RingBuffer<T> implements Iterable<T> {
         }
     }
 
-    public final int capacity()   {return buf.length;}
+    public int       capacity()   {return buf.length;}
     public int       size()       {return count(false);}
     public int       missing()    {return count(true);}
     public int       spaceUsed()  {return (int)(hr - low);}
@@ -5,11 +5,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceArray;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Ring buffer, implemented with a circular array.
@@ -30,63 +27,34 @@ import java.util.concurrent.locks.ReentrantLock;
  * The {@link #stable(long)} method is called periodically; it nulls all elements between LOW and HD and advances LOW
  * to HD.
  * <p/>
- * The design of RingBufferLockless is discussed in doc/design/RingBufferLockless.txt.
+ * Contrary to {@link RingBuffer}, adders and the remover never acquire a lock: elements are set with a CAS and HR is
+ * advanced with a CAS. The lock is only used by adders blocking on a full buffer. Because RingBufferLockless extends
+ * RingBuffer, the two can be used interchangeably (e.g. by NAKACK2).
+ * <p/>
+ * The design of RingBufferLockless is discussed in doc/design/RingBuffer.txt.
  * <p/>
  * @author Bela Ban
  * @since 3.1
  */
-public class RingBufferLockless<T> implements Iterable<T> {
+public class RingBufferLockless<T> extends RingBuffer<T> {
     /** Atomic ref array so that elements can be checked for null and set atomically */
-    protected final AtomicReferenceArray<T> buf;
-
-    /** The lowest seqno. Moved forward by stable() */
-    protected volatile long                 low;
-
-    /** The highest delivered seqno. Moved forward by a remove method. The next message to be removed is hd +1 */
-    protected volatile long                 hd;
-
-    /** The highest received seqno. Moved forward by add(). The next message to be added is hr +1 */
-    protected final AtomicLong              hr=new AtomicLong(0);
-
-    protected final long                    offset;
+    protected final AtomicReferenceArray<T> array;
 
-    /** Lock for adders to block on when the buffer is full */
-    protected final Lock                    lock=new ReentrantLock();
-
-    protected final Condition               buffer_full=lock.newCondition();
-
-    protected volatile boolean              running=true;
-
-    protected final AtomicBoolean           processing=new AtomicBoolean(false);
+    /** Used to move hr forward with a CAS. A class literal can't be generic, so RingBuffer.class is cast to
+     * Class<RingBuffer<?>>, which is safe as the updater only accesses hr */
+    @SuppressWarnings("unchecked")
+    protected static final AtomicLongFieldUpdater<RingBuffer<?>> HR=
+      AtomicLongFieldUpdater.newUpdater((Class<RingBuffer<?>>)(Class<?>)RingBuffer.class, "hr");
 
 
     /**
-     * Creates a RingBuffer
+     * Creates a RingBufferLockless
      * @param capacity The number of elements the ring buffer's array should hold
      * @param offset The offset. The first element to be added has to be offset +1.
      */
     public RingBufferLockless(int capacity, long offset) {
-        if(capacity < 1)
-            throw new IllegalArgumentException("incorrect capacity of " + capacity);
-        if(offset < 0)
-            throw new IllegalArgumentException("invalid offset of " + offset);
-        this.buf=new AtomicReferenceArray<T>(capacity);
-        this.low=this.hd=this.offset=offset;
-        this.hr.set(offset);
-    }
-
-
-    public long          getLow()                     {return low;}
-    public long          getHighestDelivered()        {return hd;}
-    public void          setHighestDelivered(long hd) {this.hd=hd;}
-    public long          getHighestReceived()         {return hr.get();}
-    public long[]        getDigest()                  {return new long[]{hd, hr.get()};}
-    public AtomicBoolean getProcessing()              {return processing;}
-
-
-    
-    public boolean add(long seqno, T element) {
-        return add(seqno, element, false);
+        super(capacity, offset, false);
+        this.array=new AtomicReferenceArray<T>(capacity);
     }
 
 
@@ -98,7 +66,7 @@ public class RingBufferLockless<T> implements Iterable<T> {
      * return immediately, either successfully or unsuccessfully (if the buffer is full)
      * @return True if the element was added, false otherwise.
      */
-    public boolean  add(long seqno, T element, boolean block) {
+    public boolean add(long seqno, T element, boolean block) {
         validate(seqno);
 
         if(seqno <= hd)                 // seqno already delivered, includes check seqno <= low
@@ -111,24 +79,41 @@ public class RingBufferLockless<T> implements Iterable<T> {
         int index=index(seqno);
 
         // Fix for correctness check #1 (see doc/design/RingBuffer.txt)
-        if(buf.get(index) != null || seqno <= hd)
+        if(array.get(index) != null || seqno <= hd)
             return false;
 
-        if(!buf.compareAndSet(index, null, element)) // the element at buf[index] was already present
+        if(!array.compareAndSet(index, null, element)) // the element at array[index] was already present
             return false;
 
         // now see if hr needs to moved forward, this can be concurrent as we may have multiple producers
         for(;;) {
-            long current_hr=hr.get();
-            long new_hr=Math.max(seqno, current_hr);
-            if(new_hr <= current_hr || hr.compareAndSet(current_hr, new_hr))
+            long current_hr=hr;
+            if(seqno <= current_hr || HR.compareAndSet(this, current_hr, seqno))
                 break;
         }
-
         return true;
     }
 
 
+    /**
+     * Adds a list of elements. Contrary to {@link RingBuffer#add(java.util.List)}, this doesn't acquire a lock, but
+     * simply adds every element individually
+     * @param list A list of seqno/element pairs
+     * @return The elements which were added, in the order of list, or null if none were added
+     */
+    public List<T> add(List<Tuple<Long,T>> list) {
+        List<T> retval=null;
+        for(Tuple<Long,T> tuple: list) {
+            if(add(tuple.getVal1(), tuple.getVal2(), false)) {
+                if(retval == null)
+                    retval=new ArrayList<T>(list.size());
+                retval.add(tuple.getVal2());
+            }
+        }
+        return retval;
+    }
+
+
     /**
      * Removes the next element (at hd +1). <em>Note that this method is not concurrent, as
      * RingBuffer can only have 1 remover thread active at any time !</em>
@@ -138,10 +123,10 @@ public class RingBufferLockless<T> implements Iterable<T> {
      */
     public T remove(boolean nullify) {
         long tmp=hd+1;
-        if(tmp > hr.get())
+        if(tmp > hr)
             return null;
         int index=index(tmp);
-        T element=buf.get(index);
+        T element=array.get(index);
         if(element == null)
             return null;
         hd=tmp;
@@ -149,53 +134,49 @@ public class RingBufferLockless<T> implements Iterable<T> {
         if(nullify) {
             long tmp_low=low;
             if(tmp == tmp_low +1)
-                buf.compareAndSet(index, element, null);
+                array.compareAndSet(index, element, null);
             else {
                 int from=index(tmp_low+1), length=(int)(tmp - tmp_low), capacity=capacity();
                 for(int i=from; i < from+length; i++) {
                     index=i % capacity;
-                    buf.set(index, null);
+                    array.set(index, null);
                 }
             }
             low=tmp;
-            lock.lock();
-            try {
-                buffer_full.signalAll();
-            }
-            finally {
-                lock.unlock();
-            }
+            signalAdders();
         }
         return element;
     }
 
 
     /**
-     * Removes the next element (at hd +1). <em>Note that this method is not concurrent, as
-     * RingBuffer can only have 1 remover thread active at any time !</em>
-     * @return T if there was a non-null element at position hd +1, or null if the element at hd+1 was null.
+     * Removes as many consecutive elements as possible, starting at hd+1, and adds them to list, without acquiring
+     * a lock. <em>Note that this method is not concurrent, as RingBuffer can only have 1 remover thread active at
+     * any time !</em>
      */
-    public T remove() {
-        return remove(false);
-    }
+    public int removeMany(final List<T> list, final AtomicBoolean processing, boolean nullify, int max_results) {
+        for(;;) {
+            int removed=_removeMany(list, nullify, max_results);
+            if(removed > 0 || processing == null)
+                return removed;
 
-    public List<T> removeMany(boolean nullify, int max_results) {
-        return removeMany(null, nullify, max_results);
+            // Without a lock, an adder may have added an element at hd+1 after we checked, but before we set
+            // processing to false: that adder won't remove the element as it saw processing == true, so we check again
+            processing.set(false);
+            long next=hd+1;
+            if(next > hr || array.get(index(next)) == null || !processing.compareAndSet(false, true))
+                return 0;
+        }
     }
 
-
-    public List<T> removeMany(final AtomicBoolean processing, boolean nullify, int max_results) {
-        List<T> list=null;
-        int num_results=0;
-        long original_hd=hd, start=original_hd, end=hr.get();
+    protected int _removeMany(final List<T> list, boolean nullify, int max_results) {
+        long original_hd=hd, start=original_hd, end=hr;
+        if(max_results > 0)
+            end=Math.min(end, start + max_results);
         T element;
-        while(start+1 <= end && (element=buf.get(index(start+1))) != null) {
-            if(list == null)
-                list=new ArrayList<T>(max_results > 0? max_results : 20);
+        while(start+1 <= end && (element=array.get(index(start+1))) != null) {
             list.add(element);
             start++;
-            if(max_results > 0 && ++num_results >= max_results)
-                break;
         }
 
         if(start > original_hd) { // do we need to move HD forward ?
@@ -205,62 +186,31 @@ public class RingBufferLockless<T> implements Iterable<T> {
                 int from=index(tmp_low+1), length=(int)(start - tmp_low), capacity=capacity();
                 for(int i=from; i < from+length; i++) {
                     int index=i % capacity;
-                    buf.set(index, null);
+                    array.set(index, null);
                 }
                 // Releases some of the blocked adders
                 if(start > low) {
                     low=start;
-                    lock.lock();
-                    try {
-                        buffer_full.signalAll();
-                    }
-                    finally {
-                        lock.unlock();
-                    }
+                    signalAdders();
                 }
             }
         }
-        
-        if((list == null || list.isEmpty()) && processing != null)
-            processing.set(false);
-        return list;
+
+        return (int)(start - original_hd);
     }
 
     public T get(long seqno) {
         validate(seqno);
-        if(seqno <= low || seqno > hr.get())
+        if(seqno <= low || seqno > hr)
             return null;
         int index=index(seqno);
-        return buf.get(index);
+        return array.get(index);
     }
 
     /** Only used for testing !! */
     public T _get(long seqno) {
         int index=index(seqno);
-        return index < 0? null : buf.get(index);
-    }
-
-
-    /**
-     * Returns a list of messages in the range [from .. to], including from and to
-     * @param from
-     * @param to
-     * @return A list of messages, or null if none in range [from .. to] was found
-     */
-    public List<T> get(long from, long to) {
-        if(from > to)
-            throw new IllegalArgumentException("from (" + from + ") has to be <= to (" + to + ")");
-        validate(from);
-        List<T> retval=null;
-        for(long i=from; i <= to; i++) {
-            T element=get(i);
-            if(element != null) {
-                if(retval == null)
-                    retval=new ArrayList<T>();
-                retval.add(element);
-            }
-        }
-        return retval;
+        return index < 0? null : array.get(index);
     }
 
 
@@ -275,51 +225,27 @@ public class RingBufferLockless<T> implements Iterable<T> {
         int from=index(low+1), length=(int)(seqno - low), capacity=capacity();
         for(int i=from; i < from+length; i++) {
             int index=i % capacity;
-            buf.set(index, null);
+            array.set(index, null);
         }
 
         // Releases some of the blocked adders
         if(seqno > low) {
             low=seqno;
-            lock.lock();
-            try {
-                buffer_full.signalAll();
-            }
-            finally {
-                lock.unlock();
-            }
-        }
-    }
-
-    public void destroy() {
-        lock.lock();
-        try {
-            running=false;
-            buffer_full.signalAll();
-        }
-        finally {
-            lock.unlock();
+            signalAdders();
         }
     }
 
-    public final int capacity()   {return buf.length();}
-    public int       size()       {return count(false);}
-    public int       missing()    {return count(true);}
-    public int       spaceUsed()  {return (int)(hr.get() - low);}
-    public double    saturation() {
-        int space=spaceUsed();
-        return space == 0? 0.0 : space / (double)capacity();
-    }
+    public int capacity() {return array.length();}
 
     public SeqnoList getMissing() {
         SeqnoList missing=null;
-        long tmp_hd=hd, tmp_hr=hr.get();
+        long tmp_hd=hd, tmp_hr=hr;
         for(long i=tmp_hd+1; i <= tmp_hr; i++) {
-            if(buf.get(index(i)) == null) {
+            if(array.get(index(i)) == null) {
                 if(missing == null)
                     missing=new SeqnoList();
                 long end=i;
-                while(buf.get(index(end+1)) == null && end <= tmp_hr)
+                while(array.get(index(end+1)) == null && end <= tmp_hr)
                     end++;
 
                 if(end == i)
@@ -339,37 +265,30 @@ public class RingBufferLockless<T> implements Iterable<T> {
      * @throws NoSuchElementException is HD is moved forward during the iteration
      */
     public Iterator<T> iterator() {
-        return new RingBufferIterator<T>(buf);
+        return new LocklessIterator();
     }
 
-    public String toString() {
-        StringBuilder sb=new StringBuilder();
-        sb.append("[" + low + " | " + hd + " | " + hr + "] (" + size() + " elements, " + missing() + " missing)");
-        return sb.toString();
-    }
 
 
-    
     protected static final void validate(long seqno) {
         if(seqno < 0)
             throw new IllegalArgumentException("seqno " + seqno + " cannot be negative");
     }
 
-    protected int index(long seqno) {
-        return (int)((seqno - offset -1) % capacity());
+    protected boolean block(long seqno) {
+        lock.lock();
+        try {
+            return super.block(seqno);
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
-    protected boolean block(long seqno) {
+    protected void signalAdders() {
         lock.lock();
         try {
-            while(running && seqno - low > capacity()) {
-                try {
-                    buffer_full.await();
-                }
-                catch(InterruptedException e) {
-                }
-            }
-            return running;
+            buffer_full.signalAll();
         }
         finally {
             lock.unlock();
@@ -378,10 +297,10 @@ public class RingBufferLockless<T> implements Iterable<T> {
 
     protected int count(boolean missing) {
         int retval=0;
-        long tmp_hd=hd, tmp_hr=hr.get();
+        long tmp_hd=hd, tmp_hr=hr;
         for(long i=tmp_hd+1; i <= tmp_hr; i++) {
             int index=index(i);
-            T element=buf.get(index);
+            T element=array.get(index);
             if(missing && element == null)
                 retval++;
             if(!missing && element != null)
@@ -391,22 +310,17 @@ public class RingBufferLockless<T> implements Iterable<T> {
     }
 
 
-    protected class RingBufferIterator<T> implements Iterator<T> {
-        protected final AtomicReferenceArray<T> buffer;
+    protected class LocklessIterator implements Iterator<T> {
         protected long current=hd+1;
 
-        public RingBufferIterator(AtomicReferenceArray<T> buffer) {
-            this.buffer=buffer;
-        }
-
         public boolean hasNext() {
-            return current <= hr.get();
+            return current <= hr;
         }
 
         public T next() {
             if(current <= hd)
                 current=hd+1;
-            return buffer.get(index(current++));
+            return array.get(index(current++));
         }
 
         public void remove() {}
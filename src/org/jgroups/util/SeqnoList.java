@@ -118,7 +118,7 @@ public class SeqnoList implements Streamable, Iterable<Long> {
             protected long range_index=-1;
 
             public boolean hasNext() {
-                return index +1 <=  seqnos.size();
+                return (range != null && range_index +1 <= range.to) || index +1 <= seqnos.size();
             }
 
             public Long next() {
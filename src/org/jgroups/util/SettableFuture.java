@@ -0,0 +1,125 @@
+package org.jgroups.util;
+
+import org.jgroups.annotations.GuardedBy;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A {@link NotifyingFuture} which is completed by calling {@link #set(Object)} or {@link #setException(Throwable)},
+ * from any thread. Listeners are notified on the completing thread, so no thread has to block waiting for the result.
+ * <p/>
+ * Can be used to compose asynchronous operations, e.g. to complete a future from the listener of an RPC future. A
+ * method invoked by an {@link org.jgroups.blocks.RpcDispatcher} with async dispatching enabled can return a
+ * SettableFuture; the response is sent when the future is completed.
+ * @author agent
+ * @since 3.1
+ */
+public class SettableFuture<T> implements NotifyingFuture<T> {
+    protected static final Log        log=LogFactory.getLog(SettableFuture.class);
+
+    protected final CountDownLatch    latch=new CountDownLatch(1);
+
+    @GuardedBy("this") protected boolean                 completed, cancelled;
+    @GuardedBy("this") protected T                       value;
+    @GuardedBy("this") protected Throwable               exception;
+    @GuardedBy("this") protected List<FutureListener<T>> listeners;
+
+
+    /** Completes the future with a value. Returns false if the future was already completed */
+    public boolean set(T value) {
+        return complete(value, null, false);
+    }
+
+    /** Completes the future with an exception, which get() throws wrapped in an ExecutionException */
+    public boolean setException(Throwable exception) {
+        return complete(null, exception, false);
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(null, null, true);
+    }
+
+    /**
+     * Adds a listener. Can be called more than once; every listener is notified exactly once, when the future is
+     * completed. If the future has already been completed, the listener is notified immediately
+     */
+    public NotifyingFuture<T> setListener(FutureListener<T> listener) {
+        if(listener == null)
+            return this;
+        synchronized(this) {
+            if(!completed) {
+                if(listeners == null)
+                    listeners=new ArrayList<FutureListener<T>>(1);
+                listeners.add(listener);
+                return this;
+            }
+        }
+        notifyListener(listener);
+        return this;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return getValue();
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!latch.await(timeout, unit))
+            throw new TimeoutException();
+        return getValue();
+    }
+
+    public synchronized String toString() {
+        return completed? (cancelled? "cancelled" : exception != null? "exception=" + exception : "value=" + value)
+          : "not completed";
+    }
+
+
+    protected synchronized T getValue() throws ExecutionException {
+        if(cancelled)
+            throw new CancellationException();
+        if(exception != null)
+            throw new ExecutionException(exception);
+        return value;
+    }
+
+    protected boolean complete(T value, Throwable exception, boolean cancelled) {
+        List<FutureListener<T>> tmp;
+        synchronized(this) {
+            if(completed)
+                return false;
+            completed=true;
+            this.value=value;
+            this.exception=exception;
+            this.cancelled=cancelled;
+            tmp=listeners;
+            listeners=null;
+        }
+        latch.countDown();
+        if(tmp != null)
+            for(FutureListener<T> l: tmp)
+                notifyListener(l);
+        return true;
+    }
+
+    protected void notifyListener(FutureListener<T> l) {
+        try {
+            l.futureDone(this);
+        }
+        catch(Throwable t) {
+            log.error("failed notifying listener " + l, t);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.jgroups.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+/**
+ * Marshals instances of a class which is not {@link Streamable} (e.g. an application class which cannot be changed)
+ * into a compact binary format. Codecs are registered with a magic number via
+ * {@link org.jgroups.conf.ClassConfigurator#addCodec(short, Class, TypeCodec)} and are used by
+ * {@link Util#objectToStream(Object, java.io.DataOutput)} and {@link Util#objectToByteBuffer(Object)} (and therefore
+ * by RpcDispatcher for arguments and return values) instead of Java serialization.
+ * @author agent
+ * @since 3.1
+ */
+public interface TypeCodec<T> {
+
+    /** Writes obj to out. The output stream <em>must not</em> be closed */
+    void writeTo(T obj, DataOutput out) throws Exception;
+
+    /** Reads an instance written by {@link #writeTo(Object, java.io.DataOutput)} from in */
+    T readFrom(DataInput in) throws Exception;
+}
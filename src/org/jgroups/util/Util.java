@@ -28,6 +28,7 @@ import java.lang.reflect.Modifier;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.text.NumberFormat;
 import java.util.*;
@@ -44,10 +45,14 @@ public class Util {
 
     private static  NumberFormat f;
 
-    private static Map<Class<? extends Object>,Byte> PRIMITIVE_TYPES=new HashMap<Class<? extends Object>,Byte>(15);
+    /** Classes with a compact encoding (other than Streamable and codec classes), mapped to their type */
+    private static Map<Class<? extends Object>,Byte> TYPES=new HashMap<Class<? extends Object>,Byte>(40);
     private static final byte TYPE_NULL         =  0;
     private static final byte TYPE_STREAMABLE   =  1;
     private static final byte TYPE_SERIALIZABLE =  2;
+    private static final byte TYPE_CODEC        =  3; // class registered with ClassConfigurator.addCodec()
+    private static final byte TYPE_ENUM         =  4;
+    private static final byte TYPE_OBJECT_ARRAY =  5; // array of non-primitive type, e.g. String[]
 
     private static final byte TYPE_BOOLEAN      = 10;
     private static final byte TYPE_BYTE         = 11;
@@ -60,6 +65,26 @@ public class Util {
     private static final byte TYPE_STRING       = 18;
     private static final byte TYPE_BYTEARRAY    = 19;
 
+    private static final byte TYPE_BOOLEAN_ARRAY= 20;
+    private static final byte TYPE_CHAR_ARRAY   = 21;
+    private static final byte TYPE_SHORT_ARRAY  = 22;
+    private static final byte TYPE_INT_ARRAY    = 23;
+    private static final byte TYPE_LONG_ARRAY   = 24;
+    private static final byte TYPE_FLOAT_ARRAY  = 25;
+    private static final byte TYPE_DOUBLE_ARRAY = 26;
+
+    // collections are written as size plus elements, maps as size plus keys and values
+    private static final byte TYPE_ARRAYLIST    = 30;
+    private static final byte TYPE_LINKEDLIST   = 31;
+    private static final byte TYPE_HASHSET      = 32;
+    private static final byte TYPE_LINKEDHASHSET= 33;
+    private static final byte TYPE_TREESET      = 34; // only if no comparator is used
+    private static final byte TYPE_HASHMAP      = 35;
+    private static final byte TYPE_LINKEDHASHMAP= 36;
+    private static final byte TYPE_TREEMAP      = 37; // only if no comparator is used
+
+    private static final Charset UTF8=Charset.forName("UTF-8");
+
     // constants
     public static final int MAX_PORT=65535; // highest port allocatable
     static boolean resolve_dns=false;
@@ -114,16 +139,31 @@ public class Util {
         // f.setMinimumFractionDigits(2);
         f.setMaximumFractionDigits(2);
 
-        PRIMITIVE_TYPES.put(Boolean.class, TYPE_BOOLEAN);
-        PRIMITIVE_TYPES.put(Byte.class, TYPE_BYTE);
-        PRIMITIVE_TYPES.put(Character.class, TYPE_CHAR);
-        PRIMITIVE_TYPES.put(Double.class, TYPE_DOUBLE);
-        PRIMITIVE_TYPES.put(Float.class, TYPE_FLOAT);
-        PRIMITIVE_TYPES.put(Integer.class, TYPE_INT);
-        PRIMITIVE_TYPES.put(Long.class, TYPE_LONG);
-        PRIMITIVE_TYPES.put(Short.class, TYPE_SHORT);
-        PRIMITIVE_TYPES.put(String.class, TYPE_STRING);
-        PRIMITIVE_TYPES.put(byte[].class, TYPE_BYTEARRAY);
+        TYPES.put(Boolean.class, TYPE_BOOLEAN);
+        TYPES.put(Byte.class, TYPE_BYTE);
+        TYPES.put(Character.class, TYPE_CHAR);
+        TYPES.put(Double.class, TYPE_DOUBLE);
+        TYPES.put(Float.class, TYPE_FLOAT);
+        TYPES.put(Integer.class, TYPE_INT);
+        TYPES.put(Long.class, TYPE_LONG);
+        TYPES.put(Short.class, TYPE_SHORT);
+        TYPES.put(String.class, TYPE_STRING);
+        TYPES.put(byte[].class, TYPE_BYTEARRAY);
+        TYPES.put(boolean[].class, TYPE_BOOLEAN_ARRAY);
+        TYPES.put(char[].class, TYPE_CHAR_ARRAY);
+        TYPES.put(short[].class, TYPE_SHORT_ARRAY);
+        TYPES.put(int[].class, TYPE_INT_ARRAY);
+        TYPES.put(long[].class, TYPE_LONG_ARRAY);
+        TYPES.put(float[].class, TYPE_FLOAT_ARRAY);
+        TYPES.put(double[].class, TYPE_DOUBLE_ARRAY);
+        TYPES.put(ArrayList.class, TYPE_ARRAYLIST);
+        TYPES.put(LinkedList.class, TYPE_LINKEDLIST);
+        TYPES.put(HashSet.class, TYPE_HASHSET);
+        TYPES.put(LinkedHashSet.class, TYPE_LINKEDHASHSET);
+        TYPES.put(TreeSet.class, TYPE_TREESET);
+        TYPES.put(HashMap.class, TYPE_HASHMAP);
+        TYPES.put(LinkedHashMap.class, TYPE_LINKEDHASHMAP);
+        TYPES.put(TreeMap.class, TYPE_TREEMAP);
 
         if(ip_stack_type == StackType.Unknown)
             ip_stack_type=StackType.IPv6;
@@ -328,6 +368,12 @@ public class Util {
         }
     }
 
+    public static void close(java.nio.channels.Channel ch) {
+        if(ch != null) {
+            try {ch.close();} catch(Throwable t) {}
+        }
+    }
+
     public static void close(Channel ... channels) {
         if(channels != null) {
             for(Channel ch: channels)
@@ -438,15 +484,13 @@ public class Util {
             case TYPE_SHORT:
                 return ByteBuffer.wrap(buffer, offset + 1, length - 1).getShort();
             case TYPE_STRING:
-                byte[] tmp=new byte[length -1];
-                System.arraycopy(buffer, offset +1, tmp, 0, length -1);
-                return new String(tmp);
+                return new String(buffer, offset +1, length -1, UTF8);
             case TYPE_BYTEARRAY:
-                tmp=new byte[length -1];
+                byte[] tmp=new byte[length -1];
                 System.arraycopy(buffer, offset +1, tmp, 0, length -1);
                 return tmp;
-            default:
-                throw new IllegalArgumentException("type " + type + " is invalid");
+            default: // arrays, collections, enums and codec classes are read from a stream
+                return objectFromStream(new DataInputStream(new ExposedByteArrayInputStream(buffer, offset, length)));
         }
         return retval;
     }
@@ -470,13 +514,10 @@ public class Util {
             return out_stream.toByteArray();
         }
 
-        Byte type=PRIMITIVE_TYPES.get(obj.getClass());
-        if(type == null) { // will throw an exception if object is not serializable
+        Byte type=TYPES.get(obj.getClass());
+        if(type == null || type >= TYPE_BOOLEAN_ARRAY) { // compact or serialized encoding, written to a stream
             final ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(128);
-            out_stream.write(TYPE_SERIALIZABLE);
-            ObjectOutputStream out=new ObjectOutputStream(out_stream);
-            out.writeObject(obj);
-            out.close();
+            objectToStream(obj, new ExposedDataOutputStream(out_stream));
             return out_stream.toByteArray();
         }
 
@@ -504,10 +545,7 @@ public class Util {
                 return ByteBuffer.allocate(Global.BYTE_SIZE + Global.SHORT_SIZE).put(TYPE_SHORT)
                         .putShort((Short)obj).array();
             case TYPE_STRING:
-                String str=(String)obj;
-                byte[] buf=new byte[str.length()];
-                for(int i=0; i < buf.length; i++)
-                    buf[i]=(byte)str.charAt(i);
+                byte[] buf=((String)obj).getBytes(UTF8);
                 return ByteBuffer.allocate(Global.BYTE_SIZE + buf.length).put(TYPE_STRING).put(buf, 0, buf.length).array();
             case TYPE_BYTEARRAY:
                 buf=(byte[])obj;
@@ -528,11 +566,12 @@ public class Util {
         }
 
         Byte type;
+        TypeCodec<Object> codec;
         if(obj instanceof Streamable) {  // use Streamable if we can
             out.write(TYPE_STREAMABLE);
             writeGenericStreamable((Streamable)obj, out);
         }
-        else if((type=PRIMITIVE_TYPES.get(obj.getClass())) != null) {
+        else if((type=TYPES.get(obj.getClass())) != null && !hasComparator(obj)) {
             out.write(type.byteValue());
             switch(type.byteValue()) {
                 case TYPE_BOOLEAN:
@@ -559,39 +598,119 @@ public class Util {
                 case TYPE_SHORT:
                     out.writeShort(((Short)obj).shortValue());
                     break;
-                case TYPE_STRING:
-                    String str=(String)obj;
-                    if(str.length() > Short.MAX_VALUE) {
-                        out.writeBoolean(true);
-                        ObjectOutputStream oos=new ObjectOutputStream((OutputStream)out);
-                        try {
-                            oos.writeObject(str);
-                        }
-                        finally {
-                            oos.close();
-                        }
-                    }
-                    else {
-                        out.writeBoolean(false);
-                        out.writeUTF(str);
-                    }
+                case TYPE_STRING: // UTF-8, with a short length if possible
+                    byte[] buf=((String)obj).getBytes(UTF8);
+                    boolean large=buf.length > 0xFFFF;
+                    out.writeBoolean(large);
+                    if(large)
+                        out.writeInt(buf.length);
+                    else
+                        out.writeShort(buf.length);
+                    out.write(buf, 0, buf.length);
                     break;
                 case TYPE_BYTEARRAY:
-                    byte[] buf=(byte[])obj;
+                    buf=(byte[])obj;
                     out.writeInt(buf.length);
                     out.write(buf, 0, buf.length);
                     break;
+                case TYPE_BOOLEAN_ARRAY:
+                    boolean[] booleans=(boolean[])obj;
+                    out.writeInt(booleans.length);
+                    for(boolean b: booleans)
+                        out.writeBoolean(b);
+                    break;
+                case TYPE_CHAR_ARRAY:
+                    char[] chars=(char[])obj;
+                    out.writeInt(chars.length);
+                    for(char c: chars)
+                        out.writeChar(c);
+                    break;
+                case TYPE_SHORT_ARRAY:
+                    short[] shorts=(short[])obj;
+                    out.writeInt(shorts.length);
+                    for(short s: shorts)
+                        out.writeShort(s);
+                    break;
+                case TYPE_INT_ARRAY:
+                    int[] ints=(int[])obj;
+                    out.writeInt(ints.length);
+                    for(int i: ints)
+                        out.writeInt(i);
+                    break;
+                case TYPE_LONG_ARRAY:
+                    long[] longs=(long[])obj;
+                    out.writeInt(longs.length);
+                    for(long l: longs)
+                        out.writeLong(l);
+                    break;
+                case TYPE_FLOAT_ARRAY:
+                    float[] floats=(float[])obj;
+                    out.writeInt(floats.length);
+                    for(float f: floats)
+                        out.writeFloat(f);
+                    break;
+                case TYPE_DOUBLE_ARRAY:
+                    double[] doubles=(double[])obj;
+                    out.writeInt(doubles.length);
+                    for(double d: doubles)
+                        out.writeDouble(d);
+                    break;
+                case TYPE_ARRAYLIST:
+                case TYPE_LINKEDLIST:
+                case TYPE_HASHSET:
+                case TYPE_LINKEDHASHSET:
+                case TYPE_TREESET:
+                    Collection<?> coll=(Collection<?>)obj;
+                    out.writeInt(coll.size());
+                    for(Object element: coll)
+                        objectToStream(element, out);
+                    break;
+                case TYPE_HASHMAP:
+                case TYPE_LINKEDHASHMAP:
+                case TYPE_TREEMAP:
+                    Map<?,?> map=(Map<?,?>)obj;
+                    out.writeInt(map.size());
+                    for(Map.Entry<?,?> entry: map.entrySet()) {
+                        objectToStream(entry.getKey(), out);
+                        objectToStream(entry.getValue(), out);
+                    }
+                    break;
                 default:
                     throw new IllegalArgumentException("type " + type + " is invalid");
             }
         }
+        else if((codec=ClassConfigurator.getCodec(obj.getClass())) != null) {
+            out.write(TYPE_CODEC);
+            out.writeShort(ClassConfigurator.getMagicNumber(obj.getClass()));
+            codec.writeTo(obj, out);
+        }
+        else if(obj instanceof Enum) {
+            out.write(TYPE_ENUM);
+            writeClass(((Enum)obj).getDeclaringClass(), out);
+            out.writeShort(((Enum)obj).ordinal());
+        }
+        else if(obj instanceof Object[] && !obj.getClass().getComponentType().isArray()) {
+            Object[] array=(Object[])obj;
+            out.write(TYPE_OBJECT_ARRAY);
+            writeClass(obj.getClass().getComponentType(), out);
+            out.writeInt(array.length);
+            for(Object element: array)
+                objectToStream(element, out);
+        }
         else { // will throw an exception if object is not serializable
             out.write(TYPE_SERIALIZABLE);
             ObjectOutputStream tmp=new ObjectOutputStream((OutputStream)out);
             tmp.writeObject(obj);
+            tmp.flush();
         }
     }
 
+    /** Sorted collections using a comparator can't be recreated with the default constructor */
+    private static boolean hasComparator(Object obj) {
+        return (obj instanceof SortedSet && ((SortedSet)obj).comparator() != null)
+          || (obj instanceof SortedMap && ((SortedMap)obj).comparator() != null);
+    }
+
 
 
     public static Object objectFromStream(DataInput in) throws Exception {
@@ -634,31 +753,131 @@ public class Util {
                 retval=Short.valueOf(in.readShort());
                 break;
             case TYPE_STRING:
-                if(in.readBoolean()) { // large string
-                    ObjectInputStream ois=new ObjectInputStream((InputStream)in);
-                    try {
-                        retval=ois.readObject();
-                    }
-                    finally {
-                        ois.close();
-                    }
-                }
-                else {
-                    retval=in.readUTF();
-                }
+                int len=in.readBoolean()? in.readInt() : in.readUnsignedShort();
+                byte[] tmpbuf=new byte[len];
+                in.readFully(tmpbuf, 0, tmpbuf.length);
+                retval=new String(tmpbuf, UTF8);
                 break;
             case TYPE_BYTEARRAY:
-                int len=in.readInt();
-                byte[] tmpbuf=new byte[len];
+                len=in.readInt();
+                tmpbuf=new byte[len];
                 in.readFully(tmpbuf, 0, tmpbuf.length);
                 retval=tmpbuf;
                 break;
+            case TYPE_BOOLEAN_ARRAY:
+                boolean[] booleans=new boolean[in.readInt()];
+                for(int i=0; i < booleans.length; i++)
+                    booleans[i]=in.readBoolean();
+                retval=booleans;
+                break;
+            case TYPE_CHAR_ARRAY:
+                char[] chars=new char[in.readInt()];
+                for(int i=0; i < chars.length; i++)
+                    chars[i]=in.readChar();
+                retval=chars;
+                break;
+            case TYPE_SHORT_ARRAY:
+                short[] shorts=new short[in.readInt()];
+                for(int i=0; i < shorts.length; i++)
+                    shorts[i]=in.readShort();
+                retval=shorts;
+                break;
+            case TYPE_INT_ARRAY:
+                int[] ints=new int[in.readInt()];
+                for(int i=0; i < ints.length; i++)
+                    ints[i]=in.readInt();
+                retval=ints;
+                break;
+            case TYPE_LONG_ARRAY:
+                long[] longs=new long[in.readInt()];
+                for(int i=0; i < longs.length; i++)
+                    longs[i]=in.readLong();
+                retval=longs;
+                break;
+            case TYPE_FLOAT_ARRAY:
+                float[] floats=new float[in.readInt()];
+                for(int i=0; i < floats.length; i++)
+                    floats[i]=in.readFloat();
+                retval=floats;
+                break;
+            case TYPE_DOUBLE_ARRAY:
+                double[] doubles=new double[in.readInt()];
+                for(int i=0; i < doubles.length; i++)
+                    doubles[i]=in.readDouble();
+                retval=doubles;
+                break;
+            case TYPE_ARRAYLIST:
+                len=in.readInt();
+                retval=readElements(in, len, new ArrayList<Object>(len));
+                break;
+            case TYPE_LINKEDLIST:
+                retval=readElements(in, in.readInt(), new LinkedList<Object>());
+                break;
+            case TYPE_HASHSET:
+                len=in.readInt();
+                retval=readElements(in, len, new HashSet<Object>(capacity(len)));
+                break;
+            case TYPE_LINKEDHASHSET:
+                len=in.readInt();
+                retval=readElements(in, len, new LinkedHashSet<Object>(capacity(len)));
+                break;
+            case TYPE_TREESET:
+                retval=readElements(in, in.readInt(), new TreeSet<Object>());
+                break;
+            case TYPE_HASHMAP:
+                len=in.readInt();
+                retval=readEntries(in, len, new HashMap<Object,Object>(capacity(len)));
+                break;
+            case TYPE_LINKEDHASHMAP:
+                len=in.readInt();
+                retval=readEntries(in, len, new LinkedHashMap<Object,Object>(capacity(len)));
+                break;
+            case TYPE_TREEMAP:
+                retval=readEntries(in, in.readInt(), new TreeMap<Object,Object>());
+                break;
+            case TYPE_CODEC:
+                short magic=in.readShort();
+                TypeCodec<Object> codec=ClassConfigurator.getCodec(magic);
+                if(codec == null)
+                    throw new ClassNotFoundException("no codec found for magic number " + magic);
+                retval=codec.readFrom(in);
+                break;
+            case TYPE_ENUM:
+                Class<?> clazz=readClass(in);
+                retval=clazz.getEnumConstants()[in.readUnsignedShort()];
+                break;
+            case TYPE_OBJECT_ARRAY:
+                clazz=readClass(in);
+                Object[] array=(Object[])java.lang.reflect.Array.newInstance(clazz, in.readInt());
+                for(int i=0; i < array.length; i++)
+                    array[i]=objectFromStream(in);
+                retval=array;
+                break;
             default:
                 throw new IllegalArgumentException("type " + b + " is invalid");
         }
         return retval;
     }
 
+    private static <T extends Collection<Object>> T readElements(DataInput in, int size, T coll) throws Exception {
+        for(int i=0; i < size; i++)
+            coll.add(objectFromStream(in));
+        return coll;
+    }
+
+    private static <T extends Map<Object,Object>> T readEntries(DataInput in, int size, T map) throws Exception {
+        for(int i=0; i < size; i++) {
+            Object key=objectFromStream(in);
+            map.put(key, objectFromStream(in));
+        }
+        return map;
+    }
+
+    /** Initial capacity of a hash based collection holding size elements without resizing */
+    private static int capacity(int size) {
+        return Math.max(size * 4 / 3 + 1, 16);
+    }
+
 
 
 
@@ -1396,6 +1615,13 @@ public class Util {
         return (long)((Math.random() * range) % range) + 1;
     }
 
+    /** Returns the smallest power of 2 >= num, e.g. 1000 -> 1024, 1024 -> 1024 */
+    public static int getNextHigherPowerOfTwo(int num) {
+        if(num <= 0) return 1;
+        int highestBit=Integer.highestOneBit(num);
+        return num <= highestBit? highestBit : highestBit << 1;
+    }
+
 
 
     /** Sleeps between floor and ceiling milliseconds, chosen randomly */
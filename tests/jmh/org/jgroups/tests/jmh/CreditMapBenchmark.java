@@ -0,0 +1,60 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.Address;
+import org.jgroups.util.CreditMap;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link CreditMap} as used by MFC: senders decrement credits for all members, and credits are replenished
+ * as soon as the receivers send them back. Run with 1 and 8 threads to compare uncontended and contended senders.
+ * @author agent
+ * @since 3.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class CreditMapBenchmark {
+    protected static final long CREDITS=1000;
+
+    @Param({"4", "32"})
+    protected int               members;
+
+    protected CreditMap         map;
+    protected Address[]         addrs;
+
+
+    @Setup
+    public void setup() {
+        map=new CreditMap(Long.MAX_VALUE / 2);
+        addrs=new Address[members];
+        for(int i=0; i < addrs.length; i++) {
+            addrs[i]=Util.createRandomAddress(String.valueOf(i));
+            map.putIfAbsent(addrs[i]);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean decrementAndReplenish() {
+        return decrementAndReplenish(map, addrs);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean decrementAndReplenishContended() {
+        return decrementAndReplenish(map, addrs);
+    }
+
+    protected static boolean decrementAndReplenish(CreditMap map, Address[] addrs) {
+        boolean rc=map.decrement(CREDITS, 1000);
+        for(Address addr: addrs)
+            map.replenish(addr, CREDITS);
+        return rc;
+    }
+}
@@ -0,0 +1,60 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.util.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the serialization of {@link Digest}s, which are shipped with every STABLE message and on view changes and
+ * merges, for different cluster sizes
+ * @author agent
+ * @since 3.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class DigestBenchmark {
+    @Param({"10", "100", "1000"})
+    protected int                          members;
+
+    protected Digest                       digest;
+    protected ExposedByteArrayOutputStream out_stream;
+    protected ExposedDataOutputStream      out;
+    protected byte[]                       marshalled;
+
+
+    @Setup
+    public void setup() throws Exception {
+        MutableDigest tmp=new MutableDigest(members);
+        for(int i=0; i < members; i++)
+            tmp.add(Util.createRandomAddress(String.valueOf(i)), 100000 + i, 100010 + i);
+        digest=tmp;
+        out_stream=new ExposedByteArrayOutputStream((int)digest.serializedSize() + 10);
+        out=new ExposedDataOutputStream(out_stream);
+        marshalled=Util.streamableToByteBuffer(digest);
+    }
+
+    @Benchmark
+    public int writeTo() throws Exception {
+        out_stream.reset();
+        digest.writeTo(out);
+        return out_stream.size();
+    }
+
+    @Benchmark
+    public Digest readFrom() throws Exception {
+        Digest retval=new Digest();
+        retval.readFrom(new DataInputStream(new ExposedByteArrayInputStream(marshalled)));
+        return retval;
+    }
+
+    @Benchmark
+    public long serializedSize() {
+        return digest.serializedSize();
+    }
+}
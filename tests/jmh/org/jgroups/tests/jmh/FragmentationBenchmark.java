@@ -0,0 +1,82 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Message;
+import org.jgroups.protocols.FRAG2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures fragmentation and reassembly of a message by {@link FRAG2}. The protocol below FRAG2 passes every fragment
+ * right back up to FRAG2, the protocol above FRAG2 counts the reassembled messages
+ * @author agent
+ * @since 3.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class FragmentationBenchmark {
+    @Param({"100000", "1000000"})
+    protected int         size;
+
+    @Param({"60000"})
+    protected int         frag_size;
+
+    protected FRAG2       frag;
+    protected Receiver    receiver;
+    protected byte[]      payload;
+    protected Address     sender;
+
+
+    @Setup
+    public void setup() {
+        frag=new FRAG2();
+        frag.setFragSize(frag_size);
+        receiver=new Receiver();
+        frag.setUpProtocol(receiver);
+        frag.setDownProtocol(new Loopback(frag)); // FRAG2.init() is not called as there's no transport
+        payload=new byte[size];
+        sender=Util.createRandomAddress("A");
+    }
+
+    /** Fragments a message and reassembles it. The message itself is passed up by reference */
+    @Benchmark
+    public int fragmentAndReassemble() {
+        Message msg=new Message(null, sender, payload);
+        frag.down(new Event(Event.MSG, msg));
+        return receiver.received;
+    }
+
+
+    /** Passes every message sent down right back up to the given protocol */
+    protected static class Loopback extends Protocol {
+        protected final Protocol up;
+
+        protected Loopback(Protocol up) {this.up=up;}
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG)
+                return up.up(evt);
+            return null;
+        }
+    }
+
+    protected static class Receiver extends Protocol {
+        protected int received;
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                received++;
+            return null;
+        }
+
+        public Object down(Event evt) {return null;}
+    }
+}
@@ -0,0 +1,61 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.Header;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.util.Headers;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Headers#putHeader(short,Header)} and {@link Headers#getHeader(short)}, with a number of headers
+ * typical for a message passing through the default stacks
+ * @author agent
+ * @since 3.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class HeadersBenchmark {
+    @Param({"1", "3", "6"})
+    protected int            num_headers;
+
+    protected short[]        ids;
+    protected Header         hdr;
+    protected Headers        headers;
+
+
+    @Setup
+    public void setup() {
+        ids=new short[num_headers];
+        for(int i=0; i < ids.length; i++)
+            ids[i]=(short)(50 + i * 3);
+        hdr=NakAckHeader2.createMessageHeader(1);
+        headers=new Headers(3);
+        for(short id: ids)
+            headers.putHeader(id, hdr);
+    }
+
+    /** Creates a new Headers instance (default capacity as used by Message) and adds all headers */
+    @Benchmark
+    public Headers putHeader() {
+        Headers tmp=new Headers(3);
+        for(short id: ids)
+            tmp.putHeader(id, hdr);
+        return tmp;
+    }
+
+    /** Looks up the last header, which is the worst case for the linear search */
+    @Benchmark
+    public Header getHeader() {
+        return headers.getHeader(ids[ids.length -1]);
+    }
+
+    @Benchmark
+    public Header getMissingHeader() {
+        return headers.getHeader((short)1000);
+    }
+}
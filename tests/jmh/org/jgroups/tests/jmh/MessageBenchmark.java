@@ -0,0 +1,72 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.UNICAST2;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.util.ExposedByteArrayInputStream;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+import org.jgroups.util.ExposedDataOutputStream;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the marshalling (writeTo()) and unmarshalling (readFrom()) of a {@link Message} with 2 headers, for
+ * different payload sizes
+ * @author agent
+ * @since 3.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class MessageBenchmark {
+    @Param({"10", "1000", "50000"})
+    protected int                          size;
+
+    protected Message                      msg;
+    protected ExposedByteArrayOutputStream out_stream;
+    protected ExposedDataOutputStream      out;
+    protected byte[]                       marshalled;
+
+
+    @Setup
+    public void setup() throws Exception {
+        short nakack_id=ClassConfigurator.getProtocolId(NAKACK2.class), unicast_id=ClassConfigurator.getProtocolId(UNICAST2.class);
+        Address src=Util.createRandomAddress("A");
+        msg=new Message(null, src, new byte[size]);
+        msg.putHeader(nakack_id, NakAckHeader2.createMessageHeader(322649));
+        msg.putHeader(unicast_id, UNICAST2.Unicast2Header.createDataHeader(100, (short)1, false));
+
+        out_stream=new ExposedByteArrayOutputStream(size + 200);
+        out=new ExposedDataOutputStream(out_stream);
+        marshalled=Util.streamableToByteBuffer(msg);
+    }
+
+    @Benchmark
+    public int writeTo() throws Exception {
+        out_stream.reset();
+        msg.writeTo(out);
+        return out_stream.size();
+    }
+
+    @Benchmark
+    public Message readFrom() throws Exception {
+        DataInputStream in=new DataInputStream(new ExposedByteArrayInputStream(marshalled));
+        Message retval=new Message(false);
+        retval.readFrom(in);
+        return retval;
+    }
+
+    @Benchmark
+    public Message copy() {
+        return msg.copy(true);
+    }
+}
@@ -0,0 +1,130 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.Message;
+import org.jgroups.util.RetransmitTable;
+import org.jgroups.util.RingBuffer;
+import org.jgroups.util.RingBufferLockless;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the retransmission buffers used by NAKACK2 ({@link RingBuffer}, {@link RingBufferLockless}) and NAKACK
+ * ({@link RetransmitTable}): adding a batch of messages and removing them (as done on delivery), and looking up
+ * messages (as done on retransmission requests). Contended access is measured by
+ * {@link org.jgroups.tests.perf.RingBufferPerf}.
+ * @author agent
+ * @since 3.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class RetransmitBufferBenchmark {
+    protected static final int     BATCH=100;
+    protected static final Message MSG=new Message(false);
+
+    @Param({"RingBuffer", "RingBufferLockless", "RetransmitTable"})
+    protected String               type;
+
+    @Param({"10000"})
+    protected int                  capacity;
+
+    protected Buffer               buf;
+    protected final List<Message>  list=new ArrayList<Message>(BATCH);
+    protected long                 seqno;
+
+
+    @Setup
+    public void setup() {
+        if(type.equals("RingBuffer"))
+            buf=new RingBufferAdapter(new RingBuffer<Message>(capacity, 0));
+        else if(type.equals("RingBufferLockless"))
+            buf=new RingBufferAdapter(new RingBufferLockless<Message>(capacity, 0));
+        else if(type.equals("RetransmitTable"))
+            buf=new RetransmitTableAdapter(new RetransmitTable(5, capacity / 5, 0));
+        else
+            throw new IllegalArgumentException("type " + type + " not known");
+        seqno=0;
+    }
+
+    @TearDown
+    public void destroy() {
+        buf.destroy();
+    }
+
+    /** Adds BATCH messages and removes them again */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int addAndRemove() {
+        for(int i=0; i < BATCH; i++)
+            buf.add(++seqno, MSG);
+        list.clear();
+        return buf.removeMany(list, BATCH);
+    }
+
+    /** Adds BATCH messages without removing them (as done for own messages), then looks all of them up */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int addAndGet() {
+        long first=seqno+1;
+        for(int i=0; i < BATCH; i++)
+            buf.add(++seqno, MSG);
+        int found=0;
+        for(long i=first; i <= seqno; i++)
+            if(buf.get(i) != null)
+                found++;
+        list.clear();
+        buf.removeMany(list, BATCH); // keeps the buffer from filling up
+        return found;
+    }
+
+
+    protected interface Buffer {
+        void    add(long seqno, Message msg);
+        Message get(long seqno);
+        int     removeMany(List<Message> list, int max);
+        void    destroy();
+    }
+
+    protected static class RingBufferAdapter implements Buffer {
+        protected final RingBuffer<Message> buf;
+
+        public RingBufferAdapter(RingBuffer<Message> buf) {this.buf=buf;}
+
+        public void    add(long seqno, Message msg)            {buf.add(seqno, msg, false);}
+        public Message get(long seqno)                         {return buf.get(seqno);}
+        public int     removeMany(List<Message> list, int max) {return buf.removeMany(list, null, true, max);}
+        public void    destroy()                               {buf.destroy();}
+    }
+
+    protected static class RetransmitTableAdapter implements Buffer {
+        protected final RetransmitTable table;
+        protected long                  next_to_remove=1;
+
+        public RetransmitTableAdapter(RetransmitTable table) {
+            this.table=table;
+            table.setAutomaticPurging(true);
+        }
+
+        public void    add(long seqno, Message msg) {table.put(seqno, msg);}
+        public Message get(long seqno)              {return table.get(seqno);}
+
+        public int removeMany(List<Message> list, int max) {
+            int num=0;
+            Message msg;
+            while(num < max && (msg=table.remove(next_to_remove)) != null) {
+                list.add(msg);
+                next_to_remove++;
+                num++;
+            }
+            return num;
+        }
+
+        public void destroy() {}
+    }
+}
@@ -0,0 +1,126 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of total order multicasts with {@link SEQUENCER}: concurrent threads on the 2 members which
+ * are not the coordinator send messages, which are forwarded to the coordinator and broadcast by it. max_batch_size=1
+ * forwards and broadcasts every message individually; larger values forward and broadcast messages in batches.
+ * @author agent
+ * @since 3.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class SequencerBenchmark {
+    protected static final int NUM_MSGS=1000, NUM_SENDERS=8;
+
+    @Param({"1", "200"})
+    protected int              max_batch_size;
+
+    @Param({"100", "1000"})
+    protected int              size;
+
+    protected JChannel         a, b, c;
+    protected Receiver         ra, rb, rc;
+    protected byte[]           payload;
+
+
+    @Setup
+    public void setup() throws Exception {
+        a=createChannel("A", max_batch_size);
+        b=createChannel("B", max_batch_size);
+        c=createChannel("C", max_batch_size);
+        ra=new Receiver(); rb=new Receiver(); rc=new Receiver();
+        a.setReceiver(ra); b.setReceiver(rb); c.setReceiver(rc);
+        a.connect("SequencerBenchmark");
+        b.connect("SequencerBenchmark");
+        c.connect("SequencerBenchmark");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+        payload=new byte[size];
+    }
+
+    @TearDown
+    public void destroy() {
+        Util.close(c, b, a);
+    }
+
+    /** NUM_SENDERS threads on B and C send NUM_MSGS multicasts; waits until all members have received all of them */
+    @Benchmark
+    @OperationsPerInvocation(NUM_MSGS)
+    public void multicast() throws Exception {
+        ra.expect(NUM_MSGS); rb.expect(NUM_MSGS); rc.expect(NUM_MSGS);
+        Thread[] senders=new Thread[NUM_SENDERS];
+        for(int i=0; i < senders.length; i++) {
+            final JChannel ch=i % 2 == 0? b : c;
+            senders[i]=new Thread() {
+                public void run() {
+                    for(int j=0; j < NUM_MSGS / NUM_SENDERS; j++) {
+                        try {
+                            ch.send(new Message(null, null, payload));
+                        }
+                        catch(Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            };
+            senders[i].start();
+        }
+        for(Thread sender: senders)
+            sender.join();
+        ra.await(); rb.await(); rc.await();
+    }
+
+
+    protected static JChannel createChannel(String name, int max_batch_size) throws Exception {
+        Protocol[] protocols={
+          new SHARED_LOOPBACK().setValue("thread_pool_rejection_policy", "run"),
+          new PING().setValue("timeout", 500).setValue("num_initial_members", 3),
+          new NAKACK2().setValue("use_mcast_xmit", false),
+          new UNICAST2(),
+          new STABLE().setValue("max_bytes", 1000000),
+          new GMS().setValue("print_local_addr", false),
+          new SEQUENCER().setValue("max_batch_size", max_batch_size),
+          new UFC(),
+          new MFC(),
+          new FRAG2()
+        };
+        JChannel ch=Util.createChannel(protocols);
+        ch.setName(name);
+        return ch;
+    }
+
+
+    protected static class Receiver extends ReceiverAdapter {
+        protected volatile CountDownLatch latch=new CountDownLatch(0);
+
+        public void expect(int num) {
+            latch=new CountDownLatch(num);
+        }
+
+        public void await() throws Exception {
+            if(!latch.await(30, TimeUnit.SECONDS))
+                throw new IllegalStateException("missing " + latch.getCount() + " messages");
+        }
+
+        public void receive(Message msg) {
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.*;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends messages through a full stack (reliable transmission, flow control, fragmentation and membership) between
+ * 2 members in the same JVM. The transport is {@link SHARED_LOOPBACK}, so the numbers show the overhead of the
+ * protocols above the transport, without any networking
+ * @author agent
+ * @since 3.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class StackBenchmark {
+    protected static final int NUM_MSGS=1000;
+
+    @Param({"100", "10000"})
+    protected int              size;
+
+    protected JChannel         a, b;
+    protected Receiver         ra, rb;
+    protected byte[]           payload;
+
+
+    @Setup
+    public void setup() throws Exception {
+        a=createChannel("A");
+        b=createChannel("B");
+        ra=new Receiver(); rb=new Receiver();
+        a.setReceiver(ra);
+        b.setReceiver(rb);
+        a.connect("StackBenchmark");
+        b.connect("StackBenchmark");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        payload=new byte[size];
+    }
+
+    @TearDown
+    public void destroy() {
+        Util.close(b, a);
+    }
+
+    /** Sends NUM_MSGS multicasts and waits until both members have received all of them */
+    @Benchmark
+    @OperationsPerInvocation(NUM_MSGS)
+    public void multicast() throws Exception {
+        ra.expect(NUM_MSGS); rb.expect(NUM_MSGS);
+        for(int i=0; i < NUM_MSGS; i++)
+            a.send(new Message(null, null, payload));
+        ra.await(); rb.await();
+    }
+
+    /** Sends NUM_MSGS unicasts from A to B and waits until B has received all of them */
+    @Benchmark
+    @OperationsPerInvocation(NUM_MSGS)
+    public void unicast() throws Exception {
+        Address target=b.getAddress();
+        rb.expect(NUM_MSGS);
+        for(int i=0; i < NUM_MSGS; i++)
+            a.send(new Message(target, null, payload));
+        rb.await();
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        Protocol[] protocols={
+          new SHARED_LOOPBACK().setValue("thread_pool_rejection_policy", "run"),
+          new PING().setValue("timeout", 500).setValue("num_initial_members", 2),
+          new NAKACK2().setValue("use_mcast_xmit", false),
+          new UNICAST2(),
+          new STABLE().setValue("max_bytes", 1000000),
+          new GMS().setValue("print_local_addr", false),
+          new UFC(),
+          new MFC(),
+          new FRAG2()
+        };
+        JChannel ch=Util.createChannel(protocols);
+        ch.setName(name);
+        return ch;
+    }
+
+
+    protected static class Receiver extends ReceiverAdapter {
+        protected volatile CountDownLatch latch=new CountDownLatch(0);
+
+        public void expect(int num) {
+            latch=new CountDownLatch(num);
+        }
+
+        public void await() throws Exception {
+            if(!latch.await(30, TimeUnit.SECONDS))
+                throw new IllegalStateException("missing " + latch.getCount() + " messages");
+        }
+
+        public void receive(Message msg) {
+            latch.countDown();
+        }
+    }
+}
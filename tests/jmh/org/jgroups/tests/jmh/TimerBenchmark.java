@@ -0,0 +1,67 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.util.HashedTimingWheel;
+import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.TimeScheduler2;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link TimeScheduler2} and {@link HashedTimingWheel}: scheduling and cancelling a task (the common case
+ * for retransmission tasks, which are cancelled when an ack arrives), and executing a task
+ * @author agent
+ * @since 3.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class TimerBenchmark {
+    protected static final Runnable TASK=new Runnable() {
+        public void run() {}
+    };
+
+    @Param({"TimeScheduler2", "HashedTimingWheel"})
+    protected String                type;
+
+    protected TimeScheduler         timer;
+
+
+    @Setup
+    public void setup() {
+        if(type.equals("TimeScheduler2"))
+            timer=new TimeScheduler2();
+        else if(type.equals("HashedTimingWheel"))
+            timer=new HashedTimingWheel();
+        else
+            throw new IllegalArgumentException("type " + type + " not known");
+    }
+
+    @TearDown
+    public void destroy() {
+        timer.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean scheduleAndCancel() {
+        Future<?> future=timer.schedule(TASK, 5000, TimeUnit.MILLISECONDS);
+        return future.cancel(false);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean scheduleAndCancelContended() {
+        Future<?> future=timer.schedule(TASK, 5000, TimeUnit.MILLISECONDS);
+        return future.cancel(false);
+    }
+
+    @Benchmark
+    public void execute() {
+        timer.execute(TASK);
+    }
+}
@@ -0,0 +1,98 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link MethodTable}
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class MethodTableTest {
+
+    public static void testLookupById() throws Exception {
+        final AtomicInteger lookups=new AtomicInteger();
+        final Method foo=Target.class.getMethod("foo", int.class);
+        MethodTable table=new MethodTable(Target.class, new MethodLookup() {
+            public Method findMethod(short id) {
+                lookups.incrementAndGet();
+                return id == 5? foo : null;
+            }
+        });
+        for(int i=0; i < 10; i++)
+            assert table.findMethod(new MethodCall((short)5, 1)) == foo;
+        assert lookups.get() == 1 : "the method lookup should have been called only once, but was called " + lookups;
+        assert table.size() == 1;
+        assert foo.isAccessible();
+
+        try {
+            table.findMethod((short)6);
+            assert false : "method 6 doesn't exist";
+        }
+        catch(Exception ex) {
+            System.out.println("got exception as expected: " + ex);
+        }
+
+        MethodCall call=new MethodCall((short)5, 1);
+        call.setMethod(table.findMethod(call));
+        assert call.invoke(new Target()).equals(2);
+    }
+
+    public static void testNoMethodLookup() throws Exception {
+        MethodTable table=new MethodTable(Target.class, null);
+        try {
+            table.findMethod(new MethodCall((short)1));
+            assert false : "an ID can't be resolved without a method lookup";
+        }
+        catch(Exception ex) {
+            System.out.println("got exception as expected: " + ex);
+        }
+    }
+
+    public static void testLookupByTypes() throws Exception {
+        MethodTable table=new MethodTable(Target.class, null);
+        Method m1=table.findMethod(new MethodCall("foo", new Object[]{1}, new Class[]{int.class}));
+        Method m2=table.findMethod(new MethodCall("foo", new Object[]{"1"}, new Class[]{String.class}));
+        assert m1.getParameterTypes()[0] == int.class && m2.getParameterTypes()[0] == String.class;
+        assert table.findMethod(new MethodCall("foo", new Object[]{2}, new Class[]{int.class})) == m1 : "method was not cached";
+        assert table.findMethod(new MethodCall("bar", null, (Class[])null)).getName().equals("bar");
+        assert table.size() == 3;
+        assert !table.findMethod(new MethodCall("hidden", null, (Class[])null)).isAccessible()
+          : "non-public methods must not be made accessible";
+
+        try {
+            table.findMethod(new MethodCall("foo", new Object[]{1L}, new Class[]{long.class}));
+            assert false : "foo(long) doesn't exist";
+        }
+        catch(NoSuchMethodException ex) {
+            System.out.println("got exception as expected: " + ex);
+        }
+    }
+
+    public static void testLookupByNumberOfArgs() throws Exception {
+        MethodTable table=new MethodTable(Target.class, null);
+        MethodCall call=new MethodCall("bar", null, (Class[])null);
+        call.mode=MethodCall.OLD; // the method is found by name and number of args
+        Method m=table.findMethod(call);
+        assert m.equals(Target.class.getMethod("bar"));
+        assert table.findMethod(call) == m : "method was not cached";
+    }
+
+    public static void testMethodMode() throws Exception {
+        MethodTable table=new MethodTable(Target.class, null);
+        Method m=Target.class.getMethod("bar");
+        assert table.findMethod(new MethodCall(m)) == m;
+    }
+
+
+    public static class Target {
+        public static int foo(int num)         {return num * 2;}
+        public static String foo(String str)   {return str + str;}
+        public static String bar()             {return "bar";}
+        protected static String hidden()       {return "hidden";}
+    }
+}
@@ -0,0 +1,170 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.UNICAST2;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.util.NotifyingFuture;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Tests async dispatching of requests: methods returning a future don't block the thread delivering the request,
+ * and the response is sent when the future completes
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class RpcDispatcherAsyncTest {
+    protected JChannel      a, b;
+    protected RpcDispatcher da, db;
+    static final long       SLEEP=500;
+    static final int        NUM_CALLS=10;
+
+
+    @BeforeMethod
+    void setUp() throws Exception {
+        a=create("A");
+        da=new RpcDispatcher(a, null);
+        da.setServerObject(new Forwarder(da));
+        da.setAsyncDispatching(true);
+        b=create("B");
+        db=new RpcDispatcher(b, new Sleeper());
+        a.connect("RpcDispatcherAsyncTest");
+        b.connect("RpcDispatcherAsyncTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod
+    void tearDown() throws Exception {
+        db.stop();
+        da.stop();
+        Util.close(b, a);
+    }
+
+
+    /**
+     * B invokes forward() on A NUM_CALLS times, which in turn invokes sleep() on B. The requests to A are delivered
+     * in FIFO order, so if forward() blocked until sleep() returned, the calls would take NUM_CALLS * SLEEP ms
+     */
+    public void testNestedCalls() throws Exception {
+        List<Future<Long>> futures=new ArrayList<Future<Long>>(NUM_CALLS);
+        long start=System.currentTimeMillis();
+        for(int i=0; i < NUM_CALLS; i++)
+            futures.add(db.<Long>callRemoteMethodWithFuture(a.getAddress(),
+                                                            new MethodCall("forward", new Object[]{b.getAddress(), (long)i},
+                                                                           new Class[]{Address.class, long.class}),
+                                                            RequestOptions.SYNC().setTimeout(10000)));
+        for(int i=0; i < NUM_CALLS; i++)
+            assert futures.get(i).get() == i;
+        long time=System.currentTimeMillis() - start;
+        System.out.println(NUM_CALLS + " nested calls took " + time + " ms");
+        assert time < NUM_CALLS * SLEEP / 2 : "nested calls took " + time + " ms";
+    }
+
+    /** The exception thrown by the nested call is thrown at the caller */
+    public void testException() throws Exception {
+        try {
+            db.callRemoteMethod(a.getAddress(), "forwardFail", new Object[]{b.getAddress()}, new Class[]{Address.class},
+                                RequestOptions.SYNC().setTimeout(10000));
+            assert false : "the call should have thrown an exception";
+        }
+        catch(IllegalStateException ex) {
+            System.out.println("received exception as expected: " + ex);
+        }
+    }
+
+    /** Methods which don't return a future work as before */
+    public void testSyncMethod() throws Exception {
+        Object rsp=db.callRemoteMethod(a.getAddress(), "echo", new Object[]{"hello"}, new Class[]{String.class},
+                                       RequestOptions.SYNC().setTimeout(10000));
+        assert "hello".equals(rsp);
+    }
+
+    /** A MessageDispatcher with an AsyncRequestHandler sends the response from a different thread */
+    public void testAsyncRequestHandler() throws Exception {
+        db.stop();
+        MessageDispatcher md_a=new MessageDispatcher(a, null, null, new AsyncRequestHandler() {
+            public void handle(final Message request, final Response response) throws Exception {
+                new Thread() {
+                    public void run() {
+                        Util.sleep(100);
+                        response.send("rsp-" + request.getObject(), false);
+                    }
+                }.start();
+            }
+
+            public Object handle(Message msg) throws Exception {
+                throw new UnsupportedOperationException();
+            }
+        });
+        md_a.setAsyncDispatching(true);
+        MessageDispatcher md_b=new MessageDispatcher(b, null, null);
+        try {
+            Object rsp=md_b.sendMessage(new Message(a.getAddress(), null, "hello"), RequestOptions.SYNC().setTimeout(5000));
+            assert "rsp-hello".equals(rsp) : "response is " + rsp;
+        }
+        finally {
+            md_b.stop();
+            md_a.stop();
+        }
+    }
+
+
+    protected static JChannel create(String name) throws Exception {
+        JChannel ch=Util.createChannel(new SHARED_LOOPBACK().setValue("oob_thread_pool_min_threads", NUM_CALLS * 2)
+                                         .setValue("oob_thread_pool_max_threads", NUM_CALLS * 2),
+                                       new PING().setValue("timeout", 500).setValue("num_initial_members", 2),
+                                       new NAKACK2(),
+                                       new UNICAST2(),
+                                       new GMS().setValue("print_local_addr", false));
+        ch.setName(name);
+        return ch;
+    }
+
+
+    public static class Forwarder {
+        protected final RpcDispatcher disp;
+
+        public Forwarder(RpcDispatcher disp) {
+            this.disp=disp;
+        }
+
+        public NotifyingFuture<Long> forward(Address dest, long num) throws Exception {
+            return disp.callRemoteMethodWithFuture(dest, new MethodCall("sleep", new Object[]{num}, new Class[]{long.class}),
+                                                   RequestOptions.SYNC().setTimeout(10000).setFlags(Message.OOB));
+        }
+
+        public NotifyingFuture<Object> forwardFail(Address dest) throws Exception {
+            return disp.callRemoteMethodWithFuture(dest, new MethodCall("fail", null, (Class[])null),
+                                                   RequestOptions.SYNC().setTimeout(10000));
+        }
+
+        public static String echo(String str) {
+            return str;
+        }
+    }
+
+    public static class Sleeper {
+        public static long sleep(long num) {
+            Util.sleep(SLEEP);
+            return num;
+        }
+
+        public static void fail() {
+            throw new IllegalStateException("fail() was called");
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.UNICAST2;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests non-blocking RPCs: completion callbacks, timeouts of futures, first-N and quorum response filters, bulk calls,
+ * {@link SettableFuture} and group RPCs whose results are passed to a {@link RspReducer} ({@link StreamingGroupRequest})
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class RpcDispatcherFutureTest {
+    protected JChannel      a, b, c;
+    protected RpcDispatcher da, db, dc;
+
+    protected static final MethodCall VALUE=new MethodCall("value", new Object[]{}, new Class[]{});
+    protected static final MethodCall NUMBER=new MethodCall("number", new Object[]{}, new Class[]{});
+    protected static final MethodCall LIST=new MethodCall("list", new Object[]{}, new Class[]{});
+    protected static final MethodCall MAP=new MethodCall("map", new Object[]{}, new Class[]{});
+    protected static final MethodCall FAIL=new MethodCall("fail", new Object[]{}, new Class[]{});
+
+
+    @BeforeMethod
+    void setUp() throws Exception {
+        a=create("A");
+        da=new RpcDispatcher(a, new Server("x", 0, 1));
+        b=create("B");
+        db=new RpcDispatcher(b, new Server("x", 500, 2));
+        c=create("C");
+        dc=new RpcDispatcher(c, new Server("y", 2000, 3));
+        for(JChannel ch: Arrays.asList(a, b, c))
+            ch.connect("RpcDispatcherFutureTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+    }
+
+    @AfterMethod
+    void tearDown() throws Exception {
+        for(RpcDispatcher disp: Arrays.asList(dc, db, da))
+            disp.stop();
+        Util.close(c, b, a);
+    }
+
+
+    /** The listener is invoked when all responses have been received, without anyone calling get() */
+    public void testCallback() throws Exception {
+        final CountDownLatch latch=new CountDownLatch(1);
+        final List<RspList<String>> results=new ArrayList<RspList<String>>();
+        da.<String>callRemoteMethodsWithFuture(null, new MethodCall("echo", new Object[]{"hello"}, new Class[]{String.class}),
+                                               RequestOptions.SYNC().setTimeout(5000))
+          .setListener(new FutureListener<RspList<String>>() {
+              public void futureDone(Future<RspList<String>> future) {
+                  try {
+                      results.add(future.get());
+                  }
+                  catch(Exception e) {
+                      e.printStackTrace();
+                  }
+                  latch.countDown();
+              }
+          });
+        assert latch.await(5000, TimeUnit.MILLISECONDS) : "the listener was not invoked";
+        RspList<String> rsps=results.get(0);
+        System.out.println("rsps:\n" + rsps);
+        assert rsps.size() == 3 && rsps.numReceived() == 3;
+        for(Rsp<String> rsp: rsps.values())
+            assert "hello".equals(rsp.getValue());
+    }
+
+
+    /** A future whose responses don't arrive completes (and notifies its listener) when the timeout elapses */
+    public void testTimeout() throws Exception {
+        final CountDownLatch latch=new CountDownLatch(1);
+        long start=System.currentTimeMillis();
+        NotifyingFuture<Object> future=da.callRemoteMethodWithFuture(c.getAddress(),
+                                                                     new MethodCall("value", null, (Class[])null),
+                                                                     RequestOptions.SYNC().setTimeout(500));
+        future.setListener(new FutureListener<Object>() {
+            public void futureDone(Future<Object> future) {
+                latch.countDown();
+            }
+        });
+        assert latch.await(1500, TimeUnit.MILLISECONDS) : "the future didn't complete on timeout";
+        System.out.println("future completed after " + (System.currentTimeMillis() - start) + " ms");
+        assert future.isDone();
+        try {
+            future.get();
+            assert false : "get() should have thrown an exception";
+        }
+        catch(ExecutionException ex) {
+            System.out.println("got exception as expected: " + ex);
+            assert ex.getCause() instanceof org.jgroups.TimeoutException;
+        }
+    }
+
+
+    /** Every listener is notified exactly once, including listeners added after completion */
+    public void testMultipleListeners() throws Exception {
+        final AtomicInteger count=new AtomicInteger();
+        FutureListener<RspList<Object>> listener=new FutureListener<RspList<Object>>() {
+            public void futureDone(Future<RspList<Object>> future) {
+                count.incrementAndGet();
+            }
+        };
+        NotifyingFuture<RspList<Object>> future=da.callRemoteMethodsWithFuture(Arrays.asList(a.getAddress(), b.getAddress()),
+                                                                               new MethodCall("value", null, (Class[])null),
+                                                                               RequestOptions.SYNC().setTimeout(5000));
+        future.setListener(listener);
+        future.setListener(listener);
+        future.get();
+        waitForCount(count, 2);
+        future.setListener(listener);
+        assert count.get() == 3 : "count is " + count;
+        Util.sleep(500);
+        assert count.get() == 3 : "listeners were notified more than once: " + count;
+    }
+
+
+    /** With a FirstNRspFilter of 2, we don't wait for C, which takes 2 seconds to respond */
+    public void testFirstN() throws Exception {
+        FirstNRspFilter filter=new FirstNRspFilter(2);
+        long start=System.currentTimeMillis();
+        RspList<String> rsps=da.callRemoteMethods(null, new MethodCall("value", null, (Class[])null),
+                                                  RequestOptions.SYNC().setTimeout(5000).setRspFilter(filter));
+        long time=System.currentTimeMillis() - start;
+        System.out.println("rsps (" + time + " ms):\n" + rsps);
+        assert rsps.numReceived() == 2;
+        assert rsps.isReceived(a.getAddress()) && rsps.isReceived(b.getAddress());
+        assert time < 1500 : "call took " + time + " ms";
+    }
+
+
+    /** A and B return "x", so a quorum of 2 is reached without waiting for C */
+    public void testQuorum() throws Exception {
+        QuorumRspFilter filter=new QuorumRspFilter(2);
+        NotifyingFuture<RspList<String>> future=da.callRemoteMethodsWithFuture(null, new MethodCall("value", null, (Class[])null),
+                                                                               RequestOptions.SYNC().setTimeout(5000)
+                                                                                 .setRspFilter(filter));
+        RspList<String> rsps=future.get(1500, TimeUnit.MILLISECONDS);
+        System.out.println("filter: " + filter + ", rsps:\n" + rsps);
+        assert filter.isReached();
+        assert "x".equals(filter.getValue());
+        assert !rsps.isReceived(c.getAddress());
+    }
+
+
+    /** Invokes a different call in each member; calls to non-members are dropped */
+    public void testBulk() throws Exception {
+        Map<Address,MethodCall> calls=new HashMap<Address,MethodCall>();
+        for(JChannel ch: Arrays.asList(a, b, c))
+            calls.put(ch.getAddress(), new MethodCall("echo", new Object[]{ch.getName()}, new Class[]{String.class}));
+        calls.put(org.jgroups.util.UUID.randomUUID(), new MethodCall("echo", new Object[]{"non-member"}, new Class[]{String.class}));
+
+        RspList<String> rsps=da.callRemoteMethods(calls, RequestOptions.SYNC().setTimeout(5000));
+        System.out.println("rsps:\n" + rsps);
+        assert rsps.size() == 3;
+        for(JChannel ch: Arrays.asList(a, b, c))
+            assert ch.getName().equals(rsps.getValue(ch.getAddress()));
+
+        calls.remove(c.getAddress());
+        rsps=da.<String>callRemoteMethodsWithFuture(calls, RequestOptions.SYNC().setTimeout(5000)).get();
+        assert rsps.size() == 2;
+        assert "A".equals(rsps.getValue(a.getAddress())) && "B".equals(rsps.getValue(b.getAddress()));
+    }
+
+
+    public void testBulkMessages() throws Exception {
+        MessageDispatcher md_a=new MessageDispatcher(a, null, null, new RequestHandler() {
+            public Object handle(Message msg) throws Exception {
+                return "A:" + msg.getObject();
+            }
+        });
+        MessageDispatcher md_b=new MessageDispatcher(b, null, null, new RequestHandler() {
+            public Object handle(Message msg) throws Exception {
+                return "B:" + msg.getObject();
+            }
+        });
+        try {
+            List<Message> msgs=Arrays.asList(new Message(a.getAddress(), null, 1), new Message(b.getAddress(), null, 2),
+                                             new Message(null, null, 3));
+            RspList<String> rsps=md_a.sendMessages(msgs, RequestOptions.SYNC().setTimeout(5000));
+            System.out.println("rsps:\n" + rsps);
+            assert rsps.size() == 2;
+            assert "A:1".equals(rsps.getValue(a.getAddress())) && "B:2".equals(rsps.getValue(b.getAddress()));
+        }
+        finally {
+            md_b.stop();
+            md_a.stop();
+        }
+    }
+
+
+    /** Composes two RPCs with a SettableFuture: the second call is made from the listener of the first */
+    public void testComposition() throws Exception {
+        final SettableFuture<String> result=new SettableFuture<String>();
+        da.<String>callRemoteMethodWithFuture(a.getAddress(), new MethodCall("value", null, (Class[])null),
+                                              RequestOptions.SYNC().setTimeout(5000))
+          .setListener(new FutureListener<String>() {
+              public void futureDone(Future<String> future) {
+                  try {
+                      String val=future.get();
+                      da.<String>callRemoteMethodWithFuture(b.getAddress(),
+                                                            new MethodCall("echo", new Object[]{val + val}, new Class[]{String.class}),
+                                                            RequestOptions.SYNC().setTimeout(5000))
+                        .setListener(new FutureListener<String>() {
+                            public void futureDone(Future<String> future) {
+                                try {
+                                    result.set(future.get());
+                                }
+                                catch(Throwable t) {
+                                    result.setException(t);
+                                }
+                            }
+                        });
+                  }
+                  catch(Throwable t) {
+                      result.setException(t);
+                  }
+              }
+          });
+        assert "xx".equals(result.get(5000, TimeUnit.MILLISECONDS));
+    }
+
+
+    public static void testSettableFuture() throws Exception {
+        final AtomicInteger count=new AtomicInteger();
+        FutureListener<Integer> listener=new FutureListener<Integer>() {
+            public void futureDone(Future<Integer> future) {
+                count.incrementAndGet();
+            }
+        };
+        SettableFuture<Integer> future=new SettableFuture<Integer>();
+        future.setListener(listener);
+        assert !future.isDone();
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            assert false : "get() should have timed out";
+        }
+        catch(java.util.concurrent.TimeoutException ex) {
+        }
+        assert future.set(5);
+        assert !future.set(6) && !future.setException(new Exception()) && !future.cancel(true);
+        assert future.get() == 5;
+        future.setListener(listener);
+        assert count.get() == 2;
+
+        future=new SettableFuture<Integer>();
+        future.setException(new IllegalStateException("failed"));
+        try {
+            future.get();
+            assert false : "get() should have thrown an exception";
+        }
+        catch(ExecutionException ex) {
+            assert ex.getCause() instanceof IllegalStateException;
+        }
+    }
+
+
+    /** A returns null, so the first non-null value is B's; the call returns without waiting for C */
+    public void testFirstNonNull() throws Exception {
+        da.setServerObject(new Server(null, 0, 1));
+        long start=System.currentTimeMillis();
+        String result=da.callRemoteMethods(null, VALUE, RequestOptions.SYNC().setTimeout(5000),
+                                           RspReducers.<String>firstNonNull());
+        long time=System.currentTimeMillis() - start;
+        System.out.println("result=" + result + ", time=" + time + " ms");
+        assert "x".equals(result);
+        assert time < 1500 : "call should have returned before C's response was received, but took " + time + " ms";
+    }
+
+    /** A and B return "x", which is a majority, so the call returns without waiting for C */
+    public void testMajority() throws Exception {
+        long start=System.currentTimeMillis();
+        String result=da.callRemoteMethods(null, VALUE, RequestOptions.SYNC().setTimeout(5000),
+                                           RspReducers.<String>majority());
+        long time=System.currentTimeMillis() - start;
+        System.out.println("result=" + result + ", time=" + time + " ms");
+        assert "x".equals(result);
+        assert time < 1500 : "call should have returned before C's response was received, but took " + time + " ms";
+    }
+
+    public void testSum() throws Exception {
+        Number sum=da.callRemoteMethods(null, NUMBER, RequestOptions.SYNC().setTimeout(5000), RspReducers.sum());
+        System.out.println("sum=" + sum);
+        assert sum instanceof Long && sum.longValue() == 6;
+    }
+
+    public void testMerge() throws Exception {
+        List<String> list=da.callRemoteMethods(null, LIST, RequestOptions.SYNC().setTimeout(5000),
+                                               RspReducers.<String>merge());
+        System.out.println("list=" + list);
+        assert list.size() == 3;
+        assert list.containsAll(Arrays.asList("A", "B", "C"));
+    }
+
+    public void testMapMerge() throws Exception {
+        Map<String,Integer> map=da.callRemoteMethods(null, MAP, RequestOptions.SYNC().setTimeout(5000),
+                                                     RspReducers.<String,Integer>mapMerge());
+        System.out.println("map=" + map);
+        assert map.size() == 3;
+        assert map.get("A") == 1 && map.get("B") == 2 && map.get("C") == 3;
+    }
+
+    public void testExceptions() throws Exception {
+        RspReducers.Sum reducer=RspReducers.sum();
+        Number sum=da.callRemoteMethods(null, FAIL, RequestOptions.SYNC().setTimeout(5000), reducer);
+        System.out.println("reducer: " + reducer);
+        assert sum.longValue() == 0;
+        assert reducer.getNumExceptions() == 3 && reducer.getNumValues() == 0;
+    }
+
+    /** The timeout elapses before C's response is received; the result contains only A's and B's values */
+    public void testReducerTimeout() throws Exception {
+        Number sum=da.callRemoteMethods(null, NUMBER, RequestOptions.SYNC().setTimeout(1000), RspReducers.sum());
+        System.out.println("sum=" + sum);
+        assert sum.longValue() == 3;
+    }
+
+    /** A consumer which sees every response, but never terminates the call early */
+    public void testConsumer() throws Exception {
+        final List<Address> senders=new ArrayList<Address>();
+        RspReducer<Object,Integer> consumer=new RspReducer<Object,Integer>() {
+            public void init(int num_targets) {}
+
+            public boolean add(Object value, Throwable exception, Address sender) {
+                senders.add(sender);
+                return false;
+            }
+
+            public Integer getResult() {
+                return senders.size();
+            }
+        };
+        int num=da.callRemoteMethods(null, VALUE, RequestOptions.SYNC().setTimeout(5000), consumer);
+        System.out.println("senders=" + senders);
+        assert num == 3;
+        assert senders.equals(Arrays.asList(a.getAddress(), b.getAddress(), c.getAddress()));
+    }
+
+    public void testExclusionListAndEmptyTargets() throws Exception {
+        Number sum=da.callRemoteMethods(null, NUMBER,
+                                        RequestOptions.SYNC().setTimeout(5000).setExclusionList(c.getAddress()),
+                                        RspReducers.sum());
+        assert sum.longValue() == 3;
+
+        sum=da.callRemoteMethods(Collections.<Address>emptyList(), NUMBER, RequestOptions.SYNC(), RspReducers.sum());
+        assert sum.longValue() == 0;
+    }
+
+    public void testReducerFuture() throws Exception {
+        final CountDownLatch latch=new CountDownLatch(1);
+        final List<Number> results=new ArrayList<Number>();
+        NotifyingFuture<Number> future=da.callRemoteMethodsWithFuture(null, NUMBER, RequestOptions.SYNC().setTimeout(5000),
+                                                                      RspReducers.sum());
+        future.setListener(new FutureListener<Number>() {
+            public void futureDone(Future<Number> f) {
+                try {
+                    results.add(f.get());
+                }
+                catch(Exception e) {
+                    e.printStackTrace();
+                }
+                latch.countDown();
+            }
+        });
+        assert !future.isDone();
+        assert latch.await(5000, TimeUnit.MILLISECONDS) : "the listener was not invoked";
+        assert results.get(0).longValue() == 6;
+        assert future.get().longValue() == 6;
+    }
+
+    /** Duplicate responses and responses from suspected members are discarded */
+    public void testDuplicatesAndSuspects() throws Exception {
+        Address one=Util.createRandomAddress("one"), two=Util.createRandomAddress("two"),
+          three=Util.createRandomAddress("three");
+        StreamingGroupRequest<Number,Number> req=new StreamingGroupRequest<Number,Number>(null, null,
+                                                                                         Arrays.asList(one, two, three),
+                                                                                         RequestOptions.SYNC(),
+                                                                                         RspReducers.sum());
+        req.receiveResponse(1, one, false);
+        req.receiveResponse(1, one, false);
+        req.suspect(two);
+        req.receiveResponse(5, two, false);
+        req.receiveResponse(7, Util.createRandomAddress("four"), false);
+        assert !req.isDone();
+        assert req.getNumReceived() == 1 && req.getNumSuspected() == 1;
+
+        req.receiveResponse(2, three, false);
+        assert req.isDone();
+        assert req.get(0, TimeUnit.MILLISECONDS).longValue() == 3;
+    }
+
+    /** A destination listed twice is only invoked once, and the call doesn't wait for a second response from it */
+    public void testDuplicateDestinations() throws Exception {
+        List<Address> dests=Arrays.asList(b.getAddress(), a.getAddress(), b.getAddress());
+        NotifyingFuture<Number> future=da.callRemoteMethodsWithFuture(dests, NUMBER, RequestOptions.SYNC().setTimeout(0),
+                                                                      RspReducers.sum());
+        Number sum=future.get(5000, TimeUnit.MILLISECONDS);
+        System.out.println("sum=" + sum);
+        assert sum.longValue() == 3;
+
+        // a shared index of the view, which contains members which are not targets
+        Address one=Util.createRandomAddress("one"), two=Util.createRandomAddress("two"),
+          three=Util.createRandomAddress("three");
+        MemberIndex index=new MemberIndex(Arrays.asList(one, two, three));
+        StreamingGroupRequest<Number,Number> req=new StreamingGroupRequest<Number,Number>(null, null,
+                                                                                         Arrays.asList(three, one, three),
+                                                                                         index, RequestOptions.SYNC(),
+                                                                                         RspReducers.sum());
+        req.receiveResponse(5, two, false); // not a target
+        req.receiveResponse(1, one, false);
+        assert !req.isDone();
+        req.receiveResponse(2, three, false);
+        assert req.isDone();
+        assert req.get(0, TimeUnit.MILLISECONDS).longValue() == 3;
+    }
+
+
+    protected static void waitForCount(AtomicInteger count, int expected) {
+        for(int i=0; i < 20 && count.get() < expected; i++)
+            Util.sleep(100);
+        assert count.get() == expected : "count is " + count + ", expected " + expected;
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        JChannel ch=Util.createChannel(new SHARED_LOOPBACK(),
+                                       new PING().setValue("timeout", 500).setValue("num_initial_members", 3),
+                                       new NAKACK2(),
+                                       new UNICAST2(),
+                                       new GMS().setValue("print_local_addr", false));
+        ch.setName(name);
+        return ch;
+    }
+
+
+    public static class Server {
+        protected final String value;
+        protected final long   delay;
+        protected final int    number;
+
+        public Server(String value, long delay, int number) {
+            this.value=value;
+            this.delay=delay;
+            this.number=number;
+        }
+
+        /** Returns the value after a member-specific delay */
+        public String value() {
+            if(delay > 0)
+                Util.sleep(delay);
+            return value;
+        }
+
+        public static String echo(String str) {
+            return str;
+        }
+
+        public int number() {
+            if(delay > 0)
+                Util.sleep(delay);
+            return number;
+        }
+
+        public List<String> list() {
+            return Arrays.asList(String.valueOf((char)('A' + number - 1)));
+        }
+
+        public Map<String,Integer> map() {
+            return Collections.singletonMap(String.valueOf((char)('A' + number - 1)), number);
+        }
+
+        public void fail() {
+            throw new IllegalStateException("failure from " + number);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the window adjustment of {@link AFC}
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class AFC_Test {
+    static final Address A=Util.createRandomAddress("A"), B=Util.createRandomAddress("B");
+    static final long    MIN_WINDOW=100000, MAX_CREDITS=500000, ACK_SIZE=25000;
+    static final long    MS=TimeUnit.MILLISECONDS.toNanos(1);
+
+
+    public static void testSlowStart() throws Exception {
+        AFC afc=create();
+        AFC.Window win=afc.windows.get(B);
+        assert win.window == MIN_WINDOW;
+        fill(win);
+        win.probeResponse(System.nanoTime() - MS);
+        assert win.window == 2 * MIN_WINDOW : win;
+        fill(win);
+        win.probeResponse(System.nanoTime() - MS);
+        assert win.window == 4 * MIN_WINDOW : win;
+        fill(win);
+        win.probeResponse(System.nanoTime() - MS);
+        assert win.window == MAX_CREDITS : "window must not exceed max_credits: " + win;
+        assert win.slow_start;
+    }
+
+    /** The window is only increased if the sender actually uses it */
+    public static void testNoIncreaseWhenNotWindowLimited() throws Exception {
+        AFC afc=create();
+        AFC.Window win=afc.windows.get(B);
+        assert win.acquire(1000, 0);
+        for(int i=0; i < 5; i++)
+            win.probeResponse(System.nanoTime() - MS);
+        assert win.window == MIN_WINDOW : win;
+    }
+
+    /** When the round trip time increases because messages queue up at the receiver, the window is decreased */
+    public static void testDecreaseOnQueueing() throws Exception {
+        AFC afc=create();
+        AFC.Window win=afc.windows.get(B);
+        fill(win);
+        win.probeResponse(System.nanoTime() - MS);
+        fill(win);
+        win.probeResponse(System.nanoTime() - MS);
+        long window=win.window;
+        assert window == 4 * MIN_WINDOW;
+
+        for(int i=0; i < 5; i++) {
+            win.probeResponse(System.nanoTime() - 20 * MS);
+            assert win.window < window : win;
+            window=win.window;
+        }
+        assert !win.slow_start;
+        System.out.println("window after queueing: " + win);
+
+        // the window never drops below min_window
+        for(int i=0; i < 100; i++)
+            win.probeResponse(System.nanoTime() - 20 * MS);
+        assert win.window == MIN_WINDOW : win;
+    }
+
+    public static void testTimeoutHalvesWindow() throws Exception {
+        AFC afc=create();
+        AFC.Window win=afc.windows.get(B);
+        win.setWindow(MAX_CREDITS);
+        win.timeout();
+        assert win.window == MAX_CREDITS / 2;
+        assert !win.slow_start;
+        win.timeout(); win.timeout();
+        assert win.window == MIN_WINDOW;
+    }
+
+    public static void testBlockingAndAck() throws Exception {
+        AFC afc=create();
+        final AFC.Window win=afc.windows.get(B);
+        fill(win);
+        assert !win.acquire(1000, 0);
+        assert !win.acquire(1000, 100);
+        assert win.num_blockings == 1;
+
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread sender=new Thread() {
+            public void run() {
+                if(win.acquire(20000, 10000))
+                    latch.countDown();
+            }
+        };
+        sender.start();
+        Util.sleep(200);
+        assert latch.getCount() == 1;
+        win.ack(10000);
+        Util.sleep(200);
+        assert latch.getCount() == 1 : "10000 credits are not enough";
+        win.ack(10000);
+        assert latch.await(5, TimeUnit.SECONDS);
+        assert win.outstanding.get() == MIN_WINDOW;
+    }
+
+    /** A message larger than the window is sent if nothing is outstanding */
+    public static void testLargeMessage() throws Exception {
+        AFC afc=create();
+        AFC.Window win=afc.windows.get(B);
+        assert win.acquire(MIN_WINDOW * 3, 0);
+        assert !win.acquire(1, 0);
+        win.ack(MIN_WINDOW * 3);
+        assert win.acquire(1, 0);
+    }
+
+    /** A sender blocked on the window of a member which leaves is unblocked */
+    public static void testViewChangeUnblocksSender() throws Exception {
+        final AFC afc=create();
+        AFC.Window win=afc.windows.get(B);
+        fill(win);
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread sender=new Thread() {
+            public void run() {
+                afc.down(new Event(Event.MSG, new Message(B, null, new byte[1000])));
+                latch.countDown();
+            }
+        };
+        sender.start();
+        Util.sleep(200);
+        assert latch.getCount() == 1;
+        afc.handleViewChange(Arrays.asList(A));
+        assert latch.await(5, TimeUnit.SECONDS);
+        assert !afc.windows.containsKey(B);
+    }
+
+    public static void testReceiverSendsCreditsEveryAckSize() throws Exception {
+        AFC afc=create();
+        long credits=0;
+        for(int i=0; i < 24; i++)
+            credits+=afc.adjustCredit(null, B, 1000);
+        assert credits == 0;
+        credits=afc.adjustCredit(null, B, 1000);
+        assert credits == ACK_SIZE;
+        assert afc.adjustCredit(null, B, 1000) == 0;
+    }
+
+    /** Sends messages to a receiver which processes them slowly: the number of queued bytes must be bounded */
+    public static void testSlowReceiver() throws Exception {
+        final AFC sender=create(), receiver=create();
+        final BlockingQueue<Message> queue=new LinkedBlockingQueue<Message>();
+        final AtomicInteger received=new AtomicInteger(0);
+        final int NUM=500, SIZE=10000;
+        final long[] max_queued={0};
+
+        // messages sent by the sender are queued; credits and probe responses from the receiver are OOB
+        sender.setDownProtocol(new Protocol() {
+            public Object down(Event evt) {
+                if(evt.getType() == Event.MSG) {
+                    Message msg=((Message)evt.getArg()).copy();
+                    msg.setSrc(A);
+                    queue.add(msg);
+                    long queued=0;
+                    for(Message m: queue)
+                        queued+=m.getLength();
+                    synchronized(max_queued) {
+                        max_queued[0]=Math.max(max_queued[0], queued);
+                    }
+                }
+                return null;
+            }
+        });
+        receiver.setDownProtocol(new Protocol() {
+            public Object down(Event evt) {
+                if(evt.getType() == Event.MSG) {
+                    Message msg=((Message)evt.getArg()).copy();
+                    msg.setSrc(B);
+                    sender.up(new Event(Event.MSG, msg));
+                }
+                return null;
+            }
+        });
+        receiver.setUpProtocol(new Protocol() {
+            public Object up(Event evt) {
+                if(received.incrementAndGet() % 10 == 0)
+                    Util.sleep(2);
+                return null;
+            }
+        });
+        Thread delivery=new Thread() {
+            public void run() {
+                for(;;) {
+                    try {
+                        receiver.up(new Event(Event.MSG, queue.take()));
+                    }
+                    catch(InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        };
+        delivery.start();
+
+        for(int i=0; i < NUM; i++)
+            sender.down(new Event(Event.MSG, new Message(B, null, new byte[SIZE])));
+        for(int i=0; i < 100 && received.get() < NUM; i++)
+            Util.sleep(100);
+        delivery.interrupt();
+
+        System.out.println("max queued=" + max_queued[0] + ", window: " + sender.printWindows() +
+                             "probes=" + sender.num_probes_sent);
+        assert received.get() == NUM;
+        assert max_queued[0] <= MAX_CREDITS + SIZE : "max queued bytes: " + max_queued[0];
+        assert sender.num_probes_sent.get() > 0;
+        assert sender.getNumberOfBlockings() > 0;
+    }
+
+
+    protected static AFC create() throws Exception {
+        AFC afc=new AFC();
+        afc.setValue("max_credits", MAX_CREDITS).setValue("min_window", MIN_WINDOW).setValue("ack_size", ACK_SIZE);
+        afc.setDownProtocol(new Protocol() {
+            public Object down(Event evt) {return null;}
+        });
+        afc.setUpProtocol(new Protocol() {
+            public Object up(Event evt) {return null;}
+        });
+        afc.init();
+        afc.handleViewChange(Arrays.asList(A, B));
+        return afc;
+    }
+
+    /** Acquires all of the window */
+    protected static void fill(AFC.Window win) {
+        long available=win.window - win.outstanding.get();
+        if(available > 0)
+            assert win.acquire(available, 0);
+    }
+}
@@ -0,0 +1,156 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.util.Util;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests ENCRYPT with cipher modes requiring an IV (including AES/GCM), and concurrent encryption and decryption
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class ENCRYPTModesTest {
+    static final short ENCRYPT_ID=ClassConfigurator.getProtocolId(ENCRYPT.class);
+
+    @DataProvider(name="algorithms")
+    protected static Object[][] algorithms() {
+        return new Object[][] {{"AES"}, {"AES/CBC/PKCS5Padding"}, {"AES/CTR/NoPadding"}, {"AES/GCM/NoPadding"}};
+    }
+
+    @Test(dataProvider="algorithms")
+    public static void testEncryptAndDecrypt(String algorithm) throws Exception {
+        ENCRYPT sender=create(algorithm, false), receiver=create(algorithm, false);
+        Collector down=(Collector)sender.observer, up=(Collector)receiver.observer;
+
+        for(int i=0; i < 10; i++)
+            sender.down(new Event(Event.MSG, new Message(null, null, "hello-" + i)));
+        assert down.msgs.size() == 10;
+
+        Set<String> ivs=new HashSet<String>();
+        for(Message msg: down.msgs) {
+            ENCRYPT.EncryptHeader hdr=(ENCRYPT.EncryptHeader)msg.getHeader(ENCRYPT_ID);
+            if(algorithm.equals("AES"))
+                assert hdr.iv == null;
+            else
+                assert hdr.iv != null && ivs.add(Arrays.toString(hdr.iv)) : "IV was reused: " + Arrays.toString(hdr.iv);
+            receiver.up(new Event(Event.MSG, copy(msg)));
+        }
+
+        List<Object> objs=new ArrayList<Object>();
+        for(Message msg: up.msgs)
+            objs.add(msg.getObject());
+        System.out.println(algorithm + ": " + objs);
+        for(int i=0; i < 10; i++)
+            assert objs.get(i).equals("hello-" + i);
+    }
+
+    @Test(dataProvider="algorithms")
+    public static void testEncryptEntireMessage(String algorithm) throws Exception {
+        ENCRYPT sender=create(algorithm, true), receiver=create(algorithm, true);
+        Collector down=(Collector)sender.observer, up=(Collector)receiver.observer;
+        Message msg=new Message(null, null, "hello world");
+        msg.setFlag(Message.OOB);
+        sender.down(new Event(Event.MSG, msg));
+        receiver.up(new Event(Event.MSG, copy(down.msgs.poll())));
+        Message received=up.msgs.poll();
+        assert received.getObject().equals("hello world");
+        assert received.isFlagSet(Message.OOB);
+    }
+
+    /** GCM authenticates the ciphertext: a modified message must not be passed up */
+    public static void testTamperedMessageIsDropped() throws Exception {
+        ENCRYPT sender=create("AES/GCM/NoPadding", false), receiver=create("AES/GCM/NoPadding", false);
+        Collector down=(Collector)sender.observer, up=(Collector)receiver.observer;
+        sender.down(new Event(Event.MSG, new Message(null, null, "hello world")));
+        Message msg=copy(down.msgs.poll());
+        msg.getRawBuffer()[msg.getOffset() + 2]^=1;
+        receiver.up(new Event(Event.MSG, msg));
+        assert up.msgs.isEmpty();
+    }
+
+    @Test(dataProvider="algorithms")
+    public static void testConcurrentEncryptAndDecrypt(final String algorithm) throws Exception {
+        final ENCRYPT sender=create(algorithm, false), receiver=create(algorithm, false);
+        final Collector down=(Collector)sender.observer, up=(Collector)receiver.observer;
+        final int NUM_THREADS=8, NUM_MSGS=1000;
+        final CountDownLatch latch=new CountDownLatch(1);
+
+        Thread[] threads=new Thread[NUM_THREADS];
+        for(int i=0; i < threads.length; i++) {
+            final int id=i;
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=0; j < NUM_MSGS; j++)
+                            sender.down(new Event(Event.MSG, new Message(null, null, id + "-" + j)));
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join();
+        assert down.msgs.size() == NUM_THREADS * NUM_MSGS;
+
+        final List<Message> encrypted=new ArrayList<Message>(down.msgs);
+        for(int i=0; i < threads.length; i++) {
+            final int id=i;
+            threads[i]=new Thread() {
+                public void run() {
+                    for(int j=id; j < encrypted.size(); j+=NUM_THREADS)
+                        receiver.up(new Event(Event.MSG, encrypted.get(j)));
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread: threads)
+            thread.join();
+        assert up.msgs.size() == NUM_THREADS * NUM_MSGS : algorithm + ": received " + up.msgs.size() + " messages";
+
+        Set<Object> payloads=new HashSet<Object>();
+        for(Message msg: up.msgs)
+            payloads.add(msg.getObject());
+        assert payloads.size() == NUM_THREADS * NUM_MSGS;
+    }
+
+
+    /** Creates an ENCRYPT instance with the shared key from the keystore */
+    protected static ENCRYPT create(String algorithm, boolean encrypt_entire_msg) throws Exception {
+        ENCRYPT encrypt=new ENCRYPT();
+        encrypt.keyStoreName="defaultStore.keystore";
+        encrypt.symAlgorithm=algorithm;
+        encrypt.setValue("encrypt_entire_message", encrypt_entire_msg);
+        encrypt.init();
+        encrypt.setObserver(new Collector());
+        return encrypt;
+    }
+
+    /** Simulates sending the message over the network */
+    protected static Message copy(Message msg) throws Exception {
+        return (Message)Util.streamableFromByteBuffer(Message.class, Util.streamableToByteBuffer(msg));
+    }
+
+
+    protected static class Collector implements ENCRYPT.Observer {
+        protected final Queue<Message> msgs=new ConcurrentLinkedQueue<Message>();
+
+        public void up(Event evt)       {}
+        public void passUp(Event evt)   {if(evt.getType() == Event.MSG) msgs.add((Message)evt.getArg());}
+        public void down(Event evt)     {}
+        public void passDown(Event evt) {if(evt.getType() == Event.MSG) msgs.add((Message)evt.getArg());}
+    }
+}
@@ -0,0 +1,96 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link FD_GOSSIP}
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class FD_GOSSIP_Test {
+    static final int           NUM=5;
+    protected final JChannel[] channels=new JChannel[NUM];
+
+
+    @AfterMethod
+    void tearDown() throws Exception {
+        for(int i=channels.length -1; i >= 0; i--)
+            Util.close(channels[i]);
+    }
+
+
+    public static void testPhi() {
+        double mean=1000, std_dev=200;
+        assert FD_GOSSIP.phi(0, mean, std_dev) < 0.01;
+        double at_mean=FD_GOSSIP.phi(1000, mean, std_dev);
+        assert Math.abs(at_mean - Math.log10(2)) < 0.01 : "phi at the mean should be -log10(0.5): " + at_mean;
+        double prev=0;
+        for(long diff=0; diff <= 10000; diff+=100) {
+            double phi=FD_GOSSIP.phi(diff, mean, std_dev);
+            assert phi >= prev : "phi has to increase monotonically: " + prev + " -> " + phi;
+            assert !Double.isInfinite(phi) && !Double.isNaN(phi);
+            prev=phi;
+        }
+        assert FD_GOSSIP.phi(3000, mean, std_dev) > 8;
+    }
+
+    public static void testHistory() throws Exception {
+        FD_GOSSIP fd=(FD_GOSSIP)new FD_GOSSIP().setValue("min_std_deviation", 100L);
+        FD_GOSSIP.HeartbeatHistory history=fd.new HeartbeatHistory(0, 1000);
+        assert history.update(1, 500);
+        assert !history.update(1, 600) : "the same heartbeat must not be counted twice";
+        long now=500;
+        for(int hb=2; hb <= 50; hb++)
+            assert history.update(hb, now+=1000);
+        assert history.phi(now + 500) < 1;
+        assert history.phi(now + 1500) > 1;
+        assert history.phi(now + 5000) > 8;
+    }
+
+    public void testCrashedMemberIsExcluded() throws Exception {
+        for(int i=0; i < NUM; i++)
+            channels[i]=create(String.valueOf((char)('A' + i)));
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+
+        // gossip for a while: nobody must be suspected
+        Util.sleep(2000);
+        for(JChannel ch: channels) {
+            FD_GOSSIP fd=(FD_GOSSIP)ch.getProtocolStack().findProtocol(FD_GOSSIP.class);
+            System.out.println(ch.getAddress() + ":\n" + fd.printHistories());
+            assert fd.getSuspectEventsSent() == 0 : ch.getAddress() + " suspected " + fd.getSuspectedMembers();
+            assert fd.getNumGossipsReceived() > 0;
+        }
+
+        // crash C by discarding all traffic to and from it
+        JChannel c=channels[2];
+        ((DISCARD)c.getProtocolStack().findProtocol(DISCARD.class)).setDiscardAll(true);
+        JChannel[] remaining={channels[0], channels[1], channels[3], channels[4]};
+        long start=System.currentTimeMillis();
+        Util.waitUntilAllChannelsHaveSameSize(20000, 100, remaining);
+        System.out.println("C was excluded after " + (System.currentTimeMillis() - start) + " ms");
+        for(JChannel ch: remaining)
+            assert !ch.getView().containsMember(c.getAddress());
+    }
+
+
+    protected static JChannel create(String name) throws Exception {
+        JChannel ch=Util.createChannel(new SHARED_LOOPBACK(),
+                                       new DISCARD(),
+                                       new PING().setValue("timeout", 500).setValue("num_initial_members", NUM),
+                                       new FD_GOSSIP().setValue("interval", 100L).setValue("fanout", 2)
+                                         .setValue("min_std_deviation", 300L),
+                                       new NAKACK2(),
+                                       new UNICAST2(),
+                                       new GMS().setValue("print_local_addr", false));
+        ch.setName(name);
+        ch.connect("FD_GOSSIP_Test");
+        return ch;
+    }
+}
@@ -0,0 +1,225 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * Tests reassembly of fragments in {@link FRAG2}
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class FRAG2_Test {
+    static final int FRAG_SIZE=1000;
+    static final Address A=Util.createRandomAddress("A");
+    static final FRAG2   SENDER;
+
+    static {
+        try {
+            SENDER=create(0); // fragments of different messages need different IDs
+        }
+        catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void testInOrder() throws Exception {
+        for(int size: new int[]{1001, 2000, 2500, 10000, 10001, 9999}) {
+            List<Message> frags=fragment(size);
+            check(size, reassemble(frags));
+        }
+    }
+
+    public static void testOutOfOrder() throws Exception {
+        for(int size: new int[]{1001, 2000, 2500, 10000, 10001, 9999}) {
+            List<Message> frags=fragment(size);
+            Collections.reverse(frags); // the last fragment is received first
+            check(size, reassemble(frags));
+
+            frags=fragment(size);
+            Collections.shuffle(frags);
+            check(size, reassemble(frags));
+        }
+    }
+
+    public static void testDuplicateFragments() throws Exception {
+        List<Message> frags=fragment(5500);
+        List<Message> list=new ArrayList<Message>(frags);
+        // duplicates of all but the last fragment are received before the message is complete
+        list.addAll(0, frags.subList(1, frags.size() -1));
+        list.addAll(0, frags.subList(0, 3));
+        FRAG2 frag=create(0);
+        Receiver up=(Receiver)frag.getUpProtocol();
+        for(Message msg: list)
+            frag.up(new Event(Event.MSG, msg));
+        assert up.msgs.size() == 1;
+        check(5500, up.msgs.get(0));
+        assert frag.getFragBytes() == 0;
+    }
+
+    public static void testBatch() throws Exception {
+        List<Message> frags=fragment(3500);
+        FRAG2 frag=create(0);
+        Receiver up=(Receiver)frag.getUpProtocol();
+        MessageBatch batch=new MessageBatch(null, A, null, false, frags.size());
+        for(Message msg: frags)
+            batch.add(msg);
+        frag.up(batch);
+        assert up.msgs.size() == 1;
+        check(3500, up.msgs.get(0));
+    }
+
+    /** Tests that the oldest incomplete messages are discarded when max_frag_bytes is exceeded */
+    public static void testEviction() throws Exception {
+        FRAG2 frag=create(5000);
+        Receiver up=(Receiver)frag.getUpProtocol();
+        List<List<Message>> msgs=new ArrayList<List<Message>>();
+        for(int i=0; i < 5; i++)
+            msgs.add(fragment(3000));
+
+        // add the first fragment of each message; each entry allocates a 3000 byte buffer
+        for(List<Message> frags: msgs)
+            frag.up(new Event(Event.MSG, frags.remove(0)));
+        System.out.println("frag tables:\n" + frag.printFragmentTables());
+        assert frag.getFragBytes() <= 5000 : "frag bytes: " + frag.getFragBytes();
+        assert frag.getNumberOfEvictedMessages() == 4;
+
+        // only the last message can be completed
+        for(List<Message> frags: msgs)
+            for(Message msg: frags)
+                frag.up(new Event(Event.MSG, msg));
+        assert up.msgs.size() == 1;
+        check(3000, up.msgs.get(0));
+    }
+
+    public static void testViewChange() throws Exception {
+        FRAG2 frag=create(0);
+        Address B=Util.createRandomAddress("B");
+        frag.up(new Event(Event.MSG, fragment(3000).get(0)));
+        assert frag.getFragBytes() > 0;
+        frag.up(new Event(Event.VIEW_CHANGE, Util.createView(A, 1, A, B)));
+        assert frag.getFragBytes() > 0;
+        frag.up(new Event(Event.VIEW_CHANGE, Util.createView(B, 2, B)));
+        assert frag.getFragBytes() == 0;
+    }
+
+    /** A message with multiple buffers is fragmented without flattening it first */
+    public static void testCompositeMessage() throws Exception {
+        for(int size: new int[]{1001, 2500, 9999}) {
+            byte[] buf=new byte[size];
+            for(int i=0; i < buf.length; i++)
+                buf[i]=(byte)i;
+            int a=size / 3, b=size / 2;
+            Message msg=new Message(null, A, null);
+            msg.setBuffers(Arrays.copyOfRange(buf, 0, a), Arrays.copyOfRange(buf, a, b), Arrays.copyOfRange(buf, b, size));
+            msg.setFlag(Message.OOB);
+            List<Message> frags=fragment(msg);
+            for(Message frag: frags)
+                assert frag.getLength() <= FRAG_SIZE;
+            Collections.shuffle(frags);
+            check(size, reassemble(frags));
+        }
+    }
+
+    public static void testConcurrentIds() throws Exception {
+        final FRAG2 frag=create(0);
+        final Set<Long> ids=Collections.synchronizedSet(new HashSet<Long>());
+        Thread[] threads=new Thread[8];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread() {
+                public void run() {
+                    for(int j=0; j < 10000; j++)
+                        ids.add(frag.getNextId());
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread: threads)
+            thread.join();
+        assert ids.size() == threads.length * 10000;
+    }
+
+
+    protected static FRAG2 create(long max_frag_bytes) throws Exception {
+        FRAG2 frag=new FRAG2();
+        frag.setFragSize(FRAG_SIZE);
+        frag.setValue("max_frag_bytes", max_frag_bytes);
+        frag.setUpProtocol(new Receiver());
+        frag.setDownProtocol(new Receiver());
+        return frag;
+    }
+
+    /** Fragments a message of size bytes and returns the fragments as they'd be received */
+    protected static List<Message> fragment(int size) throws Exception {
+        byte[] buf=new byte[size];
+        for(int i=0; i < buf.length; i++)
+            buf[i]=(byte)i;
+        Message msg=new Message(null, A, buf);
+        msg.setFlag(Message.OOB);
+        return fragment(msg);
+    }
+
+    protected static synchronized List<Message> fragment(Message msg) throws Exception {
+        FRAG2 frag=SENDER;
+        ((Receiver)frag.getDownProtocol()).msgs.clear();
+        frag.down(new Event(Event.MSG, msg));
+        List<Message> retval=new ArrayList<Message>();
+        for(Message frag_msg: ((Receiver)frag.getDownProtocol()).msgs) {
+            Message copy=(Message)Util.streamableFromByteBuffer(Message.class, Util.streamableToByteBuffer(frag_msg));
+            copy.setSrc(A);
+            retval.add(copy);
+        }
+        return retval;
+    }
+
+    protected static Message reassemble(List<Message> frags) throws Exception {
+        FRAG2 frag=create(0);
+        Receiver up=(Receiver)frag.getUpProtocol();
+        for(Message msg: frags)
+            frag.up(new Event(Event.MSG, msg));
+        assert up.msgs.size() == 1 : "received " + up.msgs.size() + " messages";
+        assert frag.getFragBytes() == 0;
+        return up.msgs.get(0);
+    }
+
+    protected static void check(int size, Message msg) {
+        assert msg.getLength() == size : "expected " + size + " bytes, but got " + msg.getLength();
+        assert msg.isFlagSet(Message.OOB);
+        assert A.equals(msg.getSrc());
+        byte[] buf=msg.getRawBuffer();
+        assert msg.getOffset() == 0 && buf.length == size : "buffer of " + buf.length + " bytes for " + size + " bytes";
+        for(int i=0; i < size; i++)
+            assert buf[msg.getOffset() + i] == (byte)i : "byte " + i + " is incorrect";
+        assert Arrays.equals(msg.getBuffer(), Arrays.copyOfRange(buf, msg.getOffset(), msg.getOffset() + size));
+    }
+
+
+    protected static class Receiver extends Protocol {
+        protected final List<Message> msgs=new ArrayList<Message>();
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                msgs.add((Message)evt.getArg());
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+            for(Message msg: batch)
+                msgs.add(msg);
+        }
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG)
+                msgs.add((Message)evt.getArg());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests that {@link RSVP} handles the RSVP messages of a {@link MessageBatch} without changing the order of the batch
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class RSVP_BatchTest {
+    static final Address A=Util.createRandomAddress("A");
+    static final short   RSVP_ID=ClassConfigurator.getProtocolId(RSVP.class);
+
+    public static void testOrderIsPreserved() throws Exception {
+        for(boolean ack_on_delivery: new boolean[]{false, true}) {
+            RSVP rsvp=create(ack_on_delivery);
+            Message m1=new Message(null, A, 1), m2=rsvpMessage(RSVP.RsvpHeader.REQ, (short)22, 2),
+              m3=new Message(null, A, 3), m4=rsvpMessage(RSVP.RsvpHeader.RSP, (short)44, null),
+              m5=rsvpMessage(RSVP.RsvpHeader.REQ, (short)55, 5), m6=rsvpMessage(RSVP.RsvpHeader.FLUSH, (short)66, null);
+            MessageBatch batch=new MessageBatch(null, A, "cluster", true, Arrays.asList(m1, m2, m3, m4, m5, m6));
+            rsvp.up(batch);
+
+            Receiver up=(Receiver)rsvp.getUpProtocol();
+            Sender down=(Sender)rsvp.getDownProtocol();
+            System.out.println("ack_on_delivery=" + ack_on_delivery + ": delivered " + up.msgs + ", acked " + down.acked);
+            assert up.msgs.equals(Arrays.asList(m1, m2, m3, m5)) : "RSP and FLUSH are consumed, all others are delivered in order";
+            if(ack_on_delivery) { // only the FLUSH is acked before the batch is delivered
+                assert down.acked.equals(Arrays.asList((short)66, (short)22, (short)55)) : "acked: " + down.acked;
+                assert up.acked_before_delivery == 1;
+            }
+            else {
+                assert down.acked.equals(Arrays.asList((short)22, (short)55, (short)66)) : "acked: " + down.acked;
+                assert up.acked_before_delivery == 3;
+            }
+        }
+    }
+
+
+    protected static Message rsvpMessage(byte type, short id, Object payload) {
+        Message msg=new Message(null, A, payload);
+        msg.setFlag(Message.Flag.RSVP);
+        msg.putHeader(RSVP_ID, new RSVP.RsvpHeader(type, id));
+        return msg;
+    }
+
+    protected static RSVP create(boolean ack_on_delivery) throws Exception {
+        RSVP rsvp=new RSVP();
+        rsvp.setValue("ack_on_delivery", ack_on_delivery);
+        Sender down=new Sender();
+        Receiver up=new Receiver(down);
+        rsvp.setDownProtocol(down);
+        rsvp.setUpProtocol(up);
+        return rsvp;
+    }
+
+
+    protected static class Sender extends Protocol {
+        protected final List<Short> acked=new ArrayList<Short>();
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG) {
+                RSVP.RsvpHeader hdr=(RSVP.RsvpHeader)((Message)evt.getArg()).getHeader(RSVP_ID);
+                assert hdr.type == RSVP.RsvpHeader.RSP;
+                acked.add(hdr.id);
+            }
+            return null;
+        }
+    }
+
+    protected static class Receiver extends Protocol {
+        protected final Sender        sender;
+        protected final List<Message> msgs=new ArrayList<Message>();
+        protected int                 acked_before_delivery=-1;
+
+        public Receiver(Sender sender) {
+            this.sender=sender;
+        }
+
+        public void up(MessageBatch batch) {
+            acked_before_delivery=sender.acked.size();
+            for(Message msg: batch)
+                msgs.add(msg);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.util.ResourceManager;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests unicast and multicast messages with a {@link UDP} transport which receives packets through
+ * {@link java.nio.channels.DatagramChannel}s (use_nio=true)
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class UDP_NIO_Test {
+    protected JChannel   a, b;
+    protected MyReceiver ra, rb;
+    static final int     NUM_MSGS=100;
+
+
+    @BeforeMethod
+    void setUp() throws Exception {
+        InetAddress bind_addr=Util.getLocalhost(Util.getIpStackType());
+        String mcast_addr=ResourceManager.getNextMulticastAddress();
+        short mcast_port=ResourceManager.getNextMulticastPort(bind_addr);
+        a=create("A", bind_addr, mcast_addr, mcast_port);
+        b=create("B", bind_addr, mcast_addr, mcast_port);
+        a.setReceiver(ra=new MyReceiver());
+        b.setReceiver(rb=new MyReceiver());
+        a.connect("UDP_NIO_Test");
+        b.connect("UDP_NIO_Test");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod
+    void tearDown() throws Exception {
+        Util.close(b, a);
+    }
+
+
+    public void testReceivers() {
+        for(JChannel ch: new JChannel[]{a, b}) {
+            UDP udp=(UDP)ch.getProtocolStack().getTransport();
+            assert udp.ucast_channel_receiver != null && udp.ucast_receiver == null;
+            // either the multicast channel (JDK 7) or the MulticastSocket fallback receives multicasts
+            assert udp.mcast_channel_receiver != null || udp.mcast_receiver != null;
+        }
+    }
+
+    public void testMulticast() throws Exception {
+        for(int i=1; i <= NUM_MSGS; i++)
+            a.send(null, i);
+        checkReceived(ra, rb);
+    }
+
+    public void testUnicast() throws Exception {
+        for(int i=1; i <= NUM_MSGS; i++)
+            a.send(b.getAddress(), i);
+        checkReceived(rb);
+        assert ra.getList().isEmpty();
+    }
+
+
+    protected static void checkReceived(MyReceiver ... receivers) {
+        for(int i=0; i < 20; i++) {
+            boolean all_received=true;
+            for(MyReceiver receiver: receivers)
+                if(receiver.getList().size() < NUM_MSGS)
+                    all_received=false;
+            if(all_received)
+                break;
+            Util.sleep(500);
+        }
+        for(MyReceiver receiver: receivers) {
+            List<Integer> list=receiver.getList();
+            System.out.println("received " + list.size() + " msgs");
+            assert list.size() == NUM_MSGS : "expected " + NUM_MSGS + " msgs, but received " + list.size();
+            for(int i=0; i < list.size(); i++)
+                assert list.get(i) == i + 1 : "expected " + (i + 1) + ", but got " + list.get(i);
+        }
+    }
+
+    protected static JChannel create(String name, InetAddress bind_addr, String mcast_addr, short mcast_port) throws Exception {
+        JChannel ch=Util.createChannel(new UDP().setValue("use_nio", true).setValue("bind_addr", bind_addr)
+                                         .setValue("mcast_group_addr", InetAddress.getByName(mcast_addr))
+                                         .setValue("mcast_port", (int)mcast_port).setValue("ip_ttl", 0),
+                                       new PING().setValue("timeout", 500).setValue("num_initial_members", 2),
+                                       new NAKACK2(),
+                                       new UNICAST2(),
+                                       new GMS().setValue("print_local_addr", false));
+        ch.setName(name);
+        return ch;
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Integer> list=new ArrayList<Integer>();
+
+        public List<Integer> getList() {
+            synchronized(list) {
+                return new ArrayList<Integer>(list);
+            }
+        }
+
+        public void receive(Message msg) {
+            synchronized(list) {
+                list.add((Integer)msg.getObject());
+            }
+        }
+    }
+}
@@ -11,6 +11,9 @@ import org.jgroups.util.Util;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -101,6 +104,34 @@ public class AckSenderWindowTest {
     }
 
 
+    /** Tests retransmission driven by calls to retransmitUnacked(), rather than by a retransmitter */
+    public void testRetransmitUnacked() {
+        final List<Long> xmits=new ArrayList<Long>();
+        AckSenderWindow win=new AckSenderWindow(new AckSenderWindow.RetransmitCommand() {
+            public void retransmit(long seqno, Message msg) {
+                xmits.add(seqno);
+            }
+        }, new StaticInterval(xmit_timeouts), null, null);
+
+        for(long i=1; i <= 5; i++)
+            win.add(i, new Message());
+        win.retransmitUnacked(); // messages added since the last call are not yet retransmitted
+        assert xmits.isEmpty();
+
+        win.ack(2);
+        for(long i=6; i <= 8; i++)
+            win.add(i, new Message());
+        win.retransmitUnacked();
+        System.out.println("xmits = " + xmits);
+        assert xmits.equals(Arrays.asList(3L, 4L, 5L));
+
+        xmits.clear();
+        win.ack(7);
+        win.retransmitUnacked();
+        assert xmits.equals(Arrays.asList(8L));
+    }
+
+
     @Test(dataProvider="provider")
     public void testLowest(TimeScheduler timer, AckSenderWindow win) {
         try {
@@ -0,0 +1,74 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.BufferPool;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link BufferPool}
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,description="Functional tests of BufferPool")
+public class BufferPoolTest {
+
+    public void testSlabSizes() {
+        BufferPool pool=new BufferPool(500, 66000, 10);
+        System.out.println("pool = " + pool);
+        assert pool.getMinSize() == 512;
+        assert pool.getMaxSize() == 131072;
+
+        assert pool.acquire(1).getBuf().length == 512;
+        assert pool.acquire(512).getBuf().length == 512;
+        assert pool.acquire(513).getBuf().length == 1024;
+        assert pool.acquire(1024).getBuf().length == 1024;
+        assert pool.acquire(65000).getBuf().length == 65536;
+        assert pool.acquire(131072).getBuf().length == 131072;
+        assert pool.acquire(131073).getBuf().length == 131073; // not pooled
+        assert pool.getNumUnpooled() == 1;
+    }
+
+    public void testReuse() {
+        BufferPool pool=new BufferPool(512, 4096, 10);
+        BufferPool.Slab slab=pool.acquire(1000);
+        byte[] buf=slab.getBuf();
+        assert pool.getNumMisses() == 1;
+        assert slab.release();
+        assert pool.getNumAvailable() == 1;
+
+        BufferPool.Slab slab2=pool.acquire(1000);
+        assert slab2.getBuf() == buf;
+        assert pool.getNumHits() == 1;
+        assert pool.getNumAvailable() == 0;
+    }
+
+    public void testReferenceCounting() {
+        BufferPool pool=new BufferPool(512, 4096, 10);
+        BufferPool.Slab slab=pool.acquire(100);
+        slab.retain().retain();
+        assert slab.refCount() == 3;
+        assert !slab.release();
+        assert !slab.release();
+        assert pool.getNumAvailable() == 0;
+        assert slab.release();
+        assert pool.getNumAvailable() == 1;
+
+        try {
+            slab.release();
+            assert false : "releasing a released slab should have thrown an exception";
+        }
+        catch(IllegalStateException ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+    }
+
+    public void testMaxBuffers() {
+        BufferPool pool=new BufferPool(512, 4096, 2);
+        BufferPool.Slab[] slabs=new BufferPool.Slab[5];
+        for(int i=0; i < slabs.length; i++)
+            slabs[i]=pool.acquire(512);
+        for(BufferPool.Slab slab: slabs)
+            slab.release();
+        assert pool.getNumAvailable() == 2;
+    }
+}
@@ -0,0 +1,204 @@
+package org.jgroups.tests;
+
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.protocols.COMPRESS;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.LZCodec;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link COMPRESS}
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,description="Functional tests of COMPRESS")
+public class COMPRESS_Test {
+
+    public void testCompressAndUncompress() throws Exception {
+        for(String codec: new String[]{"deflate", "lz"}) {
+            COMPRESS sender=create(codec, false), receiver=create(codec, false);
+            byte[] payload=text(5000);
+            Message msg=send(sender, payload);
+            assert msg.getLength() < payload.length : codec + ": message was not compressed";
+            Message received=receive(receiver, msg);
+            assert Arrays.equals(received.getBuffer(), payload);
+            System.out.println(sender.printCodecStats());
+            assert sender.getNumCompressed() == 1;
+        }
+    }
+
+    /** The codec is shipped with the message, so a receiver configured with a different codec can uncompress it */
+    public void testDifferentCodecs() throws Exception {
+        COMPRESS sender=create("lz", false), receiver=create("deflate", false);
+        byte[] payload=text(2000);
+        Message received=receive(receiver, send(sender, payload));
+        assert Arrays.equals(received.getBuffer(), payload);
+    }
+
+    public void testSmallAndIncompressibleMessages() throws Exception {
+        COMPRESS compress=create("lz", false);
+        byte[] small=text(100);
+        Message msg=send(compress, small);
+        assert msg.getLength() == small.length && msg.getHeader(ID()) == null;
+
+        byte[] random=new byte[5000];
+        new Random().nextBytes(random);
+        msg=send(compress, random);
+        assert msg.getLength() == random.length && msg.getHeader(ID()) == null;
+        assert compress.getNumCompressed() == 0;
+    }
+
+    public void testAdaptive() throws Exception {
+        COMPRESS compress=create("lz", true);
+        byte[] random=new byte[5000];
+        new Random().nextBytes(random);
+        for(int i=0; i < 10; i++)
+            send(compress, random);
+        assert compress.getNumSkippedAdaptive() == 9 : "skipped=" + compress.getNumSkippedAdaptive();
+
+        // compression is skipped for adaptive_skip (10) messages, even if they would compress well
+        for(int i=0; i < 10; i++)
+            send(compress, text(5000));
+        assert compress.getNumCompressed() == 1;
+        System.out.println("avg ratio=" + compress.getAverageRatio() + ", skipped=" + compress.getNumSkippedAdaptive());
+    }
+
+    public void testBatch() throws Exception {
+        COMPRESS sender=create("lz", false), receiver=create("lz", false);
+        byte[] payload=text(3000);
+        Message compressed=send(sender, payload), uncompressed=new Message(null, null, "hello");
+        MessageBatch batch=new MessageBatch(null, Util.createRandomAddress("A"), null, true, 2);
+        batch.add(compressed).add(uncompressed);
+        Receiver up=(Receiver)receiver.getUpProtocol();
+        receiver.up(batch);
+        assert up.msgs.size() == 2;
+        assert Arrays.equals(up.msgs.get(0).getBuffer(), payload);
+        assert up.msgs.get(1) == uncompressed;
+    }
+
+
+    /**
+     * More threads than pool_size compress concurrently: the codecs which don't fit into the pool when they are
+     * returned are destroyed, and destroy() destroys the pooled codecs
+     */
+    public void testCodecPoolIsBounded() throws Exception {
+        final int num_threads=10, pool_size=4;
+        final COMPRESS sender=create(CountingCodec.class.getName(), false);
+        sender.setValue("pool_size", pool_size);
+        sender.setDownProtocol(new Protocol() {
+            public Object down(Event evt) {return null;}
+        });
+        CountingCodec.barrier=new CyclicBarrier(num_threads);
+        Thread[] threads=new Thread[num_threads];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread() {
+                public void run() {
+                    sender.down(new Event(Event.MSG, new Message(null, null, text(2000))));
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread: threads)
+            thread.join(10000);
+        int live=CountingCodec.created.get() - CountingCodec.destroyed.get();
+        System.out.println("created=" + CountingCodec.created + ", destroyed=" + CountingCodec.destroyed);
+        assert CountingCodec.created.get() >= num_threads;
+        assert live == pool_size : "live codecs: " + live;
+        sender.destroy();
+        assert CountingCodec.created.get() == CountingCodec.destroyed.get();
+    }
+
+    protected static short ID() {
+        return new COMPRESS().getId();
+    }
+
+    protected static COMPRESS create(String codec, boolean adaptive) throws Exception {
+        COMPRESS compress=(COMPRESS)new COMPRESS().setValue("codec", codec).setValue("adaptive", adaptive)
+          .setValue("adaptive_skip", 10);
+        compress.setUpProtocol(new Receiver());
+        compress.setDownProtocol(new Receiver());
+        compress.init();
+        return compress;
+    }
+
+    /** Sends payload down through compress and returns the message as passed to the protocol below */
+    protected static Message send(COMPRESS compress, byte[] payload) {
+        Receiver down=(Receiver)compress.getDownProtocol();
+        compress.down(new Event(Event.MSG, new Message(null, null, payload)));
+        return down.msgs.remove(down.msgs.size() -1);
+    }
+
+    protected static Message receive(COMPRESS compress, Message msg) {
+        Receiver up=(Receiver)compress.getUpProtocol();
+        compress.up(new Event(Event.MSG, msg));
+        return up.msgs.remove(up.msgs.size() -1);
+    }
+
+    protected static byte[] text(int size) {
+        StringBuilder sb=new StringBuilder(size);
+        for(int i=0; sb.length() < size; i++)
+            sb.append("message-").append(i % 100).append(' ');
+        return sb.substring(0, size).getBytes();
+    }
+
+
+    /** Counts created and destroyed instances; compress() blocks until all threads compress concurrently */
+    public static class CountingCodec extends LZCodec {
+        static final AtomicInteger      created=new AtomicInteger(0), destroyed=new AtomicInteger(0);
+        static volatile CyclicBarrier   barrier;
+
+        public CountingCodec() {
+            created.incrementAndGet();
+        }
+
+        public byte getId() {
+            return 40;
+        }
+
+        public int compress(byte[] input, int offset, int length, byte[] output, int out_offset, int out_length) throws Exception {
+            CyclicBarrier tmp=barrier;
+            if(tmp != null)
+                tmp.await(10, TimeUnit.SECONDS);
+            return super.compress(input, offset, length, output, out_offset, out_length);
+        }
+
+        public void destroy() {
+            destroyed.incrementAndGet();
+        }
+    }
+
+
+    /** Collects all messages passed up or down */
+    protected static class Receiver extends Protocol {
+        protected final List<Message> msgs=new ArrayList<Message>();
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                msgs.add((Message)evt.getArg());
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+            for(Message msg: batch)
+                msgs.add(msg);
+        }
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG)
+                msgs.add((Message)evt.getArg());
+            return null;
+        }
+    }
+}
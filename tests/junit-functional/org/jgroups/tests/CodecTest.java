@@ -0,0 +1,115 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.Codec;
+import org.jgroups.util.DeflateCodec;
+import org.jgroups.util.LZCodec;
+import org.jgroups.util.NoopCodec;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests the {@link Codec} implementations used by COMPRESS
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,description="Functional tests of the compression codecs")
+public class CodecTest {
+
+    @DataProvider(name="codecs")
+    protected static Object[][] codecs() {
+        return new Object[][] {{new DeflateCodec(9)}, {new DeflateCodec(1)}, {new LZCodec()}, {new NoopCodec()}};
+    }
+
+    @Test(dataProvider="codecs")
+    public void testRoundTrip(Codec codec) throws Exception {
+        for(byte[] input: inputs())
+            roundTrip(codec, input, 0, input.length);
+    }
+
+    @Test(dataProvider="codecs")
+    public void testRoundTripWithOffset(Codec codec) throws Exception {
+        byte[] input=text(5000);
+        roundTrip(codec, input, 100, 3000);
+        roundTrip(codec, input, 4990, 10);
+    }
+
+    @Test(dataProvider="codecs")
+    public void testOutputTooSmall(Codec codec) throws Exception {
+        byte[] input=random(2000);
+        byte[] output=new byte[codec.maxCompressedLength(input.length)];
+        assert codec.compress(input, 0, input.length, output, 0, input.length -1) == -1 : "random data should not compress";
+    }
+
+    public void testCompressionRatio() throws Exception {
+        byte[] input=text(10000);
+        for(Codec codec: new Codec[]{new DeflateCodec(9), new LZCodec()}) {
+            byte[] output=new byte[codec.maxCompressedLength(input.length)];
+            int size=codec.compress(input, 0, input.length, output, 0, output.length);
+            System.out.println(codec + ": " + input.length + " -> " + size);
+            assert size > 0 && size < input.length / 2;
+        }
+    }
+
+    public void testLZCorruptInput() throws Exception {
+        Codec codec=new LZCodec();
+        byte[] input=text(2000);
+        byte[] output=new byte[codec.maxCompressedLength(input.length)];
+        int size=codec.compress(input, 0, input.length, output, 0, output.length);
+
+        // truncated input
+        try {
+            codec.decompress(output, 0, size / 2, new byte[input.length], 0, input.length);
+            assert false : "decompression of truncated data should have failed";
+        }
+        catch(IllegalStateException expected) {
+            System.out.println("got expected exception: " + expected);
+        }
+
+        // wrong original size
+        try {
+            codec.decompress(output, 0, size, new byte[input.length -1], 0, input.length -1);
+            assert false : "decompression into a too small buffer should have failed";
+        }
+        catch(IllegalStateException expected) {
+            System.out.println("got expected exception: " + expected);
+        }
+    }
+
+
+    protected static void roundTrip(Codec codec, byte[] input, int offset, int length) throws Exception {
+        byte[] compressed=new byte[codec.maxCompressedLength(length) + 10];
+        int size=codec.compress(input, offset, length, compressed, 10, compressed.length - 10);
+        assert size >= 0 && size <= codec.maxCompressedLength(length) : codec + ": size=" + size;
+        byte[] output=new byte[length];
+        codec.decompress(compressed, 10, size, output, 0, length);
+        assert Arrays.equals(output, Arrays.copyOfRange(input, offset, offset + length)) : codec + ": data differs";
+    }
+
+    protected static byte[][] inputs() {
+        byte[] zeros=new byte[100000];
+        byte[] runs=new byte[10000];
+        for(int i=0; i < runs.length; i++)
+            runs[i]=(byte)(i / 300);
+        return new byte[][]{new byte[0], new byte[]{1}, "hello world".getBytes(), text(100), text(100000), random(10),
+          random(50000), zeros, runs};
+    }
+
+    protected static byte[] text(int size) {
+        String[] words={"the ", "quick ", "brown ", "fox ", "jumps ", "over ", "lazy ", "dog ", "JGroups ", "cluster "};
+        Random random=new Random(size);
+        StringBuilder sb=new StringBuilder(size);
+        while(sb.length() < size)
+            sb.append(words[random.nextInt(words.length)]);
+        return sb.substring(0, size).getBytes();
+    }
+
+    protected static byte[] random(int size) {
+        byte[] retval=new byte[size];
+        new Random(size).nextBytes(retval);
+        return retval;
+    }
+}
@@ -10,6 +10,7 @@ import org.testng.annotations.Test;
 
 import java.util.List;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Tests CreditMap
@@ -258,6 +259,46 @@ public class CreditMapTest {
     }
 
 
+    /** Many senders decrement concurrently while credits are replenished: no credits must be lost or created */
+    public void testConcurrentDecrementAndReplenish() throws Exception {
+        addAll();
+        final int NUM_THREADS=8, NUM_DECREMENTS=10000;
+        final AtomicLong decremented=new AtomicLong(0);
+        Thread[] threads=new Thread[NUM_THREADS];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread() {
+                public void run() {
+                    for(int j=0; j < NUM_DECREMENTS; j++) {
+                        if(map.decrement(10, 1))
+                            decremented.addAndGet(10);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        while(countAliveThreads(threads) > 0)
+            replenishAll(50);
+        for(Thread thread: threads)
+            thread.join();
+
+        System.out.println("decremented=" + decremented + ", blockings=" + map.getNumBlockings() + ", map:\n" + map);
+        assert map.getNumBlockedSenders() == 0;
+        long min=map.getMinCredits();
+        assert min >= 0 && min <= MAX_CREDITS;
+
+        // flush the accumulated credits: min credits must be the lowest credits of all members
+        map.replenish(a, 0);
+        assert map.getAccumulatedCredits() == 0;
+        long lowest=MAX_CREDITS;
+        for(Address mbr: new Address[]{a, b, c, d})
+            lowest=Math.min(lowest, map.get(mbr));
+        assert map.getMinCredits() == lowest : "min credits=" + map.getMinCredits() + ", lowest=" + lowest;
+
+        replenishAll(MAX_CREDITS);
+        assert map.getMinCredits() == MAX_CREDITS;
+    }
+
+
     protected int countAliveThreads(Thread[] threads) {
         int alive=0;
         for(Thread thread: threads)
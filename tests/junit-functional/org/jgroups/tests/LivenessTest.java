@@ -0,0 +1,156 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.protocols.FD;
+import org.jgroups.protocols.FD_ALL;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.UNICAST2;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.LivenessTracker;
+import org.jgroups.util.UUID;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests {@link LivenessTracker} and that failure detection protocols use regular traffic as heartbeats
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class LivenessTest {
+    static final int           NUM=3;
+    protected final JChannel[] channels=new JChannel[NUM];
+
+
+    @AfterMethod
+    void tearDown() throws Exception {
+        for(int i=channels.length -1; i >= 0; i--)
+            Util.close(channels[i]);
+    }
+
+
+    public static void testTracker() {
+        Address a=UUID.randomUUID(), b=UUID.randomUUID(), c=UUID.randomUUID();
+        LivenessTracker tracker=new LivenessTracker();
+        tracker.heardFrom(a);
+        assert tracker.lastHeard(a) == 0 : "non-members must not be tracked";
+
+        tracker.setMembers(Arrays.asList(a, b));
+        assert tracker.size() == 2;
+        long start=System.currentTimeMillis();
+        tracker.heardFrom(a);
+        assert tracker.lastHeard(a) >= start;
+        assert tracker.lastHeard(b) == 0;
+
+        tracker.setMembers(Arrays.asList(a, c));
+        assert tracker.size() == 2;
+        assert tracker.lastHeard(a) >= start : "existing entries have to be retained";
+        assert tracker.lastHeard(b) == 0 && tracker.lastHeard(c) == 0;
+        System.out.println("tracker:\n" + tracker);
+    }
+
+
+    public void testFD_ALL() throws Exception {
+        for(int i=0; i < NUM; i++)
+            channels[i]=create(String.valueOf((char)('A' + i)),
+                               new FD_ALL().setValue("interval", 100L).setValue("timeout", 1000L)
+                                 .setValue("suppress_heartbeats", true));
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+
+        for(JChannel ch: channels)
+            fdAll(ch).resetStats();
+        sendTraffic(2000);
+        for(JChannel ch: channels) {
+            FD_ALL fd=fdAll(ch);
+            System.out.println(ch.getAddress() + ": heartbeats sent=" + fd.getHeartbeatsSent());
+            assert fd.getHeartbeatsSent() <= 2 : ch.getAddress() + " sent " + fd.getHeartbeatsSent() + " heartbeats";
+            assert fd.getSuspectEventsSent() == 0;
+        }
+
+        // no traffic: heartbeats are sent again
+        Util.sleep(1000);
+        for(JChannel ch: channels) {
+            FD_ALL fd=fdAll(ch);
+            assert fd.getHeartbeatsSent() > 2 : ch.getAddress() + " sent only " + fd.getHeartbeatsSent() + " heartbeats";
+            assert fd.getSuspectEventsSent() == 0;
+        }
+    }
+
+
+    /** Heartbeats are not suppressed by default, as members with a different configuration would suspect busy members */
+    public void testFD_ALLWithoutSuppression() throws Exception {
+        for(int i=0; i < NUM; i++)
+            channels[i]=create(String.valueOf((char)('A' + i)),
+                               new FD_ALL().setValue("interval", 100L).setValue("timeout", 1000L));
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+
+        for(JChannel ch: channels)
+            fdAll(ch).resetStats();
+        sendTraffic(2000);
+        for(JChannel ch: channels) {
+            FD_ALL fd=fdAll(ch);
+            System.out.println(ch.getAddress() + ": heartbeats sent=" + fd.getHeartbeatsSent());
+            assert fd.getHeartbeatsSent() > 5 : ch.getAddress() + " sent only " + fd.getHeartbeatsSent() + " heartbeats";
+        }
+    }
+
+
+    public void testFD() throws Exception {
+        for(int i=0; i < NUM; i++)
+            channels[i]=create(String.valueOf((char)('A' + i)),
+                               new FD().setValue("timeout", 200L).setValue("max_tries", 3));
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+
+        int[] before=new int[NUM];
+        for(int i=0; i < NUM; i++)
+            before[i]=fd(channels[i]).getNumberOfHeartbeatsSent();
+        sendTraffic(2000);
+        for(int i=0; i < NUM; i++) {
+            FD fd=fd(channels[i]);
+            int sent=fd.getNumberOfHeartbeatsSent() - before[i];
+            System.out.println(channels[i].getAddress() + ": heartbeats sent=" + sent);
+            assert sent <= 2 : channels[i].getAddress() + " sent " + sent + " heartbeats";
+            assert fd.getNumSuspectEventsGenerated() == 0;
+        }
+    }
+
+
+    /** Every member multicasts a message every 20 ms */
+    protected void sendTraffic(long duration) throws Exception {
+        long end=System.currentTimeMillis() + duration;
+        while(System.currentTimeMillis() < end) {
+            for(JChannel ch: channels)
+                ch.send(new Message(null, null, "hello"));
+            Util.sleep(20);
+        }
+    }
+
+    protected static FD_ALL fdAll(JChannel ch) {
+        return (FD_ALL)ch.getProtocolStack().findProtocol(FD_ALL.class);
+    }
+
+    protected static FD fd(JChannel ch) {
+        return (FD)ch.getProtocolStack().findProtocol(FD.class);
+    }
+
+    protected static JChannel create(String name, Protocol fd) throws Exception {
+        JChannel ch=Util.createChannel(new SHARED_LOOPBACK(),
+                                       new PING().setValue("timeout", 500).setValue("num_initial_members", NUM),
+                                       fd,
+                                       new NAKACK2(),
+                                       new UNICAST2(),
+                                       new GMS().setValue("print_local_addr", false));
+        ch.setName(name);
+        ch.connect("LivenessTest");
+        return ch;
+    }
+}
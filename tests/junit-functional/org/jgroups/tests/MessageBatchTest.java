@@ -0,0 +1,92 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.UUID;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests {@link MessageBatch}
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,description="Functional tests of MessageBatch")
+public class MessageBatchTest {
+
+    public void testCreation() {
+        List<Message> msgs=create(10);
+        MessageBatch batch=new MessageBatch(null, UUID.randomUUID(), "cluster", true, msgs);
+        assert batch.size() == 10;
+        assert batch.capacity() == 10;
+        assert batch.multicast();
+        assert "cluster".equals(batch.clusterName());
+    }
+
+    public void testAdd() {
+        MessageBatch batch=new MessageBatch(3);
+        for(Message msg: create(10))
+            batch.add(msg);
+        assert batch.size() == 10;
+        assert batch.capacity() >= 10;
+        batch.add(null);
+        assert batch.size() == 10;
+    }
+
+    public void testRemoveAndReplace() {
+        List<Message> msgs=create(5);
+        MessageBatch batch=new MessageBatch(null, null, null, false, msgs);
+        batch.remove(msgs.get(0)).remove(msgs.get(4));
+        assert batch.size() == 3;
+
+        Message msg=new Message(null, null, "replaced");
+        batch.replace(msgs.get(2), msg);
+        assert batch.size() == 3;
+
+        int count=0;
+        for(Message m: batch) {
+            assert m != msgs.get(0) && m != msgs.get(2) && m != msgs.get(4);
+            count++;
+        }
+        assert count == 3;
+    }
+
+    public void testIteratorRemove() {
+        MessageBatch batch=new MessageBatch(null, null, null, false, create(10));
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            if((Integer)msg.getObject() % 2 == 0)
+                it.remove();
+        }
+        assert batch.size() == 5;
+        for(Message msg: batch)
+            assert (Integer)msg.getObject() % 2 == 1;
+    }
+
+    public void testClear() {
+        MessageBatch batch=new MessageBatch(null, null, null, false, create(10));
+        assert !batch.isEmpty();
+        batch.clear();
+        assert batch.isEmpty() && batch.size() == 0;
+        assert !batch.iterator().hasNext();
+    }
+
+    public void testLength() {
+        MessageBatch batch=new MessageBatch(5);
+        for(int i=0; i < 5; i++)
+            batch.add(new Message(null, null, new byte[100]));
+        assert batch.length() == 500;
+    }
+
+
+    protected static List<Message> create(int num) {
+        List<Message> retval=new ArrayList<Message>(num);
+        for(int i=0; i < num; i++)
+            retval.add(new Message(null, null, i));
+        return retval;
+    }
+}
@@ -7,6 +7,7 @@ import org.jgroups.Message;
 import org.jgroups.protocols.PingHeader;
 import org.jgroups.protocols.TpHeader;
 import org.jgroups.protocols.pbcast.NakAckHeader;
+import org.jgroups.util.Buffer;
 import org.jgroups.util.Range;
 import org.jgroups.util.UUID;
 import org.jgroups.util.Util;
@@ -15,7 +16,9 @@ import org.testng.annotations.Test;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
 
 /**
  * @author Bela Ban
@@ -232,6 +235,100 @@ public class MessageTest {
         Assert.assertEquals(3, m4.getBuffer().length);
     }
 
+
+    public static void testSetBuffers() {
+        byte[] hdr={'b', 'e', 'l', 'a'}, body={' ', 'b', 'a', 'n'};
+        Message msg=new Message();
+        msg.setBuffers(hdr, null, body);
+        assert msg.getBuffers().length == 2;
+        Assert.assertEquals(msg.getLength(), 8);
+        assert msg.getBuffers()[0].getBuf() == hdr : "buffers must not be copied";
+
+        Assert.assertEquals(new String(msg.getBuffer()), "bela ban");
+        assert msg.getBuffers() == null : "accessing the raw buffer flattens the segments";
+        Assert.assertEquals(msg.getOffset(), 0);
+        Assert.assertEquals(msg.getLength(), 8);
+
+        msg.setBuffers(new Buffer(hdr, 1, 2), new Buffer(body, 0, 2));
+        Assert.assertEquals(new String(msg.getRawBuffer(), msg.getOffset(), msg.getLength()), "el b");
+
+        msg.setBuffer(hdr);
+        assert msg.getBuffers() == null;
+    }
+
+
+    public static void testSetBuffersWithByteBuffers() {
+        ByteBuffer heap=ByteBuffer.wrap("xxbela".getBytes());
+        heap.position(2);
+        ByteBuffer direct=ByteBuffer.allocateDirect(4);
+        direct.put(" ban".getBytes()).flip();
+        Message msg=new Message();
+        msg.setBuffers(heap, direct);
+        Assert.assertEquals(msg.getLength(), 8);
+        assert heap.position() == 2 && direct.position() == 0;
+        Assert.assertEquals(new String(msg.getBuffer()), "bela ban");
+    }
+
+
+    public static void testCopyWithBuffers() {
+        Message m1=new Message();
+        m1.setBuffers("bela".getBytes(), " ban".getBytes());
+        Message m2=m1.copy();
+        assert m2.getBuffers() == m1.getBuffers();
+        Assert.assertEquals(m2.getLength(), 8);
+        assert m1.copy(false).getLength() == 0;
+    }
+
+
+    /** Concurrent getters flatten the segments only once, and all of them (and all copies) see the same payload */
+    public static void testConcurrentFlatten() throws Exception {
+        for(int round=0; round < 100; round++) {
+            final Message msg=new Message();
+            msg.setBuffers("bela".getBytes(), " ".getBytes(), "ban".getBytes());
+            final int num=8;
+            final byte[][] bufs=new byte[num][];
+            final Message[] copies=new Message[num];
+            final CyclicBarrier barrier=new CyclicBarrier(num);
+            Thread[] threads=new Thread[num];
+            for(int i=0; i < num; i++) {
+                final int index=i;
+                threads[i]=new Thread() {
+                    public void run() {
+                        try {
+                            barrier.await();
+                            copies[index]=msg.copy();
+                            bufs[index]=msg.getRawBuffer();
+                        }
+                        catch(Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for(Thread thread: threads)
+                thread.join(10000);
+            for(int i=0; i < num; i++) {
+                assert bufs[i] == bufs[0] : "the segments were flattened more than once";
+                Assert.assertEquals(new String(copies[i].getBuffer()), "bela ban");
+            }
+            Assert.assertEquals(new String(bufs[0], msg.getOffset(), msg.getLength()), "bela ban");
+        }
+    }
+
+
+    public static void testMarshallingWithBuffers() throws Exception {
+        Message msg=new Message();
+        msg.setSrc(UUID.randomUUID());
+        msg.setBuffers("bela".getBytes(), " ".getBytes(), "ban".getBytes());
+        addHeaders(msg);
+        _testSize(msg);
+        Message copy=(Message)Util.streamableFromByteBuffer(Message.class, Util.streamableToByteBuffer(msg));
+        assert copy.getBuffers() == null : "a received message has a single buffer";
+        Assert.assertEquals(new String(copy.getBuffer()), "bela ban");
+        assert msg.getBuffers() != null : "marshalling must not flatten the segments";
+    }
+
     public static void testCopyHeaders() {
         Message m1=new Message(null, null, "hello");
         for(short id: new short[]{1, 2, 10, Global.BLOCKS_START_ID, Global.BLOCKS_START_ID +10}) {
@@ -345,7 +442,8 @@ public class MessageTest {
 
 
     public static void testSizeMessageWithSrc() throws Exception {
-        Message msg=new Message(null, UUID.randomUUID(), null);
+        Message msg=new Message();
+        msg.setSrc(UUID.randomUUID());
         _testSize(msg);
     }
 
@@ -9,7 +9,12 @@ import org.jgroups.util.Util;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 
 /**
@@ -264,6 +269,45 @@ public class MethodCallTest {
     }
 
 
+    /** Primitive and array types, and collection arguments, are marshalled without Java serialization */
+    public static void testMarshallingWithCompactTypes() throws Exception {
+        List<String> list=new ArrayList<String>(Arrays.asList("one", "two"));
+        MethodCall call=new MethodCall("foo", new Object[]{list, new int[]{1, 2}, new String[]{"a"}, 5L},
+                                       new Class[]{List.class, int[].class, String[].class, long.class});
+        byte[] buf=Util.objectToByteBuffer(call);
+        MethodCall m=(MethodCall)Util.objectFromByteBuffer(buf);
+        System.out.println("m = " + m + " (" + buf.length + " bytes)");
+        assert m.getName().equals("foo");
+        assert Arrays.equals(m.getTypes(), call.getTypes());
+        assert m.getArgs()[0].equals(list);
+        assert Arrays.equals((int[])m.getArgs()[1], new int[]{1, 2});
+        assert Arrays.equals((String[])m.getArgs()[2], new String[]{"a"});
+        assert m.getArgs()[3].equals(5L);
+
+        ByteArrayOutputStream output=new ByteArrayOutputStream();
+        ObjectOutputStream out=new ObjectOutputStream(output);
+        out.writeObject(call);
+        out.close();
+        System.out.println("serialized: " + output.size() + " bytes");
+        assert buf.length * 3 < output.size();
+    }
+
+    public static void testMarshallingMETHOD() throws Exception {
+        Method method=TargetClass.class.getMethod("foo", int.class, String.class);
+        MethodCall m=marshalAndUnmarshal(new MethodCall(method, 35, "Bela"));
+        assert method.equals(m.getMethod());
+        Assert.assertEquals(m.invoke(new TargetClass()), Boolean.TRUE);
+    }
+
+    public static void testMarshallingID() throws Exception {
+        MethodCall m=marshalAndUnmarshal(new MethodCall((short)22, "hello"));
+        assert m.getId() == 22 && m.getName() == null;
+        assert m.getArgs().length == 1 && m.getArgs()[0].equals("hello");
+        m=marshalAndUnmarshal(new MethodCall((short)23, (Object[])null));
+        assert m.getId() == 23 && m.getArgs() == null;
+    }
+
+
     private static MethodCall marshalAndUnmarshal(MethodCall m) throws Exception {
         byte[] buf=Util.objectToByteBuffer(m);
         return (MethodCall)Util.objectFromByteBuffer(buf);
@@ -7,12 +7,15 @@ import org.jgroups.Global;
 import org.jgroups.Message;
 import org.jgroups.stack.NakReceiverWindow;
 import org.jgroups.stack.Retransmitter;
+import org.jgroups.util.SeqnoList;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -41,6 +44,32 @@ public class NakReceiverWindowTest {
     }
 
 
+    @Test(dataProvider="createTimer")
+    public void testGetMissing(TimeScheduler timer) throws Exception {
+        try {
+            NakReceiverWindow win=new NakReceiverWindow(sender, null, 0, timer);
+            assert win.getMissing() == null;
+            for(long seqno: new long[]{1,2,5,6,10})
+                win.add(seqno, new Message());
+            SeqnoList missing=win.getMissing();
+            System.out.println("missing = " + missing);
+            assert missing != null && missing.size() == 5;
+            List<Long> list=new ArrayList<Long>();
+            for(long seqno: missing)
+                list.add(seqno);
+            assert list.equals(Arrays.asList(3L,4L,7L,8L,9L));
+            assert win.getPendingXmits() == 0; // no retransmitter was created
+
+            for(long seqno: list)
+                win.add(seqno, new Message());
+            assert win.getMissing() == null;
+        }
+        finally {
+            timer.stop();
+        }
+    }
+
+
     @Test(dataProvider="createTimer")
     public void test2(TimeScheduler timer) throws Exception {
         try {
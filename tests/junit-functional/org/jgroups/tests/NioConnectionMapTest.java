@@ -0,0 +1,198 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.blocks.NioConnectionMap;
+import org.jgroups.blocks.TCPConnectionMap;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.BufferPool;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link NioConnectionMap}
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true,description="Functional tests of NioConnectionMap")
+public class NioConnectionMapTest {
+    protected NioConnectionMap ct1, ct2;
+    protected MyReceiver       r1, r2;
+
+
+    @BeforeMethod
+    protected void setUp() throws Exception {
+        InetAddress loopback=InetAddress.getByName("127.0.0.1");
+        r1=new MyReceiver(); r2=new MyReceiver();
+        ct1=new NioConnectionMap(new DefaultThreadFactory(Util.getGlobalThreadGroup(), "test", true), r1, loopback, null, 0, 0, 2);
+        ct2=new NioConnectionMap(new DefaultThreadFactory(Util.getGlobalThreadGroup(), "test", true), r2, loopback, null, 0, 0, 1);
+    }
+
+    @AfterMethod
+    protected void tearDown() throws Exception {
+        ct2.stop();
+        ct1.stop();
+    }
+
+
+    public void testSendToSelf() throws Exception {
+        ct1.start();
+        r1.expect(100);
+        byte[] data={'b', 'e', 'l', 'a'};
+        for(int i=0; i < 100; i++)
+            ct1.send(ct1.getLocalAddress(), data, 0, data.length);
+        r1.await();
+        assert ct1.getNumConnections() == 0;
+    }
+
+    public void testSendToOther() throws Exception {
+        ct1.start(); ct2.start();
+        r2.expect(1000);
+        for(int i=0; i < 1000; i++) {
+            byte[] data=create(i, 100);
+            ct1.send(ct2.getLocalAddress(), data, 0, data.length);
+        }
+        r2.await();
+        assert r2.errors.get() == 0;
+        assert ct1.connectionEstablishedTo(ct2.getLocalAddress());
+        assert r2.last_sender.equals(ct1.getLocalAddress());
+    }
+
+    /** Sends messages consisting of multiple buffers, which are written with a gathering write */
+    public void testSendBuffers() throws Exception {
+        ct1.start(); ct2.start();
+        r1.expect(100); r2.expect(100);
+        for(int i=0; i < 100; i++) {
+            byte[] data=create(i, 5000);
+            Buffer[] bufs={new Buffer(data, 0, 10), new Buffer(data, 10, 2000), new Buffer(data, 2010, 2990)};
+            ct1.send(ct2.getLocalAddress(), bufs, data.length);
+            ct1.send(ct1.getLocalAddress(), bufs, data.length);
+        }
+        r1.await(); r2.await();
+        assert r1.errors.get() == 0 && r2.errors.get() == 0;
+    }
+
+    /** Sends large messages with a small send queue, so that senders block until the I/O thread made room */
+    public void testBackPressure() throws Exception {
+        ct1.setSendQueueSize(5);
+        ct1.start(); ct2.start();
+        final int NUM=500, SIZE=64 * 1024;
+        r2.expect(NUM);
+        for(int i=0; i < NUM; i++) {
+            byte[] data=create(i, SIZE);
+            ct1.send(ct2.getLocalAddress(), data, 0, data.length);
+        }
+        r2.await();
+        System.out.println("queued sends=" + ct1.getNumQueuedSends() + ", blocked sends=" + ct1.getNumBlockedSends() +
+                             ", block time=" + ct1.getTotalBlockTime() + " ms");
+        assert r2.errors.get() == 0;
+        assert ct1.getNumQueuedMessages() == 0;
+    }
+
+    public void testSendBothWays() throws Exception {
+        ct1.start(); ct2.start();
+        r1.expect(500); r2.expect(500);
+        for(int i=0; i < 500; i++) {
+            byte[] data=create(i, 1000);
+            ct1.send(ct2.getLocalAddress(), data, 0, data.length);
+            ct2.send(ct1.getLocalAddress(), data, 0, data.length);
+        }
+        r1.await(); r2.await();
+        assert r1.errors.get() == 0 && r2.errors.get() == 0;
+    }
+
+    public void testPooledBuffers() throws Exception {
+        BufferPool pool=new BufferPool(512, 8192, 10);
+        ct2.setBufferPool(pool);
+        ct1.start(); ct2.start();
+        r2.expect(100);
+        for(int i=0; i < 100; i++) {
+            byte[] data=create(i, 1000);
+            ct1.send(ct2.getLocalAddress(), data, 0, data.length);
+        }
+        r2.await();
+        assert r2.errors.get() == 0;
+        assert r2.pooled.get() == 100;
+        assert pool.getNumHits() > 0;
+    }
+
+    public void testRetainAll() throws Exception {
+        ct1.start(); ct2.start();
+        r2.expect(1);
+        byte[] data=create(0, 10);
+        ct1.send(ct2.getLocalAddress(), data, 0, data.length);
+        r2.await();
+        assert ct1.getNumConnections() == 1;
+        ct1.retainAll(java.util.Collections.<Address>emptyList());
+        assert ct1.getNumConnections() == 0;
+
+        // a new connection is established on the next send
+        r2.expect(1);
+        ct1.send(ct2.getLocalAddress(), data, 0, data.length);
+        r2.await();
+        assert ct1.getNumConnections() == 1;
+    }
+
+
+    /** Creates a buffer of size bytes whose first 4 bytes are the seqno, followed by a pattern derived from it */
+    protected static byte[] create(int seqno, int size) {
+        byte[] buf=new byte[Math.max(size, Global.INT_SIZE)];
+        buf[0]=(byte)(seqno >>> 24); buf[1]=(byte)(seqno >>> 16); buf[2]=(byte)(seqno >>> 8); buf[3]=(byte)seqno;
+        for(int i=Global.INT_SIZE; i < buf.length; i++)
+            buf[i]=(byte)(seqno + i);
+        return buf;
+    }
+
+    protected static boolean verify(byte[] buf, int offset, int length, int expected_seqno) {
+        int seqno=((buf[offset] & 0xff) << 24) | ((buf[offset+1] & 0xff) << 16) | ((buf[offset+2] & 0xff) << 8) | (buf[offset+3] & 0xff);
+        if(seqno != expected_seqno)
+            return false;
+        for(int i=Global.INT_SIZE; i < length; i++)
+            if(buf[offset+i] != (byte)(seqno + i))
+                return false;
+        return true;
+    }
+
+
+    protected static class MyReceiver implements TCPConnectionMap.PooledReceiver {
+        protected volatile CountDownLatch latch;
+        protected int                     next_seqno;
+        protected volatile Address        last_sender;
+        protected final AtomicInteger     errors=new AtomicInteger(0);
+        protected final AtomicInteger     pooled=new AtomicInteger(0);
+
+        public void expect(int num) {
+            next_seqno=0;
+            latch=new CountDownLatch(num);
+        }
+
+        public void await() throws InterruptedException {
+            assert latch.await(20, TimeUnit.SECONDS) : "missing " + latch.getCount() + " messages";
+        }
+
+        public void receive(Address sender, byte[] data, int offset, int length) {
+            last_sender=sender;
+            if(length >= Global.INT_SIZE && !verify(data, offset, length, next_seqno++))
+                errors.incrementAndGet();
+            latch.countDown();
+        }
+
+        public void receive(Address sender, BufferPool.Slab slab, int offset, int length) {
+            pooled.incrementAndGet();
+            try {
+                receive(sender, slab.getBuf(), offset, length);
+            }
+            finally {
+                slab.release();
+            }
+        }
+    }
+}
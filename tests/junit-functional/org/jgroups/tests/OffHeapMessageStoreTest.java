@@ -0,0 +1,99 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.util.OffHeapMessageStore;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link OffHeapMessageStore}
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,description="Functional tests of OffHeapMessageStore")
+public class OffHeapMessageStoreTest {
+    protected static final Address A=Util.createRandomAddress("A"), B=Util.createRandomAddress("B");
+
+    public void testAddAndGet() throws Exception {
+        OffHeapMessageStore store=new OffHeapMessageStore(10000, 1000);
+        for(int i=1; i <= 10; i++)
+            assert store.add(A, i, new Message(null, A, "hello-" + i));
+        assert store.size(A) == 10;
+        for(int i=1; i <= 10; i++) {
+            Message msg=store.get(A, i);
+            assert msg != null && msg.getObject().equals("hello-" + i);
+            assert A.equals(msg.getSrc());
+        }
+        assert store.get(A, 11) == null;
+        assert store.get(B, 1) == null;
+        assert store.getOverflows() == 0;
+    }
+
+    public void testDuplicatesAndGaps() throws Exception {
+        OffHeapMessageStore store=new OffHeapMessageStore(10000, 1000);
+        assert store.add(A, 1, new Message(null, null, 1));
+        assert store.add(A, 5, new Message(null, null, 5));   // gap: starts a new segment
+        assert !store.add(A, 5, new Message(null, null, 5));
+        assert !store.add(A, 3, new Message(null, null, 3));
+        assert store.size(A) == 2;
+        assert store.getAllocatedSegments() == 2;
+        assert store.get(A, 3) == null;
+        assert store.get(A, 5).getObject().equals(5);
+    }
+
+    public void testPurge() throws Exception {
+        OffHeapMessageStore store=new OffHeapMessageStore(100 * 1000, 1000);
+        for(int i=1; i <= 100; i++)
+            store.add(A, i, new Message(null, null, new byte[100]));
+        int segments=store.getAllocatedSegments();
+        assert segments > 1;
+        long bytes=store.bytesRetained(A);
+        assert bytes > 100 * 100;
+
+        store.purge(A, 50);
+        assert store.get(A, 50) == null;
+        assert store.get(A, 51) != null;
+        assert store.bytesRetained(A) < bytes;
+        assert store.getFreeSegments() > 0;
+
+        store.purge(A, 100);
+        assert store.size(A) == 0 && store.bytesRetained(A) == 0;
+        assert store.getFreeSegments() == segments;
+
+        // purged segments are reused
+        for(int i=101; i <= 200; i++)
+            store.add(A, i, new Message(null, null, new byte[100]));
+        assert store.getAllocatedSegments() == segments;
+    }
+
+    public void testOverflow() throws Exception {
+        OffHeapMessageStore store=new OffHeapMessageStore(2000, 1000);
+        store.add(A, 1, new Message(null, null, new byte[2000])); // bigger than a segment
+        assert store.getOverflows() == 1;
+        for(int i=2; i <= 30; i++)
+            store.add(A, i, new Message(null, null, new byte[200]));
+        assert store.getAllocatedSegments() == 2;
+        assert store.getOverflows() > 1;
+        for(int i=1; i <= 30; i++)
+            assert store.get(A, i) != null;
+
+        store.purge(A, 30);
+        assert store.bytesRetained(A) == 0;
+    }
+
+    public void testRemoveAndClear() throws Exception {
+        OffHeapMessageStore store=new OffHeapMessageStore(10000, 1000);
+        for(int i=1; i <= 5; i++) {
+            store.add(A, i, new Message(null, null, i));
+            store.add(B, i, new Message(null, null, i));
+        }
+        assert store.bytesRetained() == store.bytesRetained(A) + store.bytesRetained(B);
+        store.remove(A);
+        assert store.get(A, 1) == null && store.get(B, 1) != null;
+        store.clear();
+        assert store.bytesRetained() == 0;
+        assert store.getFreeSegments() == store.getAllocatedSegments();
+    }
+}
@@ -0,0 +1,78 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.OutputBufferPool;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link OutputBufferPool}
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,description="Functional tests of OutputBufferPool")
+public class OutputBufferPoolTest {
+
+    public void testReuse() throws Exception {
+        OutputBufferPool pool=new OutputBufferPool(100, 1000);
+        OutputBufferPool.OutputBuffer buf=pool.acquire(50);
+        buf.getDataOutputStream().writeInt(322649);
+        assert buf.getBuffer().getLength() == 4;
+        pool.release(buf);
+        assert pool.getNumCreations() == 1;
+
+        OutputBufferPool.OutputBuffer buf2=pool.acquire(50);
+        assert buf2 == buf;
+        assert buf2.getBuffer().getLength() == 0 : "buffer should have been reset";
+        assert pool.getNumReuses() == 1;
+        pool.release(buf2);
+        System.out.println("pool = " + pool);
+    }
+
+    public void testGrowth() throws Exception {
+        OutputBufferPool pool=new OutputBufferPool(100, 1000);
+        pool.release(pool.acquire(10));
+        OutputBufferPool.OutputBuffer buf=pool.acquire(500);
+        assert buf.getOutputStream().getCapacity() >= 500;
+        assert pool.getNumGrowths() == 1;
+        pool.release(buf);
+
+        // grows beyond max_size while writing, and is shrunk back on release
+        buf=pool.acquire(500);
+        buf.getDataOutputStream().write(new byte[5000]);
+        assert buf.getBuffer().getLength() == 5000;
+        pool.release(buf);
+        assert pool.getNumGrowths() == 2;
+        assert buf.getOutputStream().getCapacity() == 1000;
+        System.out.println("pool = " + pool);
+    }
+
+    public void testReentrantAcquire() throws Exception {
+        OutputBufferPool pool=new OutputBufferPool(100, 1000);
+        OutputBufferPool.OutputBuffer outer=pool.acquire(10);
+        outer.getDataOutputStream().writeLong(1L);
+        OutputBufferPool.OutputBuffer inner=pool.acquire(10);
+        assert inner != outer;
+        inner.getDataOutputStream().writeLong(2L);
+        pool.release(inner);
+        assert outer.getBuffer().getLength() == 8;
+        pool.release(outer);
+
+        assert pool.acquire(10) == outer : "the outer buffer should be the cached one";
+    }
+
+    public void testPerThreadBuffers() throws Exception {
+        final OutputBufferPool pool=new OutputBufferPool(100, 1000);
+        final OutputBufferPool.OutputBuffer buf=pool.acquire(10);
+        pool.release(buf);
+        final OutputBufferPool.OutputBuffer[] other=new OutputBufferPool.OutputBuffer[1];
+        Thread thread=new Thread() {
+            public void run() {
+                other[0]=pool.acquire(10);
+                pool.release(other[0]);
+            }
+        };
+        thread.start();
+        thread.join(10000);
+        assert other[0] != null && other[0] != buf;
+    }
+}
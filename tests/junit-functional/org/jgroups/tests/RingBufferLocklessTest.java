@@ -0,0 +1,19 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.RingBuffer;
+import org.jgroups.util.RingBufferLockless;
+import org.testng.annotations.Test;
+
+/**
+ * Runs all tests of {@link RingBufferTest} against {@link RingBufferLockless}
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,description="Functional tests of RingBufferLockless")
+public class RingBufferLocklessTest extends RingBufferTest {
+
+    protected <T> RingBuffer<T> create(int capacity, long offset) {
+        return new RingBufferLockless<T>(capacity, offset);
+    }
+}
@@ -6,9 +6,11 @@ import org.jgroups.util.SeqnoList;
 import org.jgroups.util.Util;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Functional tests of RingBuffer
@@ -19,14 +21,14 @@ import java.util.concurrent.CountDownLatch;
 public class RingBufferTest {
 
     public void testConstructor() {
-        RingBuffer buf=new RingBuffer(100, 1);
+        RingBuffer<Integer> buf=create(100, 1);
         System.out.println("buf = " + buf);
         assert buf.capacity() == 100;
         assert buf.size() == 0;
     }
 
     public void testIndex() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 5);
+        RingBuffer<Integer> buf=create(10, 5);
         assert buf.getHighestDelivered() == 5;
         assert buf.getHighestReceived() == 5;
         buf.add(6,6); buf.add(7,7);
@@ -42,7 +44,7 @@ public class RingBufferTest {
     }
 
     public void testIndexWithRemoveMany() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 5);
+        RingBuffer<Integer> buf=create(10, 5);
         assert buf.getHighestDelivered() == 5;
         assert buf.getHighestReceived() == 5;
         buf.add(6,6); buf.add(7,7);
@@ -55,14 +57,14 @@ public class RingBufferTest {
     }
 
     public void testAddWithInvalidSeqno() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(100, 20);
+        RingBuffer<Integer> buf=create(100, 20);
         assert buf.add(10, 0) == false;
         assert buf.add(20, 0) == false;
         assert buf.size() == 0;
     }
 
     public void testAdd() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        RingBuffer<Integer> buf=create(10, 0);
         buf.add(1, 322649);
         buf.add(2, 100000);
         System.out.println("buf = " + buf);
@@ -70,7 +72,7 @@ public class RingBufferTest {
     }
 
     public void testSaturation() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        RingBuffer<Integer> buf=create(10, 0);
         for(int i: Arrays.asList(1,2,3,4,5))
             buf.add(i, i);
         System.out.println("buf = " + buf);
@@ -105,7 +107,7 @@ public class RingBufferTest {
     }
 
     public void testAddWithWrapAround() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 5);
+        RingBuffer<Integer> buf=create(10, 5);
         for(int i=6; i <=15; i++)
             assert buf.add(i, i) : "addition of seqno " + i + " failed";
         System.out.println("buf = " + buf);
@@ -140,7 +142,7 @@ public class RingBufferTest {
     }
 
     public void testAddWithWrapAroundAndRemoveMany() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 5);
+        RingBuffer<Integer> buf=create(10, 5);
         for(int i=6; i <=15; i++)
             assert buf.add(i, i) : "addition of seqno " + i + " failed";
         System.out.println("buf = " + buf);
@@ -168,14 +170,14 @@ public class RingBufferTest {
     }
 
     public void testAddBeyondCapacity() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        RingBuffer<Integer> buf=create(10, 0);
         for(int i=1; i <=10; i++)
             assert buf.add(i, i);
         System.out.println("buf = " + buf);
     }
 
     public void testAddMissing() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        RingBuffer<Integer> buf=create(10, 0);
         for(int i: Arrays.asList(1,2,4,5,6))
             buf.add(i, i);
         System.out.println("buf = " + buf);
@@ -204,7 +206,7 @@ public class RingBufferTest {
 
 
     public void testGetMissing() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(30, 0);
+        RingBuffer<Integer> buf=create(30, 0);
         for(int i: Arrays.asList(2,5,10,11,12,13,15,20,28,30))
             buf.add(i, i);
         System.out.println("buf = " + buf);
@@ -216,25 +218,25 @@ public class RingBufferTest {
     }
 
     public void testGetMissing2() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        RingBuffer<Integer> buf=create(10, 0);
         buf.add(1,1);
         SeqnoList missing=buf.getMissing();
         System.out.println("missing = " + missing);
         assert missing == null && buf.missing() == 0;
 
-        buf=new RingBuffer<Integer>(10, 0);
+        buf=create(10, 0);
         buf.add(10,10);
         missing=buf.getMissing();
         System.out.println("missing = " + missing);
         assert buf.missing() == missing.size();
 
-        buf=new RingBuffer<Integer>(10, 0);
+        buf=create(10, 0);
         buf.add(5,5);
         missing=buf.getMissing();
         System.out.println("missing = " + missing);
         assert buf.missing() == missing.size();
 
-        buf=new RingBuffer<Integer>(10, 0);
+        buf=create(10, 0);
         buf.add(5,7);
         missing=buf.getMissing();
         System.out.println("missing = " + missing);
@@ -242,7 +244,7 @@ public class RingBufferTest {
     }
 
     public void testBlockingAddAndDestroy() {
-        final RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        final RingBuffer<Integer> buf=create(10, 0);
         for(int i=0; i <= 10; i++)
             buf.add(i, i, true);
         System.out.println("buf = " + buf);
@@ -260,7 +262,7 @@ public class RingBufferTest {
     }
 
     public void testBlockingAddAndStable() {
-        final RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        final RingBuffer<Integer> buf=create(10, 0);
         for(int i=0; i <= 10; i++)
             buf.add(i, i, true);
         System.out.println("buf = " + buf);
@@ -280,7 +282,7 @@ public class RingBufferTest {
     }
 
     public void testGet() {
-        final RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        final RingBuffer<Integer> buf=create(10, 0);
         for(int i: Arrays.asList(1,2,3,4,5))
             buf.add(i, i);
         assert buf.get(0) == null;
@@ -291,7 +293,7 @@ public class RingBufferTest {
     }
 
     public void testGetList() {
-        final RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        final RingBuffer<Integer> buf=create(10, 0);
         for(int i: Arrays.asList(1,2,3,4,5))
             buf.add(i, i);
         List<Integer> elements=buf.get(3,5);
@@ -309,7 +311,7 @@ public class RingBufferTest {
     }
 
     public void testRemove() {
-        final RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        final RingBuffer<Integer> buf=create(10, 0);
         for(int i: Arrays.asList(1,2,3,4,5))
             buf.add(i, i);
         System.out.println("buf = " + buf);
@@ -330,7 +332,7 @@ public class RingBufferTest {
     }
 
     public void testRemovedPastHighestReceived() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        RingBuffer<Integer> buf=create(10, 0);
         for(int i=1; i <= 15; i++) {
             if(i > 10) {
                 assert  !buf.add(i,i);
@@ -349,7 +351,7 @@ public class RingBufferTest {
     }
 
     public void testRemoveMany() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        RingBuffer<Integer> buf=create(10, 0);
         for(int i: Arrays.asList(1,2,3,4,5,6,7,9,10))
             buf.add(i, i);
         List<Integer> list=buf.removeMany(false,3);
@@ -369,8 +371,29 @@ public class RingBufferTest {
         assert list != null && list.size() == 3;
     }
 
+    public void testRemoveManyIntoList() {
+        RingBuffer<Integer> buf=create(10, 0);
+        for(int i: Arrays.asList(1,2,3,4,5,6,7,9,10))
+            buf.add(i, i);
+        AtomicBoolean processing=new AtomicBoolean(true);
+        List<Integer> list=new ArrayList<Integer>();
+        int num=buf.removeMany(list, processing, true, 3);
+        assert num == 3 && list.equals(Arrays.asList(1,2,3));
+
+        list.clear();
+        num=buf.removeMany(list, processing, true, 0);
+        assert num == 4 && list.equals(Arrays.asList(4,5,6,7));
+        assert processing.get();
+
+        list.clear();
+        num=buf.removeMany(list, processing, true, 0);
+        assert num == 0 && list.isEmpty();
+        assert !processing.get();
+        assertIndices(buf, 7, 7, 10);
+    }
+
     public void testRemoveManyWithNulling() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        RingBuffer<Integer> buf=create(10, 0);
         for(int i: Arrays.asList(1,2,3,4,5,6,7,9,10))
             buf.add(i, i);
         List<Integer> list=buf.removeMany(true, 3);
@@ -402,7 +425,7 @@ public class RingBufferTest {
      */
     public void testConcurrentAdd() {
         final int NUM=100;
-        final RingBuffer<Integer> buf=new RingBuffer<Integer>(NUM, 0);
+        final RingBuffer<Integer> buf=create(NUM, 0);
 
         CountDownLatch latch=new CountDownLatch(1);
         Adder[] adders=new Adder[NUM];
@@ -435,7 +458,7 @@ public class RingBufferTest {
      */
     public void testConcurrentAddAndRemove() {
         final int NUM=5;
-        final RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        final RingBuffer<Integer> buf=create(10, 0);
         for(int i=1; i <= 10; i++)
             buf.add(i, i); // fill the buffer, add() will block now
 
@@ -481,7 +504,7 @@ public class RingBufferTest {
     }
 
     public void testStable() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        RingBuffer<Integer> buf=create(10, 0);
         for(int i=1; i <=7; i++) {
             buf.add(i, i);
             buf.remove();
@@ -520,7 +543,7 @@ public class RingBufferTest {
     
 
     public void testIterator() {
-        RingBuffer<Integer> buf=new RingBuffer<Integer>(10, 0);
+        RingBuffer<Integer> buf=create(10, 0);
         for(int i: Arrays.asList(1,2,3,4,5,6,7,9,10))
             buf.add(i, i);
         int count=0;
@@ -543,6 +566,10 @@ public class RingBufferTest {
         assert count == 10 : "count=" + count;
     }
 
+    protected <T> RingBuffer<T> create(int capacity, long offset) {
+        return new RingBuffer<T>(capacity, offset);
+    }
+
     protected static <T> void assertIndices(RingBuffer<T> buf, long low, long hd, long hr) {
         assert buf.getLow() == low : "expected low=" + low + " but was " + buf.getLow();
         assert buf.getHighestDelivered() == hd : "expected hd=" + hd + " but was " + buf.getHighestDelivered();
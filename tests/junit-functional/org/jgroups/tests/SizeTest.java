@@ -564,6 +564,8 @@ public class SizeTest {
     public static void testFragHeader() throws Exception {
         FragHeader hdr=new FragHeader(322649, 1, 10);
         _testSize(hdr);
+        hdr=new FragHeader(322649, 1, 10, 100000);
+        _testSize(hdr);
     }
 
 
@@ -0,0 +1,133 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.UNICAST2;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.RingBuffer;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link STABLE} purges messages from NAKACK2, with STABLE messages sent to all members or to the
+ * coordinator only, and with full or delta digests
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class StableTest {
+    static final int         NUM=4, NUM_MSGS=20;
+    protected final JChannel[] channels=new JChannel[NUM];
+
+
+    @AfterMethod
+    void tearDown() throws Exception {
+        for(int i=channels.length -1; i >= 0; i--)
+            Util.close(channels[i]);
+    }
+
+
+    public void testStable() throws Exception {
+        _testStable(false, false);
+    }
+
+    public void testStableToCoordOnly() throws Exception {
+        _testStable(true, false);
+        for(int i=1; i < NUM; i++)
+            assert stable(channels[i]).getStableReceived() == 0 : "only the coordinator should receive STABLE msgs";
+        assert stable(channels[0]).getStabilitySent() > 0;
+    }
+
+    public void testStableWithDeltas() throws Exception {
+        _testStable(false, true);
+        checkDeltas();
+    }
+
+    public void testStableToCoordOnlyWithDeltas() throws Exception {
+        _testStable(true, true);
+        checkDeltas();
+    }
+
+
+    protected void _testStable(boolean to_coord_only, boolean deltas) throws Exception {
+        for(int i=0; i < NUM; i++)
+            channels[i]=create(String.valueOf((char)('A' + i)), to_coord_only, deltas);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+
+        for(int i=0; i < NUM_MSGS; i++)
+            for(JChannel ch: channels)
+                ch.send(new Message(null, null, i));
+        runStable();
+
+        // only A sends; with deltas, the STABLE msgs contain only the entry for A
+        for(int i=0; i < NUM_MSGS; i++)
+            channels[0].send(new Message(null, null, i));
+        runStable();
+    }
+
+    /** Runs STABLE rounds until all messages have been purged on all members */
+    protected void runStable() throws Exception {
+        for(int i=0; i < 20 && !allPurged(); i++) {
+            for(JChannel ch: channels)
+                stable(ch).gc();
+            Util.sleep(500);
+        }
+        for(JChannel ch: channels) {
+            NAKACK2 nak=(NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class);
+            System.out.println(nak.printMessages());
+        }
+        assert allPurged() : "messages were not purged";
+    }
+
+    protected boolean allPurged() {
+        for(JChannel ch: channels) {
+            NAKACK2 nak=(NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class);
+            for(JChannel sender: channels) {
+                Address addr=sender.getAddress();
+                RingBuffer<Message> win=nak.getWindow(addr);
+                if(win.getLow() != win.getHighestDelivered() || win.getHighestDelivered() != win.getHighestReceived())
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    protected void checkDeltas() {
+        int sent=0, dropped=0;
+        for(JChannel ch: channels) {
+            STABLE stable=stable(ch);
+            System.out.println(ch.getAddress() + ": delta msgs sent=" + stable.getDeltaSent() +
+                                 ", dropped=" + stable.getDeltaDropped());
+            sent+=stable.getDeltaSent();
+            dropped+=stable.getDeltaDropped();
+        }
+        assert sent > 0;
+        assert dropped < sent;
+    }
+
+    protected static STABLE stable(JChannel ch) {
+        return (STABLE)ch.getProtocolStack().findProtocol(STABLE.class);
+    }
+
+    protected static JChannel create(String name, boolean to_coord_only, boolean deltas) throws Exception {
+        JChannel ch=Util.createChannel(new SHARED_LOOPBACK(),
+                                       new PING().setValue("timeout", 500).setValue("num_initial_members", NUM),
+                                       new NAKACK2(),
+                                       new UNICAST2(),
+                                       new STABLE().setValue("desired_avg_gossip", 0).setValue("max_bytes", 0)
+                                         .setValue("stability_delay", 100)
+                                         .setValue("send_stable_msgs_to_coord_only", to_coord_only)
+                                         .setValue("use_delta_digests", deltas),
+                                       new GMS().setValue("print_local_addr", false));
+        ch.setName(name);
+        ch.connect("StableTest");
+        return ch;
+    }
+}
@@ -2,7 +2,9 @@
 package org.jgroups.tests;
 
 import org.jgroups.*;
+import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.util.Buffer;
+import org.jgroups.util.TypeCodec;
 import org.jgroups.util.Util;
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -363,6 +365,137 @@ public class UtilTest {
         marshalString(Short.MAX_VALUE + 100000);
     }
 
+    /** Strings are marshalled as UTF-8, so non-ASCII characters must not be truncated */
+    public static void testObjectToByteArrayWithNonAsciiString() throws Exception {
+        String str="B\u00e9la \u0411\u0435\u043b\u0430 \u8d1d\u62c9 \ud83d\ude00";
+        marshal(str);
+        ByteArrayOutputStream output=new ByteArrayOutputStream();
+        Util.objectToStream(str, new DataOutputStream(output));
+        assert str.equals(Util.objectFromStream(new DataInputStream(new ByteArrayInputStream(output.toByteArray()))));
+
+        StringBuilder sb=new StringBuilder();
+        for(int i=0; i < 30000; i++) // > 64K of UTF-8 bytes
+            sb.append('\u8d1d');
+        output=new ByteArrayOutputStream();
+        Util.objectToStream(sb.toString(), new DataOutputStream(output));
+        assert sb.toString().equals(Util.objectFromStream(new DataInputStream(new ByteArrayInputStream(output.toByteArray()))));
+    }
+
+
+    @SuppressWarnings("unchecked")
+    public static void testCompactTypes() throws Exception {
+        List<Object> list=new ArrayList<Object>(Arrays.asList(1, "two", 3L, null, Boolean.TRUE));
+        Map<String,Object> map=new HashMap<String,Object>();
+        map.put("list", list);
+        map.put("set", new HashSet<Integer>(Arrays.asList(1, 2, 3)));
+        map.put("tree", new TreeMap<String,Integer>(Collections.singletonMap("one", 1)));
+        map.put("linked", new LinkedList<String>(Arrays.asList("a", "b")));
+
+        Object[] values={list, map, new LinkedHashSet<String>(Arrays.asList("z", "y", "x")),
+          new TreeSet<Integer>(Arrays.asList(3, 1, 2)), new LinkedHashMap<Integer,String>(Collections.singletonMap(1, "one")),
+          new ArrayList<Object>(), Thread.State.RUNNABLE};
+        for(Object value: values) {
+            marshal(value);
+            assert Util.objectFromByteBuffer(Util.objectToByteBuffer(value)).getClass() == value.getClass();
+        }
+
+        Map<String,Object> map2=(Map<String,Object>)Util.objectFromByteBuffer(Util.objectToByteBuffer(map));
+        assert map2.get("linked") instanceof LinkedList && map2.get("tree") instanceof TreeMap;
+
+        // a comparator can't be marshalled compactly: falls back to serialization
+        TreeSet<String> reversed=new TreeSet<String>(Collections.reverseOrder());
+        reversed.addAll(Arrays.asList("a", "b", "c"));
+        TreeSet<String> reversed2=(TreeSet<String>)Util.objectFromByteBuffer(Util.objectToByteBuffer(reversed));
+        assert reversed2.first().equals("c");
+
+        // a Serializable element in a list
+        List<Object> nested=new ArrayList<Object>(Arrays.asList(new java.util.Date(322649), "after"));
+        marshal(nested);
+
+        int serialized=serializedSize(list), compact=Util.objectToByteBuffer(list).length;
+        System.out.println("list: " + compact + " bytes (serialized: " + serialized + " bytes)");
+        assert compact * 3 < serialized;
+    }
+
+
+    public static void testArrays() throws Exception {
+        boolean[] booleans={true, false, true};
+        assert Arrays.equals(booleans, (boolean[])Util.objectFromByteBuffer(Util.objectToByteBuffer(booleans)));
+        char[] chars={'a', '\u8d1d'};
+        assert Arrays.equals(chars, (char[])Util.objectFromByteBuffer(Util.objectToByteBuffer(chars)));
+        short[] shorts={1, -2, Short.MAX_VALUE};
+        assert Arrays.equals(shorts, (short[])Util.objectFromByteBuffer(Util.objectToByteBuffer(shorts)));
+        int[] ints={1, -2, Integer.MAX_VALUE};
+        assert Arrays.equals(ints, (int[])Util.objectFromByteBuffer(Util.objectToByteBuffer(ints)));
+        long[] longs={1, -2, Long.MAX_VALUE};
+        assert Arrays.equals(longs, (long[])Util.objectFromByteBuffer(Util.objectToByteBuffer(longs)));
+        float[] floats={1.5f, -2};
+        assert Arrays.equals(floats, (float[])Util.objectFromByteBuffer(Util.objectToByteBuffer(floats)));
+        double[] doubles={1.5, -2, Double.NaN};
+        assert Arrays.equals(doubles, (double[])Util.objectFromByteBuffer(Util.objectToByteBuffer(doubles)));
+        String[] strings={"one", null, "three"};
+        Object tmp=Util.objectFromByteBuffer(Util.objectToByteBuffer(strings));
+        assert tmp instanceof String[] && Arrays.equals(strings, (String[])tmp);
+        int[][] matrix={{1, 2}, {3}}; // multi-dimensional arrays are serialized
+        assert Arrays.deepEquals(matrix, (int[][])Util.objectFromByteBuffer(Util.objectToByteBuffer(matrix)));
+
+        int compact=Util.objectToByteBuffer(ints).length, serialized=serializedSize(ints);
+        System.out.println("int[]: " + compact + " bytes (serialized: " + serialized + " bytes)");
+        assert compact < serialized;
+    }
+
+
+    public static void testCodec() throws Exception {
+        if(ClassConfigurator.getCodec(Point.class) == null)
+            ClassConfigurator.addCodec((short)2000, Point.class, new TypeCodec<Point>() {
+                public void writeTo(Point p, DataOutput out) throws Exception {
+                    out.writeInt(p.x);
+                    out.writeInt(p.y);
+                }
+
+                public Point readFrom(DataInput in) throws Exception {
+                    return new Point(in.readInt(), in.readInt());
+                }
+            });
+        Point p=new Point(3, 4);
+        byte[] buf=Util.objectToByteBuffer(p);
+        System.out.println("point: " + buf.length + " bytes (serialized: " + serializedSize(p) + " bytes)");
+        assert buf.length == 1 + Global.SHORT_SIZE + 2 * Global.INT_SIZE;
+        assert p.equals(Util.objectFromByteBuffer(buf));
+        marshal(new ArrayList<Point>(Arrays.asList(p, new Point(5, 6))));
+    }
+
+
+    protected static int serializedSize(Object obj) throws Exception {
+        ByteArrayOutputStream output=new ByteArrayOutputStream();
+        ObjectOutputStream out=new ObjectOutputStream(output);
+        out.writeObject(obj);
+        out.close();
+        return output.size();
+    }
+
+    protected static class Point implements Serializable {
+        private static final long serialVersionUID=-6101325815302758376L;
+        protected final int x, y;
+
+        public Point(int x, int y) {
+            this.x=x;
+            this.y=y;
+        }
+
+        public boolean equals(Object obj) {
+            return obj instanceof Point && ((Point)obj).x == x && ((Point)obj).y == y;
+        }
+
+        public int hashCode() {
+            return x * 31 + y;
+        }
+
+        public String toString() {
+            return "(" + x + "," + y + ")";
+        }
+    }
+
 
     private static void marshalString(int size) throws Exception {
         byte[] tmp=new byte[size];
@@ -0,0 +1,177 @@
+package org.jgroups.tests;
+
+
+import org.jgroups.*;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.SEQUENCER2;
+import org.jgroups.protocols.pbcast.NAKACK;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Tests total order with {@link SEQUENCER2}. The helpers (senders, receivers, verification) are those of
+ * {@link SequencerOrderTest}.
+ * @author agent
+ * @since 3.1
+ */
+@Test(groups=Global.STACK_INDEPENDENT,sequential=true)
+public class Sequencer2OrderTest {
+    protected JChannel                      a, b, c;
+    protected SequencerOrderTest.MyReceiver ra, rb, rc;
+    static final String                     GROUP="Sequencer2OrderTest";
+    static final int                        NUM_MSGS=50; // messages per thread
+    static final int                        NUM_THREADS=10;
+    static final int                        EXPECTED_MSGS=NUM_MSGS * NUM_THREADS;
+    static final String                     props="sequencer2.xml";
+
+
+    @BeforeMethod
+    void setUp() throws Exception {
+        a=create("A"); ra=new SequencerOrderTest.MyReceiver("A"); a.setReceiver(ra);
+        b=create("B"); rb=new SequencerOrderTest.MyReceiver("B"); b.setReceiver(rb);
+        c=create("C"); rc=new SequencerOrderTest.MyReceiver("C"); c.setReceiver(rc);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+    }
+
+    @AfterMethod
+    void tearDown() throws Exception {
+        Util.close(c, b, a);
+    }
+
+
+    /** Concurrent senders on all members, with shuffled messages: all members have to deliver in the same order */
+    @SuppressWarnings("unchecked")
+    public void testTotalOrder() throws Exception {
+        SequencerOrderTest.insertShuffle(a, b, c);
+        send(a, b, c);
+
+        SequencerOrderTest.verifyNumberOfMessages(EXPECTED_MSGS, ra.getMsgs(), rb.getMsgs(), rc.getMsgs());
+        SequencerOrderTest.verifySameOrder(EXPECTED_MSGS, ra.getMsgs(), rb.getMsgs(), rc.getMsgs());
+
+        SEQUENCER2 seq=sequencer(a);
+        System.out.println("A: ordered " + seq.getNumOrdered() + " msgs in " + seq.getNumOrderMessagesSent() + " ORDER msgs");
+        assert seq.isCoordinator();
+        assert seq.getNumOrdered() == EXPECTED_MSGS;
+        for(JChannel ch: new JChannel[]{a, b, c}) {
+            seq=sequencer(ch);
+            assert seq.getNumDelivered() == EXPECTED_MSGS;
+            assert seq.getNumUnordered() == 0 && seq.getNumPendingOrders() == 0 : seq.printPending();
+        }
+    }
+
+
+    /**
+     * C doesn't receive B's messages (they're dropped below NAKACK and retransmitted later), but receives the ORDER
+     * messages for them from A. A and B deliver all messages, C delivers none of B's and none ordered after them.
+     * When A leaves, B becomes coordinator: C has to keep its pending orders and B has to re-announce the order from
+     * C's position, so that C delivers all messages, in the same order as B, once B's messages are retransmitted
+     */
+    @SuppressWarnings("unchecked")
+    public void testCoordinatorLeavesWithPendingOrders() throws Exception {
+        DropMulticasts drop=new DropMulticasts(b.getAddress(), ClassConfigurator.getProtocolId(SEQUENCER2.class));
+        c.getProtocolStack().insertProtocol(drop, ProtocolStack.BELOW, NAKACK.class);
+
+        final int num=20;
+        for(int i=1; i <= num; i++) {
+            a.send(null, "A:" + i);
+            b.send(null, "B:" + i);
+        }
+        SequencerOrderTest.verifyNumberOfMessages(num * 2, ra.getMsgs(), rb.getMsgs());
+        SEQUENCER2 seq_c=sequencer(c);
+        for(int i=0; i < 20 && seq_c.getNumPendingOrders() + rc.getMsgs().size() < num * 2; i++)
+            Util.sleep(500);
+        System.out.println("C: delivered " + rc.getMsgs().size() + " msgs, pending:\n" + seq_c.printPending());
+        assert rc.getMsgs().size() < num * 2;
+        assert seq_c.getNumPendingOrders() > 0;
+
+        Util.close(a);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, b, c);
+        SEQUENCER2 seq_b=sequencer(b);
+        assert seq_b.isCoordinator();
+
+        drop.drop=false;
+        b.send(null, "B:" + (num + 1)); // C detects the gap and asks for retransmission
+        c.send(null, "C:1");
+
+        int expected=num * 2 + 2;
+        SequencerOrderTest.verifyNumberOfMessages(expected, rb.getMsgs(), rc.getMsgs());
+        SequencerOrderTest.verifySameOrder(expected, rb.getMsgs(), rc.getMsgs());
+        System.out.println("B: re-announced " + seq_b.getNumReannounced() + " orders");
+        assert seq_b.getNumReannounced() > 0;
+        assert seq_c.getNumUnordered() == 0 && seq_c.getNumPendingOrders() == 0 : seq_c.printPending();
+    }
+
+
+    /** The coordinator leaves while messages are sent: the remaining members have to deliver in the same order */
+    @SuppressWarnings("unchecked")
+    public void testCoordinatorLeaves() throws Exception {
+        SequencerOrderTest.insertShuffle(b, c);
+        Thread closer=new Thread() {
+            public void run() {
+                Util.sleep(50);
+                Util.close(a);
+            }
+        };
+        closer.start();
+        send(b, c);
+        closer.join(20000);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, b, c);
+
+        SequencerOrderTest.verifyNumberOfMessages(EXPECTED_MSGS, rb.getMsgs(), rc.getMsgs());
+        SequencerOrderTest.verifySameOrder(EXPECTED_MSGS, rb.getMsgs(), rc.getMsgs());
+        assert sequencer(b).isCoordinator();
+    }
+
+
+    protected static JChannel create(String name) throws Exception {
+        JChannel ch=new JChannel(props);
+        ch.setName(name);
+        ch.connect(GROUP);
+        return ch;
+    }
+
+    protected static SEQUENCER2 sequencer(JChannel ch) {
+        return (SEQUENCER2)ch.getProtocolStack().findProtocol(SEQUENCER2.class);
+    }
+
+    protected static void send(JChannel ... channels) throws Exception {
+        AtomicInteger num=new AtomicInteger(1);
+        SequencerOrderTest.Sender[] senders=new SequencerOrderTest.Sender[NUM_THREADS];
+        for(int i=0; i < senders.length; i++)
+            senders[i]=new SequencerOrderTest.Sender(NUM_MSGS, num, channels);
+        System.out.println("Starting " + senders.length + " sender threads (each sends " + NUM_MSGS + " messages)");
+        for(Thread sender: senders)
+            sender.start();
+        for(Thread sender: senders)
+            sender.join(20000);
+    }
+
+
+    /** Drops multicasts from a given member which carry a given protocol's header, as long as drop is true */
+    protected static class DropMulticasts extends Protocol {
+        protected final Address   sender;
+        protected final short     prot_id;
+        protected volatile boolean drop=true;
+
+        public DropMulticasts(Address sender, short prot_id) {
+            this.sender=sender;
+            this.prot_id=prot_id;
+        }
+
+        public Object up(Event evt) {
+            if(drop && evt.getType() == Event.MSG) {
+                Message msg=(Message)evt.getArg();
+                if(msg.getDest() == null && sender.equals(msg.getSrc()) && msg.getHeader(prot_id) != null)
+                    return null;
+            }
+            return up_prot.up(evt);
+        }
+    }
+}
@@ -3,12 +3,15 @@
 package org.jgroups.tests;
 
 
+import org.jgroups.Event;
 import org.jgroups.Global;
 import org.jgroups.JChannel;
 import org.jgroups.Message;
 import org.jgroups.ReceiverAdapter;
+import org.jgroups.protocols.SEQUENCER;
 import org.jgroups.protocols.SHUFFLE;
 import org.jgroups.protocols.pbcast.NAKACK;
+import org.jgroups.stack.Protocol;
 import org.jgroups.stack.ProtocolStack;
 import org.jgroups.util.Util;
 import org.testng.annotations.AfterMethod;
@@ -17,6 +20,8 @@ import org.testng.annotations.Test;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -74,8 +79,70 @@ public class SequencerOrderTest {
         Util.close(c3, c2, c1);
     }
 
-    @Test @SuppressWarnings("unchecked")
+    @Test
     public void testBroadcastSequence() throws Exception {
+        _testBroadcastSequence();
+        for(JChannel ch: new JChannel[]{c1, c2, c3}) {
+            SEQUENCER seq=(SEQUENCER)ch.getProtocolStack().findProtocol(SEQUENCER.class);
+            System.out.println(ch.getName() + ": " + seq.printStats());
+        }
+        // all messages are broadcast by the coordinator, the forwarded ones in batches
+        SEQUENCER coord=sequencer(c1), seq2=sequencer(c2), seq3=sequencer(c3);
+        assert coord.getBroadcast() == EXPECTED_MSGS : "coordinator broadcast " + coord.getBroadcast() + " msgs";
+        assert coord.getReceivedForwards() == seq2.getForwarded() + seq3.getForwarded();
+        assert seq2.getForwardedBatches() > 0 && seq3.getForwardedBatches() > 0;
+        assert coord.getBroadcastBatches() > 0;
+    }
+
+    /**
+     * Blocks B while it forwards its first message, so that the messages B sends in the meantime are queued: they
+     * have to be forwarded (and broadcast by the coordinator) in a single batch when B is unblocked
+     */
+    @Test @SuppressWarnings("unchecked")
+    public void testBatching() throws Exception {
+        final BlockForward blocker=new BlockForward();
+        c2.getProtocolStack().insertProtocol(blocker, ProtocolStack.BELOW, SEQUENCER.class);
+        Thread first=new Thread() {
+            public void run() {
+                try {
+                    c2.send(null, "B:0");
+                }
+                catch(Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        first.start();
+        assert blocker.blocked.await(10000, TimeUnit.MILLISECONDS) : "B didn't forward its first message";
+
+        final int num=10;
+        for(int i=1; i <= num; i++)
+            c2.send(null, "B:" + i); // queued, as the first sender is still sending
+        blocker.unblock.countDown();
+        first.join(10000);
+
+        verifyNumberOfMessages(num + 1, r1.getMsgs(), r2.getMsgs(), r3.getMsgs());
+        verifySameOrder(num + 1, r1.getMsgs(), r2.getMsgs(), r3.getMsgs());
+        SEQUENCER seq=sequencer(c2), coord=sequencer(c1);
+        System.out.println("B: " + seq.printStats() + "\nA: " + coord.printStats());
+        assert seq.getForwarded() == num + 1 && seq.getForwardedBatches() == 2;
+        assert coord.getReceivedForwards() == num + 1 && coord.getBroadcastBatches() == 2;
+    }
+
+    /** Forwards and broadcasts every message individually */
+    @Test
+    public void testBroadcastSequenceWithoutBatching() throws Exception {
+        for(JChannel ch: new JChannel[]{c1, c2, c3})
+            ch.getProtocolStack().findProtocol(SEQUENCER.class).setValue("max_batch_size", 1);
+        _testBroadcastSequence();
+        for(JChannel ch: new JChannel[]{c1, c2, c3}) {
+            SEQUENCER seq=(SEQUENCER)ch.getProtocolStack().findProtocol(SEQUENCER.class);
+            assert seq.getForwardedBatches() == 0 && seq.getBroadcastBatches() == 0;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void _testBroadcastSequence() throws Exception {
         insertShuffle(c1, c2, c3);
         
         // use concurrent senders to send messages to the group
@@ -96,7 +163,11 @@ public class SequencerOrderTest {
         verifySameOrder(EXPECTED_MSGS, l1, l2, l3);
     }
 
-    private static void insertShuffle(JChannel... channels) throws Exception {
+    protected static SEQUENCER sequencer(JChannel ch) {
+        return (SEQUENCER)ch.getProtocolStack().findProtocol(SEQUENCER.class);
+    }
+
+    protected static void insertShuffle(JChannel... channels) throws Exception {
         for(JChannel ch: channels) {
             SHUFFLE shuffle=new SHUFFLE();
             shuffle.setDown(false);
@@ -108,7 +179,7 @@ public class SequencerOrderTest {
         }
     }
 
-    private static void verifyNumberOfMessages(int num_msgs, List<String> ... lists) throws Exception {
+    protected static void verifyNumberOfMessages(int num_msgs, List<String> ... lists) throws Exception {
         long end_time=System.currentTimeMillis() + 10000;
         while(System.currentTimeMillis() < end_time) {
             boolean all_correct=true;
@@ -133,7 +204,7 @@ public class SequencerOrderTest {
 
 
 
-    private static void verifySameOrder(int expected_msgs, List<String> ... lists) throws Exception {
+    protected static void verifySameOrder(int expected_msgs, List<String> ... lists) throws Exception {
         for(int index=0; index < expected_msgs; index++) {
             String val=null;
             for(List<String> list: lists) {
@@ -148,7 +219,7 @@ public class SequencerOrderTest {
         System.out.println("OK, all lists have the same order");
     }
 
-    private static class Sender extends Thread {
+    protected static class Sender extends Thread {
         final int        num_msgs;
         final JChannel[] channels;
         final AtomicInteger num;
@@ -172,11 +243,28 @@ public class SequencerOrderTest {
         }
     }
 
-    private static class MyReceiver extends ReceiverAdapter {
+    /** Blocks the first unicast message (sent by SEQUENCER to the coordinator) until unblock is counted down */
+    protected static class BlockForward extends Protocol {
+        protected final CountDownLatch blocked=new CountDownLatch(1), unblock=new CountDownLatch(1);
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG && ((Message)evt.getArg()).getDest() != null && blocked.getCount() > 0) {
+                blocked.countDown();
+                try {
+                    unblock.await(10000, TimeUnit.MILLISECONDS);
+                }
+                catch(InterruptedException e) {
+                }
+            }
+            return down_prot.down(evt);
+        }
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
         final String name;
         final List<String> msgs=new LinkedList<String>();
 
-        private MyReceiver(String name) {
+        protected MyReceiver(String name) {
             this.name=name;
         }
 
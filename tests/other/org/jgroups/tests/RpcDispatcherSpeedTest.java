@@ -4,10 +4,16 @@ package org.jgroups.tests;
 import org.jgroups.*;
 import org.jgroups.jmx.JmxConfigurator;
 import org.jgroups.blocks.*;
+import org.jgroups.util.FutureListener;
+import org.jgroups.util.RspList;
 import org.jgroups.util.Util;
 
 import javax.management.MBeanServer;
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.CountDownLatch;
 
@@ -31,10 +37,15 @@ public class RpcDispatcherSpeedTest implements MembershipListener {
     final Class[]       EMPTY_CLASS_ARRAY={};
     private long        sleep=0;
     private boolean     async, oob;
+    private boolean     bulk;                // one call per member via the Map API instead of a group call
+    private int         max_outstanding;     // if > 0, calls are non-blocking, with max_outstanding calls in flight
+    private boolean     types;               // invoke by method name and types rather than by method ID
+    private boolean     local;               // measures unmarshalling and dispatching of calls only, without sending
 
 
     public RpcDispatcherSpeedTest(String props, boolean server, boolean async, boolean oob, int num, int num_threads,
-                                  boolean jmx, long sleep) throws NoSuchMethodException {
+                                  boolean jmx, long sleep, boolean bulk, int max_outstanding,
+                                  boolean types, boolean local) throws NoSuchMethodException {
         this.props=props;
         this.server=server;
         this.async=async;
@@ -43,6 +54,10 @@ public class RpcDispatcherSpeedTest implements MembershipListener {
         this.num_threads=num_threads;
         this.jmx=jmx;
         this.sleep=sleep;
+        this.bulk=bulk;
+        this.max_outstanding=max_outstanding;
+        this.types=types;
+        this.local=local;
         initMethods();
     }
 
@@ -87,6 +102,9 @@ public class RpcDispatcherSpeedTest implements MembershipListener {
                     Util.sleep(10000);
                 }
             }
+            else if(local) {
+                invokeLocally(num);
+            }
             else {
                 invokeRpcs(num, num_threads, async, oob);
             }
@@ -112,17 +130,26 @@ public class RpcDispatcherSpeedTest implements MembershipListener {
             show=1;
         ResponseMode request_type=async ? ResponseMode.GET_NONE : ResponseMode.GET_ALL;
 
-        measure_method_call=new MethodCall((short)0);
+        measure_method_call=types? new MethodCall("measure", EMPTY_OBJECT_ARRAY, EMPTY_CLASS_ARRAY) : new MethodCall((short)0);
         RequestOptions opts=new RequestOptions(request_type, TIMEOUT, false, null,
                                                Message.DONT_BUNDLE, Message.NO_FC);
         if(oob)
             opts.setFlags(Message.OOB);
 
+        Map<Address,MethodCall> calls=null;
+        if(bulk) {
+            calls=new HashMap<Address,MethodCall>();
+            for(Address mbr: channel.getView().getMembers())
+                if(!mbr.equals(channel.getAddress()))
+                    calls.put(mbr, measure_method_call);
+        }
+        Semaphore outstanding=max_outstanding > 0? new Semaphore(max_outstanding) : null;
+
         final AtomicInteger sent=new AtomicInteger(0);
         final CountDownLatch latch=new CountDownLatch(1);
         final Publisher[] senders=new Publisher[num_threads];
         for(int i=0; i < senders.length; i++) {
-            senders[i]=new Publisher(measure_method_call, sent, num, opts, disp, latch);
+            senders[i]=new Publisher(measure_method_call, calls, sent, num, opts, disp, latch, outstanding);
             senders[i].start();
         }
 
@@ -131,14 +158,36 @@ public class RpcDispatcherSpeedTest implements MembershipListener {
 
         for(Publisher sender: senders)
             sender.join();
+        if(outstanding != null) // wait until all responses have been received
+            outstanding.acquire(max_outstanding);
+
+        long stop=System.currentTimeMillis();
+        System.out.println((bulk? "bulk" : "group") + " calls by " + (types? "name and types" : "ID") + ", " +
+                             (outstanding != null? "non-blocking (max " + max_outstanding + " outstanding)" : "blocking"));
+        printStats(stop-start, num);
+    }
 
+
+    /** Passes marshalled calls directly to the dispatcher, to measure the cost of unmarshalling and dispatching */
+    void invokeLocally(int num) throws Exception {
+        MethodCall call=types? new MethodCall("measure", EMPTY_OBJECT_ARRAY, EMPTY_CLASS_ARRAY) : new MethodCall((short)0);
+        byte[] buf=Util.objectToByteBuffer(call);
+        for(int i=0; i < num; i++) // warm-up
+            disp.handle(new Message(null, null, buf));
+
+        long start=System.currentTimeMillis();
+        for(int i=0; i < num; i++)
+            disp.handle(new Message(null, null, buf));
         long stop=System.currentTimeMillis();
+        System.out.println("local calls by " + (types? "name and types" : "ID"));
         printStats(stop-start, num);
     }
 
 
     static class Publisher extends Thread {
         final MethodCall call;
+        final Map<Address,MethodCall> calls; // bulk mode if non-null
+        final Semaphore outstanding;         // non-blocking mode if non-null
         final RequestOptions options;
         final AtomicInteger sent;
         final int num_msgs_to_send;
@@ -146,8 +195,11 @@ public class RpcDispatcherSpeedTest implements MembershipListener {
         final CountDownLatch latch;
         final int print;
 
-        public Publisher(MethodCall call, AtomicInteger sent, final int num, RequestOptions options, RpcDispatcher disp, CountDownLatch latch) {
+        public Publisher(MethodCall call, Map<Address,MethodCall> calls, AtomicInteger sent, final int num,
+                         RequestOptions options, RpcDispatcher disp, CountDownLatch latch, Semaphore outstanding) {
             this.call=call;
+            this.calls=calls;
+            this.outstanding=outstanding;
             this.sent=sent;
             this.num_msgs_to_send=num;
             this.options=options;
@@ -168,7 +220,7 @@ public class RpcDispatcherSpeedTest implements MembershipListener {
                 if(tmp > num_msgs_to_send)
                     break;
                 try {
-                    disp.callRemoteMethods(null, call, options);
+                    invoke();
                     if(tmp > 0 && tmp % print == 0)
                     System.out.println(tmp);
                 }
@@ -177,6 +229,33 @@ public class RpcDispatcherSpeedTest implements MembershipListener {
                 }
             }
         }
+
+        protected void invoke() throws Exception {
+            if(outstanding == null) {
+                if(calls != null)
+                    disp.callRemoteMethods(calls, options);
+                else
+                    disp.callRemoteMethods(null, call, options);
+                return;
+            }
+
+            outstanding.acquire();
+            FutureListener<RspList<Object>> listener=new FutureListener<RspList<Object>>() {
+                public void futureDone(Future<RspList<Object>> future) {
+                    outstanding.release();
+                }
+            };
+            try {
+                if(calls != null)
+                    disp.<Object>callRemoteMethodsWithFuture(calls, options).setListener(listener);
+                else
+                    disp.<Object>callRemoteMethodsWithFuture(null, call, options).setListener(listener);
+            }
+            catch(Exception ex) {
+                outstanding.release();
+                throw ex;
+            }
+        }
     }
 
 
@@ -209,7 +288,8 @@ public class RpcDispatcherSpeedTest implements MembershipListener {
         long                   sleep=0;
         RpcDispatcherSpeedTest test;
         boolean                async=false;
-        boolean                oob=false;
+        boolean                oob=false, bulk=false, types=false, local=false;
+        int                    max_outstanding=0;
 
 
         for(int i=0; i < args.length; i++) {
@@ -245,13 +325,29 @@ public class RpcDispatcherSpeedTest implements MembershipListener {
                 oob=true;
                 continue;
             }
+            if("-bulk".equals(args[i])) {
+                bulk=true;
+                continue;
+            }
+            if("-local".equals(args[i])) {
+                local=true;
+                continue;
+            }
+            if("-types".equals(args[i])) {
+                types=true;
+                continue;
+            }
+            if("-future".equals(args[i])) {
+                max_outstanding=Integer.parseInt(args[++i]);
+                continue;
+            }
             help();
             return;
         }
 
 
         try {
-            test=new RpcDispatcherSpeedTest(props, server, async, oob, num, num_threads, jmx, sleep);
+            test=new RpcDispatcherSpeedTest(props, server, async, oob, num, num_threads, jmx, sleep, bulk, max_outstanding, types, local);
             test.start();
         }
         catch(Exception e) {
@@ -261,6 +357,7 @@ public class RpcDispatcherSpeedTest implements MembershipListener {
 
     static void help() {
         System.out.println("RpcDispatcherSpeedTest [-help] [-props <props>] " +
-                           "[-server] [-async] [-num <number of calls>] [-jmx] [-sleep <ms>]");
+                           "[-server] [-async] [-num <number of calls>] [-jmx] [-sleep <ms>] [-num_threads <threads>] " +
+                           "[-oob] [-bulk] [-future <max outstanding calls>] [-types] [-local]");
     }
 }
@@ -0,0 +1,182 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.JChannel;
+import org.jgroups.View;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.TimeScheduler2;
+import org.jgroups.util.Util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a large cluster over SHARED_LOOPBACK to compare the cost and detection time of failure detection
+ * protocols (FD_ALL, FD_GOSSIP). Starts N members, measures the failure detection traffic per member during a
+ * steady state phase (and whether members were falsely suspected), then crashes a member and measures the time
+ * until it is excluded from the view.
+ * @author agent
+ * @since 3.1
+ */
+public class FailureDetectionPerf {
+    protected JChannel[]         channels;
+    protected TimeScheduler      timer;
+    protected ThreadPoolExecutor thread_pool, oob_thread_pool;
+
+    // ============ configurable properties ==================
+    protected int     num=200;
+    protected String  protocol="FD_GOSSIP";
+    protected long    interval=1000, duration=20000;
+    // =======================================================
+
+
+    protected void start() throws Exception {
+        ThreadGroup group=new ThreadGroup("FailureDetectionPerf");
+        timer=new TimeScheduler2(new DefaultThreadFactory(group, "Timer", true, true), 5, 20, 3000, 5000, "abort");
+        thread_pool=new ThreadPoolExecutor(10, 50, 3000, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(num * 10));
+        thread_pool.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        oob_thread_pool=new ThreadPoolExecutor(10, 50, 3000, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(num * 10));
+        oob_thread_pool.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+
+        channels=new JChannel[num];
+        System.out.print("Connecting " + num + " members with " + protocol + ": ");
+        long start=System.currentTimeMillis();
+        try {
+            for(int i=0; i < num; i++) {
+                channels[i]=createChannel(String.valueOf(i + 1));
+                channels[i].connect("FailureDetectionPerf");
+                if((i+1) % 50 == 0)
+                    System.out.print((i+1) + " ");
+            }
+            Util.waitUntilAllChannelsHaveSameSize(num * 1000L, 500, channels);
+            System.out.println("\n" + num + " members connected in " + (System.currentTimeMillis() - start) + " ms");
+            measureSteadyState();
+            measureDetectionTime();
+        }
+        finally {
+            stop();
+        }
+    }
+
+    protected void stop() {
+        for(int i=channels.length -1; i >= 0; i--)
+            if(channels[i] != null)
+                Util.close(channels[i]);
+        timer.stop();
+        thread_pool.shutdownNow();
+        oob_thread_pool.shutdownNow();
+    }
+
+    protected void measureSteadyState() {
+        for(JChannel ch: channels)
+            fd(ch).resetStats();
+        System.out.println("Measuring steady state for " + duration + " ms");
+        Util.sleep(duration);
+
+        long sent=0, received=0, bytes=0, suspects=0;
+        for(JChannel ch: channels) {
+            Protocol fd=fd(ch);
+            if(fd instanceof FD_GOSSIP) {
+                FD_GOSSIP gossip=(FD_GOSSIP)fd;
+                sent+=gossip.getNumGossipsSent();
+                received+=gossip.getNumGossipsReceived();
+                bytes+=gossip.getNumBytesSent();
+                suspects+=gossip.getSuspectEventsSent();
+            }
+            else {
+                FD_ALL all=(FD_ALL)fd;
+                sent+=all.getHeartbeatsSent();
+                received+=all.getHeartbeatsReceived();
+                suspects+=all.getSuspectEventsSent();
+            }
+        }
+        double secs=duration / 1000.0;
+        System.out.println(String.format("per member and second: %.2f msgs sent, %.2f msgs received, %s payload sent",
+                                         sent / secs / num, received / secs / num, Util.printBytes(bytes / secs / num)));
+        System.out.println("false suspicions: " + suspects);
+    }
+
+    protected void measureDetectionTime() throws Exception {
+        JChannel victim=channels[num / 2];
+        System.out.println("Crashing " + victim.getAddress());
+        long start=System.currentTimeMillis();
+        ((DISCARD)victim.getProtocolStack().findProtocol(DISCARD.class)).setDiscardAll(true);
+        JChannel coord=channels[0];
+        for(;;) {
+            View view=coord.getView();
+            if(!view.containsMember(victim.getAddress()))
+                break;
+            if(System.currentTimeMillis() - start > 120000) {
+                System.out.println(victim.getAddress() + " was not excluded after 120 s");
+                return;
+            }
+            Util.sleep(50);
+        }
+        System.out.println(victim.getAddress() + " was excluded after " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    protected JChannel createChannel(String name) throws Exception {
+        SHARED_LOOPBACK transport=new SHARED_LOOPBACK();
+        transport.setTimer(timer);
+        transport.setDefaultThreadPool(thread_pool);
+        transport.setOOBThreadPool(oob_thread_pool);
+        Protocol fd="FD_ALL".equals(protocol)?
+          new FD_ALL().setValue("interval", interval).setValue("timeout", interval * 5)
+            .setValue("suppress_heartbeats", true) : // all members run the same configuration
+          new FD_GOSSIP().setValue("interval", interval);
+        JChannel ch=Util.createChannel(transport,
+                                       new DISCARD(),
+                                       new PING().setValue("timeout", 1000).setValue("num_initial_members", 2),
+                                       fd,
+                                       // small retransmit buffers: N members * N senders * 1M slots would exhaust the heap
+                                       new NAKACK2().setValue("xmit_buf_size", 1000)
+                                         .setValue("log_discard_msgs", false).setValue("log_not_found_msgs", false),
+                                       new UNICAST2(),
+                                       new GMS().setValue("print_local_addr", false).setValue("log_view_warnings", false)
+                                         .setValue("view_ack_collection_timeout", 2000).setValue("log_collect_msgs", false)
+                                         .setValue("leave_timeout", 100));
+        ch.setName(name);
+        return ch;
+    }
+
+    protected static Protocol fd(JChannel ch) {
+        Protocol fd=ch.getProtocolStack().findProtocol(FD_GOSSIP.class);
+        return fd != null? fd : ch.getProtocolStack().findProtocol(FD_ALL.class);
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        FailureDetectionPerf perf=new FailureDetectionPerf();
+        for(int i=0; i < args.length; i++) {
+            if("-num".equals(args[i])) {
+                perf.num=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-protocol".equals(args[i])) {
+                perf.protocol=args[++i];
+                continue;
+            }
+            if("-interval".equals(args[i])) {
+                perf.interval=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-duration".equals(args[i])) {
+                perf.duration=Long.parseLong(args[++i]);
+                continue;
+            }
+            help();
+            return;
+        }
+        perf.start();
+    }
+
+    static void help() {
+        System.out.println("FailureDetectionPerf [-num <members>] [-protocol FD_ALL | FD_GOSSIP] [-interval <ms>] " +
+                             "[-duration <ms of steady state>]");
+    }
+}
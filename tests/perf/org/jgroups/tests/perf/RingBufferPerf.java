@@ -0,0 +1,232 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.Message;
+import org.jgroups.util.RetransmitTable;
+import org.jgroups.util.RingBuffer;
+import org.jgroups.util.RingBufferLockless;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the throughput of the retransmission buffers used by NAKACK2 ({@link RingBuffer},
+ * {@link RingBufferLockless}) and NAKACK ({@link RetransmitTable}). A number of producer threads add messages with
+ * increasing seqnos and a single consumer removes them in batches, the same way NAKACK2 does. Every buffer is run
+ * with 1, 8 and 32 producers (changeable with -producers), and each run is preceded by a warmup run.
+ * @author agent
+ * @since 3.1
+ */
+public class RingBufferPerf {
+    protected int   num_msgs=5 * 1000 * 1000;
+    protected int   capacity=100 * 1000;
+    protected int   batch_size=100;
+    protected int   warmup_runs=1;
+    protected int[] producers={1, 8, 32};
+
+    protected static final Message MSG=new Message(false);
+
+
+    public void start() throws Exception {
+        BufferFactory[] factories={
+          new BufferFactory() {
+              public String name()   {return "RingBuffer";}
+              public Buffer create() {return new RingBufferAdapter(new RingBuffer<Message>(capacity, 0));}
+          },
+          new BufferFactory() {
+              public String name()   {return "RingBufferLockless";}
+              public Buffer create() {return new RingBufferAdapter(new RingBufferLockless<Message>(capacity, 0));}
+          },
+          new BufferFactory() {
+              public String name()   {return "RetransmitTable";}
+              public Buffer create() {return new RetransmitTableAdapter(new RetransmitTable(5, capacity / 5, 0));}
+          }
+        };
+
+        System.out.println("num_msgs=" + num_msgs + ", capacity=" + capacity + ", batch_size=" + batch_size + "\n");
+        for(int num_producers: producers) {
+            for(BufferFactory factory: factories) {
+                for(int i=0; i < warmup_runs; i++)
+                    run(factory.create(), num_producers);
+                long time=run(factory.create(), num_producers);
+                double msgs_sec=num_msgs / (time / 1000.0);
+                System.out.println(String.format("%-20s %2d producers: %6d ms, %,12.2f msgs/sec",
+                                                 factory.name(), num_producers, time, msgs_sec));
+            }
+            System.out.println("");
+        }
+    }
+
+    /** Runs num_producers adders and 1 remover against buf, returns the time (in ms) to add and remove all messages */
+    protected long run(final Buffer buf, int num_producers) throws Exception {
+        final AtomicLong seqnos=new AtomicLong(0);
+        final CyclicBarrier barrier=new CyclicBarrier(num_producers + 2);
+        Producer[] adders=new Producer[num_producers];
+        for(int i=0; i < adders.length; i++) {
+            adders[i]=new Producer(buf, seqnos, barrier);
+            adders[i].start();
+        }
+        Consumer consumer=new Consumer(buf, barrier);
+        consumer.start();
+
+        long start=System.nanoTime();
+        barrier.await();
+        consumer.join();
+        long time=(System.nanoTime() - start) / 1000000;
+        for(Producer adder: adders)
+            adder.join();
+        buf.destroy();
+        return time;
+    }
+
+
+    protected interface Buffer {
+        /** Adds a message, blocking if the buffer is full */
+        void add(long seqno, Message msg);
+
+        /** Removes up to max messages into list, returns the number of removed messages */
+        int removeMany(List<Message> list, int max);
+
+        void destroy();
+    }
+
+    protected interface BufferFactory {
+        String name();
+        Buffer create();
+    }
+
+    protected static class RingBufferAdapter implements Buffer {
+        protected final RingBuffer<Message> buf;
+
+        public RingBufferAdapter(RingBuffer<Message> buf) {this.buf=buf;}
+
+        public void add(long seqno, Message msg)          {buf.add(seqno, msg, true);}
+        public int  removeMany(List<Message> list, int max) {return buf.removeMany(list, null, true, max);}
+        public void destroy()                              {buf.destroy();}
+    }
+
+    /** RetransmitTable is not thread safe, so access to it is synchronized, as done by NakReceiverWindow in NAKACK */
+    protected static class RetransmitTableAdapter implements Buffer {
+        protected final RetransmitTable table;
+        protected long                  next_to_remove=1;
+
+        public RetransmitTableAdapter(RetransmitTable table) {
+            this.table=table;
+            table.setAutomaticPurging(true); // as done by NakReceiverWindow when discard_delivered_msgs is true
+        }
+
+        public synchronized void add(long seqno, Message msg) {
+            table.put(seqno, msg);
+        }
+
+        public synchronized int removeMany(List<Message> list, int max) {
+            int num=0;
+            Message msg;
+            while(num < max && (msg=table.remove(next_to_remove)) != null) {
+                list.add(msg);
+                next_to_remove++;
+                num++;
+            }
+            return num;
+        }
+
+        public void destroy() {}
+    }
+
+
+    protected class Producer extends Thread {
+        protected final Buffer        buf;
+        protected final AtomicLong    seqnos;
+        protected final CyclicBarrier barrier;
+
+        public Producer(Buffer buf, AtomicLong seqnos, CyclicBarrier barrier) {
+            this.buf=buf;
+            this.seqnos=seqnos;
+            this.barrier=barrier;
+            setName("Producer");
+        }
+
+        public void run() {
+            try {
+                barrier.await();
+            }
+            catch(Exception e) {
+                e.printStackTrace();
+                return;
+            }
+            long seqno;
+            while((seqno=seqnos.incrementAndGet()) <= num_msgs)
+                buf.add(seqno, MSG);
+        }
+    }
+
+    protected class Consumer extends Thread {
+        protected final Buffer        buf;
+        protected final CyclicBarrier barrier;
+
+        public Consumer(Buffer buf, CyclicBarrier barrier) {
+            this.buf=buf;
+            this.barrier=barrier;
+            setName("Consumer");
+        }
+
+        public void run() {
+            List<Message> list=new ArrayList<Message>(batch_size);
+            int removed=0;
+            try {
+                barrier.await();
+            }
+            catch(Exception e) {
+                e.printStackTrace();
+                return;
+            }
+            while(removed < num_msgs) {
+                list.clear();
+                int num=buf.removeMany(list, batch_size);
+                if(num == 0)
+                    Thread.yield();
+                removed+=num;
+            }
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        RingBufferPerf perf=new RingBufferPerf();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-num")) {
+                perf.num_msgs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-capacity")) {
+                perf.capacity=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-batch_size")) {
+                perf.batch_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-warmup")) {
+                perf.warmup_runs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-producers")) {
+                String[] tmp=args[++i].split(",");
+                perf.producers=new int[tmp.length];
+                for(int j=0; j < tmp.length; j++)
+                    perf.producers[j]=Integer.parseInt(tmp[j].trim());
+                continue;
+            }
+            help();
+            return;
+        }
+        perf.start();
+    }
+
+    protected static void help() {
+        System.out.println("RingBufferPerf [-num <number of messages>] [-capacity <buffer capacity>] " +
+                             "[-batch_size <max messages removed at once>] [-warmup <number of warmup runs>] " +
+                             "[-producers <comma separated list of producer thread counts, e.g. 1,8,32>]");
+    }
+}